@@ -1,3 +1,8 @@
+import org.gradle.process.ExecOperations
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import javax.inject.Inject
+
 plugins {
     id("java")
     id("application")
@@ -18,7 +23,6 @@ repositories {
 dependencies {
     testImplementation(platform("org.junit:junit-bom:5.10.0"))
     testImplementation("org.junit.jupiter:junit-jupiter")
-    implementation("commons-cli:commons-cli:1.5.0") //for cli parsing
 }
 
 application {
@@ -39,3 +43,280 @@ tasks.jar {
     })
     duplicatesStrategy = DuplicatesStrategy.EXCLUDE
 }
+
+// FAST STARTUP
+// Every twit call is a new process, so JVM startup and class loading are most of what a quick command costs.
+// 1) cdsArchive  -> build/libs/twit.jsa, an AppCDS archive of the classes typical commands load,
+//                   and build/libs/twit, a launcher that uses it
+// 2) nativeImage -> build/native/twit, a GraalVM native binary (needs native-image: $GRAALVM_HOME or the PATH)
+// 3) startupBenchmark -> compares the plain jar, the launcher, the native binary and C git (those that exist)
+// The JDK that runs Gradle is the one the archive is made for: the launcher must run the same JDK
+// (otherwise the JVM just ignores the archive).
+
+val mainJar = tasks.jar.flatMap { it.archiveFile }
+val gradleJava = File(System.getProperty("java.home"), "bin/java").path
+
+/**
+ * Builds a small repository with twit itself: a few directories of files, two commits and a tag
+ */
+fun scratchRepo(exec: ExecOperations, jar: File, dir: File) {
+    dir.deleteRecursively()
+    dir.mkdirs()
+    fun twit(vararg args: String) {
+        exec.exec {
+            commandLine(gradleJava, "-cp", jar.path, "com.gopal.twit.Main", *args)
+            workingDir = dir
+            standardOutput = ByteArrayOutputStream()
+        }
+    }
+    twit("init", ".")
+    for (d in 0 until 10) {
+        for (f in 0 until 20) {
+            File(dir, "src/dir$d/file$f.txt").apply { parentFile.mkdirs() }
+                .writeText("file $f of dir $d\n".repeat(1 + f))
+        }
+    }
+    File(dir, ".gitignore").writeText("*.log\nbuild/\n")
+    twit("add", ".")
+    twit("commit", "-m", "first")
+    File(dir, "src/dir0/file0.txt").appendText("changed\n")
+    twit("add", "src/dir0/file0.txt")
+    twit("commit", "-m", "second")
+    twit("tag", "v1")
+}
+
+/**
+ * Runs typical commands on a scratch repository, each with -XX:DumpLoadedClassList, merges the class lists,
+ * and dumps a static AppCDS archive from them (one archive covering all those commands)
+ */
+abstract class CdsArchive @Inject constructor(private val exec: ExecOperations) : DefaultTask() {
+    @get:InputFile abstract val jar: RegularFileProperty
+    @get:Input abstract val javaBin: Property<String>
+    @get:Internal abstract val workDir: DirectoryProperty
+    @get:OutputFile abstract val archive: RegularFileProperty
+    @get:OutputFile abstract val launcher: RegularFileProperty
+    @get:Internal lateinit var makeRepo: (ExecOperations, File, File) -> Unit
+
+    @TaskAction
+    fun dump() {
+        val jarFile = jar.get().asFile
+        val work = workDir.get().asFile
+        val repo = File(work, "repo")
+        makeRepo(exec, jarFile, repo)
+
+        val training = listOf(
+            listOf("status"), listOf("rev-parse", "HEAD"), listOf("log", "HEAD"), listOf("rev-list", "--count", "HEAD"),
+            listOf("cat-file", "commit", "HEAD"), listOf("cat-file", "--batch-check"), listOf("ls-tree", "-r", "HEAD"),
+            listOf("ls-files"), listOf("show-ref"), listOf("tag"), listOf("check-ignore", "x.log"),
+            listOf("hash-object", "src/dir1/file1.txt"), listOf("add", "src/dir1/file1.txt"), listOf("commit", "-m", "third")
+        )
+        val lists = training.mapIndexed { i, args ->
+            val list = File(work, "$i.classlist")
+            exec.exec {
+                commandLine(javaBin.get(), "-XX:DumpLoadedClassList=${list.path}", "-cp", jarFile.path, "com.gopal.twit.Main", *args.toTypedArray())
+                workingDir = repo
+                standardInput = ByteArrayInputStream("HEAD\nv1\n".toByteArray())
+                standardOutput = ByteArrayOutputStream()
+            }
+            list
+        }
+
+        //the ids only mean something inside their own list, and the classes of other loaders can't be merged
+        val merged = LinkedHashSet<String>()
+        for (list in lists) {
+            list.readLines().filter { !it.contains(" source: ") }
+                .mapTo(merged) { it.replace(Regex(" id: \\d+$"), "") }
+        }
+        val classList = File(work, "twit.classlist")
+        classList.writeText(merged.joinToString("\n", postfix = "\n"))
+
+        exec.exec {
+            commandLine(javaBin.get(), "-Xshare:dump", "-XX:SharedClassListFile=${classList.path}",
+                "-XX:SharedArchiveFile=${archive.get().asFile.path}", "-cp", jarFile.path)
+            standardOutput = ByteArrayOutputStream()
+        }
+
+        //short commands are done before C2 would have paid off, long ones (the daemon, repacking) want it
+        launcher.get().asFile.apply {
+            writeText("""
+                |#!/bin/sh
+                |# twit launcher: the jar next to this script, with its AppCDS archive (see ./gradlew cdsArchive)
+                |dir=${'$'}(cd "${'$'}(dirname "${'$'}0")" && pwd)
+                |case "${'$'}1" in
+                |    daemon|gc|repack) opts="" ;;
+                |    *) opts="-XX:TieredStopAtLevel=1 -XX:+UseSerialGC" ;;
+                |esac
+                |exec "${'$'}{JAVA_HOME:+${'$'}JAVA_HOME/bin/}java" -Xshare:auto -XX:SharedArchiveFile="${'$'}dir/twit.jsa" ${'$'}opts \
+                |    -cp "${'$'}dir/${jarFile.name}" com.gopal.twit.Main "${'$'}@"
+                |""".trimMargin())
+            setExecutable(true)
+        }
+    }
+}
+
+tasks.register<CdsArchive>("cdsArchive") {
+    group = "distribution"
+    description = "Generates an AppCDS archive (build/libs/twit.jsa) and a launcher using it (build/libs/twit)"
+    jar.set(mainJar)
+    javaBin.set(gradleJava)
+    workDir.set(layout.buildDirectory.dir("cds"))
+    archive.set(layout.buildDirectory.file("libs/twit.jsa"))
+    launcher.set(layout.buildDirectory.file("libs/twit"))
+    makeRepo = ::scratchRepo
+}
+
+tasks.register<Exec>("nativeImage") {
+    group = "distribution"
+    description = "Builds a native binary with GraalVM (build/native/twit)"
+    dependsOn(tasks.jar)
+    val output = layout.buildDirectory.file("native/twit")
+    inputs.file(mainJar)
+    outputs.file(output)
+
+    //the image options live in the jar: META-INF/native-image/com.gopal.twit/twit/native-image.properties
+    val graal = System.getenv("GRAALVM_HOME")
+    executable = if (graal != null) "$graal/bin/native-image" else "native-image"
+    argumentProviders.add(CommandLineArgumentProvider {
+        listOf("-jar", mainJar.get().asFile.path, "-o", output.get().asFile.path)
+    })
+    doFirst { output.get().asFile.parentFile.mkdirs() }
+}
+
+/**
+ * Times quick commands, one process per call, for each way of running twit that has been built
+ * Prints the median and the fastest run, and writes them to build/reports/startup-benchmark.txt
+ */
+abstract class StartupBenchmark @Inject constructor(private val exec: ExecOperations) : DefaultTask() {
+    @get:InputFile abstract val jar: RegularFileProperty
+    @get:Input abstract val javaBin: Property<String>
+    @get:Internal abstract val workDir: DirectoryProperty
+    @get:Internal abstract val launcher: RegularFileProperty
+    @get:Internal abstract val nativeBinary: RegularFileProperty
+    @get:Input abstract val runs: Property<Int>
+    @get:OutputFile abstract val report: RegularFileProperty
+    @get:Internal lateinit var makeRepo: (ExecOperations, File, File) -> Unit
+
+    @TaskAction
+    fun run() {
+        val jarFile = jar.get().asFile
+        val repo = File(workDir.get().asFile, "repo")
+        makeRepo(exec, jarFile, repo)
+
+        val variants = linkedMapOf<String, List<String>>("jar" to listOf(javaBin.get(), "-cp", jarFile.path, "com.gopal.twit.Main"))
+        launcher.get().asFile.takeIf { it.exists() }?.let { variants["jar + AppCDS"] = listOf(it.path) }
+        nativeBinary.get().asFile.takeIf { it.exists() }?.let { variants["native"] = listOf(it.path) }
+        val hasGit = runCatching {
+            exec.exec { commandLine("git", "--version"); standardOutput = ByteArrayOutputStream() }
+        }.isSuccess
+        if (hasGit) {
+            variants["C git"] = listOf("git")
+        }
+
+        val lines = mutableListOf(String.format("%-14s %-16s %10s %10s", "variant", "command", "median ms", "min ms"))
+        for ((name, prefix) in variants) {
+            for (command in listOf(listOf("rev-parse", "HEAD"), listOf("status"))) {
+                val times = (0 until runs.get() + 2).map {
+                    val start = System.nanoTime()
+                    exec.exec {
+                        commandLine(prefix + command)
+                        workingDir = repo
+                        standardOutput = ByteArrayOutputStream()
+                    }
+                    (System.nanoTime() - start) / 1e6
+                }.drop(2).sorted()//the first runs warm up the file system cache
+                lines += String.format("%-14s %-16s %10.1f %10.1f", name, command.joinToString(" "), times[times.size / 2], times[0])
+            }
+        }
+
+        lines.forEach { println(it) }
+        report.get().asFile.apply {
+            parentFile.mkdirs()
+            writeText(lines.joinToString("\n", postfix = "\n"))
+        }
+    }
+}
+
+tasks.register<StartupBenchmark>("startupBenchmark") {
+    group = "verification"
+    description = "Times rev-parse and status per process: jar, jar + AppCDS, native binary, C git"
+    jar.set(mainJar)
+    javaBin.set(gradleJava)
+    workDir.set(layout.buildDirectory.dir("startup"))
+    launcher.set(layout.buildDirectory.file("libs/twit"))
+    nativeBinary.set(layout.buildDirectory.file("native/twit"))
+    runs.set((findProperty("runs") as String?)?.toInt() ?: 20)
+    report.set(layout.buildDirectory.file("reports/startup-benchmark.txt"))
+    makeRepo = ::scratchRepo
+    outputs.upToDateWhen { false }
+}
+
+// BENCHMARKS
+// src/jmh/java holds JMH benchmarks (not part of build: run them with ./gradlew jmh)
+//   -Pjmh.include=REGEX        only the benchmarks matching REGEX (e.g. IndexIO)
+//   -Pjmh.args="..."           more JMH options (e.g. "-f 2 -wi 5 -p entries=10000")
+//   -Pjmh.baseline=FILE        compare with an earlier results.json, and fail if a benchmark got slower than
+//   -Pjmh.threshold=PERCENT    PERCENT (default 10) beyond its error margins
+// Results (JMH's JSON) go to build/reports/jmh/results.json
+
+val jmhVersion = "1.37"
+
+sourceSets {
+    create("jmh") {
+        compileClasspath += sourceSets.main.get().output
+        runtimeClasspath += sourceSets.main.get().output
+    }
+}
+
+dependencies {
+    "jmhImplementation"("org.openjdk.jmh:jmh-core:$jmhVersion")
+    "jmhAnnotationProcessor"("org.openjdk.jmh:jmh-generator-annprocess:$jmhVersion")
+}
+
+/**
+ * Compares two JMH results.json: the benchmarks (with their params) that got slower than threshold percent,
+ * once the error margins of both runs are taken out. Scores are times per operation, lower is better.
+ */
+fun jmhRegressions(baseline: File, current: File, threshold: Double): List<String> {
+    @Suppress("UNCHECKED_CAST")
+    fun scores(file: File): Map<String, Pair<Double, Double>> =
+        (groovy.json.JsonSlurper().parse(file) as List<Map<String, Any?>>).associate { run ->
+            val params = (run["params"] as Map<String, Any?>?)?.entries?.joinToString(",") { "${it.key}=${it.value}" }
+            val metric = run["primaryMetric"] as Map<String, Any?>
+            val error = (metric["scoreError"] as? Number)?.toDouble()?.takeIf { !it.isNaN() } ?: 0.0
+            "${run["benchmark"]}${params?.let { "($it)" } ?: ""}" to ((metric["score"] as Number).toDouble() to error)
+        }
+
+    val before = scores(baseline)
+    return scores(current).mapNotNull { (name, now) ->
+        val old = before[name] ?: return@mapNotNull null
+        val change = ((now.first - now.second) - (old.first + old.second)) / old.first * 100
+        if (change > threshold) String.format("%s: %.3f -> %.3f (+%.1f%%)", name, old.first, now.first, change) else null
+    }
+}
+
+tasks.register<JavaExec>("jmh") {
+    group = "verification"
+    description = "Runs the JMH benchmarks of src/jmh (results in build/reports/jmh/results.json)"
+    classpath = sourceSets["jmh"].runtimeClasspath
+    mainClass.set("org.openjdk.jmh.Main")
+    val results = layout.buildDirectory.file("reports/jmh/results.json")
+    outputs.file(results)
+    outputs.upToDateWhen { false }
+
+    val include = findProperty("jmh.include") as String?
+    val extra = (findProperty("jmh.args") as String?)?.split(" ")?.filter { it.isNotBlank() } ?: emptyList()
+    args(listOf("-rf", "json", "-rff", results.get().asFile.path) + extra + listOfNotNull(include))
+    doFirst { results.get().asFile.parentFile.mkdirs() }
+
+    val baseline = (findProperty("jmh.baseline") as String?)?.let { file(it) }
+    val threshold = (findProperty("jmh.threshold") as String?)?.toDouble() ?: 10.0
+    doLast {
+        if (baseline != null) {
+            val slower = jmhRegressions(baseline, results.get().asFile, threshold)
+            slower.forEach { logger.error("slower: $it") }
+            if (slower.isNotEmpty()) {
+                throw GradleException("${slower.size} benchmark(s) slower than ${baseline.name} by more than $threshold%")
+            }
+        }
+    }
+}
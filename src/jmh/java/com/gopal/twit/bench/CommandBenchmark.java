@@ -0,0 +1,75 @@
+package com.gopal.twit.bench;
+
+import com.gopal.twit.util.RepoGenerator.Spec;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * status, log and commit end to end, in generated repositories (see RepoFixture) of 1k and 10k files
+ * with a history of 200 commits
+ * Commands run in this (warm) JVM, so this is what a command costs once started: see the startupBenchmark task
+ * for the cost of starting a process.
+ * status runs on a clean worktree; commit commits one changed file (changed and added before each call).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CommandBenchmark {
+    private static final int COMMITS = 200;
+    private static final long SEED = 11;
+
+    @State(Scope.Benchmark)
+    public static class Repo {
+        @Param({"1000", "10000"})
+        public int files;
+
+        Spec spec;
+        Path dir;
+
+        @Setup
+        public void setup() throws Exception{
+            spec = RepoFixture.spec(files, COMMITS, SEED);
+            dir = RepoFixture.create(spec);
+            //the index was written right after the files, so they're all racily clean: a first status refreshes it
+            RepoFixture.twit(dir, "status");
+        }
+
+        @TearDown
+        public void tearDown() throws Exception{
+            RepoFixture.delete(dir);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Staged extends Repo {
+        private long counter;
+
+        @Setup(Level.Invocation)
+        public void change() throws Exception{
+            String changed = spec.path(files / 2);
+            Files.writeString(dir.resolve(changed), "change " + counter++ + "\n", StandardOpenOption.APPEND);
+            RepoFixture.twit(dir, "add", changed);
+        }
+    }
+
+    @Benchmark
+    public void status(Repo repo) throws Exception{
+        RepoFixture.twit(repo.dir, "status");
+    }
+
+    @Benchmark
+    public void log(Repo repo) throws Exception{
+        RepoFixture.twit(repo.dir, "log", "HEAD");
+    }
+
+    @Benchmark
+    public void commit(Staged repo) throws Exception{
+        RepoFixture.twit(repo.dir, "commit", "-m", "change " + repo.counter);
+    }
+}
@@ -0,0 +1,130 @@
+package com.gopal.twit.bench;
+
+import com.gopal.twit.core.GitRepository;
+import com.gopal.twit.core.ignore.GitIgnore;
+import com.gopal.twit.util.IgnoreParser;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ignore matching with the kind of rules real projects have: a root .gitignore of ~60 rules
+ * (names, extensions, anchored paths, directories, globs, negations), a few nested ones and info/exclude
+ * One operation reads the rules and checks 10k paths (the untracked files of a big status), with a fresh
+ * GitIgnore each time so its cache of directory answers starts empty, as in a new process.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IgnoreBenchmark {
+    private static final String ROOT_RULES = """
+            # build output
+            /build/
+            /out/
+            target/
+            bin/
+            *.class
+            *.jar
+            *.war
+            *.o
+            *.so
+            *.a
+            *.dylib
+            *.pyc
+            __pycache__/
+            *.egg-info/
+            dist/
+            # dependencies
+            node_modules/
+            bower_components/
+            vendor/
+            .gradle/
+            # editors
+            .idea/
+            *.iml
+            .vscode/
+            *.swp
+            *~
+            .DS_Store
+            Thumbs.db
+            # logs and temp files
+            *.log
+            logs/
+            *.tmp
+            *.bak
+            tmp/
+            npm-debug.log*
+            yarn-error.log*
+            # environments
+            .env
+            .env.*
+            !.env.example
+            *.pem
+            # coverage
+            coverage/
+            .nyc_output/
+            *.lcov
+            # generated code
+            src/generated/**/*.java
+            **/gen/
+            docs/_build/
+            *.min.js
+            *.min.css
+            !vendor/keep.min.js
+            # archives
+            *.zip
+            *.tar.gz
+            *.tgz
+            *.7z
+            /release-*.txt
+            core.[0-9]*
+            """;
+
+    private Path dir;
+    private GitRepository repo;
+    private List<String> paths;
+
+    @Setup
+    public void setup() throws Exception{
+        dir = RepoFixture.empty();
+        Files.writeString(dir.resolve(".gitignore"), ROOT_RULES);
+        Files.createDirectories(dir.resolve("web/app"));
+        Files.writeString(dir.resolve("web/.gitignore"), "/static/\n*.map\n!important.map\n.cache/\n");
+        Files.writeString(dir.resolve("web/app/.gitignore"), "config.local.js\n*.snap\n");
+        Files.createDirectories(dir.resolve(".git/info"));
+        Files.writeString(dir.resolve(".git/info/exclude"), "scratch/\n*.orig\n");
+        RepoFixture.twit(dir, "add", ".gitignore", "web/.gitignore", "web/app/.gitignore");
+        repo = new GitRepository(dir, false);
+
+        String[] dirs = {"src/main/java/com/example", "src/generated/api", "web/app/components", "web/static/img",
+                "node_modules/lodash", "build/classes", "docs", "scripts", "lib/gen", "scratch"};
+        String[] files = {"Main.java", "Main.class", "index.js", "index.min.js", "app.js.map", "important.map",
+                "README.md", "server.log", "notes.tmp", "Component.snap", ".env", ".env.example", "core.1234", "a.o"};
+        paths = new ArrayList<>();
+        for(int i = 0; paths.size() < 10_000; i++){
+            String d = dirs[i % dirs.length] + "/m" + (i / 97 % 13);
+            paths.add(d + "/" + i + "_" + files[i % files.length]);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception{
+        RepoFixture.delete(dir);
+    }
+
+    @Benchmark
+    public void checkIgnore(Blackhole bh) throws Exception{
+        GitIgnore rules = IgnoreParser.gitIgnoreRead(repo);
+        for(String path : paths){
+            bh.consume(IgnoreParser.checkIgnore(rules, path));
+        }
+    }
+}
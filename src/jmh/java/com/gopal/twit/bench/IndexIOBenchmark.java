@@ -0,0 +1,96 @@
+package com.gopal.twit.bench;
+
+import com.gopal.twit.core.GitRepository;
+import com.gopal.twit.core.index.FileStat;
+import com.gopal.twit.core.index.GitIndex;
+import com.gopal.twit.core.index.GitIndexEntry;
+import com.gopal.twit.core.index.MappedIndex;
+import com.gopal.twit.core.objects.ObjectId;
+import com.gopal.twit.util.IndexIO;
+import com.gopal.twit.util.RepoGenerator;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading and writing .git/index with 10k, 100k and 1M entries
+ * indexReadCold maps the file again every time, like a new process does; indexRead reuses the last mapping
+ * (like a daemon does) and only pays for the stamp check and the lookups.
+ * Both read every name and id, as status does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class IndexIOBenchmark {
+    @Param({"10000", "100000", "1000000"})
+    public int entries;
+
+    @Param({"2", "4"})
+    public int version;
+
+    private Path dir;
+    private GitRepository repo;
+    private GitIndex index;
+
+    @Setup
+    public void setup() throws Exception{
+        dir = RepoFixture.empty();
+        repo = new GitRepository(dir, false);
+
+        Random random = new Random(7);
+        RepoGenerator.Spec layout = RepoFixture.spec(entries, 1, 7);
+        List<String> names = new ArrayList<>(entries);
+        for(int i = 0; i < entries; i++){
+            names.add(layout.path(i));
+        }
+        names.sort(null);
+
+        List<GitIndexEntry> list = new ArrayList<>(entries);
+        byte[] sha = new byte[20];
+        for(String name : names){
+            random.nextBytes(sha);
+            long time = 1_700_000_000L + random.nextInt(1_000_000);
+            FileStat stat = new FileStat(time, random.nextInt(1_000_000_000), time, random.nextInt(1_000_000_000),
+                    2049, random.nextInt(1 << 30), 0b1000, 0644, 1000, 1000, random.nextInt(1 << 16));
+            list.add(stat.toEntry(ObjectId.toHex(sha, 0), name));
+        }
+        index = new GitIndex(version, list);
+        IndexIO.indexWrite(repo, index);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception{
+        RepoFixture.delete(dir);
+    }
+
+    @Benchmark
+    public void indexReadCold(Blackhole bh) throws Exception{
+        GitIndex read = new GitIndex(MappedIndex.open(repo.repoFile("index")));
+        touch(read, bh);
+    }
+
+    @Benchmark
+    public void indexRead(Blackhole bh) throws Exception{
+        touch(IndexIO.indexRead(repo), bh);
+    }
+
+    @Benchmark
+    public void indexWrite() throws Exception{
+        IndexIO.indexWrite(repo, index);
+    }
+
+    private static void touch(GitIndex read, Blackhole bh){
+        for(int i = 0; i < read.size(); i++){
+            bh.consume(read.nameAt(i));
+            bh.consume(read.idAt(i));
+        }
+    }
+}
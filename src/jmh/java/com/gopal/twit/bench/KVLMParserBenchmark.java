@@ -0,0 +1,63 @@
+package com.gopal.twit.bench;
+
+import com.gopal.twit.core.objects.ObjectId;
+import com.gopal.twit.util.KVLMParser;
+import com.gopal.twit.util.KVLMReader;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Commit headers: a plain commit, and a signed merge commit (a multi-line gpgsig header and two parents)
+ * parse builds the whole map; reader is what log and rev-list do instead (KVLMReader, decoding only what's asked)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KVLMParserBenchmark {
+    @Param({"plain", "signed-merge"})
+    public String commit;
+
+    private byte[] raw;
+
+    @Setup
+    public void setup(){
+        StringBuilder sb = new StringBuilder();
+        sb.append("tree 9c1d2a3e4f5061728394a5b6c7d8e9f0a1b2c3d4\n");
+        sb.append("parent 1f2e3d4c5b6a79880716253443526170899a0b1c\n");
+        if(commit.equals("signed-merge")){
+            sb.append("parent 2a3b4c5d6e7f80911a2b3c4d5e6f708192a3b4c5\n");
+        }
+        sb.append("author Jane Developer <jane@example.com> 1700000000 +0100\n");
+        sb.append("committer Jane Developer <jane@example.com> 1700000100 +0100\n");
+        if(commit.equals("signed-merge")){
+            sb.append("gpgsig -----BEGIN PGP SIGNATURE-----\n \n");
+            for(int i = 0; i < 12; i++){
+                sb.append(" iQIzBAABCAAdFiEEabcdefghijklmnopqrstuvwxyz0123456789ABCDEFGH").append(i).append('\n');
+            }
+            sb.append(" -----END PGP SIGNATURE-----\n");
+        }
+        sb.append("\nFix the race between the index writer and status\n\n");
+        sb.append("The index was read before taking the lock, so a concurrent add could be lost.\n");
+        raw = sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public Map<String, Object> parse(){
+        return KVLMParser.parse(raw);
+    }
+
+    @Benchmark
+    public List<ObjectId> reader(){
+        KVLMReader reader = new KVLMReader(raw);
+        reader.tree();
+        reader.commitTime();
+        return reader.parents();
+    }
+}
@@ -0,0 +1,92 @@
+package com.gopal.twit.bench;
+
+import com.gopal.twit.core.GitRepository;
+import com.gopal.twit.core.objects.GitBlob;
+import com.gopal.twit.core.objects.GitObject;
+import com.gopal.twit.core.objects.ObjectId;
+import com.gopal.twit.core.objects.RawObject;
+import com.gopal.twit.util.ObjectCache;
+import com.gopal.twit.util.ObjectIO;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loose object reads and writes
+ * objectRead goes around the ObjectCache (cleared before every read), it's the cost of a first read:
+ * finding the file, inflating it and parsing it
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ObjectIOBenchmark {
+    private static final int OBJECTS = 1000;
+
+    @Param({"1024", "65536"})
+    public int blobSize;
+
+    private Path dir;
+    private GitRepository repo;
+    private ObjectId[] ids;
+    private byte[] data;
+    private long counter;
+    private int next;
+
+    @Setup
+    public void setup() throws Exception{
+        dir = RepoFixture.empty();
+        repo = new GitRepository(dir, false);
+
+        Random random = new Random(42);
+        data = new byte[blobSize];
+        random.nextBytes(data);
+        //half random, half repeated: compresses about like source code
+        for(int i = blobSize / 2; i < blobSize; i++){
+            data[i] = (byte) ('a' + i % 26);
+        }
+
+        ids = new ObjectId[OBJECTS];
+        for(int i = 0; i < OBJECTS; i++){
+            ids[i] = ObjectId.fromHex(ObjectIO.objectWrite(new GitBlob(unique(i)), repo));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception{
+        RepoFixture.delete(dir);
+    }
+
+    //the same content, but for its first 8 bytes {so every write is a new object}
+    private byte[] unique(long n){
+        byte[] b = data.clone();
+        ByteBuffer.wrap(b).putLong(n);
+        return b;
+    }
+
+    @Benchmark
+    public GitObject objectRead() throws Exception{
+        ObjectCache.shared().clear();
+        return ObjectIO.objectRead(repo, ids[next++ % OBJECTS]);
+    }
+
+    @Benchmark
+    public RawObject objectReadRaw() throws Exception{
+        return ObjectIO.objectReadRaw(repo, ids[next++ % OBJECTS]);
+    }
+
+    @Benchmark
+    public String objectWrite() throws Exception{
+        return ObjectIO.objectWrite(new GitBlob(unique(OBJECTS + counter++)), repo);
+    }
+
+    @Benchmark
+    public String objectHash() throws Exception{
+        return ObjectIO.objectWrite(new GitBlob(data), null);
+    }
+}
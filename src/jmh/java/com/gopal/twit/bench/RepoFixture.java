@@ -0,0 +1,75 @@
+package com.gopal.twit.bench;
+
+import com.gopal.twit.Main;
+import com.gopal.twit.core.GitRepository;
+import com.gopal.twit.util.RepoGenerator;
+import com.gopal.twit.util.RepoGenerator.Spec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Scratch repositories for the benchmarks, in temp directories
+ * They come from RepoGenerator: the same spec gives the same repository, SHA for SHA, so results stay
+ * comparable from one version of twit to the next.
+ */
+public class RepoFixture {
+    private static final PrintStream NULL = new PrintStream(OutputStream.nullOutputStream());
+
+    /**
+     * files in directories 3 deep and 8 wide, and a history of that many commits with a few merged branches and tags
+     */
+    public static Spec spec(int files, int commits, long seed){
+        return new Spec(seed, files, 3, 8, 2048, 1.0, 1 << 20, commits, 5, commits / 25, commits / 20, true);
+    }
+
+    public static Path create(Spec spec) throws Exception{
+        Path dir = Files.createTempDirectory("twit-bench");
+        RepoGenerator.generate(dir, spec);
+        return dir;
+    }
+
+    /**
+     * An empty repository
+     */
+    public static Path empty() throws IOException{
+        Path dir = Files.createTempDirectory("twit-bench");
+        GitRepository.create(dir);
+        return dir;
+    }
+
+    /**
+     * Runs a twit command in dir, its output thrown away
+     */
+    public static void twit(Path dir, String... args) throws IOException{
+        PrintStream out = System.out;
+        int code;
+        try{
+            System.setOut(NULL);
+            GitRepository.setCwd(dir);
+            code = Main.run(args);
+        } finally {
+            GitRepository.setCwd(null);
+            System.setOut(out);
+        }
+        if(code != 0){
+            throw new IOException("twit " + String.join(" ", args) + " failed in " + dir);
+        }
+    }
+
+    public static void delete(Path dir) throws IOException{
+        if(dir == null || !Files.exists(dir)){
+            return;
+        }
+        try(Stream<Path> paths = Files.walk(dir)){
+            for(Path p : paths.sorted(Comparator.reverseOrder()).toList()){
+                Files.delete(p);
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.gopal.twit.bench;
+
+import com.gopal.twit.core.objects.GitTreeLeaf;
+import com.gopal.twit.core.objects.ObjectId;
+import com.gopal.twit.util.TreeParser;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tree objects of 10, 100 and 1000 entries (a fifth of them subtrees)
+ * serialize is given the entries out of order, so it pays for the sort like after an edit
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TreeParserBenchmark {
+    @Param({"10", "100", "1000"})
+    public int size;
+
+    private byte[] raw;
+    private List<GitTreeLeaf> leaves;
+
+    @Setup
+    public void setup(){
+        Random random = new Random(3);
+        leaves = new ArrayList<>(size);
+        byte[] sha = new byte[20];
+        for(int i = 0; i < size; i++){
+            random.nextBytes(sha);
+            boolean tree = i % 5 == 0;
+            String name = tree ? "module" + i : "SomeSourceFile" + i + ".java";
+            leaves.add(new GitTreeLeaf(tree ? GitTreeLeaf.MODE_TREE : GitTreeLeaf.MODE_FILE, name, ObjectId.fromRaw(sha, 0)));
+        }
+        Collections.shuffle(leaves, random);
+        raw = TreeParser.serialize(leaves);
+    }
+
+    @Benchmark
+    public List<GitTreeLeaf> parse(){
+        return TreeParser.parse(raw);
+    }
+
+    @Benchmark
+    public byte[] serialize(){
+        return TreeParser.serialize(leaves);
+    }
+}
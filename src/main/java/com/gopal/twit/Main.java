@@ -1,7 +1,10 @@
 package com.gopal.twit;
 
 import com.gopal.twit.commands.*;
+import com.gopal.twit.util.DaemonProtocol;
+import com.gopal.twit.util.ObjectCache;
 
+import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
@@ -26,15 +29,42 @@ public class Main {
         commands.put("add", new AddCommand());
         commands.put("rm", new RmCommand());
         commands.put("commit", new CommitCommand());
+        commands.put("repack", new RepackCommand());
+        commands.put("gc", new GcCommand());
+        commands.put("commit-graph", new CommitGraphCommand());
+        commands.put("generate-repo", new GenerateRepoCommand());
+        commands.put("rev-list", new RevListCommand());
+        commands.put("pack-refs", new PackRefsCommand());
+        commands.put("daemon", new DaemonCommand());
     }
 
     public static void main(String[] args) {
+        //with TWIT_DAEMON set, the command is run by the daemon listening on that socket, if there is one
+        String socket = System.getenv("TWIT_DAEMON");
+        if(socket != null && !socket.isEmpty() && !(args.length > 0 && args[0].equals("daemon"))){
+            Integer code = DaemonProtocol.forward(Path.of(socket), args);
+            if(code != null){
+                System.exit(code);
+            }
+        }
+
+        int code = run(args);
+        if(code != 0){
+            System.exit(code);
+        }
+    }
+
+    /**
+     * Runs one command, and returns its exit code
+     * {main runs one per process, a daemon runs one per request: see DaemonCommand}
+     */
+    public static int run(String[] args) {
         if(args.length == 0){
             System.err.println("Usage: twit <commands> [<args>]");
             System.err.println("\nAvailable commands:");
             commands.keySet().stream().sorted().forEach(cmd ->
                     System.err.println(" " + cmd));
-            System.exit(1);
+            return 1;
         }
 
         String commandName = args[0];
@@ -43,15 +73,24 @@ public class Main {
         Command command = commands.get(commandName);
         if(command == null){
             System.err.println("Unknown command: " + commandName);
-            System.exit(1);
+            return 1;
         }
 
         try{
             command.execute(commandArgs);
+            return 0;
+        } catch (CommandException e){
+            System.err.println("Error: " + e.getMessage());
+            return 1;
         } catch (Exception e){
             System.err.println("Error: " + e.getMessage());
             e.printStackTrace();
-            System.exit(1);
+            return 1;
+        } finally {
+            if(Boolean.getBoolean("twit.cache.stats")){
+                System.err.println(ObjectCache.shared().stats());
+            }
+            System.out.flush();
         }
     }
 }
@@ -1,133 +1,200 @@
 package com.gopal.twit.commands;
 
 import com.gopal.twit.core.GitRepository;
+import com.gopal.twit.core.ignore.GitIgnore;
+import com.gopal.twit.core.index.FileStat;
 import com.gopal.twit.core.index.GitIndex;
 import com.gopal.twit.core.index.GitIndexEntry;
+import com.gopal.twit.util.IgnoreParser;
 import com.gopal.twit.util.IndexIO;
+import com.gopal.twit.util.LockFile;
 import com.gopal.twit.util.ObjectIO;
+import com.gopal.twit.util.PathOrder;
+import com.gopal.twit.util.WorktreeScanner;
 
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * STEPS:
- * 1) Firstly, remove the existing index entry, if there’s one, without removing the file itself {basically remove the path' entry from the index if already there}
- * 2) Then hash the file into a glob object
- * 3) Then create its entry
- * 4) Finally write the modified index back
+ * 1) Resolve the paths to pairs {absolute, relative_to_worktree}, sorted like the index
+ *    A directory is scanned (in parallel) for the files below it, skipping the ignored ones
+ * 2) Then stat each file and hash it into a blob object {stat + SHA-1 + deflate, in a single read of the file}
+ *    This is the expensive part, so it runs on a pool of workers (-j N / --jobs=N, defaults to one per core)
+ * 3) Then create the entries, in path order, whatever order the workers finished in
+ * 4) Finally merge them into the index (replacing the existing entries for those paths) and write it back once
  */
 public class AddCommand implements Command{
     @Override
     public void execute(String[] args) throws Exception {
-        if(args.length == 0){
-            System.err.println("Usage: twit add <path>...");
+        int jobs = Runtime.getRuntime().availableProcessors();
+        List<String> paths = new ArrayList<>();
+
+        for(int i = 0; i < args.length; i++){
+            if(args[i].equals("-j") && i + 1 < args.length){
+                jobs = Integer.parseInt(args[++i]);
+            }
+            else if(args[i].startsWith("--jobs=")){
+                jobs = Integer.parseInt(args[i].substring(7));
+            }
+            else{
+                paths.add(args[i]);
+            }
+        }
+
+        if(paths.isEmpty()){
+            System.err.println("Usage: twit add [-j N] <path|dir>...");
             return;
         }
 
         GitRepository repo = GitRepository.find();
-        add(repo, Arrays.asList(args));
+        add(repo, paths, jobs);
     }
 
-    private void add(GitRepository repo, List<String> paths) throws Exception{
-        //first remove paths from index, if already exist
-        rm(repo, paths, false, true);
+    private void add(GitRepository repo, List<String> paths, int jobs) throws Exception{
+        //index.lock is held from the read to the write, so a concurrent add/rm/commit can't be lost
+        try(LockFile lock = IndexIO.indexLock(repo)){
+            add(repo, lock, paths, jobs);
+        }
+    }
 
+    private void add(GitRepository repo, LockFile lock, List<String> paths, int jobs) throws Exception{
         Path worktree = repo.getWorktree();
-        Set<PathPair> cleanPaths = new HashSet<>(); //stores the paths as pairs {absolute, relative_to_worktree}
+        GitIndex index = IndexIO.indexRead(repo);
+        GitIgnore ignore = null;//only needed when adding directories
+        //stores the paths as pairs {absolute, relative_to_worktree}, ordered by relative path so the index comes out sorted
+        SortedMap<String, PathPair> cleanPaths = new TreeMap<>(PathOrder.COMPARATOR);
 
         //Convert the paths to pairs: (absolute, relative_to_worktree).
         for(String path : paths){
-            Path absPath = Paths.get(path).toAbsolutePath();
+            Path absPath = GitRepository.resolve(path);
+
+            if(absPath.startsWith(worktree) && Files.isDirectory(absPath) && !absPath.startsWith(repo.getGitDir())){
+                //a directory adds every file below it, except the ignored ones that aren't tracked yet
+                if(ignore == null){
+                    ignore = IgnoreParser.gitIgnoreRead(repo);
+                }
+                addDirectory(repo, index, ignore, worktree.relativize(absPath).toString(), jobs, cleanPaths);
+                continue;
+            }
 
             if (!absPath.startsWith(worktree) || !Files.isRegularFile(absPath)) {
                 throw new Exception("Not a file, or outside the worktree: " + path);
             }
 
-            Path relPath = worktree.relativize(absPath);
-            cleanPaths.add(new PathPair(absPath, relPath.toString()));
+            String relPath = worktree.relativize(absPath).toString();
+            cleanPaths.put(relPath, new PathPair(absPath, relPath, null));
         }
 
-        // Read index (It was modified by rm) {This is not optimal, but good enough for twit}
-        GitIndex index = IndexIO.indexRead(repo);
+        List<GitIndexEntry> added = hashAll(repo, new ArrayList<>(cleanPaths.values()), jobs);
 
-        for(PathPair pair : cleanPaths){
-            String sha;
-            try (var in = Files.newInputStream(pair.absolute)) {
-                sha = ObjectIO.objectHash(in, "blob", repo);
+        //Merge: existing entries for these paths are replaced {this used to be a separate rm pass}
+        Map<String, GitIndexEntry> replaced = new HashMap<>();
+        List<GitIndexEntry> merged = new ArrayList<>(index.getEntries().size() + added.size());
+        for(GitIndexEntry e : index.getEntries()){
+            if(!cleanPaths.containsKey(e.getName())){
+                merged.add(e);
+            }
+            else{
+                replaced.put(e.getName(), e);
+            }
+        }
+        merged.addAll(added);
+
+        //only paths whose content or mode actually changed invalidate their cached trees
+        for(GitIndexEntry e : added){
+            GitIndexEntry old = replaced.get(e.getName());
+            if(old == null || !old.getId().equals(e.getId()) || old.getModeType() != e.getModeType()
+                    || old.getModePerms() != e.getModePerms() || old.getFlagStage() != 0){
+                index.invalidatePath(e.getName());
             }
-
-            BasicFileAttributes stat = Files.readAttributes(pair.absolute, BasicFileAttributes.class);
-
-            long ctimeS = stat.creationTime().toInstant().getEpochSecond();
-            long ctimeNs = stat.creationTime().toInstant().getNano();
-            long mtimeS = stat.lastModifiedTime().toInstant().getEpochSecond();
-            long mtimeNs = stat.lastModifiedTime().toInstant().getNano();
-
-            GitIndexEntry entry = new GitIndexEntry(
-                    new long[]{ctimeS, ctimeNs},
-                    new long[]{mtimeS, mtimeNs},
-                    0, // dev - simplified
-                    0, // ino - simplified
-                    0b1000, // regular file
-                    0644, // permissions
-                    0, // uid - simplified
-                    0, // gid - simplified
-                    stat.size(),
-                    sha,
-                    false,
-                    0,
-                    pair.relative
-            );
-
-            index.getEntries().add(entry);
         }
-        IndexIO.indexWrite(repo, index);
+
+        index.setEntries(merged);
+        index.sortEntries();
+        IndexIO.indexWrite(repo, index, lock);
     }
 
-    private void rm(GitRepository repo, List<String> paths, boolean delete, boolean skipMissing) throws Exception{
-        GitIndex index = IndexIO.indexRead(repo);
-        Path worktree = repo.getWorktree();
+    /**
+     * Collects the files below dir (worktree relative, "" for the whole worktree) with the parallel scanner
+     * The scanner already lstat'ed them, so that stat is kept for the entry
+     */
+    private void addDirectory(GitRepository repo, GitIndex index, GitIgnore ignore, String dir, int jobs,
+                              Map<String, PathPair> cleanPaths){
+        Set<String> tracked = new HashSet<>();
+        for(int i = 0; i < index.size(); i++){
+            tracked.add(index.nameAt(i));
+        }
 
-        //Make paths absolute
-        Set<Path> absPaths = new HashSet<>();
-        for (String path : paths) {
-            Path absPath = Paths.get(path).toAbsolutePath();
-            if (absPath.startsWith(worktree)) {
-                absPaths.add(absPath);
+        Path worktree = repo.getWorktree();
+        try(WorktreeScanner scan = WorktreeScanner.start(worktree, repo.getGitDir(), dir,
+                WorktreeScanner.ignoredDirs(ignore, index), jobs)){
+            for(WorktreeScanner.Entry f = scan.next(); f != null; f = scan.next()){
+                if(f.stat().modeType() != 0b1000){
+                    continue;//twit only stores regular files
+                }
+                if(!tracked.contains(f.path()) && IgnoreParser.checkIgnore(ignore, f.path())){
+                    continue;
+                }
+                cleanPaths.put(f.path(), new PathPair(worktree.resolve(f.path()), f.path(), f.stat()));
             }
         }
+    }
 
-        List<GitIndexEntry> kept = new ArrayList<>();//The list of entries to *keep*, which we will write back to the index
-        List<Path> toRemove = new ArrayList<>();//The list of removed paths, which we'll use after index update to physically remove the actual paths from the filesystem
+    /**
+     * Stats and hashes every file, on `jobs` workers
+     * The entries are returned in the order of pairs, so the result doesn't depend on the number of workers
+     */
+    private List<GitIndexEntry> hashAll(GitRepository repo, List<PathPair> pairs, int jobs) throws Exception{
+        List<GitIndexEntry> entries = new ArrayList<>(pairs.size());
 
-        for (GitIndexEntry e : index.getEntries()) {
-            Path fullPath = worktree.resolve(e.getName());
-            if (absPaths.contains(fullPath)) {
-                toRemove.add(fullPath);
-                absPaths.remove(fullPath);
-            } else {
-                kept.add(e);
+        if(jobs <= 1 || pairs.size() <= 1){
+            for(PathPair pair : pairs){
+                entries.add(hashOne(repo, pair));
             }
+            return entries;
         }
 
-        //If absPaths is not empty and not allowed to skip paths missing in the index, it means some paths weren't in the index
-        if (!absPaths.isEmpty() && !skipMissing) {
-            throw new Exception("Cannot remove paths not in index: " + absPaths);
-        }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(jobs, pairs.size()));
+        try{
+            List<Future<GitIndexEntry>> futures = new ArrayList<>(pairs.size());
+            for(PathPair pair : pairs){
+                futures.add(pool.submit(() -> hashOne(repo, pair)));
+            }
 
-        //physically delete the paths from the filesystem/worktree
-        if (delete) {
-            for (Path path : toRemove) {
-                Files.deleteIfExists(path);
+            for(Future<GitIndexEntry> f : futures){
+                try{
+                    entries.add(f.get());
+                } catch (ExecutionException e){
+                    //report the worker's own exception, not the wrapper
+                    if(e.getCause() instanceof Exception cause){
+                        throw cause;
+                    }
+                    throw e;
+                }
             }
+            return entries;
+        } finally {
+            pool.shutdownNow();
         }
+    }
 
-        index.setEntries(kept);
-        IndexIO.indexWrite(repo, index);
+    /**
+     * Stats the file, then hashes it with the size from that stat {so the file is only opened once}
+     * (files found by scanning a directory come with their stat already)
+     * The full stat data goes into the entry, so that status can trust it later without reading the file
+     */
+    private GitIndexEntry hashOne(GitRepository repo, PathPair pair) throws Exception{
+        FileStat stat = pair.stat != null ? pair.stat : FileStat.read(pair.absolute);
+        String sha = ObjectIO.blobHashFile(pair.absolute, stat.size(), repo);
+        return stat.toEntry(sha, pair.relative);
     }
 
-    private record PathPair(Path absolute, String relative) {}
+    private record PathPair(Path absolute, String relative, FileStat stat) {}
 }
@@ -2,23 +2,87 @@ package com.gopal.twit.commands;
 
 import com.gopal.twit.core.GitRepository;
 import com.gopal.twit.core.objects.GitObject;
+import com.gopal.twit.core.objects.ObjectId;
+import com.gopal.twit.core.objects.ObjectInfo;
+import com.gopal.twit.core.objects.ObjectStream;
 import com.gopal.twit.util.ObjectIO;
+import com.gopal.twit.util.RefResolver;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Inflater;
 
 /**
  * It simply prints the raw contents of an object to stdout, uncompressed and without the git header
+ * BATCH MODE: twit cat-file --batch[=FORMAT] | --batch-check[=FORMAT] [--buffer]
+ * Reads objects (SHAs or any name rev-parse understands) from stdin, one per line, and answers each with
+ * a line in FORMAT, "%(objectname) %(objecttype) %(objectsize)" by default (--batch then writes the content and a LF)
+ * or "<name> missing" / "<name> ambiguous".
+ * FORMAT may also use %(rest): the input line is then split at its first space, and what follows the name is echoed back.
+ * --batch-check never reads the content: the type and size come from the pack entry headers (see ObjectIO.objectInfo).
+ * The output is flushed whenever we're about to wait for more input, so a tool can feed us a line and wait
+ * for the answer; --buffer only flushes when stdin is over.
  */
 public class CatFileCommand implements Command {
+    private static final String DEFAULT_FORMAT = "%(objectname) %(objecttype) %(objectsize)";
+
     @Override
     public void execute(String[] args) throws Exception {
-        if(args.length < 2){
-            System.err.println("Usage: twit cat-file <type> <object>");
+        String batchFormat = null;
+        boolean contents = false;
+        boolean buffer = false;
+        List<String> rest = new ArrayList<>();
+        for(String arg : args){
+            if(arg.equals("--batch") || arg.startsWith("--batch=")){
+                contents = true;
+                batchFormat = arg.length() > 7 ? arg.substring(8) : DEFAULT_FORMAT;
+            }
+            else if(arg.equals("--batch-check") || arg.startsWith("--batch-check=")){
+                contents = false;
+                batchFormat = arg.length() > 13 ? arg.substring(14) : DEFAULT_FORMAT;
+            }
+            else if(arg.equals("--buffer")){
+                buffer = true;
+            }
+            else{
+                rest.add(arg);
+            }
+        }
+
+        if(batchFormat != null){
+            batch(GitRepository.find(), batchFormat, contents, buffer);
             return;
         }
 
-        String type = args[0];
-        String object = args[1];//basically the hash of object
+        if(rest.size() < 2){
+            System.err.println("Usage: twit cat-file <type> <object>");
+            System.err.println("       twit cat-file (--batch | --batch-check)[=<format>] [--buffer]  < objects");
+            return;
+        }
 
+        String type = rest.get(0);
         GitRepository repo = GitRepository.find();
+        String object = RefResolver.objectFind(repo, rest.get(1));//basically the hash of object
+
+        //blobs are streamed to stdout as they are inflated, whatever their size
+        if(type.equals("blob")){
+            try(ObjectStream stream = ObjectIO.objectStream(repo, object)){
+                if(stream == null){
+                    System.err.println("Object not found: " + object);
+                    return;
+                }
+                if(!stream.type().equals(type)){
+                    System.err.println("Expected " + type + " but got " + stream.type());
+                    return;
+                }
+                stream.in().transferTo(System.out);
+                System.out.flush();
+            }
+            return;
+        }
+
         GitObject obj = ObjectIO.objectRead(repo, object);
 
         if(obj == null){
@@ -33,4 +97,127 @@ public class CatFileCommand implements Command {
 
         System.out.write(obj.serialize());
     }
+
+    /**
+     * Answers every line of stdin
+     * One inflater and one copy buffer serve every object, and the output goes through one buffer
+     */
+    private void batch(GitRepository repo, String format, boolean contents, boolean buffer) throws Exception{
+        boolean splitRest = format.contains("%(rest)");
+        Inflater inflater = new Inflater();
+        byte[] copy = new byte[64 * 1024];
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8), 64 * 1024);
+        OutputStream out = new BufferedOutputStream(System.out, 64 * 1024);
+
+        try{
+            String line;
+            while((line = in.readLine()) != null){
+                String name = line;
+                String restOfLine = "";
+                if(splitRest){
+                    int space = indexOfSpace(line);
+                    if(space >= 0){
+                        name = line.substring(0, space);
+                        restOfLine = line.substring(space + 1);
+                    }
+                }
+
+                answer(repo, name, restOfLine, format, contents, inflater, copy, out);
+
+                if(!buffer && !in.ready()){
+                    out.flush();
+                }
+            }
+        } finally {
+            out.flush();
+            inflater.end();
+        }
+    }
+
+    private void answer(GitRepository repo, String name, String restOfLine, String format, boolean contents,
+                        Inflater inflater, byte[] copy, OutputStream out) throws Exception{
+        ObjectId id;
+        if(name.length() == ObjectId.HEX_LEN && ObjectId.isHex(name)){
+            id = ObjectId.fromHex(name);//no need to resolve anything, the lookup below says if it exists
+        }
+        else{
+            List<String> candidates = RefResolver.objectResolve(repo, name);
+            if(candidates.size() != 1){
+                writeAscii(out, name + (candidates.isEmpty() ? " missing\n" : " ambiguous\n"));
+                return;
+            }
+            id = ObjectId.fromHex(candidates.get(0));
+        }
+
+        if(!contents){
+            ObjectInfo info = ObjectIO.objectInfo(repo, id, inflater);
+            if(info == null){
+                writeAscii(out, name + " missing\n");
+                return;
+            }
+            writeAscii(out, expand(format, id, info.type(), info.size(), restOfLine) + "\n");
+            return;
+        }
+
+        try(ObjectStream stream = ObjectIO.objectStream(repo, id, inflater)){
+            if(stream == null){
+                writeAscii(out, name + " missing\n");
+                return;
+            }
+            writeAscii(out, expand(format, id, stream.type(), stream.size(), restOfLine) + "\n");
+            long left = stream.size();
+            while(left > 0){
+                int n = stream.in().read(copy, 0, (int) Math.min(copy.length, left));
+                if(n < 0){
+                    throw new IOException("Object " + id + " is shorter than its header says");
+                }
+                out.write(copy, 0, n);
+                left -= n;
+            }
+            out.write('\n');
+        }
+    }
+
+    /**
+     * Fills in the %(...) atoms of a batch format
+     */
+    private static String expand(String format, ObjectId id, String type, long size, String rest){
+        if(format == DEFAULT_FORMAT){
+            return id.name() + " " + type + " " + size;
+        }
+        StringBuilder sb = new StringBuilder(format.length() + 64);
+        int i = 0;
+        while(i < format.length()){
+            int open = format.indexOf("%(", i);
+            int close = open < 0 ? -1 : format.indexOf(')', open);
+            if(close < 0){
+                sb.append(format, i, format.length());
+                break;
+            }
+            sb.append(format, i, open);
+            String atom = format.substring(open + 2, close);
+            switch (atom){
+                case "objectname" -> sb.append(id.name());
+                case "objecttype" -> sb.append(type);
+                case "objectsize" -> sb.append(size);
+                case "rest" -> sb.append(rest);
+                default -> throw new IllegalArgumentException("Unknown format element: %(" + atom + ")");
+            }
+            i = close + 1;
+        }
+        return sb.toString();
+    }
+
+    private static int indexOfSpace(String line){
+        for(int i = 0; i < line.length(); i++){
+            if(Character.isWhitespace(line.charAt(i))){
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static void writeAscii(OutputStream out, String s) throws IOException{
+        out.write(s.getBytes(StandardCharsets.UTF_8));
+    }
 }
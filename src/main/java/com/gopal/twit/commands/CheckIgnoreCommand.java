@@ -4,6 +4,8 @@ import com.gopal.twit.core.GitRepository;
 import com.gopal.twit.core.ignore.GitIgnore;
 import com.gopal.twit.util.IgnoreParser;
 
+import java.nio.file.Files;
+
 /**
  * This command takes a list of paths and outputs back those of those paths that should be ignored {on the basis of various rules stored in the various .gitignore files}
  */
@@ -19,7 +21,10 @@ public class CheckIgnoreCommand implements Command{
         GitIgnore rules = IgnoreParser.gitIgnoreRead(repo);
 
         for(String path : args){
-            if(IgnoreParser.checkIgnore(rules, path)){
+            //a trailing '/' or an existing directory is checked as a directory (for the rules like "build/")
+            String name = path.replaceAll("/+$", "");
+            boolean isDir = !name.equals(path) || Files.isDirectory(repo.getWorktree().resolve(name));
+            if(IgnoreParser.checkIgnore(rules, name, isDir)){
                 System.out.println(path);
             }
         }
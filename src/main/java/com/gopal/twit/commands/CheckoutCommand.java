@@ -4,10 +4,10 @@ import com.gopal.twit.core.GitRepository;
 import com.gopal.twit.core.objects.*;
 import com.gopal.twit.util.RefResolver;
 import com.gopal.twit.util.ObjectIO;
+import com.gopal.twit.util.TreeCursor;
 
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 
 /**
  * It's a simpler version of what git provides
@@ -28,17 +28,14 @@ public class CheckoutCommand implements Command{
         String pathStr = args[1];
 
         GitRepository repo = GitRepository.find();
-        String sha = RefResolver.objectFind(repo, commit);
-        GitObject obj = ObjectIO.objectRead(repo, sha);
-
-        // If commit, get its tree
-        if (obj instanceof GitCommit commitObj) {
-            byte[] treeBytes = (byte[]) commitObj.getKvlm().get("tree");
-            String treeSha = new String(treeBytes, "UTF-8");
-            obj = ObjectIO.objectRead(repo, treeSha);
+        //a tag or a commit is followed down to its tree
+        String sha = RefResolver.objectFind(repo, commit, "tree", true);
+        if (sha == null) {
+            throw new Exception("Not a tree-ish: " + commit);
         }
+        GitObject obj = ObjectIO.objectRead(repo, sha);
 
-        Path path = Paths.get(pathStr);
+        Path path = GitRepository.resolve(pathStr);
 
         // Verify path is empty
         if (Files.exists(path)) {
@@ -56,15 +53,26 @@ public class CheckoutCommand implements Command{
     }
 
     private void treeCheckout(GitRepository repo, GitTree tree, Path path) throws Exception{
-        for (GitTreeLeaf item : tree.getItems()) {
-            GitObject obj = ObjectIO.objectRead(repo, item.getSha());
-            Path dest = path.resolve(item.getPath());
+        TreeCursor item = tree.cursor();
+        while (item.next()) {
+            Path dest = path.resolve(item.getName());
 
-            if (obj instanceof GitTree subTree) {
-                Files.createDirectory(dest);
-                treeCheckout(repo, subTree, dest);
-            } else if (obj instanceof GitBlob blob) {
-                Files.write(dest, blob.getBlobData());
+            if (item.isTree()) {
+                GitObject obj = ObjectIO.objectRead(repo, item.getId());
+                if (obj instanceof GitTree subTree) {
+                    Files.createDirectory(dest);
+                    treeCheckout(repo, subTree, dest);
+                }
+            } else if (!item.isGitlink()) {
+                //blobs are streamed straight to disk {never loaded in memory as a whole}
+                try (ObjectStream blob = ObjectIO.objectStream(repo, item.getId())) {
+                    if (blob == null) {
+                        throw new Exception("Missing object " + item.getSha() + " for " + dest);
+                    }
+                    if (blob.type().equals("blob")) {
+                        Files.copy(blob.in(), dest);
+                    }
+                }
             }
         }
     }
@@ -0,0 +1,12 @@
+package com.gopal.twit.commands;
+
+/**
+ * An error the user made (or a state they asked about), not a bug: Main reports only its message, without a stack trace
+ */
+public class CommandException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public CommandException(String message){
+        super(message);
+    }
+}
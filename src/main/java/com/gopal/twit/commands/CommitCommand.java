@@ -1,14 +1,20 @@
 package com.gopal.twit.commands;
 
 import com.gopal.twit.core.GitRepository;
+import com.gopal.twit.core.index.GitCacheTree;
 import com.gopal.twit.core.index.GitIndex;
 import com.gopal.twit.core.index.GitIndexEntry;
 import com.gopal.twit.core.objects.GitCommit;
 import com.gopal.twit.core.objects.GitTree;
 import com.gopal.twit.core.objects.GitTreeLeaf;
+import com.gopal.twit.core.objects.ObjectId;
+import com.gopal.twit.core.refs.RefStore;
+import com.gopal.twit.core.refs.RefUpdate;
 import com.gopal.twit.util.IndexIO;
+import com.gopal.twit.util.LockFile;
 import com.gopal.twit.util.ObjectIO;
 import com.gopal.twit.util.RefResolver;
+import com.gopal.twit.util.TreeWriter;
 
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
@@ -43,7 +49,17 @@ public class CommitCommand implements Command{
         commit(repo, message);
     }
 
+    /**
+     * The index stays locked for the whole commit (like git), so concurrent commits run one after the other
+     * and each one sees the branch as the previous one left it
+     */
     private void commit(GitRepository repo, String message) throws Exception{
+        try(LockFile lock = IndexIO.indexLock(repo)){
+            commit(repo, lock, message);
+        }
+    }
+
+    private void commit(GitRepository repo, LockFile lock, String message) throws Exception{
         GitIndex index = IndexIO.indexRead(repo);
 
         //Build tree from index
@@ -58,8 +74,9 @@ public class CommitCommand implements Command{
         kvlm.put("tree", treeSha.getBytes(StandardCharsets.UTF_8));
 
         //Add parent if not initial commit
+        String head = null;
         try{
-            String head = RefResolver.refResolve(repo, "HEAD");
+            head = RefResolver.refResolve(repo, "HEAD");
             if(head != null){
                 kvlm.put("parent", head.getBytes(StandardCharsets.UTF_8));
             }
@@ -80,134 +97,92 @@ public class CommitCommand implements Command{
         //Write commit object
         String commitSha = ObjectIO.objectWrite(commit, repo);
 
-        //Update HEAD (or the branch HEAD points to)
-        Path headFile = repo.repoFile("HEAD");
-        String headContent = Files.readString(headFile).trim();
-
-        if (headContent.startsWith("ref: ")) {
-            // HEAD points to a branch, update the branch
-            String ref = headContent.substring(5);
-            Path refFile = repo.repoFile(true, ref);
-            Files.writeString(refFile, commitSha + "\n");
-        } else {
-            // Detached HEAD, update HEAD directly
-            Files.writeString(headFile, commitSha + "\n");
-        }
+        //Update HEAD (or the branch HEAD points to), only if nobody moved it since we read the parent
+        RefStore store = RefResolver.refStore(repo);
+        store.transaction()
+                .update(store.deref("HEAD"), commitSha, head != null ? head : RefUpdate.ZERO)
+                .commit();
+
+        //the cache tree was filled by treeFromIndex {written last: that's what releases the lock}
+        IndexIO.indexWrite(repo, index, lock);
 
         System.out.println("[" + commitSha.substring(0, 7) + "] " + message);
     }
 
     /**
      * This function build a tree from the index and returns its sha
-     * Since index is flattened while tree is not, so we need to "unflatten" the index. We do this as follows:
-     * 1) Build a dictionary (hashmap) of directories. Keys are full paths from worktree root and values are list of GitIndexEntry — files in the directory. At this point, our dictionary only contains files: directories are only its keys.
-     * 2) Traverse this list, going bottom-up, that is, from the deepest directories up to root (depth doesn’t really matter: we just want to see each directory before its parent. To do that, we just sort them by full path length, from longest to shortest — parents are obviously always shorter)
-     * 3) At each directory, we build a tree with its contents and then we write the new tree to the repository {i.e. actually make the changes in our repo}
-     * 4) We then add this tree to this directory’s parent
-     * 5) And we iterate over the next directory in the parent
-     * 6) Since trees are recursive, so the last tree we'll build will be the one for the root {it's key's length will 0}. and this key {the root tree's sha} is the one that will be returned
+     * Since index is flattened while tree is not, so we need to "unflatten" the index.
+     * The index is sorted by path, so the entries of any directory are next to each other: we walk them
+     * recursively, one directory (a range of entries) at a time, building each tree after its subtrees.
+     * The cache tree (see GitCacheTree) tells us which directories haven't changed since their tree was
+     * last written: those are reused as is, without even looking at their entries. Only the directories
+     * on the way from a changed path up to the root get rebuilt.
+     * The index is written back by commit afterwards, so that the next commit can reuse the trees written by this one.
      */
     private String treeFromIndex(GitRepository repo, GitIndex index) throws Exception{
-        //Dictionary: path -> List of entries in that directory
-        Map<String, List<Object>> contents = new HashMap<>();
-        contents.put("", new ArrayList<>());
-
-        //Enumerate entries, and turn them into a dictionary where keys
-        //are directories, and values are lists of directory contents
-        //Here we're grouping all the entries by their parent directory
-        for(GitIndexEntry entry : index.getEntries()){
-            String dirname = "";//name of the directory containing the entry.getName() file
-            int lastSlash = entry.getName().lastIndexOf('/');
-            if(lastSlash >= 0){
-                dirname = entry.getName().substring(0, lastSlash);
+        index.sortEntries();
+        List<GitIndexEntry> entries = index.getEntries();
+        for(GitIndexEntry e : entries){
+            if(e.getFlagStage() != 0){
+                throw new Exception("Cannot commit, unmerged path: " + e.getName());
             }
+        }
+
+        GitCacheTree root = index.getCacheTree();
+        if(root == null){
+            root = new GitCacheTree();
+            index.setCacheTree(root);
+        }
 
-            String key = dirname;
-            while(!key.isEmpty()){//this loop adds every directory on the path from the file’s directory up to the root in the contents as a key
-                if(!contents.containsKey(key)){
-                    contents.put(key, new ArrayList<>());
-                }
+        return writeTree(repo, entries, 0, entries.size(), "", root).name();
+    }
 
-                if(key.isEmpty()){
-                    break;
-                }
+    /**
+     * Writes the tree of the directory prefix, whose entries are entries[from, to)
+     */
+    private ObjectId writeTree(GitRepository repo, List<GitIndexEntry> entries, int from, int to,
+                             String prefix, GitCacheTree node) throws Exception{
+        if(node.isValid() && node.getEntryCount() == to - from){
+            return node.getId();
+        }
 
-                //move to parent directory
-                int idx = key.lastIndexOf('/');
-                key = idx >= 0 ? key.substring(0,idx) : "";
+        //the index is sorted, which is already the canonical order of the entries of each tree
+        TreeWriter tree = new TreeWriter();
+        Set<String> subdirs = new HashSet<>();
+
+        int i = from;
+        while(i < to){
+            GitIndexEntry entry = entries.get(i);
+            String rel = entry.getName().substring(prefix.length());
+            int slash = rel.indexOf('/');
+
+            if(slash < 0){
+                //a file of this directory
+                tree.append((entry.getModeType() << 12) | entry.getModePerms(), rel, entry.getId());
+                i++;
+                continue;
             }
-            //Add the file index entry to the list of entries for its immediate directory
-            //At this point contents contains only file index entries in the lists (no subtree entries yet)
-            contents.get(dirname).add(entry);
-        }
 
-        //Sort by path length (deepest first) {i.e. in descending order of length}
-        //This means that we'll always encounter a given path before its
-        //parent, which is all we need, since for each directory D we'll
-        //need to modify its parent P to add D's tree
-        List<String> sorted = new ArrayList<>(contents.keySet());
-        sorted.sort((a, b) -> Integer.compare(b.length(), a.length()));
-
-        //Map to store tree SHAs: path -> tree SHA
-        Map<String, String> sha = new HashMap<>();
-
-        //Create tree objects bottom up
-        for(String path : sorted){
-            GitTree tree = new GitTree();
-            tree.init();
-
-            for(Object obj : contents.get(path)){
-                if(obj instanceof GitIndexEntry entry){
-                    //This is a file entry from the index
-                    String leaf = entry.getName();
-
-                    //String the parent path to get just the name of the file
-                    if(!path.isEmpty()){
-                        leaf = leaf.substring(path.length()+1);
-                    }
-
-                    //Skip if this contains a slash (it's in a subdirectory)
-                    if(leaf.contains("/")){
-                        continue;
-                    }
-
-                    //Build mode string  (6 digits octal)
-                    String mode = String.format("%06o", (entry.getModeType() << 12) | entry.getModePerms());
-
-                    // Get SHA - either from the entry itself, or from a subtree we created
-                    String leafSha = sha.getOrDefault(entry.getName(), entry.getSha());
-
-                    tree.getItems().add(new GitTreeLeaf(mode, leaf, leafSha));
-
-                } else if(obj instanceof String dirName){
-                    //This is a directory entry we need to add
-                    String treeSha = sha.get(dirName);
-                    if(treeSha != null){
-                        //Get just the directory name (not full path)
-                        String name = dirName;
-                        int lastSlash = name.lastIndexOf('/');
-                        if (lastSlash >= 0) {
-                            name = name.substring(lastSlash + 1);
-                        }
-
-                        tree.getItems().add(new GitTreeLeaf("040000", name, treeSha));
-                    }
-                }
-
-                //Write this tree and save its SHA
-                String treeSha = ObjectIO.objectWrite(tree, repo);
-                sha.put(path, treeSha);
-
-                // Add this directory to its parent's contents
-                if (!path.isEmpty()) {
-                    int lastSlash = path.lastIndexOf('/');
-                    String parent = lastSlash >= 0 ? path.substring(0, lastSlash) : "";
-                    contents.get(parent).add(path);
-                }
+            //a subdirectory: all of its entries follow this one
+            String dir = rel.substring(0, slash);
+            String dirPrefix = prefix + dir + "/";
+            int end = i + 1;
+            while(end < to && entries.get(end).getName().startsWith(dirPrefix)){
+                end++;
             }
+
+            ObjectId sub = writeTree(repo, entries, i, end, dirPrefix, node.child(dir));
+            tree.append(GitTreeLeaf.MODE_TREE, dir, sub);
+            subdirs.add(dir);
+            i = end;
         }
-        //Return the root tree SHA
-        return sha.get("");
+
+        //directories that went away
+        node.retainChildren(subdirs);
+
+        ObjectId id = ObjectId.fromHex(ObjectIO.objectWrite(new GitTree(tree.toByteArray()), repo));
+        node.set(to - from, id);
+        return id;
     }
 
     /**
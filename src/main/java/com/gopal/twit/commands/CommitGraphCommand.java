@@ -0,0 +1,23 @@
+package com.gopal.twit.commands;
+
+import com.gopal.twit.core.GitRepository;
+import com.gopal.twit.util.CommitGraphWriter;
+
+/**
+ * Manages the commit-graph file (.git/objects/info/commit-graph)
+ * write -> (re)writes it for every commit reachable from the refs and HEAD
+ * {log and rev-list then walk history from it instead of reading commit objects}
+ */
+public class CommitGraphCommand implements Command{
+    @Override
+    public void execute(String[] args) throws Exception {
+        if(args.length != 1 || !args[0].equals("write")){
+            System.err.println("Usage: twit commit-graph write");
+            return;
+        }
+
+        GitRepository repo = GitRepository.find();
+        int count = CommitGraphWriter.write(repo);
+        System.out.println("Wrote commit-graph with " + count + " commits");
+    }
+}
@@ -0,0 +1,149 @@
+package com.gopal.twit.commands;
+
+import com.gopal.twit.Main;
+import com.gopal.twit.core.GitRepository;
+import com.gopal.twit.util.DaemonProtocol;
+import com.gopal.twit.util.ThreadStreams;
+
+import java.io.*;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+
+/**
+ * A warm process that runs commands for clients, so they don't each pay for starting a JVM, loading and JIT-compiling
+ * the commands, and reading the repository from scratch.
+ * Usage: twit daemon [--socket PATH]      {default: $TWIT_DAEMON, or twit-<user>.sock in the temp directory}
+ * Clients: any twit started with TWIT_DAEMON=PATH in its environment forwards its command (see DaemonProtocol),
+ * and runs it itself if no daemon answers.
+ *
+ * What stays warm between commands: the opened repositories (reopened when their config changes), the mapped index,
+ * the ref stores, the packs and the object cache. Each of them checks the stat data of its files, so commands run by
+ * other processes (git included) are seen.
+ * Each client is served on its own thread, so a long command (a cat-file --batch session...) doesn't hold up the others.
+ * System.out, System.err, System.in (see ThreadStreams) and the working directory (GitRepository.cwd) are per thread;
+ * commands writing the same repository at once queue up on its lock files, as separate processes would.
+ * The daemon's own environment (HOME, XDG_CONFIG_HOME...) is the one commands see.
+ */
+public class DaemonCommand implements Command{
+    @Override
+    public void execute(String[] args) throws Exception {
+        Path socket = DaemonProtocol.defaultSocket();
+        for(int i = 0; i < args.length; i++){
+            if(args[i].equals("--socket") && i + 1 < args.length){
+                socket = GitRepository.resolve(args[++i]);
+            }
+            else{
+                throw new Exception("Usage: twit daemon [--socket PATH]");
+            }
+        }
+
+        if(Files.exists(socket)){
+            if(DaemonProtocol.forward(socket, new String[0]) != null){
+                throw new Exception("A daemon is already listening on " + socket);
+            }
+            Files.delete(socket);//left behind by a daemon that was killed
+        }
+
+        try(ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)){
+            bind(server, socket);
+            Path bound = socket;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try{
+                    Files.deleteIfExists(bound);
+                } catch (IOException e){
+                    //nothing more we can do
+                }
+            }));
+            System.err.println("twit daemon listening on " + socket);
+
+            PrintStream log = System.err;
+            ThreadStreams.install();
+            int clients = 0;
+            while(true){
+                SocketChannel client;
+                try{
+                    client = server.accept();
+                } catch (IOException e){
+                    log.println("twit daemon: " + e.getMessage());
+                    continue;
+                }
+                Thread thread = new Thread(() -> {
+                    try(client){
+                        serve(client);
+                    } catch (IOException | RuntimeException e){
+                        log.println("twit daemon: " + e.getMessage());
+                    }
+                }, "twit-client-" + ++clients);
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+    }
+
+    /**
+     * Commands run with our rights: nobody else gets to send us any. The socket is reachable as soon as it's bound,
+     * before it can be chmodded, so it's bound in a directory of our own (0700, like every temp directory) and only
+     * renamed to its path once it's 0600 {connecting goes by the file, which the rename keeps}
+     */
+    private static void bind(ServerSocketChannel server, Path socket) throws IOException{
+        Path parent = socket.toAbsolutePath().getParent();
+        Path staging = Files.createTempDirectory(parent, ".twit-daemon-");
+        try{
+            Path staged = staging.resolve("sock");
+            server.bind(UnixDomainSocketAddress.of(staged));
+            try{
+                Files.setPosixFilePermissions(staged, PosixFilePermissions.fromString("rw-------"));
+            } catch (UnsupportedOperationException e){
+                //not a POSIX filesystem
+            }
+            Files.move(staged, socket, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(staging.resolve("sock"));
+            Files.delete(staging);
+        }
+    }
+
+    /**
+     * Runs one client's command, with its output sent back as frames
+     */
+    private static void serve(SocketChannel client) throws IOException{
+        DataInputStream in = new DataInputStream(new BufferedInputStream(DaemonProtocol.input(client), 1 << 16));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(DaemonProtocol.output(client), 1 << 16));
+        DaemonProtocol.Request request = DaemonProtocol.readRequest(in);
+        DaemonProtocol.writeAccepted(out);
+        if(!DaemonProtocol.readGo(in)){
+            return;
+        }
+
+        PrintStream stdout = new PrintStream(new BufferedOutputStream(
+                new DaemonProtocol.FrameOutputStream(out, DaemonProtocol.STDOUT), 1 << 16));
+        PrintStream stderr = new PrintStream(new DaemonProtocol.FrameOutputStream(out, DaemonProtocol.STDERR), true);
+
+        int code;
+        try{
+            ThreadStreams.set(stdout, stderr, new DaemonProtocol.ChunkInputStream(in));
+            GitRepository.setCwd(request.cwd());
+
+            //an empty request is only a client checking if we're there
+            if(request.args().length > 0 && request.args()[0].equals("daemon")){
+                System.err.println("Error: already talking to a daemon");
+                code = 1;
+            }
+            else{
+                code = request.args().length == 0 ? 0 : Main.run(request.args());
+            }
+        } finally {
+            stdout.flush();
+            stderr.flush();
+            ThreadStreams.clear();
+            GitRepository.setCwd(null);
+        }
+        DaemonProtocol.writeExit(out, code);
+    }
+}
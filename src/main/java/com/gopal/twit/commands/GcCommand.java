@@ -0,0 +1,19 @@
+package com.gopal.twit.commands;
+
+import com.gopal.twit.core.GitRepository;
+import com.gopal.twit.util.CommitGraphWriter;
+import com.gopal.twit.util.PackBuilder;
+
+/**
+ * Housekeeping: packs every reachable object into one pack and removes the loose objects and old packs
+ * (the same as "repack -a -d"), then rewrites the commit-graph
+ * NOTE: like git, objects that are not reachable from any ref and only lived in an old pack are dropped
+ */
+public class GcCommand implements Command{
+    @Override
+    public void execute(String[] args) throws Exception {
+        GitRepository repo = GitRepository.find();
+        RepackCommand.report(PackBuilder.repack(repo, true, true, PackBuilder.DEFAULT_WINDOW, PackBuilder.DEFAULT_DEPTH));
+        CommitGraphWriter.write(repo);
+    }
+}
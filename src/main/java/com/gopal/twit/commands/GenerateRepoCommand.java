@@ -0,0 +1,83 @@
+package com.gopal.twit.commands;
+
+import com.gopal.twit.core.GitRepository;
+import com.gopal.twit.util.RepoGenerator;
+import com.gopal.twit.util.RepoGenerator.Spec;
+
+import java.nio.file.Path;
+
+/**
+ * Generates a synthetic repository (see RepoGenerator), the same one for the same options
+ * Usage: twit generate-repo [options] <path>
+ * --seed=N            everything else is drawn from it (default 1)
+ * --files=N           files of the first commit (default 1000)
+ * --depth=N           directories above each file (default 3)
+ * --fan-out=N         directories per directory (default 8)
+ * --blob-size=N       median blob size in bytes (default 2048)
+ * --size-spread=X     sigma of the log-normal blob sizes, 0 for all the same size (default 1.0)
+ * --max-blob-size=N   (default 1 MiB)
+ * --commits=N         history length, the first commit included (default 100)
+ * --changes=N         at most N files changed per commit (default 5)
+ * --branches=N        topic branches forked from, and mostly merged back into, the main branch (default 4)
+ * --tags=N            tags on the main branch (default 5)
+ * --no-checkout       only the history: no worktree files and no index
+ */
+public class GenerateRepoCommand implements Command{
+    private static final String USAGE = "Usage: twit generate-repo [--seed=N] [--files=N] [--depth=N] [--fan-out=N] "
+            + "[--blob-size=N] [--size-spread=X] [--max-blob-size=N] [--commits=N] [--changes=N] [--branches=N] "
+            + "[--tags=N] [--no-checkout] <path>";
+
+    @Override
+    public void execute(String[] args) throws Exception {
+        Spec d = Spec.defaults();
+        long seed = d.seed();
+        int files = d.files(), depth = d.depth(), fanOut = d.fanOut();
+        int blobSize = d.medianSize(), maxBlobSize = d.maxSize();
+        double spread = d.sizeSpread();
+        int commits = d.commits(), changes = d.changes(), branches = d.branches(), tags = d.tags();
+        boolean checkout = d.checkout();
+        String path = null;
+
+        for(String arg : args){
+            int eq = arg.indexOf('=');
+            String value = eq > 0 ? arg.substring(eq + 1) : null;
+            String option = eq > 0 ? arg.substring(0, eq) : arg;
+            switch (option){
+                case "--seed" -> seed = Long.parseLong(value);
+                case "--files" -> files = Integer.parseInt(value);
+                case "--depth" -> depth = Integer.parseInt(value);
+                case "--fan-out" -> fanOut = Integer.parseInt(value);
+                case "--blob-size" -> blobSize = Integer.parseInt(value);
+                case "--size-spread" -> spread = Double.parseDouble(value);
+                case "--max-blob-size" -> maxBlobSize = Integer.parseInt(value);
+                case "--commits" -> commits = Integer.parseInt(value);
+                case "--changes" -> changes = Integer.parseInt(value);
+                case "--branches" -> branches = Integer.parseInt(value);
+                case "--tags" -> tags = Integer.parseInt(value);
+                case "--no-checkout" -> checkout = false;
+                default -> {
+                    if(arg.startsWith("-") || path != null){
+                        System.err.println(USAGE);
+                        return;
+                    }
+                    path = arg;
+                }
+            }
+        }
+        if(path == null){
+            System.err.println(USAGE);
+            return;
+        }
+
+        Spec spec = new Spec(seed, files, depth, fanOut, blobSize, spread, maxBlobSize,
+                commits, changes, branches, tags, checkout);
+        Path dir = GitRepository.resolve(path);
+        long start = System.nanoTime();
+        RepoGenerator.Result r = RepoGenerator.generate(dir, spec);
+        long ms = (System.nanoTime() - start) / 1_000_000;
+
+        System.out.println("Generated " + dir + " in " + ms + " ms: " + r.files() + " files, "
+                + r.commits() + " commits (" + r.merges() + " merges), " + branches + " branches, " + tags + " tags, "
+                + r.blobs() + " blobs (" + (r.bytes() >> 10) + " KiB), " + r.trees() + " trees");
+    }
+}
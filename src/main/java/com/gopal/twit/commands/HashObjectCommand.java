@@ -3,8 +3,6 @@ package com.gopal.twit.commands;
 import com.gopal.twit.core.GitRepository;
 import com.gopal.twit.util.ObjectIO;
 
-import java.nio.file.Files;
-import java.nio.file.Paths;
 
 /**
  * just hashes an object
@@ -34,9 +32,7 @@ public class HashObjectCommand implements Command{
 
         GitRepository repo = write? GitRepository.find() : null;
 
-        try(var in = Files.newInputStream(Paths.get(path))){
-            String sha = ObjectIO.objectHash(in,type,repo);
-            System.out.println(sha);
-        }
+        String sha = ObjectIO.objectHashFile(GitRepository.resolve(path), type, repo);
+        System.out.println(sha);
     }
 }
@@ -2,13 +2,21 @@ package com.gopal.twit.commands;
 
 import com.gopal.twit.core.GitRepository;
 
-import java.nio.file.Paths;
 
 public class InitCommand implements Command{
     @Override
     public void execute(String[] args) throws Exception {
-        String path = args.length > 0 ? args[0] : ".";
-        GitRepository.create(Paths.get(path));
+        String path = ".";
+        String refFormat = "files";
+        for(String arg : args){
+            if(arg.startsWith("--ref-format=")){
+                refFormat = arg.substring("--ref-format=".length());
+            }
+            else{
+                path = arg;
+            }
+        }
+        GitRepository.create(GitRepository.resolve(path), refFormat);
         System.out.println("Initialized an empty Git repository in " + path);
     }
 }
@@ -3,17 +3,16 @@ package com.gopal.twit.commands;
 import com.gopal.twit.core.GitRepository;
 import com.gopal.twit.core.objects.GitCommit;
 import com.gopal.twit.core.objects.GitObject;
+import com.gopal.twit.util.CommitWalker;
 import com.gopal.twit.util.RefResolver;
 import com.gopal.twit.util.ObjectIO;
 
-import java.nio.charset.StandardCharsets;
-import java.util.Collections;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
 
 /**
  * Logs the commit history in reverse chronological order
+ * The walk itself is iterative and uses the commit-graph when there is one {see CommitWalker};
+ * commit objects are only read for the message shown in the node labels.
  */
 public class LogCommand implements Command{
     @Override
@@ -21,46 +20,40 @@ public class LogCommand implements Command{
         String commit = args.length > 0 ? args[0] : "HEAD";
 
         GitRepository repo = GitRepository.find();
-
-        System.out.println("digraph twitlog{");
-        System.out.println("  node[shape=rect]");
-
-        logGraphviz(repo, RefResolver.objectFind(repo, commit), new HashSet<>());
-
-        System.out.println("}");
+        CommitWalker walker = new CommitWalker(repo);
+
+        StringBuilder out = new StringBuilder();
+        out.append("digraph twitlog{\n");
+        out.append("  node[shape=rect]\n");
+
+        walker.walk(List.of(RefResolver.objectFind(repo, commit)), sha -> {
+            logGraphviz(repo, walker, sha, out);
+            if(out.length() > 1 << 16){
+                System.out.print(out);
+                out.setLength(0);
+            }
+            return true;
+        });
+
+        out.append("}\n");
+        System.out.print(out);
     }
 
-    private void logGraphviz(GitRepository repo, String sha, Set<String> seen) throws Exception{
-        if(seen.contains(sha)) return;
-        seen.add(sha);
-
+    private void logGraphviz(GitRepository repo, CommitWalker walker, String sha, StringBuilder out) throws Exception{
         GitObject obj = ObjectIO.objectRead(repo, sha);
         if(!(obj instanceof GitCommit commit)) return;
 
-        byte[] msgBytes = (byte[]) commit.getKvlm().get(null);
-        String message = new String(msgBytes, StandardCharsets.UTF_8).strip();
+        String message = commit.getMessage().strip();
         message = message.replace("\\", "\\\\").replace("\"", "\\\"");
 
         if (message.contains("\n")) {
             message = message.substring(0, message.indexOf("\n"));
         }
 
-        System.out.println("  c_" + sha + " [label=\"" + sha.substring(0, 7) + ": " + message + "\"]");
-
-        Object parentObj = commit.getKvlm().get("parent");
-        if (parentObj == null) return;
-
-        List<byte[]> parents;
-        if (parentObj instanceof List) {
-            parents = (List<byte[]>) parentObj;
-        } else {
-            parents = Collections.singletonList((byte[]) parentObj);
-        }
+        out.append("  c_").append(sha).append(" [label=\"").append(sha, 0, 7).append(": ").append(message).append("\"]\n");
 
-        for (byte[] p : parents) {
-            String parent = new String(p, StandardCharsets.UTF_8);
-            System.out.println("  c_" + sha + " -> c_" + parent + ";");
-            logGraphviz(repo, parent, seen);
+        for (String parent : walker.info(sha).parents()) {
+            out.append("  c_").append(sha).append(" -> c_").append(parent).append(";\n");
         }
     }
 }
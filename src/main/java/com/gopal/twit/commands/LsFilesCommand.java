@@ -30,32 +30,43 @@ public class LsFilesCommand implements Command{
         GitIndex index = IndexIO.indexRead(repo);
 
         if(verbose){
-            System.out.println("Index file format v" + index.getVersion() + ", containing " + index.getEntries().size() + " entries.");
+            System.out.println("Index file format v" + index.getVersion() + ", containing " + index.size() + " entries.");
         }
 
-        for(GitIndexEntry e : index.getEntries()){
+        //names are read straight from the mapped index, entries are only decoded for --verbose
+        StringBuilder out = new StringBuilder();
+        for(int i = 0; i < index.size(); i++){
+            if(!verbose){
+                out.append(index.nameAt(i)).append('\n');
+                if(out.length() > 1 << 16){
+                    System.out.print(out);
+                    out.setLength(0);
+                }
+                continue;
+            }
+
+            GitIndexEntry e = index.entryAt(i);
             System.out.println(e.getName());
 
-            if(verbose){
-                String entryType = switch (e.getModeType()){
-                    case 0b1000 -> "regular file";
-                    case 0b1010 -> "symlink";
-                    case 0b1110 -> "git link";
-                    default -> "unknown";
-                };
-
-                System.out.println(" " + entryType + " with perms: " + String.format("%o", e.getModePerms()));
-                System.out.println(" on blob: " + e.getSha());
-
-                DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
-                String ctime = formatter.format(Instant.ofEpochSecond(e.getCtime()[0]));
-                String mtime = formatter.format(Instant.ofEpochSecond(e.getMtime()[0]));
-
-                System.out.println("  created: " + ctime + "." + e.getCtime()[1] + ", modified: " + mtime + "." + e.getMtime()[1]);
-                System.out.println("  device: " + e.getDev() + ", inode: " + e.getIno());
-                System.out.println("  user: " + e.getUid() + " group: " + e.getGid());
-                System.out.println("  flags: stage=" + e.getFlagStage() + " assume_valid=" + e.isFlagAssumeValid());
-            }
+            String entryType = switch (e.getModeType()){
+                case 0b1000 -> "regular file";
+                case 0b1010 -> "symlink";
+                case 0b1110 -> "git link";
+                default -> "unknown";
+            };
+
+            System.out.println(" " + entryType + " with perms: " + String.format("%o", e.getModePerms()));
+            System.out.println(" on blob: " + e.getSha());
+
+            DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+            String ctime = formatter.format(Instant.ofEpochSecond(e.getCtime()[0]));
+            String mtime = formatter.format(Instant.ofEpochSecond(e.getMtime()[0]));
+
+            System.out.println("  created: " + ctime + "." + e.getCtime()[1] + ", modified: " + mtime + "." + e.getMtime()[1]);
+            System.out.println("  device: " + e.getDev() + ", inode: " + e.getIno());
+            System.out.println("  user: " + e.getUid() + " group: " + e.getGid());
+            System.out.println("  flags: stage=" + e.getFlagStage() + " assume_valid=" + e.isFlagAssumeValid());
         }
+        System.out.print(out);
     }
 }
@@ -6,6 +6,7 @@ import com.gopal.twit.core.objects.GitTree;
 import com.gopal.twit.core.objects.GitTreeLeaf;
 import com.gopal.twit.util.RefResolver;
 import com.gopal.twit.util.ObjectIO;
+import com.gopal.twit.util.TreeCursor;
 
 /**
  * simply prints the contents of a tree, recursively with the -r flag
@@ -18,7 +19,7 @@ public class LsTreeCommand implements Command{
         String tree = null;
 
         for(String arg : args){
-            if(args.equals("-r")){
+            if(arg.equals("-r")){
                 recursive = true;
             }
             else{
@@ -36,34 +37,28 @@ public class LsTreeCommand implements Command{
     }
 
     private void lsTree(GitRepository repo, String ref, boolean recursive, String prefix) throws Exception{
-        String sha = RefResolver.objectFind(repo, ref, "tree", false);
+        String sha = RefResolver.objectFind(repo, ref, "tree", true);
         GitObject obj = ObjectIO.objectRead(repo, sha);
 
         if(!(obj instanceof GitTree tree)){
             throw new Exception("Not a tree: " + ref);
         }
 
-        for(GitTreeLeaf item : tree.getItems()){
-            String mode = item.getMode();
-            String type;
-
-            if (mode.startsWith("04")) {
-                type = "tree";
-            } else if (mode.startsWith("10")) {
-                type = "blob";
-            } else if (mode.startsWith("12")) {
-                type = "blob"; // symlink
-            } else if (mode.startsWith("16")) {
-                type = "commit"; // submodule
-            } else {
-                type = "unknown";
-            }
+        TreeCursor item = tree.cursor();
+        while(item.next()){
+            int mode = item.getMode();
+            String type = switch (mode & GitTreeLeaf.TYPE_MASK) {
+                case GitTreeLeaf.MODE_TREE -> "tree";
+                case 0100000, GitTreeLeaf.MODE_SYMLINK -> "blob";
+                case GitTreeLeaf.MODE_GITLINK -> "commit"; // submodule
+                default -> "unknown";
+            };
 
             if (!recursive || !type.equals("tree")) {
-                System.out.println(String.format("%06d %s %s\t%s%s",
-                        Integer.parseInt(mode, 8), type, item.getSha(), prefix, item.getPath()));
+                System.out.println(String.format("%06o %s %s\t%s%s",
+                        mode, type, item.getSha(), prefix, item.getName()));
             } else {
-                lsTree(repo, item.getSha(), recursive, prefix + item.getPath() + "/");
+                lsTree(repo, item.getSha(), recursive, prefix + item.getName() + "/");
             }
         }
     }
@@ -0,0 +1,32 @@
+package com.gopal.twit.commands;
+
+import com.gopal.twit.core.GitRepository;
+import com.gopal.twit.core.refs.FileRefStore;
+import com.gopal.twit.util.RefResolver;
+
+/**
+ * Moves loose refs into .git/packed-refs {see FileRefStore.pack}
+ * By default only tags (and refs that were packed already), --all -> branches and every other ref too
+ */
+public class PackRefsCommand implements Command{
+    @Override
+    public void execute(String[] args) throws Exception {
+        boolean all = false;
+        for(String arg : args){
+            if(arg.equals("--all")){
+                all = true;
+            }
+            else{
+                System.err.println("Usage: twit pack-refs [--all]");
+                return;
+            }
+        }
+
+        GitRepository repo = GitRepository.find();
+        if(!(RefResolver.refStore(repo) instanceof FileRefStore store)){
+            System.err.println("pack-refs: this repository doesn't keep its refs in files");
+            return;
+        }
+        System.out.println("Packed " + store.pack(all) + " refs");
+    }
+}
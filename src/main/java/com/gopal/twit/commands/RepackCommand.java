@@ -0,0 +1,62 @@
+package com.gopal.twit.commands;
+
+import com.gopal.twit.core.GitRepository;
+import com.gopal.twit.util.PackBuilder;
+
+/**
+ * Packs loose objects into a packfile (with delta compression)
+ * -a -> pack every reachable object into a single new pack, not only the loose ones
+ *       (and write its reachability bitmap)
+ * -d -> afterwards, delete the loose objects that got packed and (with -a) the old packs
+ * --window=N, --depth=N -> how many objects are tried as delta bases, and the longest delta chain
+ */
+public class RepackCommand implements Command{
+    @Override
+    public void execute(String[] args) throws Exception {
+        boolean all = false;
+        boolean delete = false;
+        int window = PackBuilder.DEFAULT_WINDOW;
+        int depth = PackBuilder.DEFAULT_DEPTH;
+
+        for(String arg : args){
+            if(arg.equals("-a")){
+                all = true;
+            }
+            else if(arg.equals("-d")){
+                delete = true;
+            }
+            else if(arg.equals("-ad") || arg.equals("-da")){
+                all = true;
+                delete = true;
+            }
+            else if(arg.startsWith("--window=")){
+                window = Integer.parseInt(arg.substring(9));
+            }
+            else if(arg.startsWith("--depth=")){
+                depth = Integer.parseInt(arg.substring(8));
+            }
+            else{
+                System.err.println("Usage: twit repack [-a] [-d] [--window=N] [--depth=N]");
+                return;
+            }
+        }
+
+        GitRepository repo = GitRepository.find();
+        report(PackBuilder.repack(repo, all, delete, window, depth));
+    }
+
+    static void report(PackBuilder.Result result){
+        if(result.packName() == null){
+            System.out.println("Nothing new to pack.");
+            return;
+        }
+
+        System.out.println("Packed " + result.objects() + " objects (" + result.deltas() + " deltas) into pack-" + result.packName());
+        if(result.bitmaps() > 0){
+            System.out.println("Wrote bitmaps for " + result.bitmaps() + " commits");
+        }
+        if(result.prunedLoose() > 0 || result.removedPacks() > 0){
+            System.out.println("Removed " + result.prunedLoose() + " loose objects and " + result.removedPacks() + " redundant packs");
+        }
+    }
+}
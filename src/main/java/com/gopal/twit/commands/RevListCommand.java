@@ -0,0 +1,115 @@
+package com.gopal.twit.commands;
+
+import com.gopal.twit.core.GitRepository;
+import com.gopal.twit.util.CommitWalker;
+import com.gopal.twit.util.ReachableObjects;
+import com.gopal.twit.util.RefResolver;
+
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Lists the commits reachable from the given commits (HEAD by default), newest first
+ * --count -> only print how many there are
+ * --all -> start from every ref (and HEAD)
+ * --objects -> list every reachable object instead (commits, trees, blobs, tags), in no particular order
+ * {commits in the commit-graph are never read, see CommitWalker; with --objects, whatever a pack bitmap
+ *  covers isn't walked at all, see ReachableObjects}
+ */
+public class RevListCommand implements Command{
+    @Override
+    public void execute(String[] args) throws Exception {
+        boolean count = false;
+        boolean objects = false;
+        boolean all = false;
+        List<String> names = new ArrayList<>();
+
+        for(String arg : args){
+            if(arg.equals("--count")){
+                count = true;
+            }
+            else if(arg.equals("--objects")){
+                objects = true;
+            }
+            else if(arg.equals("--all")){
+                all = true;
+            }
+            else if(arg.startsWith("-")){
+                System.err.println("Usage: twit rev-list [--count] [--objects] [--all] [COMMIT...]");
+                return;
+            }
+            else{
+                names.add(arg);
+            }
+        }
+        if(names.isEmpty() && !all){
+            names.add("HEAD");
+        }
+
+        GitRepository repo = GitRepository.find();
+        List<String> tips = new ArrayList<>();
+        if(all){
+            tips.addAll(RefResolver.refTips(repo));
+        }
+        for(String name : names){
+            String sha = objects ? RefResolver.objectFind(repo, name) : RefResolver.objectFind(repo, name, "commit", true);
+            if(sha == null){
+                throw new Exception("Not a commit: " + name);
+            }
+            tips.add(sha);
+        }
+
+        if(objects){
+            listObjects(repo, tips, count);
+            return;
+        }
+        if(all){
+            //ref tips may be tags (even of trees or blobs), the commit walk wants commits
+            List<String> commits = new ArrayList<>();
+            for(String tip : tips){
+                String commit = CommitWalker.peelToCommit(repo, tip);
+                if(commit != null){
+                    commits.add(commit);
+                }
+            }
+            tips = commits;
+        }
+
+        CommitWalker walker = new CommitWalker(repo);
+        if(count){
+            long[] n = {0};
+            walker.walk(tips, sha -> {
+                n[0]++;
+                return true;
+            });
+            System.out.println(n[0]);
+            return;
+        }
+
+        BufferedWriter out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.US_ASCII), 1 << 16);
+        walker.walk(tips, sha -> {
+            out.write(sha);
+            out.write('\n');
+            return true;
+        });
+        out.flush();
+    }
+
+    private void listObjects(GitRepository repo, List<String> tips, boolean count) throws Exception{
+        ReachableObjects reachable = ReachableObjects.collect(repo, tips, true);
+        if(count){
+            System.out.println(reachable.count());
+            return;
+        }
+
+        BufferedWriter out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.US_ASCII), 1 << 16);
+        reachable.forEach(sha -> {
+            out.write(sha);
+            out.write('\n');
+        });
+        out.flush();
+    }
+}
@@ -4,6 +4,7 @@ import com.gopal.twit.core.GitRepository;
 import com.gopal.twit.core.index.GitIndex;
 import com.gopal.twit.core.index.GitIndexEntry;
 import com.gopal.twit.util.IndexIO;
+import com.gopal.twit.util.LockFile;
 
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -27,13 +28,19 @@ public class RmCommand implements Command{
     }
 
     private void rm(GitRepository repo, List<String> paths, boolean delete, boolean skipMissing) throws Exception{
+        try(LockFile lock = IndexIO.indexLock(repo)){
+            rm(repo, lock, paths, delete, skipMissing);
+        }
+    }
+
+    private void rm(GitRepository repo, LockFile lock, List<String> paths, boolean delete, boolean skipMissing) throws Exception{
         GitIndex index = IndexIO.indexRead(repo);
         Path worktree = repo.getWorktree();
 
         //Make paths absolute
         Set<Path> absPaths = new HashSet<>();
         for (String path : paths) {
-            Path absPath = Paths.get(path).toAbsolutePath();
+            Path absPath = GitRepository.resolve(path);
             if (!absPath.startsWith(worktree)) {
                 throw new Exception("Cannot remove paths outside of worktree: " + path);
             }
@@ -48,6 +55,7 @@ public class RmCommand implements Command{
             if (absPaths.contains(fullPath)) {
                 toRemove.add(fullPath);
                 absPaths.remove(fullPath);
+                index.invalidatePath(e.getName());
             } else {
                 kept.add(e);
             }
@@ -66,6 +74,6 @@ public class RmCommand implements Command{
         }
 
         index.setEntries(kept);
-        IndexIO.indexWrite(repo, index);
+        IndexIO.indexWrite(repo, index, lock);
     }
 }
@@ -2,24 +2,30 @@ package com.gopal.twit.commands;
 
 import com.gopal.twit.core.GitRepository;
 import com.gopal.twit.core.ignore.GitIgnore;
+import com.gopal.twit.core.index.FileStat;
 import com.gopal.twit.core.index.GitIndex;
 import com.gopal.twit.core.index.GitIndexEntry;
+import com.gopal.twit.core.index.UntrackedCache;
 import com.gopal.twit.core.objects.GitTree;
+import com.gopal.twit.core.objects.ObjectId;
+import com.gopal.twit.core.refs.Ref;
 import com.gopal.twit.util.IgnoreParser;
 import com.gopal.twit.util.IndexIO;
+import com.gopal.twit.util.LockFile;
 import com.gopal.twit.util.ObjectIO;
+import com.gopal.twit.util.PathOrder;
 import com.gopal.twit.util.RefResolver;
+import com.gopal.twit.util.TreeCursor;
+import com.gopal.twit.util.WorktreeScanner;
 
 import java.io.IOException;
-import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
-import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This command is used to know which files were added, removed or modified since the last commit, and which of these changes are actually staged, and will make it to the next commit.
@@ -31,27 +37,34 @@ public class StatusCommand implements Command{
     @Override
     public void execute(String[] args) throws Exception {
         GitRepository repo = GitRepository.find();
+        String indexStamp = indexStamp(repo);//before reading, see statusIndexWorktree
         GitIndex index = IndexIO.indexRead(repo);
 
         //find out which branch we're currently on
         statusBranch(repo);
+
+        statusHeadIndex(repo, index);
+        System.out.println();
+        statusIndexWorktree(repo, index, indexStamp);
     }
 
     /**
      * Prints the current branch we're on
-     * Finds the current branch by looking at .git/HEAD
-     * .git/HEAD either contains an hexadecimal ID (a ref to a commit, in detached HEAD state), or an indirect reference to something in refs/heads/: the active branch
+     * Finds the current branch by looking at HEAD {through the ref store, HEAD isn't a file with reftable}
+     * HEAD either contains an hexadecimal ID (a ref to a commit, in detached HEAD state), or an indirect reference to something in refs/heads/: the active branch
      */
     private void statusBranch(GitRepository repo) throws IOException{
-        Path headFile = repo.repoFile("HEAD");
-        String head = Files.readString(headFile).trim();
+        Ref head = RefResolver.refStore(repo).read("HEAD");
+        if(head == null){
+            throw new IOException("HEAD is missing");
+        }
 
-        if(head.startsWith("ref: refs/heads/")){
-            String branch = head.substring(16);
+        if(head.isSymbolic() && head.target().startsWith("refs/heads/")){
+            String branch = head.target().substring(11);
             System.out.println("On branch " + branch + ".");
         }
         else{
-            System.out.println("HEAD detached at " + head.substring(0,7));
+            System.out.println("HEAD detached at " + head.sha().substring(0,7));
         }
     }
 
@@ -66,18 +79,23 @@ public class StatusCommand implements Command{
     private void statusHeadIndex(GitRepository repo, GitIndex index) throws Exception{
         System.out.println("Changes to be committed:");
 
-        //function to convert head tree(recursive) to a (flat) dict
-        Map<String, String> head = treeToDict(repo, "HEAD", "");
+        //function to convert head tree(recursive) to a (flat) dict {a repository without commits has an empty HEAD}
+        Map<String, ObjectId> head = new HashMap<>();
+        if(RefResolver.refResolve(repo, "HEAD") != null){
+            String treeSha = RefResolver.objectFind(repo, "HEAD", "tree", true);
+            treeToDict(repo, ObjectId.fromHex(treeSha), "", head);
+        }
 
-        for(GitIndexEntry entry : index.getEntries()){
-            if(head.containsKey(entry.getName())){
-                if(!head.get(entry.getName()).equals(entry.getSha())){
-                    System.out.println(" modified: " + entry.getName());
+        for(int i = 0; i < index.size(); i++){
+            String name = index.nameAt(i);
+            if(head.containsKey(name)){
+                if(!head.get(name).equals(index.idAt(i))){
+                    System.out.println(" modified: " + name);
                 }
-                head.remove(entry.getName());
+                head.remove(name);
             }
             else{
-                System.out.println("  added:    " + entry.getName());
+                System.out.println("  added:    " + name);
             }
         }
 
@@ -89,101 +107,205 @@ public class StatusCommand implements Command{
     /**
      * Displays diff between STAGING AREA (index) and WORKTREE
      */
-    private void statusIndexWorktree(GitRepository repo, GitIndex index) throws Exception{
+    private void statusIndexWorktree(GitRepository repo, GitIndex index, String indexStamp) throws Exception{
         System.out.println("Changes not staged for commit:");
 
         GitIgnore ignore = IgnoreParser.gitIgnoreRead(repo);
-        Set<String> allFiles = new HashSet<>();
+        List<String> untracked = new ArrayList<>();
 
-        //Walk filesystem
         Path worktree = repo.getWorktree();
-        Path gitdir = repo.getGitDir();
+        FileTime indexMtime = indexMtime(repo);
+        //entries whose stat data we refreshed, by position {only these get decoded, the rest is read from the mapped index}
+        Map<Integer, GitIndexEntry> refreshed = new TreeMap<>();
+        //directories whose listing hasn't changed are taken from the untracked cache, if there's one
+        UntrackedCache untrackedCache = untrackedCache(repo, index);
+        boolean dropCache = untrackedCache == null && index.getUntrackedCache() != null;
+        if(dropCache){
+            index.setUntrackedCache(null);
+        }
+        WorktreeScanner.Cached cached = untrackedCache == null ? null
+                : WorktreeScanner.cached(untrackedCache, index, ignore, indexMtime);
 
         /**
-         * This portion walks through the working directory (the actual files on disk) to find all files that exist in the project
-         * It recursively walks through the working directory, collecting all file paths (except those inside the .git folder), and stores them in allFiles
+         * The worktree is scanned in parallel (see WorktreeScanner) and comes back in index order,
+         * so we just walk both sorted lists side by side (a merge-join):
+         * 1) a name only in the index -> deleted
+         * 2) a name only in the worktree -> untracked
+         * 3) a name in both -> compare the file with its index entry
+         * Ignored directories without anything tracked inside are never even listed
          */
-        Files.walkFileTree(worktree, new SimpleFileVisitor<Path>(){
+        try(WorktreeScanner scan = WorktreeScanner.start(worktree, repo.getGitDir(), "",
+                WorktreeScanner.ignoredDirs(ignore, index), Runtime.getRuntime().availableProcessors(), cached)){
 
-            //this method runs before entering each directory
-            @Override
-            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs){
-                if(dir.equals(gitdir) || dir.startsWith(gitdir)){
-                    return FileVisitResult.SKIP_SUBTREE;
-                }
-                return FileVisitResult.CONTINUE;
-            }
+            WorktreeScanner.Entry file = scan.next();
+            int i = 0;
+            String name = index.size() > 0 ? index.nameAt(0) : null;
 
-            //this method runs for every file that's visited
-            @Override
-            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
-                String relPath = worktree.relativize(file).toString();
-                allFiles.add(relPath);
-                return FileVisitResult.CONTINUE;
-            }
-        });
+            while(name != null || file != null){
+                int cmp = name == null ? 1 : file == null ? -1 : PathOrder.compare(name, file.path());
 
-        //We now traverse the index, and compare real files with the cached versions
-        for(GitIndexEntry entry : index.getEntries()){
-            Path fullPath = worktree.resolve(entry.getName());
+                if(cmp > 0){
+                    //no stat data: the scanner already knows it's untracked and not ignored
+                    if(file.stat() == null || !IgnoreParser.checkIgnore(ignore, file.path())){
+                        untracked.add(file.path());
+                    }
+                    file = scan.next();
+                    continue;
+                }
 
-            if(!Files.exists(fullPath)){
-                System.out.println("  deleted:  " + entry.getName());
-            }
-            else{
-                //Compare the metadata
-
-                //metadata from worktree
-                BasicFileAttributes attrs = Files.readAttributes(fullPath, BasicFileAttributes.class);
-                long ctimeNs = attrs.creationTime().toInstant().getEpochSecond() * 1_000_000_000L + attrs.creationTime().toInstant().getNano();
-                long mtimeNs = attrs.lastModifiedTime().toInstant().getEpochSecond() * 1_000_000_000L + attrs.lastModifiedTime().toInstant().getNano();
-
-                //metadata from index
-                long storedCtimeNs = entry.getCtime()[0] * 1_000_000_000L + entry.getCtime()[1];
-                long storedMtimeNs = entry.getMtime()[0] * 1_000_000_000L + entry.getMtime()[1];
-
-                if (ctimeNs != storedCtimeNs || mtimeNs != storedMtimeNs){
-                    //if different, deep compare {check the actual content}
-                    try (var in = Files.newInputStream(fullPath)) {
-                        String newSha = ObjectIO.objectHash(in, "blob", null);
-                        if (!newSha.equals(entry.getSha())) {
-                            System.out.println("  modified:  " + entry.getName());
-                        }
+                if(cmp < 0){
+                    System.out.println("  deleted:  " + name);
+                }
+                else{
+                    GitIndexEntry fresh = compareWithWorktree(worktree, index, i, file.stat(), indexMtime);
+                    if(fresh != null){
+                        refreshed.put(i, fresh);
                     }
                 }
+
+                i++;
+                String next = i < index.size() ? index.nameAt(i) : null;
+                //a conflicted path has several entries (one per stage) for the same file
+                if(cmp == 0 && !file.path().equals(next)){
+                    file = scan.next();
+                }
+                name = next;
+            }
+        }
+
+        if(!refreshed.isEmpty() || dropCache || (untrackedCache != null && untrackedCache.isChanged())){
+            //the refresh (and the untracked cache) is only an optimization, so like git it is skipped rather than waited for
+            //when another process holds the index, or has rewritten it since we read it
+            try(LockFile lock = LockFile.tryLock(repo.repoFile("index"))){
+                if(lock != null && Objects.equals(indexStamp, indexStamp(repo))){
+                    List<GitIndexEntry> entries = index.getEntries();
+                    refreshed.forEach(entries::set);
+                    IndexIO.indexWrite(repo, index, lock);
+                }
             }
-            allFiles.remove(entry.getName());
         }
 
         System.out.println();
         System.out.println("Untracked Files:");
-        for(String f : allFiles){
-            if(!IgnoreParser.checkIgnore(ignore, f)){
-                System.out.println("  " + f);
+        for(String f : untracked){
+            System.out.println("  " + f);
+        }
+    }
+
+    /**
+     * Identifies the current .git/index file {every write renames a new file over it}, null if there is none
+     */
+    private static String indexStamp(GitRepository repo) throws IOException{
+        try{
+            BasicFileAttributes attrs = Files.readAttributes(repo.repoFile("index"), BasicFileAttributes.class);
+            return attrs.fileKey() + "/" + attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS) + "/" + attrs.size();
+        } catch (NoSuchFileException e){
+            return null;
+        }
+    }
+
+    /**
+     * Compares a file with index entry i, printing it if it was modified
+     * This is git's stat cache: as long as the stat data matches the entry, the file content is never read
+     * (and the entry is not even decoded).
+     * Returns a refreshed entry if the file had to be hashed but turned out unchanged, otherwise null
+     */
+    private GitIndexEntry compareWithWorktree(Path worktree, GitIndex index, int i, FileStat stat, FileTime indexMtime) throws Exception{
+        //when the stat data matches, the entry's mtime is the file's
+        if(index.statMatches(i, stat) && !FileStat.isRacy(stat.mtimeS(), stat.mtimeNs(), indexMtime)){
+            return null;
+        }
+
+        GitIndexEntry entry = index.entryAt(i);
+
+        //a different size can't be the same content, no need to hash
+        //{except for a recorded size of 0: that's how a racily clean entry is smudged (see IndexIO.indexWrite)}
+        if(entry.getFsize() != 0 && (stat.size() & 0xFFFFFFFFL) != (entry.getFsize() & 0xFFFFFFFFL)){
+            System.out.println("  modified:  " + entry.getName());
+            return null;
+        }
+
+        //stat data changed (or can't be trusted), deep compare {check the actual content}
+        String newSha;
+        try{
+            newSha = ObjectIO.blobHashFile(worktree.resolve(entry.getName()), stat.size(), null);
+        } catch (NoSuchFileException e){
+            System.out.println("  deleted:  " + entry.getName());
+            return null;
+        } catch (IOException e){
+            //changed while we were hashing it (or unreadable): not the content we have, and no reason to fail
+            System.out.println("  modified:  " + entry.getName());
+            return null;
+        }
+        if (!newSha.equals(entry.getSha())) {
+            System.out.println("  modified:  " + entry.getName());
+            return null;
+        }
+        //same content: remember the new stat data so we don't hash this file again next time
+        return entry.getFlagStage() == 0 ? stat.refresh(entry) : null;
+    }
+
+    /**
+     * The index's untracked cache, validated and ready to use, or null if we don't keep one
+     * core.untrackedCache = true starts one, false drops it; when it's not set, an existing cache is kept
+     */
+    private UntrackedCache untrackedCache(GitRepository repo, GitIndex index) throws Exception{
+        String setting = repo.getConfig().getProperty("core.untrackedcache", "keep").trim();
+        UntrackedCache cache = index.getUntrackedCache();
+        if(setting.equalsIgnoreCase("false")){
+            return null;
+        }
+        if(cache == null){
+            if(!setting.equalsIgnoreCase("true")){
+                return null;
             }
+            cache = new UntrackedCache();
+            index.setUntrackedCache(cache);
         }
+
+        String ident = "Location " + repo.getWorktree().toAbsolutePath() + ", system " + System.getProperty("os.name");
+        Path infoExclude = repo.repoFile("info", "exclude");
+        Path globalExclude = IgnoreParser.globalExcludeFile();
+        cache.validate(ident, excludeStat(infoExclude), excludeId(infoExclude),
+                excludeStat(globalExclude), excludeId(globalExclude), index);
+        return cache;
+    }
+
+    private static FileStat excludeStat(Path file) throws IOException{
+        return Files.exists(file) ? FileStat.read(file) : FileStat.NONE;
+    }
+
+    private static ObjectId excludeId(Path file) throws Exception{
+        return Files.exists(file) ? ObjectId.fromHex(ObjectIO.blobHashFile(file, Files.size(file), null)) : ObjectId.ZERO;
+    }
+
+    private FileTime indexMtime(GitRepository repo) throws IOException{
+        Path indexFile = repo.repoFile("index");
+        return Files.exists(indexFile) ? Files.getLastModifiedTime(indexFile) : null;
     }
 
     /**
      * Converts a tree(recursive) to a (flat) dict
-     * Returns a flattened hashmap of the type {completePath, object's sha}
+     * Fills ret with the flattened tree, of the type {completePath, object's id}
+     * {walked with a cursor over the raw trees: only the paths and ids that go in the map are created}
      */
-    private Map<String, String> treeToDict(GitRepository repo, String ref, String prefix) throws Exception{
-        Map<String, String> ret = new HashMap<>();
-        String treeSha = RefResolver.objectFind(repo, ref, "tree", false);
-        var tree = (GitTree) ObjectIO.objectRead(repo, treeSha);
+    private void treeToDict(GitRepository repo, ObjectId treeId, String prefix, Map<String, ObjectId> ret) throws Exception{
+        var tree = (GitTree) ObjectIO.objectRead(repo, treeId);
+        if(tree == null){
+            throw new Exception("Missing tree " + treeId);
+        }
 
-        for(var leaf : tree.getItems()){
-            String fullPath = prefix.isEmpty() ? leaf.getPath() : prefix + "/" + leaf.getPath();
+        TreeCursor c = tree.cursor();
+        while(c.next()){
+            String fullPath = prefix.isEmpty() ? c.getName() : prefix + "/" + c.getName();
 
-            if(leaf.getMode().startsWith("04")){//meaning the path is to a directory (tree)
+            if(c.isTree()){//meaning the path is to a directory (tree)
                 //subtree
-                ret.putAll(treeToDict(repo, leaf.getSha(), fullPath));
+                treeToDict(repo, c.getId(), fullPath, ret);
             }
             else{
-                ret.put(fullPath, leaf.getSha());
+                ret.put(fullPath, c.getId());
             }
         }
-        return ret;
     }
 }
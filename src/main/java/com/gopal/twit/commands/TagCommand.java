@@ -2,12 +2,11 @@ package com.gopal.twit.commands;
 
 import com.gopal.twit.core.GitRepository;
 import com.gopal.twit.core.objects.GitTag;
+import com.gopal.twit.core.refs.RefConflictException;
 import com.gopal.twit.util.RefResolver;
 import com.gopal.twit.util.ObjectIO;
 
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Path;
 import java.util.Map;
 
 /**
@@ -38,10 +37,11 @@ public class TagCommand implements Command{
 
         if(name == null){
             //List tags
-            Map<String, Object> refs = RefResolver.refList(repo, null);
-            if(refs.containsKey("tags")){
-                showTags((Map<String, Object>) refs.get("tags"), "");
+            StringBuilder out = new StringBuilder();
+            for(String tag : RefResolver.refStore(repo).list("refs/tags/").keySet()){
+                out.append(tag, "refs/tags/".length(), tag.length()).append('\n');
             }
+            System.out.print(out);
         }
         else{
             //create tag
@@ -49,21 +49,11 @@ public class TagCommand implements Command{
         }
     }
 
-    private void showTags(Map<String, Object> tags, String prefix){
-        for (Map.Entry<String, Object> entry : tags.entrySet()){
-            String k = entry.getKey();
-            Object v = entry.getValue();
-
-            if(v instanceof String){
-                System.out.println(prefix + k);
-            }
-            else{
-                showTags((Map<String, Object>) v, prefix + k + "/");
-            }
-        }
-    }
-
     private void tagCreate(GitRepository repo, String name, String ref, boolean createTagObject) throws Exception{
+        //checked before writing a tag object that would be left dangling
+        if(RefResolver.refStore(repo).read("refs/tags/" + name) != null){
+            throw new CommandException("tag '" + name + "' already exists");
+        }
         String sha = RefResolver.objectFind(repo, ref);
 
         if(createTagObject){
@@ -85,8 +75,16 @@ public class TagCommand implements Command{
         }
     }
 
+    //fails if the tag exists already, like git tag without -f {someone may have created it since we checked}
     private void refCreate(GitRepository repo, String refName, String sha) throws Exception{
-        Path refPath = repo.repoFile(true, "refs", refName);
-        Files.writeString(refPath, sha + "\n");
+        try{
+            RefResolver.refStore(repo).transaction().create("refs/" + refName, sha).commit();
+        } catch (RefConflictException e){
+            //also thrown when the ref is locked by someone else
+            if(RefResolver.refStore(repo).read("refs/" + refName) == null){
+                throw e;
+            }
+            throw new CommandException("tag '" + refName.substring("tags/".length()) + "' already exists");
+        }
     }
 }
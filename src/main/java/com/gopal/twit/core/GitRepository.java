@@ -1,18 +1,31 @@
 package com.gopal.twit.core;
 
+import com.gopal.twit.core.refs.PackedRefs;
+import com.gopal.twit.core.refs.ReftableRefStore;
+
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Properties;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class GitRepository {
     private final Path worktree;
     private final Path gitDir;
     private final Properties config;
 
+    //repositories opened by find(), with the stamp of the config they were opened with
+    //{a daemon (see DaemonCommand) runs many commands in one process, so they're only opened again if the config changes}
+    private record Opened(GitRepository repo, PackedRefs.Stamp configStamp){}
+    private static final Map<Path, Opened> opened = new ConcurrentHashMap<>();
+
+    //where relative paths are resolved from, per thread {a daemon runs several clients' commands at once}
+    //null -> the directory of the process
+    private static final InheritableThreadLocal<Path> cwd = new InheritableThreadLocal<>();
+
     /**
      * Create or open a repository
      * @param path Path to the repository root
@@ -37,22 +50,66 @@ public class GitRepository {
             }
 
             //read from the config file if it exists
-            config = new Properties();
-            try(InputStream in = Files.newInputStream(configFile)){
-                config.load(in);
-            }
+            config = loadConfig(configFile);
 
-            //Check repository format version
+            //Check repository format version {version 1 means: the extensions.* keys must all be understood}
             String version = config.getProperty("core.repositoryformatversion");
-            if(version == null || !version.equals("0")){
+            if(version == null || !(version.equals("0") || version.equals("1"))){
                 throw new IOException("Unsupported repositoryformatversion: " + version);
             }
+            if(version.equals("1")){
+                checkExtensions(config);
+            }
         }
         else{
             config = new Properties();
         }
     }
 
+    /**
+     * Opens the repository at worktree, reusing the one opened last time if its config didn't change since
+     */
+    private static GitRepository open(Path worktree) throws IOException{
+        PackedRefs.Stamp stamp;
+        try{
+            stamp = PackedRefs.Stamp.of(Files.readAttributes(worktree.resolve(".git").resolve("config"), BasicFileAttributes.class));
+        } catch (NoSuchFileException e){
+            return new GitRepository(worktree, false);//fails with the usual message
+        }
+
+        Opened o = opened.get(worktree);
+        if(o != null && o.configStamp().equals(stamp)){
+            return o.repo();
+        }
+        GitRepository repo = new GitRepository(worktree, false);
+        opened.put(worktree, new Opened(repo, stamp));
+        return repo;
+    }
+
+    /**
+     * Fails on any extension we don't implement, as git requires for format version 1
+     */
+    private static void checkExtensions(Properties config) throws IOException{
+        for(String key : config.stringPropertyNames()){
+            if(!key.startsWith("extensions.")){
+                continue;
+            }
+            String value = config.getProperty(key);
+            boolean known = key.equals("extensions.refstorage")
+                    && (value.equalsIgnoreCase("files") || value.equalsIgnoreCase("reftable"));
+            if(!known){
+                throw new IOException("Unsupported repository extension: " + key + " = " + value);
+            }
+        }
+    }
+
+    /**
+     * How refs are stored: "files" (loose refs and packed-refs) or "reftable"
+     */
+    public String getRefFormat(){
+        return config.getProperty("extensions.refstorage", "files").toLowerCase();
+    }
+
     /**
      * Computes the path within .git directory
      */
@@ -111,6 +168,16 @@ public class GitRepository {
      * Create a new repository at the give path
      */
     public static GitRepository create(Path path) throws IOException{
+        return create(path, "files");
+    }
+
+    /**
+     * @param refFormat "files" or "reftable"
+     */
+    public static GitRepository create(Path path, String refFormat) throws IOException{
+        if(!refFormat.equals("files") && !refFormat.equals("reftable")){
+            throw new IOException("Unknown ref storage format: " + refFormat);
+        }
         GitRepository repo = new GitRepository(path, true);
 
         //create worktree if needed
@@ -128,20 +195,32 @@ public class GitRepository {
         //Create directory structure
         repo.repoDir(true, "branches");
         repo.repoDir(true, "objects");
-        repo.repoDir(true, "refs", "tags");
-        repo.repoDir(true, "refs", "heads");
 
         //Create description file {description file is created if doesn't exist}
         Files.writeString(repo.repoFile("description"), "Unnamed repository; edit this file 'description' to name the repository.\n");
 
-        //Create HEAD file
-        Files.writeString(repo.repoFile("HEAD"), "ref: refs/heads/master\n");
-
-        //Create config file
         Properties config = defaultConfig();
-        try (OutputStream out = Files.newOutputStream(repo.repoFile("config"))){
-            config.store(out, "Git configuration");
+        if(refFormat.equals("reftable")){
+            //HEAD and refs/heads only keep older tools from mistaking .git for something else:
+            //the real HEAD lives in the reftable, like with git
+            repo.repoDir(true, "refs");
+            Files.writeString(repo.repoFile("refs", "heads"), "this repository uses the reftable format\n");
+            Files.writeString(repo.repoFile("HEAD"), "ref: refs/heads/.invalid\n");
+            ReftableRefStore.create(repo.gitDir, "refs/heads/master");
+            config.setProperty("core.repositoryformatversion", "1");
+            config.setProperty("extensions.refstorage", "reftable");
         }
+        else{
+            repo.repoDir(true, "refs", "tags");
+            repo.repoDir(true, "refs", "heads");
+
+            //Create HEAD file
+            Files.writeString(repo.repoFile("HEAD"), "ref: refs/heads/master\n");
+        }
+
+        //Create config file {in git's own format, so that real git can use the repository too}
+        storeConfig(repo.repoFile("config"), config);
+        repo.config.putAll(config);
         return repo;
     }
 
@@ -156,21 +235,121 @@ public class GitRepository {
         return config;
     }
 
+    /**
+     * Writes flat "section.key" (or "section.subsection.key") properties as a git style INI file
+     */
+    public static void storeConfig(Path configFile, Properties config) throws IOException{
+        Map<String, List<String>> sections = new TreeMap<>();
+        for(String name : new TreeSet<>(config.stringPropertyNames())){
+            int first = name.indexOf('.');
+            int last = name.lastIndexOf('.');
+            if(first < 0){
+                throw new IOException("Config key without a section: " + name);
+            }
+
+            String header = first == last
+                    ? "[" + name.substring(0, first) + "]"
+                    : "[" + name.substring(0, first) + " \"" + name.substring(first + 1, last) + "\"]";
+            sections.computeIfAbsent(header, h -> new ArrayList<>())
+                    .add("\t" + name.substring(last + 1) + " = " + config.getProperty(name));
+        }
+
+        StringBuilder sb = new StringBuilder();
+        //core first, like git
+        sections.entrySet().stream()
+                .sorted(Comparator.comparing((Map.Entry<String, List<String>> e) -> !e.getKey().equals("[core]")))
+                .forEach(e -> {
+                    sb.append(e.getKey()).append('\n');
+                    e.getValue().forEach(line -> sb.append(line).append('\n'));
+                });
+        Files.writeString(configFile, sb.toString());
+    }
+
+    /**
+     * Reads a config file into flat "section.key" properties
+     * Handles both the files we write ourselves (java properties, "core.bare=false")
+     * and the INI style files written by git ("[core]" followed by "bare = false"),
+     * so that repositories created by real git can be opened as well
+     */
+    public static Properties loadConfig(Path configFile) throws IOException{
+        Properties config = new Properties();
+        String section = null;
+
+        for(String raw : Files.readAllLines(configFile)){
+            String line = raw.trim();
+            if(line.isEmpty() || line.startsWith("#") || line.startsWith(";")){
+                continue;
+            }
+
+            if(line.startsWith("[") && line.endsWith("]")){
+                //[section] or [section "subsection"]
+                String header = line.substring(1, line.length() - 1).trim();
+                int quote = header.indexOf('"');
+                if(quote >= 0){
+                    String sub = header.substring(quote + 1, header.lastIndexOf('"'));
+                    section = header.substring(0, quote).trim().toLowerCase() + "." + sub;
+                }
+                else{
+                    section = header.toLowerCase();
+                }
+                continue;
+            }
+
+            int eq = line.indexOf('=');
+            String key = (eq >= 0 ? line.substring(0, eq) : line).trim();
+            String value = eq >= 0 ? line.substring(eq + 1).trim() : "true";//a bare key means true
+
+            if(section != null){
+                key = section + "." + key.toLowerCase();
+            }
+            config.setProperty(key, value);
+        }
+        return config;
+    }
+
+    /**
+     * The current working directory of the command
+     * It's the process's own, except in a daemon, which runs each command in the directory of its client
+     */
+    public static Path cwd(){
+        Path dir = cwd.get();
+        return dir != null ? dir : Paths.get("").toAbsolutePath();
+    }
+
+    /**
+     * Sets the working directory of the commands run on this thread (and the threads they start), null to reset it
+     */
+    public static void setCwd(Path dir){
+        if(dir == null){
+            cwd.remove();
+        }
+        else{
+            cwd.set(dir);
+        }
+    }
+
+    /**
+     * A path given on the command line, made absolute against cwd()
+     */
+    public static Path resolve(String path){
+        return cwd().resolve(path).normalize();
+    }
+
     /**
      * Find repository root starting from current directory
      * function tries to find the Git repository starting from the current working directory
      */
     public static GitRepository find() throws IOException{
-        return find(Paths.get(".").toAbsolutePath().normalize(),true);
+        return find(cwd(),true);
     }
 
     //required -> it is required to find a Git repository. If none is found, it will throw an IOException.
     public static GitRepository find(Path path, boolean required) throws IOException{
-        path = path.toAbsolutePath().normalize();
+        path = cwd().resolve(path).normalize();
 
         //if .git directory exists then we’ve found the root of the repository
         if(Files.isDirectory(path.resolve(".git"))){
-            return new GitRepository(path, false);
+            return open(path);
         }
 
         //if the currect directory doesn't contain a .git folder, it looks at the parent directory
@@ -0,0 +1,195 @@
+package com.gopal.twit.core.graph;
+
+import com.gopal.twit.core.objects.ObjectId;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reader for git's commit-graph file (.git/objects/info/commit-graph), memory-mapped
+ * It holds, for every commit it covers, everything a history walk needs in fixed-width records,
+ * so walking history doesn't have to inflate and parse commit objects.
+ * LAYOUT:
+ * 1) Header -> "CGPH" | version (1) | hash version (1 = SHA-1) | number of chunks | number of base graphs (0)
+ * 2) Chunk table -> (id, 64-bit offset) per chunk, then a terminating entry whose offset is the end of the last chunk
+ * 3) Chunks:
+ *    OIDF -> fan-out, 256 entries {entry N is the number of commits whose first SHA byte is <= N}
+ *    OIDL -> the sorted commit SHAs
+ *    CDAT -> per commit: root tree SHA | first parent | second parent | generation and commit time
+ *            parents are positions in OIDL, 0x70000000 = none; for more than 2 parents the second one is
+ *            0x80000000 | index into EDGE instead
+ *            generation (30 bits) and commit time (34 bits) share the last 8 bytes
+ *    EDGE -> (optional) the remaining parents of octopus merges, the last one of each list has its MSB set
+ * 4) Trailer -> SHA-1 of everything above
+ */
+public class CommitGraph {
+    public static final int SIGNATURE = 0x43475048;//"CGPH"
+    public static final int CHUNK_OIDF = 0x4f494446;
+    public static final int CHUNK_OIDL = 0x4f49444c;
+    public static final int CHUNK_CDAT = 0x43444154;
+    public static final int CHUNK_EDGE = 0x45444745;
+
+    public static final int PARENT_NONE = 0x70000000;
+    public static final int PARENT_EXTRA = 0x80000000;
+    public static final int CDAT_WIDTH = 20 + 4 + 4 + 8;
+
+    private static final int[] NO_PARENTS = new int[0];
+
+    private final Path path;
+    private final ByteBuffer buf;
+    private final int count;
+    private final int fanout;
+    private final int oids;
+    private final int cdat;
+    private final int edge;//-1 if there are no octopus merges
+
+    public CommitGraph(Path path) throws IOException{
+        this.path = path;
+
+        MappedByteBuffer mapped;
+        try(FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)){
+            mapped = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        }
+        this.buf = mapped;
+
+        if(buf.capacity() < 8 + 12 || buf.getInt(0) != SIGNATURE){
+            throw new IOException("Not a commit-graph file: " + path);
+        }
+        if(buf.get(4) != 1 || buf.get(5) != 1){
+            throw new IOException("Unsupported commit-graph version/hash: " + path);
+        }
+
+        int chunks = buf.get(6) & 0xff;
+        int oidf = -1, oidl = -1, data = -1, extra = -1;
+        for(int i = 0; i < chunks; i++){
+            int entry = 8 + i * 12;
+            int id = buf.getInt(entry);
+            long offset = buf.getLong(entry + 4);
+            if(offset < 0 || offset > buf.capacity()){
+                throw new IOException("Corrupt commit-graph chunk table: " + path);
+            }
+            switch (id){
+                case CHUNK_OIDF -> oidf = (int) offset;
+                case CHUNK_OIDL -> oidl = (int) offset;
+                case CHUNK_CDAT -> data = (int) offset;
+                case CHUNK_EDGE -> extra = (int) offset;
+                default -> {}//a chunk we don't use (bloom filters, generation data...)
+            }
+        }
+        if(oidf < 0 || oidl < 0 || data < 0){
+            throw new IOException("Commit-graph is missing a required chunk: " + path);
+        }
+
+        this.fanout = oidf;
+        this.oids = oidl;
+        this.cdat = data;
+        this.edge = extra;
+        this.count = buf.getInt(fanout + 255 * 4);
+    }
+
+    public Path getPath() { return path; }
+    public int getCount() { return count; }
+
+    /**
+     * Position of the commit in the graph, or -1 if the graph doesn't cover it
+     */
+    public int findPosition(byte[] sha){
+        int first = sha[0] & 0xff;
+        int lo = first == 0 ? 0 : buf.getInt(fanout + (first - 1) * 4);
+        int hi = buf.getInt(fanout + first * 4) - 1;
+
+        byte[] probe = new byte[20];
+        while(lo <= hi){
+            int mid = (lo + hi) >>> 1;
+            buf.get(oids + mid * 20, probe);
+            int cmp = Arrays.compareUnsigned(probe, sha);
+            if(cmp == 0){
+                return mid;
+            }
+            if(cmp < 0){
+                lo = mid + 1;
+            }
+            else{
+                hi = mid - 1;
+            }
+        }
+        return -1;
+    }
+
+    public int findPosition(String hex){
+        return findPosition(ObjectId.fromHex(hex).toRaw());
+    }
+
+    public byte[] shaAt(int pos){
+        byte[] sha = new byte[20];
+        buf.get(oids + pos * 20, sha);
+        return sha;
+    }
+
+    public String shaHexAt(int pos){
+        return ObjectId.fromRaw(buf, oids + pos * 20).name();
+    }
+
+    public String treeAt(int pos){
+        return ObjectId.fromRaw(buf, cdat + pos * CDAT_WIDTH).name();
+    }
+
+    /**
+     * Positions of the parents of the commit at pos
+     */
+    public int[] parentsAt(int pos){
+        int rec = cdat + pos * CDAT_WIDTH + 20;
+        int p1 = buf.getInt(rec);
+        int p2 = buf.getInt(rec + 4);
+
+        if(p1 == PARENT_NONE){
+            return NO_PARENTS;
+        }
+        if(p2 == PARENT_NONE){
+            return new int[]{p1};
+        }
+        if((p2 & PARENT_EXTRA) == 0){
+            return new int[]{p1, p2};
+        }
+
+        //octopus: the rest of the parents are in EDGE
+        int[] parents = new int[8];
+        parents[0] = p1;
+        int n = 1;
+        int e = edge + (p2 & ~PARENT_EXTRA) * 4;
+        while(true){
+            int v = buf.getInt(e);
+            if(n == parents.length){
+                parents = Arrays.copyOf(parents, n * 2);
+            }
+            parents[n++] = v & ~PARENT_EXTRA;
+            if((v & PARENT_EXTRA) != 0){
+                break;
+            }
+            e += 4;
+        }
+        return Arrays.copyOf(parents, n);
+    }
+
+    /**
+     * Topological level: 1 for root commits, otherwise 1 + the highest generation of the parents
+     * {so a commit can't be an ancestor of a commit whose generation is not higher than its own}
+     */
+    public int generationAt(int pos){
+        return buf.getInt(cdat + pos * CDAT_WIDTH + 28) >>> 2;
+    }
+
+    /**
+     * Committer time, in seconds since the epoch
+     */
+    public long commitTimeAt(int pos){
+        int rec = cdat + pos * CDAT_WIDTH + 28;
+        long high = buf.getInt(rec) & 0x3L;
+        return (high << 32) | Integer.toUnsignedLong(buf.getInt(rec + 4));
+    }
+}
@@ -1,7 +1,11 @@
 package com.gopal.twit.core.ignore;
 
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
 
 /**
  * Represents gitignore rules {absolute and scoped}
@@ -9,39 +13,172 @@ import java.util.Map;
  * Some of the ignore files live in the index: they’re the various gitignore files.
  * Emphasis on the plural; although there often is only one such file, at the root, there can be one in each directory, and it applies to this directory and its subdirectories.
  * They're being those scoped, here because they only apply to paths under their directory.
+ * They are kept in a trie of directories, so finding the rule sets that apply to a path is one walk down its parents.
  *
  * ABSOLUTE IGNORE FILES/RULES:
  * These live outside the index.
  * They’re the global ignore file (usually in ~/.config/git/ignore) and the repository-specific .git/info/exclude.
  * They are being called absolute here, because they apply everywhere, but at a lower priority.
+ *
+ * Like git, a path inside an excluded directory is excluded too, whatever the rules say about the path itself
+ * {it's not possible to re-include a file whose parent directory is excluded}.
+ * Directory answers are cached, since every file of a directory asks about the same parents.
  */
 public class GitIgnore {
-    private final List<List<IgnoreRule>> absolute;
-    private final Map<String, List<IgnoreRule>> scoped;
+    private final List<IgnoreRuleSet> absolute;
+    private final Scope scoped = new Scope();
+    private final Map<String, Boolean> excludedDirs = new ConcurrentHashMap<>();
+
+    /**
+     * A directory of the trie, with the rules of its .gitignore (if it has one)
+     */
+    private static class Scope {
+        IgnoreRuleSet rules;
+        int prefixLen;//length of "dir/", where the paths relative to this directory start
+        final Map<String, Scope> children = new HashMap<>();
+    }
 
-    public GitIgnore(List<List<IgnoreRule>> absolute, Map<String, List<IgnoreRule>> scoped) {
+    public GitIgnore(List<IgnoreRuleSet> absolute, Map<String, IgnoreRuleSet> scoped) {
         this.absolute = absolute;
-        this.scoped = scoped;
+        for(Map.Entry<String, IgnoreRuleSet> e : scoped.entrySet()){
+            Scope node = this.scoped;
+            String dir = e.getKey();
+            if(!dir.isEmpty()){
+                for(String part : dir.split("/")){
+                    node = node.children.computeIfAbsent(part, k -> new Scope());
+                }
+                node.prefixLen = dir.length() + 1;
+            }
+            node.rules = e.getValue();
+        }
     }
 
-    public List<List<IgnoreRule>> getAbsolute() {
+    public List<IgnoreRuleSet> getAbsolute() {
         return absolute;
     }
 
-    public Map<String, List<IgnoreRule>> getScoped() {
-        return scoped;
+    /**
+     * Is path excluded, either by the rules or because a directory above it is?
+     */
+    public boolean isExcluded(String path, boolean isDir){
+        int slash = path.lastIndexOf('/');
+        if(slash > 0 && isExcludedDir(path.substring(0, slash))){
+            return true;
+        }
+        return isIgnored(path, isDir);
+    }
+
+    private boolean isExcludedDir(String dir){
+        Boolean cached = excludedDirs.get(dir);
+        if(cached == null){
+            cached = isExcluded(dir, true);
+            excludedDirs.put(dir, cached);
+        }
+        return cached;
     }
 
     /**
-     * Represents a single ignore rule
+     * What the rules say about path itself (its parents are not looked at)
+     * The deepest .gitignore with a matching rule decides, then info/exclude, then the global file
+     */
+    public boolean isIgnored(String path, boolean isDir){
+        int slash = path.lastIndexOf('/');
+        String base = slash < 0 ? path : path.substring(slash + 1);
+
+        //the scopes on the way down to path, deepest last
+        Scope[] chain = new Scope[8];
+        int depth = 0;
+        Scope node = scoped;
+        int from = 0;
+        while(true){
+            if(node.rules != null){
+                if(depth == chain.length){
+                    chain = Arrays.copyOf(chain, depth * 2);
+                }
+                chain[depth++] = node;
+            }
+            int next = path.indexOf('/', from);
+            if(next < 0){
+                break;
+            }
+            node = node.children.get(path.substring(from, next));
+            if(node == null){
+                break;
+            }
+            from = next + 1;
+        }
+
+        for(int i = depth - 1; i >= 0; i--){
+            Boolean result = chain[i].rules.match(path, chain[i].prefixLen, base, isDir);
+            if(result != null){
+                return result;
+            }
+        }
+
+        for(IgnoreRuleSet rules : absolute){
+            Boolean result = rules.match(path, 0, base, isDir);
+            if(result != null){
+                return result;
+            }
+        }
+        return false; // Default: not ignored
+    }
+
+    /**
+     * Represents a single ignore rule, compiled once into the cheapest matcher that does the job:
+     * LITERAL "Makefile", SUFFIX "*.o", PREFIX "build*", or a GLOB (a regex compiled once) for anything else.
+     * A rule with a '/' (other than a trailing one) is anchored: it matches the path relative to the directory
+     * of its .gitignore. Without one, it matches the file name at any depth.
+     * A trailing '/' makes the rule match directories only.
      */
     public static class IgnoreRule{
+        enum Kind { LITERAL, SUFFIX, PREFIX, GLOB }
+
         private final String pattern;
         private final boolean include; //false = exclude, true = include
 
+        private final boolean dirOnly;
+        private final boolean anchored;
+        private final Kind kind;
+        private final String literal;
+        private final Pattern glob;
+
         public IgnoreRule(String pattern, boolean include){
             this.pattern = pattern;
             this.include = include;
+
+            String p = pattern;
+            boolean dir = false;
+            while(p.length() > 1 && p.endsWith("/")){
+                p = p.substring(0, p.length() - 1);
+                dir = true;
+            }
+            this.dirOnly = dir;
+            this.anchored = p.indexOf('/') >= 0;
+            if(p.startsWith("/")){
+                p = p.substring(1);
+            }
+
+            if(!hasWildcard(p, 0, p.length())){
+                kind = Kind.LITERAL;
+                literal = p;
+                glob = null;
+            }
+            else if(!anchored && p.startsWith("*") && !hasWildcard(p, 1, p.length())){
+                kind = Kind.SUFFIX;
+                literal = p.substring(1);
+                glob = null;
+            }
+            else if(p.endsWith("*") && !p.endsWith("**") && !hasWildcard(p, 0, p.length() - 1)){
+                kind = Kind.PREFIX;
+                literal = p.substring(0, p.length() - 1);
+                glob = null;
+            }
+            else{
+                kind = Kind.GLOB;
+                literal = null;
+                glob = compileGlob(p);
+            }
         }
 
         public String getPattern() {
@@ -51,5 +188,100 @@ public class GitIgnore {
         public boolean isInclude() {
             return include;
         }
+
+        boolean isAnchored() { return anchored; }
+        Kind getKind() { return kind; }
+        String getLiteral() { return literal; }
+
+        /**
+         * @param path the full path, relative to the worktree
+         * @param relStart where the part relative to this rule's directory starts in path
+         * @param base the file name of path
+         */
+        public boolean matches(String path, int relStart, String base, boolean isDir){
+            if(dirOnly && !isDir){
+                return false;
+            }
+            if(!anchored){
+                return switch (kind){
+                    case LITERAL -> base.equals(literal);
+                    case SUFFIX -> base.endsWith(literal);
+                    case PREFIX -> base.startsWith(literal);
+                    case GLOB -> glob.matcher(base).matches();
+                };
+            }
+            return switch (kind){
+                case LITERAL -> path.length() - relStart == literal.length() && path.startsWith(literal, relStart);
+                case PREFIX -> path.startsWith(literal, relStart) && path.indexOf('/', relStart + literal.length()) < 0;
+                case SUFFIX, GLOB -> glob.matcher(path).region(relStart, path.length()).matches();
+            };
+        }
+
+        private static boolean hasWildcard(String p, int from, int to){
+            for(int i = from; i < to; i++){
+                char c = p.charAt(i);
+                if(c == '*' || c == '?' || c == '[' || c == '\\'){
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Glob -> regex: * and ? don't cross '/', a "**" segment matches any number of directories
+         */
+        private static Pattern compileGlob(String p){
+            StringBuilder regex = new StringBuilder();
+            int n = p.length();
+            for(int i = 0; i < n; i++){
+                char c = p.charAt(i);
+                switch (c){
+                    case '*' -> {
+                        if(i + 1 < n && p.charAt(i + 1) == '*'){
+                            boolean segmentStart = i == 0 || p.charAt(i - 1) == '/';
+                            i++;
+                            if(segmentStart && i + 1 < n && p.charAt(i + 1) == '/'){
+                                regex.append("(?:.*/)?");//"**/": zero or more directories
+                                i++;
+                            }
+                            else{
+                                regex.append(".*");
+                            }
+                        }
+                        else{
+                            regex.append("[^/]*");
+                        }
+                    }
+                    case '?' -> regex.append("[^/]");
+                    case '\\' -> {
+                        if(i + 1 < n){
+                            i++;
+                            regex.append(Pattern.quote(String.valueOf(p.charAt(i))));
+                        }
+                    }
+                    case '[' -> {
+                        int end = p.indexOf(']', i + 2);
+                        if(end > i){
+                            String set = p.substring(i + 1, end);
+                            if(set.startsWith("!")){
+                                set = "^" + set.substring(1);
+                            }
+                            regex.append('[').append(set.replace("\\", "\\\\").replace("[", "\\[")).append(']');
+                            i = end;
+                        }
+                        else{
+                            regex.append("\\[");
+                        }
+                    }
+                    default -> {
+                        if(".^$+{}|()".indexOf(c) >= 0){
+                            regex.append('\\');
+                        }
+                        regex.append(c);
+                    }
+                }
+            }
+            return Pattern.compile(regex.toString());
+        }
     }
 }
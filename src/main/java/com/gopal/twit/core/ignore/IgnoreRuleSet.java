@@ -0,0 +1,95 @@
+package com.gopal.twit.core.ignore;
+
+import com.gopal.twit.core.ignore.GitIgnore.IgnoreRule;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The rules of one ignore file, in file order {the last rule that matches decides}
+ * Rules are bucketed so a path is only compared with the rules that could match it:
+ * 1) literal file names ("Thumbs.db", "node_modules") by name
+ * 2) suffixes ("*.o", "*.tar.gz") by the extension they end with
+ * 3) everything else (anchored rules, prefixes, globs) in one list
+ * Each bucket lists rule positions in increasing order and is read backwards, so it stops at its
+ * last match; the answer is the rule with the highest position among the three.
+ */
+public class IgnoreRuleSet {
+    private static final int[] NONE = new int[0];
+
+    private final IgnoreRule[] rules;
+    private final Map<String, int[]> byName = new HashMap<>();
+    private final Map<String, int[]> byExtension = new HashMap<>();
+    private final int[] others;
+
+    public IgnoreRuleSet(List<IgnoreRule> rules){
+        this.rules = rules.toArray(new IgnoreRule[0]);
+
+        Map<String, List<Integer>> names = new HashMap<>();
+        Map<String, List<Integer>> extensions = new HashMap<>();
+        List<Integer> rest = new ArrayList<>();
+        for(int i = 0; i < this.rules.length; i++){
+            IgnoreRule r = this.rules[i];
+            String ext;
+            if(!r.isAnchored() && r.getKind() == IgnoreRule.Kind.LITERAL){
+                names.computeIfAbsent(r.getLiteral(), k -> new ArrayList<>()).add(i);
+            }
+            else if(!r.isAnchored() && r.getKind() == IgnoreRule.Kind.SUFFIX && (ext = extension(r.getLiteral())) != null){
+                extensions.computeIfAbsent(ext, k -> new ArrayList<>()).add(i);
+            }
+            else{
+                rest.add(i);
+            }
+        }
+        names.forEach((k, v) -> byName.put(k, toArray(v)));
+        extensions.forEach((k, v) -> byExtension.put(k, toArray(v)));
+        this.others = toArray(rest);
+    }
+
+    public List<IgnoreRule> getRules(){
+        return List.of(rules);
+    }
+
+    /**
+     * true = ignored, false = re-included (by a ! rule), null = no rule matches
+     * @param relStart where the path relative to the directory of this ignore file starts
+     * @param base the file name of path
+     */
+    public Boolean match(String path, int relStart, String base, boolean isDir){
+        int best = last(byName.getOrDefault(base, NONE), -1, path, relStart, base, isDir);
+        if(!byExtension.isEmpty()){
+            String ext = extension(base);
+            if(ext != null){
+                best = last(byExtension.getOrDefault(ext, NONE), best, path, relStart, base, isDir);
+            }
+        }
+        best = last(others, best, path, relStart, base, isDir);
+        return best < 0 ? null : !rules[best].isInclude();
+    }
+
+    //the last rule of the bucket that matches and comes after `best`
+    private int last(int[] bucket, int best, String path, int relStart, String base, boolean isDir){
+        for(int k = bucket.length - 1; k >= 0 && bucket[k] > best; k--){
+            if(rules[bucket[k]].matches(path, relStart, base, isDir)){
+                return bucket[k];
+            }
+        }
+        return best;
+    }
+
+    //what follows the last '.' of a name, null if there's none
+    private static String extension(String name){
+        int dot = name.lastIndexOf('.');
+        return dot < 0 ? null : name.substring(dot + 1);
+    }
+
+    private static int[] toArray(List<Integer> list){
+        int[] a = new int[list.size()];
+        for(int i = 0; i < a.length; i++){
+            a[i] = list.get(i);
+        }
+        return a;
+    }
+}
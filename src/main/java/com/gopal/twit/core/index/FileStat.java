@@ -0,0 +1,142 @@
+package com.gopal.twit.core.index;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+
+/**
+ * The stat data git keeps in an index entry, read from the filesystem in a single call
+ * Git's stat cache is built on this: if a file's stat data still matches its index entry, the file is assumed
+ * unchanged and its content is never read.
+ * On POSIX systems the "unix:*" attributes give us the real ctime, dev, ino, uid, gid and mode;
+ * elsewhere we only have the basic attributes and those fields stay 0 {so they always compare equal}.
+ * Values are kept as git stores them in the index: 32 bits, unsigned.
+ */
+public record FileStat(long ctimeS, long ctimeNs, long mtimeS, long mtimeNs,
+                       long dev, long ino, int modeType, int modePerms,
+                       long uid, long gid, long size) {
+
+    private static final String UNIX_ATTRS = "unix:ctime,lastModifiedTime,dev,ino,mode,uid,gid,size";
+    private static volatile boolean unixSupported = true;
+
+    /**
+     * The stat data git writes for a file that doesn't exist
+     */
+    public static final FileStat NONE = new FileStat(0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0);
+
+    /**
+     * lstat()s the file {symlinks are not followed, git stores the link itself}
+     */
+    public static FileStat read(Path path) throws IOException{
+        if(unixSupported){
+            try{
+                Map<String, Object> a = Files.readAttributes(path, UNIX_ATTRS, LinkOption.NOFOLLOW_LINKS);
+                FileTime ctime = (FileTime) a.get("ctime");
+                FileTime mtime = (FileTime) a.get("lastModifiedTime");
+                int mode = (Integer) a.get("mode");
+
+                return new FileStat(
+                        u32(ctime.toInstant().getEpochSecond()), ctime.toInstant().getNano(),
+                        u32(mtime.toInstant().getEpochSecond()), mtime.toInstant().getNano(),
+                        u32((Long) a.get("dev")), u32((Long) a.get("ino")),
+                        (mode >> 12) & 0b1111, gitPerms(mode),
+                        u32((Integer) a.get("uid")), u32((Integer) a.get("gid")),
+                        (Long) a.get("size"));
+            } catch (UnsupportedOperationException e){
+                unixSupported = false;
+            }
+        }
+
+        BasicFileAttributes a = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        FileTime ctime = a.creationTime();
+        FileTime mtime = a.lastModifiedTime();
+        return new FileStat(
+                u32(ctime.toInstant().getEpochSecond()), ctime.toInstant().getNano(),
+                u32(mtime.toInstant().getEpochSecond()), mtime.toInstant().getNano(),
+                0, 0,
+                a.isSymbolicLink() ? 0b1010 : 0b1000, a.isSymbolicLink() ? 0 : 0644,
+                0, 0, a.size());
+    }
+
+    /**
+     * Git only records whether a regular file is executable: its permissions are always either 0755 or 0644
+     */
+    private static int gitPerms(int mode){
+        if(((mode >> 12) & 0b1111) == 0b1010){
+            return 0;//symlinks have no permissions
+        }
+        return (mode & 0100) != 0 ? 0755 : 0644;
+    }
+
+    private static long u32(long v){
+        return v & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Does the stat data still match what the index recorded?
+     * Like git, the size is compared modulo 2^32 since that's all the index can store.
+     */
+    public boolean matches(GitIndexEntry e){
+        return mtimeS == e.getMtime()[0] && mtimeNs == e.getMtime()[1]
+                && ctimeS == e.getCtime()[0] && ctimeNs == e.getCtime()[1]
+                && dev == e.getDev() && ino == e.getIno()
+                && uid == e.getUid() && gid == e.getGid()
+                && modeType == e.getModeType() && modePerms == e.getModePerms()
+                && u32(size) == u32(e.getFsize());
+    }
+
+    /**
+     * Same check against stat data read earlier (e.g. a directory's, see UntrackedCache)
+     * Only what git stores for it is compared {not the mode}
+     */
+    public boolean matches(FileStat o){
+        return mtimeS == o.mtimeS && mtimeNs == o.mtimeNs
+                && ctimeS == o.ctimeS && ctimeNs == o.ctimeNs
+                && dev == o.dev && ino == o.ino
+                && uid == o.uid && gid == o.gid
+                && u32(size) == u32(o.size);
+    }
+
+    /**
+     * RACY CLEAN
+     * A file modified in the same timestamp tick as the index was written may have changed right after it was
+     * hashed, and still have exactly the stat data the index recorded. So an entry whose mtime is not older than
+     * the index file itself can't be trusted from its stat data alone, and gets its content compared instead.
+     * {the same goes for a directory listed in the untracked cache}
+     */
+    public static boolean isRacy(long entryS, long entryNs, FileTime indexMtime){
+        if(indexMtime == null){
+            return true;
+        }
+        long indexS = indexMtime.toInstant().getEpochSecond() & 0xFFFFFFFFL;
+        long indexNs = indexMtime.toInstant().getNano();
+        return entryS > indexS || (entryS == indexS && entryNs >= indexNs);
+    }
+
+    /**
+     * An index entry (stage 0) for this stat data
+     */
+    public GitIndexEntry toEntry(String sha, String name){
+        return new GitIndexEntry(
+                new long[]{ctimeS, ctimeNs},
+                new long[]{mtimeS, mtimeNs},
+                dev, ino, modeType, modePerms, uid, gid,
+                size, sha, false, 0, name);
+    }
+
+    /**
+     * entry with this stat data instead of its own
+     * {the rest is kept: its object, stage, assume-valid bit and extended flags (intent-to-add, skip-worktree)}
+     */
+    public GitIndexEntry refresh(GitIndexEntry entry){
+        return new GitIndexEntry(
+                new long[]{ctimeS, ctimeNs},
+                new long[]{mtimeS, mtimeNs},
+                dev, ino, modeType, modePerms, uid, gid,
+                size, entry.getId(), entry.isFlagAssumeValid(), entry.getFlagStage(), entry.getExtendedFlags(), entry.getName());
+    }
+}
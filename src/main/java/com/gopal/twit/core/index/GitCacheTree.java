@@ -0,0 +1,147 @@
+package com.gopal.twit.core.index;
+
+import com.gopal.twit.core.objects.ObjectId;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * CACHE TREE (the TREE index extension)
+ * Remembers, for every directory of the index, the SHA of the tree object it was last written as,
+ * and how many index entries that tree covers (files in subdirectories included).
+ * Changing a path invalidates the directories on its way up to the root, and only those:
+ * commit can then reuse the SHA of every directory that is still valid instead of rebuilding its tree.
+ *
+ * On disk, nodes are written depth first, each one as:
+ * path component NUL | entry count (ASCII, -1 = invalid) SP | subtree count (ASCII) LF | SHA (20 bytes, valid only)
+ * {the root's path component is empty}
+ */
+public class GitCacheTree {
+    private int entryCount = -1;//-1 -> invalid, the SHA can't be used
+    private ObjectId id;
+    private final Map<String, GitCacheTree> children = new TreeMap<>();
+
+    public boolean isValid(){
+        return entryCount >= 0;
+    }
+
+    public int getEntryCount() { return entryCount; }
+    public ObjectId getId() { return id; }
+
+    public void set(int entryCount, ObjectId id){
+        this.entryCount = entryCount;
+        this.id = id;
+    }
+
+    /**
+     * The node for a direct subdirectory, created (invalid) if we don't know it yet
+     */
+    public GitCacheTree child(String name){
+        return children.computeIfAbsent(name, n -> new GitCacheTree());
+    }
+
+    /**
+     * Keeps only the subdirectories in names {the others don't exist anymore}
+     */
+    public void retainChildren(Set<String> names){
+        children.keySet().retainAll(names);
+    }
+
+    /**
+     * Invalidates every directory containing path (the root included)
+     */
+    public void invalidate(String path){
+        entryCount = -1;
+        id = null;
+
+        int slash = path.indexOf('/');
+        if(slash < 0){
+            return;//a file directly in this directory
+        }
+        GitCacheTree child = children.get(path.substring(0, slash));
+        if(child != null){
+            child.invalidate(path.substring(slash + 1));
+        }
+    }
+
+    public static GitCacheTree parse(byte[] data) throws IOException{
+        int[] pos = {0};
+        GitCacheTree root = parseNode(data, pos, null);
+        if(pos[0] != data.length){
+            throw new IOException("Trailing bytes in cache tree extension");
+        }
+        return root;
+    }
+
+    private static GitCacheTree parseNode(byte[] data, int[] pos, Map<String, GitCacheTree> parent) throws IOException{
+        int p = pos[0];
+        int nul = indexOf(data, (byte) 0, p);
+        int space = indexOf(data, (byte) ' ', nul);
+        int lf = indexOf(data, (byte) '\n', space);
+        if(nul < 0 || space < 0 || lf < 0){
+            throw new IOException("Corrupt cache tree extension");
+        }
+
+        GitCacheTree node = new GitCacheTree();
+        String name = new String(data, p, nul - p, StandardCharsets.UTF_8);
+        int subtrees;
+        try{
+            node.entryCount = Integer.parseInt(new String(data, nul + 1, space - nul - 1, StandardCharsets.US_ASCII));
+            subtrees = Integer.parseInt(new String(data, space + 1, lf - space - 1, StandardCharsets.US_ASCII));
+        } catch (NumberFormatException e){
+            throw new IOException("Corrupt cache tree extension", e);
+        }
+
+        p = lf + 1;
+        if(node.entryCount >= 0){
+            if(p + ObjectId.RAW_LEN > data.length){
+                throw new IOException("Corrupt cache tree extension");
+            }
+            node.id = ObjectId.fromRaw(data, p);
+            p += ObjectId.RAW_LEN;
+        }
+        pos[0] = p;
+
+        if(parent != null){
+            parent.put(name, node);
+        }
+        for(int i = 0; i < subtrees; i++){
+            parseNode(data, pos, node.children);
+        }
+        return node;
+    }
+
+    public byte[] serialize(){
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeNode(out, "", this);
+        return out.toByteArray();
+    }
+
+    private static void writeNode(ByteArrayOutputStream out, String name, GitCacheTree node){
+        out.writeBytes(name.getBytes(StandardCharsets.UTF_8));
+        out.write(0);
+        out.writeBytes((node.entryCount + " " + node.children.size() + "\n").getBytes(StandardCharsets.US_ASCII));
+        if(node.entryCount >= 0){
+            out.writeBytes(node.id.toRaw());
+        }
+        for(Map.Entry<String, GitCacheTree> e : node.children.entrySet()){
+            writeNode(out, e.getKey(), e.getValue());
+        }
+    }
+
+    private static int indexOf(byte[] data, byte b, int from){
+        if(from < 0){
+            return -1;
+        }
+        for(int i = from; i < data.length; i++){
+            if(data[i] == b){
+                return i;
+            }
+        }
+        return -1;
+    }
+}
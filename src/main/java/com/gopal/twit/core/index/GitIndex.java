@@ -1,11 +1,28 @@
 package com.gopal.twit.core.index;
 
+import com.gopal.twit.core.objects.ObjectId;
+import com.gopal.twit.util.PathOrder;
+
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
 
+/**
+ * The staging area
+ * An index read from disk starts out as a MappedIndex: the positional accessors (size, nameAt, shaAt...)
+ * read straight from the mapped file. The entries are only decoded into GitIndexEntry objects
+ * when someone asks for the whole list (to modify it, or to write it back).
+ */
 public class GitIndex {
     private int version;
     private List<GitIndexEntry> entries;
+    private MappedIndex mapped;//not null until the entries get decoded
+    private List<IndexExtension> extensions = new ArrayList<>();
+    private GitCacheTree cacheTree;//parsed from the TREE extension on first use
+    private boolean cacheTreeLoaded;
+    private UntrackedCache untrackedCache;//parsed from the TWUC extension on first use
+    private boolean untrackedCacheLoaded;
 
     public GitIndex(){
         this.version = 2;
@@ -17,15 +34,144 @@ public class GitIndex {
         this.entries = entries;
     }
 
+    public GitIndex(MappedIndex mapped){
+        this.version = mapped.getVersion();
+        this.mapped = mapped;
+        this.extensions = new ArrayList<>(mapped.getExtensions());
+    }
+
     public int getVersion() {
         return version;
     }
 
+    public void setVersion(int version) {
+        this.version = version;
+    }
+
+    /**
+     * The extensions read with the index, kept so they can be written back {see IndexIO.indexWrite}
+     */
+    public List<IndexExtension> getExtensions() {
+        return extensions;
+    }
+
+    /**
+     * The cache tree, or null if the index doesn't have one (yet)
+     */
+    public GitCacheTree getCacheTree() throws IOException {
+        if(!cacheTreeLoaded){
+            for(IndexExtension ext : extensions){
+                if(ext.signature().equals("TREE")){
+                    cacheTree = GitCacheTree.parse(ext.data());
+                }
+            }
+            cacheTreeLoaded = true;
+        }
+        return cacheTree;
+    }
+
+    public void setCacheTree(GitCacheTree cacheTree) {
+        this.cacheTree = cacheTree;
+        this.cacheTreeLoaded = true;
+    }
+
+    /**
+     * The untracked cache, or null if the index doesn't have one {see core.untrackedCache}
+     * A cache we can't read is dropped, like git does: it's only a cache, and status rebuilds it
+     */
+    public UntrackedCache getUntrackedCache() {
+        if(!untrackedCacheLoaded){
+            for(IndexExtension ext : extensions){
+                if(ext.signature().equals(UntrackedCache.SIGNATURE)){
+                    try{
+                        untrackedCache = UntrackedCache.parse(ext.data());
+                    } catch (IOException e){
+                        untrackedCache = null;
+                    }
+                }
+            }
+            untrackedCacheLoaded = true;
+        }
+        return untrackedCache;
+    }
+
+    public void setUntrackedCache(UntrackedCache untrackedCache) {
+        this.untrackedCache = untrackedCache;
+        this.untrackedCacheLoaded = true;
+    }
+
+    /**
+     * Must be called for every path whose entry is added, removed or changes SHA or mode
+     * {so the cached trees of its directories aren't reused by the next commit,
+     * and the untracked cache lists its directory again}
+     */
+    public void invalidatePath(String path) throws IOException {
+        GitCacheTree tree = getCacheTree();
+        if(tree != null){
+            tree.invalidate(path);
+        }
+        UntrackedCache untracked = getUntrackedCache();
+        if(untracked != null){
+            untracked.invalidate(path);
+        }
+    }
+
+    /**
+     * All the entries, decoded {the whole index is decoded on the first call}
+     */
     public List<GitIndexEntry> getEntries() {
+        if(mapped != null){
+            List<GitIndexEntry> decoded = new ArrayList<>(mapped.size());
+            for(int i = 0; i < mapped.size(); i++){
+                decoded.add(mapped.entryAt(i));
+            }
+            entries = decoded;
+            mapped = null;
+        }
         return entries;
     }
 
     public void setEntries(List<GitIndexEntry> entries) {
         this.entries = entries;
+        this.mapped = null;
+    }
+
+    public int size(){
+        return mapped != null ? mapped.size() : entries.size();
+    }
+
+    public String nameAt(int i){
+        return mapped != null ? mapped.nameAt(i) : entries.get(i).getName();
+    }
+
+    public String shaAt(int i){
+        return mapped != null ? mapped.shaAt(i) : entries.get(i).getSha();
+    }
+
+    public ObjectId idAt(int i){
+        return mapped != null ? mapped.idAt(i) : entries.get(i).getId();
+    }
+
+    public int stageAt(int i){
+        return mapped != null ? mapped.stageAt(i) : entries.get(i).getFlagStage();
+    }
+
+    public GitIndexEntry entryAt(int i){
+        return mapped != null ? mapped.entryAt(i) : entries.get(i);
+    }
+
+    /**
+     * Does the lstat data still match entry i?
+     */
+    public boolean statMatches(int i, FileStat stat){
+        return mapped != null ? mapped.statMatches(i, stat) : stat.matches(entries.get(i));
+    }
+
+    /**
+     * Git keeps index entries sorted by path name (then by stage), as UTF-8 bytes (see PathOrder)
+     */
+    public void sortEntries(){
+        getEntries().sort(Comparator.comparing(GitIndexEntry::getName, PathOrder.COMPARATOR)
+                .thenComparingInt(GitIndexEntry::getFlagStage));
     }
 }
@@ -1,5 +1,7 @@
 package com.gopal.twit.core.index;
 
+import com.gopal.twit.core.objects.ObjectId;
+
 public class GitIndexEntry {
 
     private final long[] ctime;//The last time a file's metadata changed (timestamp in seconds, nanoseconds) {it's a pair}
@@ -11,15 +13,23 @@ public class GitIndexEntry {
     private final long uid;//User ID of owner
     private final long gid;//Group ID of owner
     private final long fsize;//Size of this object, in bytes
-    private final String sha;//The object's SHA
+    private final ObjectId id;//The object's SHA
     private final boolean flagAssumeValid;
     private final int flagStage;
+    private final int extendedFlags;//v3+ only: skip-worktree (0x4000) and intent-to-add (0x2000), 0 if none
     private final String name;//Name of the object (full path this time!)
 
     public GitIndexEntry(long[] ctime, long[] mtime, long dev, long ino,
                          int modeType, int modePerms, long uid, long gid,
                          long fsize, String sha, boolean flagAssumeValid,
                          int flagStage, String name) {
+        this(ctime, mtime, dev, ino, modeType, modePerms, uid, gid, fsize, ObjectId.fromHex(sha), flagAssumeValid, flagStage, 0, name);
+    }
+
+    public GitIndexEntry(long[] ctime, long[] mtime, long dev, long ino,
+                         int modeType, int modePerms, long uid, long gid,
+                         long fsize, ObjectId id, boolean flagAssumeValid,
+                         int flagStage, int extendedFlags, String name) {
         this.ctime = ctime;
         this.mtime = mtime;
         this.dev = dev;
@@ -29,9 +39,10 @@ public class GitIndexEntry {
         this.uid = uid;
         this.gid = gid;
         this.fsize = fsize;
-        this.sha = sha;
+        this.id = id;
         this.flagAssumeValid = flagAssumeValid;
         this.flagStage = flagStage;
+        this.extendedFlags = extendedFlags;
         this.name = name;
     }
 
@@ -45,8 +56,10 @@ public class GitIndexEntry {
     public long getUid() { return uid; }
     public long getGid() { return gid; }
     public long getFsize() { return fsize; }
-    public String getSha() { return sha; }
+    public ObjectId getId() { return id; }
+    public String getSha() { return id.name(); }
     public boolean isFlagAssumeValid() { return flagAssumeValid; }
     public int getFlagStage() { return flagStage; }
+    public int getExtendedFlags() { return extendedFlags; }
     public String getName() { return name; }
 }
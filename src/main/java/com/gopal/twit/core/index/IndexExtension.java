@@ -0,0 +1,15 @@
+package com.gopal.twit.core.index;
+
+/**
+ * An index extension, kept as raw bytes
+ * Extensions follow the entries: 4 byte signature | 32 bit size | data.
+ * A signature starting with an uppercase letter is optional: a reader that doesn't understand it may ignore it.
+ * Anything else is required, and an index carrying a required extension we don't know can't be used.
+ */
+public record IndexExtension(String signature, byte[] data) {
+
+    public boolean isOptional(){
+        char c = signature.charAt(0);
+        return c >= 'A' && c <= 'Z';
+    }
+}
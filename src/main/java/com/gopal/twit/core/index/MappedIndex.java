@@ -0,0 +1,245 @@
+package com.gopal.twit.core.index;
+
+import com.gopal.twit.core.objects.ObjectId;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A read-only view of an index file, memory-mapped
+ * Opening it only walks the entries once to find where each one starts (names have variable length);
+ * nothing is decoded until asked for, and then only the field asked for.
+ * So a command that only needs names (ls-files) or only compares stat data (status) never builds
+ * the GitIndexEntry objects, hex SHA strings and timestamp arrays of the whole index.
+ *
+ * Entry layout (all big endian):
+ * ctime s | ctime ns | mtime s | mtime ns | dev | ino | mode | uid | gid | size   {10 x 32 bits}
+ * SHA (20 bytes) | flags (16 bits) | [extended flags (16 bits), v3+ when the flags say so] | name
+ * v2/v3: the name is NUL terminated and the entry padded (with 1 to 8 NULs) to a multiple of 8 bytes
+ * v4: no padding, and the name is prefix compressed against the previous entry's name:
+ *     a varint N (remove N bytes from the end of the previous name) then the NUL terminated rest
+ *     {v4 names can't be read in place, so they are decoded once when the index is opened}
+ * After the entries come the extensions, then the SHA-1 of everything before it.
+ */
+public class MappedIndex {
+    private static final int CTIME = 0;
+    private static final int MTIME = 8;
+    private static final int DEV = 16;
+    private static final int INO = 20;
+    private static final int MODE = 24;
+    private static final int UID = 28;
+    private static final int GID = 32;
+    private static final int SIZE = 36;
+    private static final int SHA = 40;
+    private static final int FLAGS = 60;
+    private static final int NAME = 62;
+
+    private static final int FLAG_EXTENDED = 0x4000;
+
+
+    private final Path path;
+    private final MappedByteBuffer buf;
+    private final int version;
+    private final int[] offsets;//start of every entry
+    private final int[] nameStarts;//v2/v3
+    private final int[] nameLengths;//v2/v3
+    private final String[] names;//v4
+    private final List<IndexExtension> extensions;
+
+    private MappedIndex(Path path, MappedByteBuffer buf, int version, int[] offsets,
+                        int[] nameStarts, int[] nameLengths, String[] names, List<IndexExtension> extensions){
+        this.path = path;
+        this.buf = buf;
+        this.version = version;
+        this.offsets = offsets;
+        this.nameStarts = nameStarts;
+        this.nameLengths = nameLengths;
+        this.names = names;
+        this.extensions = extensions;
+    }
+
+    public static MappedIndex open(Path path) throws IOException{
+        MappedByteBuffer buf;
+        try(FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)){
+            if(ch.size() > Integer.MAX_VALUE){
+                throw new IOException("Index file too large: " + path);
+            }
+            buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        }
+        buf.order(ByteOrder.BIG_ENDIAN);
+
+        if(buf.limit() < 32 || buf.getInt(0) != 0x44495243){//"DIRC"
+            throw new IOException("Invalid index signature");
+        }
+
+        int version = buf.getInt(4);
+        if(version < 2 || version > 4){
+            throw new IOException("Unsupported index version: " + version);
+        }
+
+        int count = buf.getInt(8);
+        int[] offsets = new int[count];
+        int[] nameStarts = version < 4 ? new int[count] : null;
+        int[] nameLengths = version < 4 ? new int[count] : null;
+        String[] names = version == 4 ? new String[count] : null;
+        byte[] prev = new byte[0];//v4: the previous name
+
+        //the last 20 bytes are the checksum {indexes written by older versions of twit don't have one}
+        int end = buf.limit() - 20;
+        int pos = 12;
+        for(int i = 0; i < count; i++){
+            if(pos + NAME > buf.limit()){
+                throw new IOException("Truncated index: " + path);
+            }
+            offsets[i] = pos;
+
+            int flags = buf.getShort(pos + FLAGS) & 0xffff;
+            int nameStart = pos + NAME;
+            if((flags & FLAG_EXTENDED) != 0){
+                if(version < 3){
+                    throw new IOException("Extended flags in a version " + version + " index: " + path);
+                }
+                nameStart += 2;
+            }
+
+            if(version == 4){
+                //varint: how much of the previous name to drop
+                int p = nameStart;
+                int c = buf.get(p++) & 0xff;
+                int strip = c & 0x7f;
+                while((c & 0x80) != 0){
+                    c = buf.get(p++) & 0xff;
+                    strip = ((strip + 1) << 7) | (c & 0x7f);
+                }
+                if(strip > prev.length){
+                    throw new IOException("Corrupt v4 index name at entry " + i + ": " + path);
+                }
+
+                int suffix = 0;
+                while(buf.get(p + suffix) != 0){
+                    suffix++;
+                }
+                byte[] name = Arrays.copyOf(prev, prev.length - strip + suffix);
+                buf.get(p, name, prev.length - strip, suffix);
+                names[i] = new String(name, StandardCharsets.UTF_8);
+                prev = name;
+                pos = p + suffix + 1;
+                continue;
+            }
+
+            int nameLength = flags & 0xFFF;
+            if(nameLength == 0xFFF){
+                //name too long for the flags, look for its NUL terminator
+                nameLength = 0;
+                while(buf.get(nameStart + nameLength) != 0){
+                    nameLength++;
+                }
+            }
+            nameStarts[i] = nameStart;
+            nameLengths[i] = nameLength;
+
+            //entries are padded (with 1 to 8 NULs) to a multiple of 8 bytes
+            int entryLen = nameStart - pos + nameLength + 1;
+            pos += entryLen + (8 - (entryLen % 8)) % 8;
+        }
+
+        //extensions, up to the checksum {the checksum itself is not verified, that would mean hashing the whole file}
+        List<IndexExtension> extensions = new ArrayList<>();
+        while(pos + 8 <= end){
+            byte[] sig = new byte[4];
+            buf.get(pos, sig);
+            int size = buf.getInt(pos + 4);
+            if(size < 0 || pos + 8 + size > end){
+                throw new IOException("Corrupt index extension at " + pos + ": " + path);
+            }
+
+            IndexExtension ext = new IndexExtension(new String(sig, StandardCharsets.US_ASCII), new byte[size]);
+            if(!ext.isOptional()){
+                throw new IOException("Unsupported index extension '" + ext.signature() + "': " + path);
+            }
+            buf.get(pos + 8, ext.data());
+            extensions.add(ext);
+            pos += 8 + size;
+        }
+
+        return new MappedIndex(path, buf, version, offsets, nameStarts, nameLengths, names, List.copyOf(extensions));
+    }
+
+    public Path getPath() { return path; }
+    public int getVersion() { return version; }
+    public int size() { return offsets.length; }
+    public List<IndexExtension> getExtensions() { return extensions; }
+
+    public String nameAt(int i){
+        if(names != null){
+            return names[i];
+        }
+        byte[] name = new byte[nameLengths[i]];
+        buf.get(nameStarts[i], name);
+        return new String(name, StandardCharsets.UTF_8);
+    }
+
+    public ObjectId idAt(int i){
+        return ObjectId.fromRaw(buf, offsets[i] + SHA);
+    }
+
+    public String shaAt(int i){
+        return idAt(i).name();
+    }
+
+    public int stageAt(int i){
+        return (buf.getShort(offsets[i] + FLAGS) >> 12) & 0b11;
+    }
+
+    /**
+     * Compares a lstat result with entry i, field by field, straight from the mapped bytes
+     */
+    public boolean statMatches(int i, FileStat stat){
+        int off = offsets[i];
+        int mode = u16(off + MODE + 2);
+        return stat.mtimeS() == u32(off + MTIME) && stat.mtimeNs() == u32(off + MTIME + 4)
+                && stat.ctimeS() == u32(off + CTIME) && stat.ctimeNs() == u32(off + CTIME + 4)
+                && stat.dev() == u32(off + DEV) && stat.ino() == u32(off + INO)
+                && stat.uid() == u32(off + UID) && stat.gid() == u32(off + GID)
+                && stat.modeType() == mode >> 12 && stat.modePerms() == (mode & 0b111111111)
+                && (stat.size() & 0xFFFFFFFFL) == u32(off + SIZE);
+    }
+
+    /**
+     * Decodes the whole entry i
+     */
+    public GitIndexEntry entryAt(int i){
+        int off = offsets[i];
+        int mode = u16(off + MODE + 2);
+        int flags = u16(off + FLAGS);
+        int extended = (flags & FLAG_EXTENDED) != 0 ? u16(off + NAME) : 0;
+
+        return new GitIndexEntry(
+                new long[]{u32(off + CTIME), u32(off + CTIME + 4)},
+                new long[]{u32(off + MTIME), u32(off + MTIME + 4)},
+                u32(off + DEV), u32(off + INO),
+                mode >> 12, mode & 0b111111111,
+                u32(off + UID), u32(off + GID), u32(off + SIZE),
+                idAt(i),
+                (flags & 0x8000) != 0,
+                (flags >> 12) & 0b11,
+                extended,
+                nameAt(i));
+    }
+
+    private long u32(int off){
+        return Integer.toUnsignedLong(buf.getInt(off));
+    }
+
+    private int u16(int off){
+        return buf.getShort(off) & 0xffff;
+    }
+}
@@ -0,0 +1,387 @@
+package com.gopal.twit.core.index;
+
+import com.gopal.twit.core.objects.ObjectId;
+import com.gopal.twit.core.pack.EwahBitmap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * UNTRACKED CACHE (the TWUC index extension)
+ * Remembers, for every directory of the worktree, its stat data as it was when it was last listed, and what the
+ * listing found: the untracked files that are not ignored, and the subdirectories.
+ * As long as a directory's stat data doesn't change (creating, deleting or renaming something inside it changes
+ * its mtime), status can take the listing from here: no readdir(), and no ignore rule is matched against its files.
+ * A directory's answer also depends on the ignore rules, so each one remembers the SHA of its own .gitignore:
+ * a different .gitignore invalidates the directory and everything below it, and a different info/exclude or global
+ * ignore file (or another worktree) invalidates everything. It also depends on what's tracked: the index commands
+ * invalidate the directory of every path they add or remove {see GitIndex.invalidatePath}.
+ *
+ * NOT git's UNTR extension, though it's the same layout: git takes the ignore rules of a directory from the .gitignore
+ * in the worktree, we take them from the one in the index (see IgnoreParser). A cache written by one would be trusted
+ * by the other and give the wrong answers, so ours goes under a signature of its own, which git skips {an extension
+ * whose signature starts with an uppercase letter is optional}, and git's UNTR is dropped when we write the index.
+ *
+ * ON DISK (git's UNTR layout):
+ * varint length | ident "Location <worktree>, system <os>" NUL {the length counts the NUL}
+ * stat data of info/exclude | stat data of the global ignore file (36 bytes each) | dir flags (32)
+ * SHA of info/exclude | SHA of the global ignore file (20 bytes each, zeros if the file doesn't exist)
+ * ".gitignore" NUL
+ * varint directory count (0 -> nothing else follows), then the directories depth first, each one as:
+ *      varint untracked count | varint subdirectory count | name NUL | the untracked names, NUL terminated
+ * then 3 EWAH bitmaps over the directories: valid, check only, .gitignore SHA present
+ * then the stat data of every valid directory, the .gitignore SHA of the ones that have it, and a NUL.
+ * {varints are the offset varints of index v4. We always list every untracked file, which is dir flags 0:
+ * git only uses such a cache for "status -uall", and starts a new one otherwise}
+ */
+public class UntrackedCache {
+    public static final String SIGNATURE = "TWUC";
+    private static final int STAT_LEN = 36;
+    private static final String EXCLUDE_PER_DIR = ".gitignore";
+
+    /**
+     * What a directory's listing found: untracked files that are not ignored, and every subdirectory
+     * (the ignored ones too, since whether they're entered depends on what's tracked inside them)
+     */
+    public record Dir(FileStat stat, ObjectId excludeId, List<String> untracked, List<String> subdirs){}
+
+    private String ident = "";
+    private int dirFlags;
+    private FileStat infoExcludeStat = FileStat.NONE;
+    private FileStat globalExcludeStat = FileStat.NONE;
+    private ObjectId infoExcludeId = ObjectId.ZERO;
+    private ObjectId globalExcludeId = ObjectId.ZERO;
+
+    //only valid directories are kept, "" is the root
+    private final Map<String, Dir> dirs = new ConcurrentHashMap<>();
+    //the SHA of every .gitignore in the index, by directory {set by validate()}
+    private Map<String, ObjectId> gitignores = Map.of();
+    private volatile boolean changed;
+
+    /**
+     * Checks the cache against the current ignore files and index, dropping whatever they invalidate
+     * Must be called before the cache is used
+     */
+    public void validate(String ident, FileStat infoExcludeStat, ObjectId infoExcludeId,
+                         FileStat globalExcludeStat, ObjectId globalExcludeId, GitIndex index){
+        if(!ident.equals(this.ident) || dirFlags != 0
+                || !infoExcludeId.equals(this.infoExcludeId) || !globalExcludeId.equals(this.globalExcludeId)){
+            dirs.clear();
+            changed = true;
+        }
+        this.ident = ident;
+        this.dirFlags = 0;
+        this.infoExcludeStat = infoExcludeStat;
+        this.infoExcludeId = infoExcludeId;
+        this.globalExcludeStat = globalExcludeStat;
+        this.globalExcludeId = globalExcludeId;
+
+        Map<String, ObjectId> ids = new HashMap<>();
+        for(int i = 0; i < index.size(); i++){
+            String name = index.nameAt(i);
+            if(name.equals(EXCLUDE_PER_DIR) || name.endsWith("/" + EXCLUDE_PER_DIR)){
+                ids.put(name.substring(0, Math.max(0, name.length() - EXCLUDE_PER_DIR.length() - 1)), index.idAt(i));
+            }
+        }
+        this.gitignores = ids;
+
+        //a directory whose .gitignore changed takes its subdirectories with it {they inherit its rules}
+        List<String> stale = new ArrayList<>();
+        for(Map.Entry<String, Dir> e : dirs.entrySet()){
+            if(!Objects.equals(e.getValue().excludeId(), ids.get(e.getKey()))){
+                stale.add(e.getKey());
+            }
+        }
+        for(String dir : stale){
+            invalidateTree(dir);
+        }
+    }
+
+    /**
+     * The cached listing of dir, if it can be trusted: its stat data must not have changed, and must be older
+     * than the index {a directory changed in the same timestamp tick as the index was written is racy, see FileStat.isRacy}
+     */
+    public Dir lookup(String dir, FileStat stat, FileTime indexMtime){
+        Dir cached = dirs.get(dir);
+        if(cached == null || !cached.stat().matches(stat) || FileStat.isRacy(stat.mtimeS(), stat.mtimeNs(), indexMtime)){
+            return null;
+        }
+        return cached;
+    }
+
+    /**
+     * Records a fresh listing of dir {stat is the directory's stat data, read before it was listed}
+     */
+    public void record(String dir, FileStat stat, List<String> untracked, List<String> subdirs){
+        List<String> u = new ArrayList<>(untracked);
+        List<String> s = new ArrayList<>(subdirs);
+        Collections.sort(u);
+        Collections.sort(s);
+        dirs.put(dir, new Dir(stat, gitignores.get(dir), u, s));
+        changed = true;
+    }
+
+    /**
+     * Invalidates the directory containing path {its listing depends on whether path is tracked}
+     */
+    public void invalidate(String path){
+        int slash = path.lastIndexOf('/');
+        if(dirs.remove(slash < 0 ? "" : path.substring(0, slash)) != null){
+            changed = true;
+        }
+    }
+
+    /**
+     * Invalidates dir and every directory below it
+     */
+    public void invalidateTree(String dir){
+        String prefix = dir + "/";
+        if(dirs.keySet().removeIf(d -> dir.isEmpty() || d.equals(dir) || d.startsWith(prefix))){
+            changed = true;
+        }
+    }
+
+    /**
+     * Has anything changed since the cache was read? {then the index is worth writing}
+     */
+    public boolean isChanged(){
+        return changed;
+    }
+
+    public static UntrackedCache parse(byte[] data) throws IOException{
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        UntrackedCache uc = new UntrackedCache();
+        try{
+            int[] pos = {0};
+            int identLen = readVarint(data, pos);
+            uc.ident = new String(data, pos[0], Math.max(0, identLen - 1), StandardCharsets.UTF_8);
+            int p = pos[0] + identLen;
+
+            uc.infoExcludeStat = readStat(buf, p);
+            uc.globalExcludeStat = readStat(buf, p + STAT_LEN);
+            uc.dirFlags = buf.getInt(p + 2 * STAT_LEN);
+            p += 2 * STAT_LEN + 4;
+            uc.infoExcludeId = ObjectId.fromRaw(data, p);
+            uc.globalExcludeId = ObjectId.fromRaw(data, p + ObjectId.RAW_LEN);
+            p += 2 * ObjectId.RAW_LEN;
+            p = indexOf(data, (byte) 0, p) + 1;//the per-directory ignore file name
+            if(p == 0){
+                throw new IOException("Corrupt untracked cache extension");
+            }
+
+            pos[0] = p;
+            int count = readVarint(data, pos);
+            if(count == 0){
+                return uc;
+            }
+
+            //the directories, depth first
+            List<String> paths = new ArrayList<>(count);
+            List<List<String>> untracked = new ArrayList<>(count);
+            List<List<String>> subdirs = new ArrayList<>(count);
+            readDir(data, pos, null, paths, untracked, subdirs);
+            if(paths.size() != count){
+                throw new IOException("Corrupt untracked cache extension");
+            }
+
+            EwahBitmap.Decoded valid = EwahBitmap.read(buf, pos[0]);
+            EwahBitmap.Decoded checkOnly = EwahBitmap.read(buf, valid.end());
+            EwahBitmap.Decoded shaValid = EwahBitmap.read(buf, checkOnly.end());
+            p = shaValid.end();
+
+            FileStat[] stats = new FileStat[count];
+            for(int i = valid.bits().nextSetBit(0); i >= 0 && i < count; i = valid.bits().nextSetBit(i + 1)){
+                stats[i] = readStat(buf, p);
+                p += STAT_LEN;
+            }
+            ObjectId[] excludeIds = new ObjectId[count];
+            for(int i = shaValid.bits().nextSetBit(0); i >= 0 && i < count; i = shaValid.bits().nextSetBit(i + 1)){
+                excludeIds[i] = ObjectId.fromRaw(data, p);
+                p += ObjectId.RAW_LEN;
+            }
+
+            for(int i = 0; i < count; i++){
+                //a directory only checked for being empty has no listing we could use
+                if(stats[i] != null && !checkOnly.bits().get(i)){
+                    uc.dirs.put(paths.get(i), new Dir(stats[i], excludeIds[i], untracked.get(i), subdirs.get(i)));
+                }
+            }
+        } catch (IndexOutOfBoundsException e){
+            throw new IOException("Corrupt untracked cache extension", e);
+        }
+        return uc;
+    }
+
+    private static void readDir(byte[] data, int[] pos, String parent, List<String> paths,
+                                List<List<String>> untracked, List<List<String>> subdirs) throws IOException{
+        int untrackedCount = readVarint(data, pos);
+        int subdirCount = readVarint(data, pos);
+        String name = readString(data, pos);
+        String path = parent == null ? "" : parent.isEmpty() ? name : parent + "/" + name;
+
+        List<String> files = new ArrayList<>(untrackedCount);
+        for(int i = 0; i < untrackedCount; i++){
+            files.add(readString(data, pos));
+        }
+        List<String> dirNames = new ArrayList<>(subdirCount);
+        paths.add(path);
+        untracked.add(files);
+        subdirs.add(dirNames);
+
+        for(int i = 0; i < subdirCount; i++){
+            int at = paths.size();
+            readDir(data, pos, path, paths, untracked, subdirs);
+            String sub = paths.get(at);
+            dirNames.add(sub.substring(sub.lastIndexOf('/') + 1));
+        }
+    }
+
+    public byte[] serialize() throws IOException{
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        byte[] identBytes = ident.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, identBytes.length + 1);
+        out.write(identBytes);
+        out.writeByte(0);
+        writeStat(out, infoExcludeStat);
+        writeStat(out, globalExcludeStat);
+        out.writeInt(dirFlags);
+        out.write(infoExcludeId.toRaw());
+        out.write(globalExcludeId.toRaw());
+        out.write(EXCLUDE_PER_DIR.getBytes(StandardCharsets.US_ASCII));
+        out.writeByte(0);
+
+        if(!dirs.containsKey("")){
+            writeVarint(out, 0);
+            out.flush();
+            return bytes.toByteArray();
+        }
+
+        //depth first from the root: a subdirectory we have no valid listing for goes in as an empty, invalid one
+        List<Dir> order = new ArrayList<>();
+        ByteArrayOutputStream blocks = new ByteArrayOutputStream();
+        writeDir(new DataOutputStream(blocks), "", "", order);
+
+        BitSet valid = new BitSet();
+        BitSet shaValid = new BitSet();
+        for(int i = 0; i < order.size(); i++){
+            Dir d = order.get(i);
+            if(d != null){
+                valid.set(i);
+                if(d.excludeId() != null){
+                    shaValid.set(i);
+                }
+            }
+        }
+
+        writeVarint(out, order.size());
+        blocks.writeTo(out);
+        EwahBitmap.write(out, valid, order.size());
+        EwahBitmap.write(out, new BitSet(), order.size());
+        EwahBitmap.write(out, shaValid, order.size());
+        for(Dir d : order){
+            if(d != null){
+                writeStat(out, d.stat());
+            }
+        }
+        for(Dir d : order){
+            if(d != null && d.excludeId() != null){
+                out.write(d.excludeId().toRaw());
+            }
+        }
+        out.writeByte(0);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private void writeDir(DataOutputStream out, String path, String name, List<Dir> order) throws IOException{
+        Dir d = dirs.get(path);
+        order.add(d);
+        List<String> files = d != null ? d.untracked() : List.of();
+        List<String> subdirs = d != null ? d.subdirs() : List.of();
+
+        writeVarint(out, files.size());
+        writeVarint(out, subdirs.size());
+        out.write(name.getBytes(StandardCharsets.UTF_8));
+        out.writeByte(0);
+        for(String f : files){
+            out.write(f.getBytes(StandardCharsets.UTF_8));
+            out.writeByte(0);
+        }
+        for(String s : subdirs){
+            writeDir(out, path.isEmpty() ? s : path + "/" + s, s, order);
+        }
+    }
+
+    //ctime s, ns | mtime s, ns | dev | ino | uid | gid | size, all 32 bits
+    private static FileStat readStat(ByteBuffer buf, int p){
+        return new FileStat(
+                u32(buf.getInt(p)), u32(buf.getInt(p + 4)), u32(buf.getInt(p + 8)), u32(buf.getInt(p + 12)),
+                u32(buf.getInt(p + 16)), u32(buf.getInt(p + 20)), 0b0100, 0,
+                u32(buf.getInt(p + 24)), u32(buf.getInt(p + 28)), u32(buf.getInt(p + 32)));
+    }
+
+    private static void writeStat(DataOutputStream out, FileStat s) throws IOException{
+        out.writeInt((int) s.ctimeS());
+        out.writeInt((int) s.ctimeNs());
+        out.writeInt((int) s.mtimeS());
+        out.writeInt((int) s.mtimeNs());
+        out.writeInt((int) s.dev());
+        out.writeInt((int) s.ino());
+        out.writeInt((int) s.uid());
+        out.writeInt((int) s.gid());
+        out.writeInt((int) s.size());
+    }
+
+    private static long u32(int v){
+        return v & 0xFFFFFFFFL;
+    }
+
+    private static String readString(byte[] data, int[] pos) throws IOException{
+        int nul = indexOf(data, (byte) 0, pos[0]);
+        if(nul < 0){
+            throw new IOException("Corrupt untracked cache extension");
+        }
+        String s = new String(data, pos[0], nul - pos[0], StandardCharsets.UTF_8);
+        pos[0] = nul + 1;
+        return s;
+    }
+
+    //git's offset varint (big endian, every continuation byte implicitly adds one)
+    private static int readVarint(byte[] data, int[] pos){
+        int c = data[pos[0]++] & 0xff;
+        int value = c & 0x7f;
+        while((c & 0x80) != 0){
+            c = data[pos[0]++] & 0xff;
+            value = ((value + 1) << 7) | (c & 0x7f);
+        }
+        return value;
+    }
+
+    private static void writeVarint(DataOutputStream out, int value) throws IOException{
+        byte[] buf = new byte[5];
+        int pos = buf.length - 1;
+        buf[pos] = (byte) (value & 0x7f);
+        while((value >>>= 7) != 0){
+            value--;
+            buf[--pos] = (byte) (0x80 | (value & 0x7f));
+        }
+        out.write(buf, pos, buf.length - pos);
+    }
+
+    private static int indexOf(byte[] data, byte b, int from){
+        for(int i = from; i < data.length; i++){
+            if(data[i] == b){
+                return i;
+            }
+        }
+        return -1;
+    }
+}
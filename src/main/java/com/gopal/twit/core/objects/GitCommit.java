@@ -1,12 +1,21 @@
 package com.gopal.twit.core.objects;
 
 import com.gopal.twit.util.KVLMParser;
+import com.gopal.twit.util.KVLMReader;
 
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
+/**
+ * A commit read from the repository keeps its raw bytes: the typed getters (getTree, getParents,
+ * getCommitTime...) read them through a KVLMReader, and the kvlm map is only built if getKvlm() is called.
+ * Once the map exists it is the content, since callers may edit it.
+ */
 public class GitCommit extends GitObject {
-    private Map<String, Object> kvlm;
+    private byte[] raw;
+    private volatile Map<String, Object> kvlm;
+    private volatile KVLMReader reader;
 
     public GitCommit(){
         init();
@@ -23,24 +32,56 @@ public class GitCommit extends GitObject {
 
     @Override
     public byte[] serialize() {
-        return KVLMParser.serialize(kvlm);
+        Map<String, Object> map = kvlm;
+        return map != null ? KVLMParser.serialize(map) : raw;
     }
 
     @Override
     public void deserialize(byte[] data) {
-        this.kvlm = KVLMParser.parse(data);
+        this.raw = data;
+        this.kvlm = null;
+        this.reader = null;
     }
 
     @Override
     public void init(){
+        this.raw = null;
+        this.reader = null;
         this.kvlm = new LinkedHashMap<>();
     }
 
     public Map<String, Object> getKvlm(){
-        return kvlm;
+        Map<String, Object> map = kvlm;
+        if(map == null){
+            map = KVLMParser.parse(raw);
+            kvlm = map;
+        }
+        return map;
     }
 
     public void setKvlm(Map<String, Object> kvlm){
         this.kvlm = kvlm;
     }
+
+    /**
+     * A reader over the headers, as they are now
+     */
+    public KVLMReader header(){
+        if(kvlm != null){
+            return new KVLMReader(serialize());
+        }
+        KVLMReader r = reader;
+        if(r == null){
+            r = new KVLMReader(raw);
+            reader = r;
+        }
+        return r;
+    }
+
+    public ObjectId getTree() { return header().tree(); }
+    public List<ObjectId> getParents() { return header().parents(); }
+    public String getAuthor() { return header().author(); }
+    public String getCommitter() { return header().committer(); }
+    public long getCommitTime() { return header().commitTime(); }
+    public String getMessage() { return header().messageString(); }
 }
@@ -15,4 +15,9 @@ public class GitTag extends GitCommit{
     public String getFormat() {
         return "tag";
     }
+
+    /**
+     * The object the tag points at
+     */
+    public ObjectId getObject() { return header().object(); }
 }
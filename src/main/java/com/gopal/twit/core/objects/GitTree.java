@@ -1,12 +1,19 @@
 package com.gopal.twit.core.objects;
 
+import com.gopal.twit.util.TreeCursor;
 import com.gopal.twit.util.TreeParser;
 
 import java.util.ArrayList;
 import java.util.List;
 
+/**
+ * A tree read from the repository keeps its raw bytes, and is only parsed into GitTreeLeaf objects
+ * the first time getItems() is called {read-only walks should use cursor(), which never parses it}.
+ * Once the items exist they are the content, since callers may edit the list.
+ */
 public class GitTree extends GitObject{
-    private List<GitTreeLeaf> items;
+    private byte[] raw;
+    private volatile List<GitTreeLeaf> items;
 
     public GitTree(){
         init();
@@ -22,20 +29,36 @@ public class GitTree extends GitObject{
 
     @Override
     public byte[] serialize() {
-        return TreeParser.serialize(items);
+        List<GitTreeLeaf> list = items;
+        return list != null ? TreeParser.serialize(list) : raw;
     }
 
     @Override
     public void deserialize(byte[] data) {
-        this.items = TreeParser.parse(data);
+        this.raw = data;
+        this.items = null;
     }
 
     @Override
     public void init(){
+        this.raw = null;
         this.items = new ArrayList<>();
     }
 
     public List<GitTreeLeaf> getItems(){
-        return items;
+        List<GitTreeLeaf> list = items;
+        if(list == null){
+            list = TreeParser.parse(raw);
+            items = list;
+        }
+        return list;
+    }
+
+    /**
+     * A cursor over the entries, in tree order
+     */
+    public TreeCursor cursor(){
+        List<GitTreeLeaf> list = items;
+        return new TreeCursor(list != null ? TreeParser.serialize(list) : raw);
     }
 }
@@ -5,27 +5,64 @@ package com.gopal.twit.core.objects;
  * It is an array of three-element tuples -> file mode, path (relative to worktree), SHA-1
  * Trees are binary objects which is basically an array of 3 element tuples of the format: [mode] space [path] 0x00 [sha-1]
  * We represent a single record in the tree using the GitTreeLeaf object
+ * {walks that don't need a standalone object per entry use a TreeCursor over the raw tree instead}
  */
 public class GitTreeLeaf {
-    private final String mode;
+    //the mode is a unix mode: the high bits are the type, the low ones the permissions
+    public static final int TYPE_MASK = 0170000;
+    public static final int MODE_TREE = 0040000;
+    public static final int MODE_FILE = 0100644;
+    public static final int MODE_EXECUTABLE = 0100755;
+    public static final int MODE_SYMLINK = 0120000;
+    public static final int MODE_GITLINK = 0160000;
+
+    private final int mode;
     private final String path;
-    private final String sha;
+    private final ObjectId id;
 
-    public GitTreeLeaf(String mode, String path, String sha){
+    public GitTreeLeaf(int mode, String path, ObjectId id){
         this.mode = mode;
         this.path = path;
-        this.sha = sha;
+        this.id = id;
+    }
+
+    public GitTreeLeaf(String mode, String path, ObjectId id){
+        this(Integer.parseInt(mode, 8), path, id);
     }
 
+    public GitTreeLeaf(String mode, String path, String sha){
+        this(mode, path, ObjectId.fromHex(sha));
+    }
+
+    /**
+     * The mode as 6 octal digits ("040000" for a tree)
+     */
     public String getMode(){
+        String m = Integer.toOctalString(mode);
+        return m.length() < 6 ? "000000".substring(m.length()) + m : m;
+    }
+
+    public int getModeBits(){
         return mode;
     }
 
+    public boolean isTree(){
+        return (mode & TYPE_MASK) == MODE_TREE;
+    }
+
+    public boolean isGitlink(){
+        return (mode & TYPE_MASK) == MODE_GITLINK;
+    }
+
     public String getPath(){
         return path;
     }
 
+    public ObjectId getId(){
+        return id;
+    }
+
     public String getSha(){
-        return sha;
+        return id.name();
     }
 }
@@ -0,0 +1,219 @@
+package com.gopal.twit.core.objects;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * OBJECT ID
+ * The SHA-1 of an object, kept as its 20 raw bytes packed into five ints (big endian)
+ * instead of a 40 char String: about a third of the memory, equals/hashCode/compareTo on five ints,
+ * and no hex round trip when it comes from (or goes to) a binary format (trees, index, packs).
+ * Hex conversion is table driven both ways, and only happens when a name is actually printed or parsed.
+ * compareTo orders like the raw bytes (unsigned), which is also the order of the hex names.
+ */
+public final class ObjectId implements Comparable<ObjectId> {
+    public static final int RAW_LEN = 20;
+    public static final int HEX_LEN = 40;
+    public static final ObjectId ZERO = new ObjectId(0, 0, 0, 0, 0);
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final byte[] DIGITS = new byte[128];//hex char -> value, -1 if not a hex digit
+    static {
+        Arrays.fill(DIGITS, (byte) -1);
+        for(int i = 0; i < 10; i++){
+            DIGITS['0' + i] = (byte) i;
+        }
+        for(int i = 0; i < 6; i++){
+            DIGITS['a' + i] = (byte) (10 + i);
+            DIGITS['A' + i] = (byte) (10 + i);
+        }
+    }
+
+    private final int w1, w2, w3, w4, w5;
+
+    private ObjectId(int w1, int w2, int w3, int w4, int w5){
+        this.w1 = w1;
+        this.w2 = w2;
+        this.w3 = w3;
+        this.w4 = w4;
+        this.w5 = w5;
+    }
+
+    public static ObjectId fromRaw(byte[] raw){
+        return fromRaw(raw, 0);
+    }
+
+    public static ObjectId fromRaw(byte[] raw, int off){
+        return new ObjectId(word(raw, off), word(raw, off + 4), word(raw, off + 8), word(raw, off + 12), word(raw, off + 16));
+    }
+
+    /**
+     * From 20 bytes of a (mapped) buffer, at an absolute position
+     */
+    public static ObjectId fromRaw(ByteBuffer buf, int off){
+        return new ObjectId(buf.getInt(off), buf.getInt(off + 4), buf.getInt(off + 8), buf.getInt(off + 12), buf.getInt(off + 16));
+    }
+
+    /**
+     * Parses a 40 digit hex name (either case)
+     * @throws IllegalArgumentException if it isn't one
+     */
+    public static ObjectId fromHex(CharSequence hex){
+        if(hex.length() != HEX_LEN){
+            throw new IllegalArgumentException("Not a SHA-1: '" + hex + "'");
+        }
+        return new ObjectId(hexWord(hex, 0), hexWord(hex, 8), hexWord(hex, 16), hexWord(hex, 24), hexWord(hex, 32));
+    }
+
+    /**
+     * Parses 40 hex digits stored as ASCII bytes, e.g. the "tree" line of a commit {no String in between}
+     * @throws IllegalArgumentException if they aren't hex digits
+     */
+    public static ObjectId fromHex(byte[] ascii, int off){
+        if(off < 0 || off + HEX_LEN > ascii.length){
+            throw new IllegalArgumentException("Not a SHA-1: truncated at offset " + off);
+        }
+        return new ObjectId(hexWord(ascii, off), hexWord(ascii, off + 8), hexWord(ascii, off + 16),
+                hexWord(ascii, off + 24), hexWord(ascii, off + 32));
+    }
+
+    /**
+     * Is s a full 40 digit hex name?
+     */
+    public static boolean isHex(CharSequence s){
+        if(s == null || s.length() != HEX_LEN){
+            return false;
+        }
+        for(int i = 0; i < HEX_LEN; i++){
+            char c = s.charAt(i);
+            if(c >= 128 || DIGITS[c] < 0){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The hex name of 20 raw bytes {without creating an ObjectId}
+     */
+    public static String toHex(byte[] raw, int off){
+        char[] hex = new char[HEX_LEN];
+        for(int i = 0; i < RAW_LEN; i++){
+            int b = raw[off + i] & 0xff;
+            hex[i * 2] = HEX[b >>> 4];
+            hex[i * 2 + 1] = HEX[b & 0x0f];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * The 40 char lowercase hex name
+     */
+    public String name(){
+        char[] hex = new char[HEX_LEN];
+        hexWord(hex, 0, w1);
+        hexWord(hex, 8, w2);
+        hexWord(hex, 16, w3);
+        hexWord(hex, 24, w4);
+        hexWord(hex, 32, w5);
+        return new String(hex);
+    }
+
+    public byte[] toRaw(){
+        byte[] raw = new byte[RAW_LEN];
+        copyRawTo(raw, 0);
+        return raw;
+    }
+
+    public void copyRawTo(byte[] dst, int off){
+        putWord(dst, off, w1);
+        putWord(dst, off + 4, w2);
+        putWord(dst, off + 8, w3);
+        putWord(dst, off + 12, w4);
+        putWord(dst, off + 16, w5);
+    }
+
+    /**
+     * The first byte, as used by fan-out tables and the objects/xx directories
+     */
+    public int firstByte(){
+        return w1 >>> 24;
+    }
+
+    @Override
+    public boolean equals(Object o){
+        if(this == o){
+            return true;
+        }
+        return o instanceof ObjectId other
+                && w1 == other.w1 && w2 == other.w2 && w3 == other.w3 && w4 == other.w4 && w5 == other.w5;
+    }
+
+    @Override
+    public int hashCode(){
+        //a SHA-1 is already uniformly distributed, any of its words is a good hash
+        return w2;
+    }
+
+    @Override
+    public int compareTo(ObjectId o){
+        int c = Integer.compareUnsigned(w1, o.w1);
+        if(c != 0) return c;
+        c = Integer.compareUnsigned(w2, o.w2);
+        if(c != 0) return c;
+        c = Integer.compareUnsigned(w3, o.w3);
+        if(c != 0) return c;
+        c = Integer.compareUnsigned(w4, o.w4);
+        if(c != 0) return c;
+        return Integer.compareUnsigned(w5, o.w5);
+    }
+
+    @Override
+    public String toString(){
+        return name();
+    }
+
+    private static int word(byte[] raw, int off){
+        return (raw[off] & 0xff) << 24 | (raw[off + 1] & 0xff) << 16 | (raw[off + 2] & 0xff) << 8 | (raw[off + 3] & 0xff);
+    }
+
+    private static void putWord(byte[] dst, int off, int w){
+        dst[off] = (byte) (w >>> 24);
+        dst[off + 1] = (byte) (w >>> 16);
+        dst[off + 2] = (byte) (w >>> 8);
+        dst[off + 3] = (byte) w;
+    }
+
+    private static int hexWord(CharSequence hex, int off){
+        int w = 0;
+        for(int i = off; i < off + 8; i++){
+            char c = hex.charAt(i);
+            int d = c < 128 ? DIGITS[c] : -1;
+            if(d < 0){
+                throw new IllegalArgumentException("Not a SHA-1: '" + hex + "'");
+            }
+            w = (w << 4) | d;
+        }
+        return w;
+    }
+
+    private static int hexWord(byte[] ascii, int off){
+        int w = 0;
+        for(int i = off; i < off + 8; i++){
+            int c = ascii[i];
+            int d = c >= 0 ? DIGITS[c] : -1;
+            if(d < 0){
+                throw new IllegalArgumentException("Not a SHA-1: bad hex digit at offset " + i);
+            }
+            w = (w << 4) | d;
+        }
+        return w;
+    }
+
+    private static void hexWord(char[] hex, int off, int w){
+        for(int i = 7; i >= 0; i--){
+            hex[off + i] = HEX[w & 0x0f];
+            w >>>= 4;
+        }
+    }
+}
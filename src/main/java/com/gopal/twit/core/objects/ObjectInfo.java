@@ -0,0 +1,9 @@
+package com.gopal.twit.core.objects;
+
+/**
+ * The type and size of an object, as found in its header, without its content
+ * @param type "blob", "tree", "commit" or "tag"
+ * @param size size of the content in bytes
+ */
+public record ObjectInfo(String type, long size) {
+}
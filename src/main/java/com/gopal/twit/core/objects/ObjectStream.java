@@ -0,0 +1,19 @@
+package com.gopal.twit.core.objects;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An object whose content is read as a stream rather than loaded into memory
+ * Used for blobs, which can be arbitrarily large
+ * @param type "blob", "tree", "commit" or "tag"
+ * @param size size of the content in bytes
+ * @param in the (already inflated) content, without the header
+ */
+public record ObjectStream(String type, long size, InputStream in) implements Closeable {
+    @Override
+    public void close() throws IOException{
+        in.close();
+    }
+}
@@ -0,0 +1,10 @@
+package com.gopal.twit.core.objects;
+
+/**
+ * An object exactly as it is stored: its type and its (inflated) content, without the header
+ * Used when we need the bytes of an object but don't want to parse them into a GitObject
+ * @param type "blob", "tree", "commit" or "tag"
+ * @param data the object content
+ */
+public record RawObject(String type, byte[] data) {
+}
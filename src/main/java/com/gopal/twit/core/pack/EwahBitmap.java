@@ -0,0 +1,108 @@
+package com.gopal.twit.core.pack;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * EWAH compressed bitmaps, in the on-disk format git uses in .bitmap files
+ * The bitmap is a sequence of 64-bit words (bit i is bit i%64 of word i/64), compressed as runs of
+ * all-zero or all-one words, each run followed by some literal (mixed) words.
+ * A run is described by a "running length word" (RLW):
+ * bit 0 -> the bit the run is made of | bits 1-32 -> run length (in words) | bits 33-63 -> number of literal words after it
+ * LAYOUT:
+ * number of bits (32) | number of words (32) | the words (64 bits each) | position of the last RLW (32)
+ * {all big endian}
+ */
+public class EwahBitmap {
+    private static final long RUN_MAX = 0xFFFFFFFFL;
+    private static final int LITERALS_MAX = 0x7FFFFFFF;
+
+    /**
+     * A bitmap read from a buffer, and where it ended
+     */
+    public record Decoded(BitSet bits, int end){}
+
+    public static void write(DataOutputStream out, BitSet bits, int bitSize) throws IOException{
+        long[] words = Arrays.copyOf(bits.toLongArray(), (bitSize + 63) / 64);
+
+        long[] buffer = new long[words.length + 1];
+        int size = 0;
+        int lastRlw = 0;
+
+        int i = 0;
+        do{
+            //run of identical empty or full words
+            long run = 0;
+            boolean runBit = false;
+            if(i < words.length && (words[i] == 0 || words[i] == -1L)){
+                long w = words[i];
+                runBit = w == -1L;
+                while(i < words.length && words[i] == w && run < RUN_MAX){
+                    run++;
+                    i++;
+                }
+            }
+
+            //then the literal words, up to the next run
+            int start = i;
+            while(i < words.length && words[i] != 0 && words[i] != -1L && i - start < LITERALS_MAX){
+                i++;
+            }
+            int literals = i - start;
+
+            if(size + 1 + literals > buffer.length){
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + 1 + literals));
+            }
+            lastRlw = size;
+            buffer[size++] = (runBit ? 1L : 0L) | (run << 1) | ((long) literals << 33);
+            System.arraycopy(words, start, buffer, size, literals);
+            size += literals;
+        } while(i < words.length);
+
+        out.writeInt(bitSize);
+        out.writeInt(size);
+        for(int k = 0; k < size; k++){
+            out.writeLong(buffer[k]);
+        }
+        out.writeInt(lastRlw);
+    }
+
+    public static Decoded read(ByteBuffer buf, int pos){
+        int bitSize = buf.getInt(pos);
+        int size = buf.getInt(pos + 4);
+        int p = pos + 8;
+        int end = p + size * 8 + 4;
+
+        long[] words = new long[(bitSize + 63) / 64];
+        int w = 0;
+        int k = 0;
+        while(k < size){
+            long rlw = buf.getLong(p + k * 8);
+            k++;
+            boolean runBit = (rlw & 1) != 0;
+            long run = (rlw >>> 1) & RUN_MAX;
+            int literals = (int) (rlw >>> 33);
+
+            if(runBit){
+                Arrays.fill(words, w, (int) Math.min(words.length, w + run), -1L);
+            }
+            w += (int) run;
+            for(int l = 0; l < literals && k < size; l++, k++){
+                if(w < words.length){
+                    words[w] = buf.getLong(p + k * 8);
+                }
+                w++;
+            }
+        }
+
+        //a run of ones may cover more than bitSize in its last word
+        BitSet bits = BitSet.valueOf(words);
+        if(bits.length() > bitSize){
+            bits.clear(bitSize, bits.length());
+        }
+        return new Decoded(bits, end);
+    }
+}
@@ -0,0 +1,195 @@
+package com.gopal.twit.core.pack;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * A packfile together with its index
+ * Packs store many objects in a single file, each one zlib-compressed on its own, and
+ * some of them stored as deltas against another object {either by offset in the same pack (OFS_DELTA) or by SHA (REF_DELTA)}
+ * PACK FORMAT:
+ * "PACK" | version (4 bytes) | object count (4 bytes) | entries... | SHA-1 of everything before
+ * Every entry starts with a variable length header holding the type (3 bits) and the inflated size
+ */
+public class GitPack {
+    public static final int OBJ_COMMIT = 1;
+    public static final int OBJ_TREE = 2;
+    public static final int OBJ_BLOB = 3;
+    public static final int OBJ_TAG = 4;
+    public static final int OBJ_OFS_DELTA = 6;
+    public static final int OBJ_REF_DELTA = 7;
+
+    private final Path path;
+    private final GitPackIndex index;
+    private final ByteBuffer buf;
+
+    public GitPack(Path packPath, GitPackIndex index) throws IOException{
+        this.path = packPath;
+        this.index = index;
+
+        try(FileChannel ch = FileChannel.open(packPath, StandardOpenOption.READ)){
+            if(ch.size() > Integer.MAX_VALUE){
+                throw new IOException("Pack too large to map: " + packPath);
+            }
+            this.buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        }
+
+        if(buf.capacity() < 12 || buf.getInt(0) != 0x5041434b){//"PACK"
+            throw new IOException("Not a packfile: " + packPath);
+        }
+        int version = buf.getInt(4);
+        if(version != 2 && version != 3){
+            throw new IOException("Unsupported pack version " + version + ": " + packPath);
+        }
+    }
+
+    public Path getPath(){
+        return path;
+    }
+
+    public GitPackIndex getIndex(){
+        return index;
+    }
+
+    /**
+     * Parses the entry header at the given offset
+     */
+    public EntryHeader readHeader(long offset) throws IOException{
+        int pos = (int) offset;
+        int c = buf.get(pos++) & 0xff;
+        int type = (c >> 4) & 0b111;
+        long size = c & 0x0f;
+        int shift = 4;
+        while((c & 0x80) != 0){
+            c = buf.get(pos++) & 0xff;
+            size |= (long) (c & 0x7f) << shift;
+            shift += 7;
+        }
+
+        long baseOffset = -1;
+        byte[] baseSha = null;
+
+        if(type == OBJ_OFS_DELTA){
+            //the base offset is a negative, big endian varint where each continuation adds one
+            c = buf.get(pos++) & 0xff;
+            long rel = c & 0x7f;
+            while((c & 0x80) != 0){
+                c = buf.get(pos++) & 0xff;
+                rel = ((rel + 1) << 7) | (c & 0x7f);
+            }
+            baseOffset = offset - rel;
+        }
+        else if(type == OBJ_REF_DELTA){
+            baseSha = new byte[20];
+            buf.get(pos, baseSha);
+            pos += 20;
+        }
+        else if(type < OBJ_COMMIT || type > OBJ_TAG){
+            throw new IOException("Bad object type " + type + " at offset " + offset + " in " + path);
+        }
+
+        return new EntryHeader(type, size, pos, baseOffset, baseSha);
+    }
+
+    /**
+     * Inflates the zlib stream starting at dataOffset, which is known to expand to exactly size bytes
+     */
+    public byte[] inflate(long dataOffset, long size) throws IOException{
+        if(size > Integer.MAX_VALUE - 8){
+            throw new IOException("Object too large: " + size + " bytes");
+        }
+
+        byte[] out = new byte[(int) size];
+        Inflater inflater = new Inflater();
+        try{
+            inflater.setInput(buf.slice((int) dataOffset, buf.capacity() - (int) dataOffset));
+            int n = 0;
+            while(n < out.length){
+                int r = inflater.inflate(out, n, out.length - n);
+                if(r == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())){
+                    throw new IOException("Truncated object at offset " + dataOffset + " in " + path);
+                }
+                n += r;
+            }
+        } catch (DataFormatException e){
+            throw new IOException("Corrupt object at offset " + dataOffset + " in " + path, e);
+        } finally {
+            inflater.end();
+        }
+        return out;
+    }
+
+    /**
+     * Inflates only the first out.length bytes (or less) of the zlib stream at dataOffset, with the caller's inflater
+     * Returns how many bytes were inflated {enough to read a delta's header without inflating the delta}
+     */
+    public int inflateHead(long dataOffset, byte[] out, Inflater inflater) throws IOException{
+        inflater.reset();
+        inflater.setInput(buf.slice((int) dataOffset, buf.capacity() - (int) dataOffset));
+        try{
+            int n = 0;
+            while(n < out.length && !inflater.finished()){
+                int r = inflater.inflate(out, n, out.length - n);
+                if(r == 0 && (inflater.needsInput() || inflater.needsDictionary())){
+                    break;
+                }
+                n += r;
+            }
+            return n;
+        } catch (DataFormatException e){
+            throw new IOException("Corrupt object at offset " + dataOffset + " in " + path, e);
+        }
+    }
+
+    /**
+     * Raw (still compressed) bytes of the pack from dataOffset on, as a stream
+     * Wrapped in an inflater this reads a single object without copying it out of the mapping
+     */
+    public InputStream rawStream(long dataOffset){
+        ByteBuffer slice = buf.slice((int) dataOffset, buf.capacity() - (int) dataOffset);
+        return new InputStream() {
+            @Override
+            public int read(){
+                return slice.hasRemaining() ? slice.get() & 0xff : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len){
+                if(!slice.hasRemaining()){
+                    return -1;
+                }
+                int n = Math.min(len, slice.remaining());
+                slice.get(b, off, n);
+                return n;
+            }
+        };
+    }
+
+    public static String typeName(int type){
+        return switch (type){
+            case OBJ_COMMIT -> "commit";
+            case OBJ_TREE -> "tree";
+            case OBJ_BLOB -> "blob";
+            case OBJ_TAG -> "tag";
+            default -> throw new IllegalArgumentException("Not a base object type: " + type);
+        };
+    }
+
+    /**
+     * The decoded header of a single pack entry
+     * dataOffset -> where the zlib stream begins
+     * baseOffset -> for OFS_DELTA, the offset of the base entry (else -1)
+     * baseSha -> for REF_DELTA, the SHA of the base object (else null)
+     */
+    public record EntryHeader(int type, long size, long dataOffset, long baseOffset, byte[] baseSha){
+        public boolean isDelta(){
+            return type == OBJ_OFS_DELTA || type == OBJ_REF_DELTA;
+        }
+    }
+}
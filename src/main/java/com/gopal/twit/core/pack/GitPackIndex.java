@@ -0,0 +1,209 @@
+package com.gopal.twit.core.pack;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Reader for a version 2 pack index (.idx) file
+ * The whole file is memory-mapped, nothing is copied onto the heap
+ * LAYOUT:
+ * 1) Header -> magic \377tOc and the version (2)
+ * 2) Fan-out table -> 256 entries, entry N is the number of objects whose first SHA byte is <= N
+ * 3) Sorted table of the 20-byte SHAs
+ * 4) CRC32 of each packed object
+ * 5) 4-byte pack offsets {if the MSB is set, the rest is an index into the 8-byte offset table}
+ * 6) 8-byte offsets for packs larger than 2GB
+ * 7) Trailer -> pack checksum and idx checksum
+ */
+public class GitPackIndex {
+    private static final int HEADER_LEN = 8;
+    private static final int FANOUT_LEN = 256 * 4;
+    private static final int POSITION_MASK = 0xFFFFFF;
+
+    private final Path path;
+    private final ByteBuffer buf;
+    private final int count;
+    private final int shaTable;
+    private final int crcTable;
+    private final int offsetTable;
+    private final int largeOffsetTable;
+
+    public GitPackIndex(Path path) throws IOException{
+        this.path = path;
+
+        MappedByteBuffer mapped;
+        try(FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)){
+            mapped = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        }
+        this.buf = mapped;
+
+        if(buf.capacity() < HEADER_LEN + FANOUT_LEN
+                || buf.getInt(0) != 0xff744f63){//"\377tOc"
+            throw new IOException("Unsupported pack index (only v2 is supported): " + path);
+        }
+        int version = buf.getInt(4);
+        if(version != 2){
+            throw new IOException("Unsupported pack index version " + version + ": " + path);
+        }
+
+        //the last fan-out entry is the total number of objects
+        this.count = buf.getInt(HEADER_LEN + 255 * 4);
+        this.shaTable = HEADER_LEN + FANOUT_LEN;
+        this.crcTable = shaTable + count * 20;
+        this.offsetTable = crcTable + count * 4;
+        this.largeOffsetTable = offsetTable + count * 4;
+    }
+
+    public Path getPath(){
+        return path;
+    }
+
+    public int getCount(){
+        return count;
+    }
+
+    /**
+     * Returns the offset of the object in the pack, or -1 if the pack doesn't contain it
+     * The fan-out table narrows the search down to the objects sharing the first byte,
+     * which is then binary searched
+     */
+    public long findOffset(byte[] sha){
+        int pos = findPosition(sha);
+        return pos < 0 ? -1 : offsetAt(pos);
+    }
+
+    public boolean contains(byte[] sha){
+        return findPosition(sha) >= 0;
+    }
+
+    /**
+     * Returns the position of the sha in the sorted SHA table, or -1
+     */
+    public int findPosition(byte[] sha){
+        int first = sha[0] & 0xff;
+        int lo = first == 0 ? 0 : buf.getInt(HEADER_LEN + (first - 1) * 4);
+        int hi = buf.getInt(HEADER_LEN + first * 4);
+
+        while(lo < hi){
+            int mid = (lo + hi) >>> 1;
+            int cmp = compareAt(mid, sha);
+            if(cmp < 0){
+                lo = mid + 1;
+            }
+            else if(cmp > 0){
+                hi = mid;
+            }
+            else{
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Collects the (hex) SHAs of all the objects starting with the given hex prefix
+     * Used to resolve short hashes
+     */
+    public List<String> findByPrefix(String hexPrefix){
+        List<String> ret = new ArrayList<>();
+        int first = Integer.parseInt(hexPrefix.substring(0, 2), 16);
+        int lo = first == 0 ? 0 : buf.getInt(HEADER_LEN + (first - 1) * 4);
+        int hi = buf.getInt(HEADER_LEN + first * 4);
+
+        for(int i = lo; i < hi; i++){
+            String hex = shaHexAt(i);
+            if(hex.startsWith(hexPrefix)){
+                ret.add(hex);
+            }
+        }
+        return ret;
+    }
+
+    public byte[] shaAt(int pos){
+        byte[] sha = new byte[20];
+        buf.get(shaTable + pos * 20, sha);
+        return sha;
+    }
+
+    public String shaHexAt(int pos){
+        StringBuilder sb = new StringBuilder(40);
+        int base = shaTable + pos * 20;
+        for(int i = 0; i < 20; i++){
+            int b = buf.get(base + i) & 0xff;
+            sb.append(Character.forDigit(b >>> 4, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    public int crcAt(int pos){
+        return buf.getInt(crcTable + pos * 4);
+    }
+
+    public long offsetAt(int pos){
+        int off = buf.getInt(offsetTable + pos * 4);
+        if((off & 0x80000000) == 0){
+            return off;
+        }
+        //MSB set -> the rest is an index into the table of 64-bit offsets
+        return buf.getLong(largeOffsetTable + (off & 0x7fffffff) * 8);
+    }
+
+    /**
+     * SHA-1 of the pack this index belongs to (the first half of the trailer)
+     */
+    public byte[] getPackChecksum(){
+        byte[] sha = new byte[20];
+        buf.get(buf.capacity() - 40, sha);
+        return sha;
+    }
+
+    /**
+     * The positions of the objects in the order they are stored in the pack (by offset)
+     * {the "reverse index": bitmaps number objects in pack order, not in SHA order}
+     */
+    public int[] positionsByOffset(){
+        int[] order = new int[count];
+        if(count > POSITION_MASK){
+            //too many objects to sort offset and position packed into one long
+            Integer[] boxed = new Integer[count];
+            for(int i = 0; i < count; i++){
+                boxed[i] = i;
+            }
+            Arrays.sort(boxed, Comparator.comparingLong(this::offsetAt));
+            for(int i = 0; i < count; i++){
+                order[i] = boxed[i];
+            }
+            return order;
+        }
+
+        long[] keyed = new long[count];
+        for(int i = 0; i < count; i++){
+            keyed[i] = (offsetAt(i) << 24) | i;
+        }
+        Arrays.sort(keyed);
+        for(int i = 0; i < count; i++){
+            order[i] = (int) (keyed[i] & POSITION_MASK);
+        }
+        return order;
+    }
+
+    private int compareAt(int pos, byte[] sha){
+        int base = shaTable + pos * 20;
+        for(int i = 0; i < 20; i++){
+            int a = buf.get(base + i) & 0xff;
+            int b = sha[i] & 0xff;
+            if(a != b){
+                return a - b;
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,155 @@
+package com.gopal.twit.core.pack;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reader for a reachability bitmap file (pack-*.bitmap, next to its pack), memory-mapped
+ * For some selected commits it stores the set of every object reachable from them, as a bitmap
+ * over the objects of the pack (bit N = the Nth object in pack order).
+ * Reachability queries then become ORs of bitmaps instead of reading commits and trees.
+ * {only valid for a pack that contains everything reachable from those commits, see BitmapWriter}
+ * LAYOUT:
+ * 1) Header -> "BITM" | version (16 bits, 1) | options (16 bits) | number of entries | pack checksum
+ * 2) Type bitmaps -> EWAH bitmaps of the commits, trees, blobs and tags of the pack
+ * 3) Entries -> position of the commit in the .idx | XOR offset (8 bits) | flags (8 bits) | EWAH bitmap
+ *    {XOR offset N means the bitmap is stored XORed with the one of the entry N places before}
+ * 4) Trailer -> SHA-1 of everything above
+ */
+public class PackBitmap {
+    public static final int SIGNATURE = 0x4249544d;//"BITM"
+    public static final int OPT_FULL_DAG = 0x1;
+    public static final int OPT_HASH_CACHE = 0x4;
+    public static final int OPT_LOOKUP_TABLE = 0x10;
+
+    private final Path path;
+    private final GitPack pack;
+    private final ByteBuffer buf;
+    private final BitSet[] types = new BitSet[4];//commits, trees, blobs, tags
+    private final Map<Integer, Integer> entries = new HashMap<>();//idx position -> entry number
+    private final int[] entryOffsets;
+    private final int[] entryXor;
+    private final BitSet[] decoded;
+    private int[] packOrder;//bit -> idx position
+    private int[] bitOf;//idx position -> bit
+
+    public PackBitmap(Path path, GitPack pack) throws IOException{
+        this.path = path;
+        this.pack = pack;
+
+        MappedByteBuffer mapped;
+        try(FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)){
+            mapped = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        }
+        this.buf = mapped;
+
+        if(buf.capacity() < 32 + 20 || buf.getInt(0) != SIGNATURE || buf.getShort(4) != 1){
+            throw new IOException("Unsupported bitmap file: " + path);
+        }
+        int options = buf.getShort(6) & 0xffff;
+        if((options & OPT_FULL_DAG) == 0){
+            throw new IOException("Bitmap file without full closure: " + path);
+        }
+        int count = buf.getInt(8);
+
+        byte[] checksum = new byte[20];
+        buf.get(12, checksum);
+        if(!Arrays.equals(checksum, pack.getIndex().getPackChecksum())){
+            throw new IOException("Bitmap file does not match its pack: " + path);
+        }
+
+        int pos = 32;
+        for(int t = 0; t < 4; t++){
+            EwahBitmap.Decoded d = EwahBitmap.read(buf, pos);
+            types[t] = d.bits();
+            pos = d.end();
+        }
+
+        //entries are only located here, their bitmaps are decoded when asked for
+        entryOffsets = new int[count];
+        entryXor = new int[count];
+        decoded = new BitSet[count];
+        for(int i = 0; i < count; i++){
+            int commit = buf.getInt(pos);
+            entryXor[i] = buf.get(pos + 4) & 0xff;
+            entryOffsets[i] = pos + 6;
+            entries.put(commit, i);
+            pos = skip(pos + 6);
+        }
+    }
+
+    private int skip(int pos){
+        int words = buf.getInt(pos + 4);
+        return pos + 8 + words * 8 + 4;
+    }
+
+    public Path getPath() { return path; }
+    public GitPack getPack() { return pack; }
+
+    /**
+     * The bit of an object, or -1 if it isn't in the pack
+     */
+    public int bitOf(byte[] sha){
+        int pos = pack.getIndex().findPosition(sha);
+        if(pos < 0){
+            return -1;
+        }
+        loadOrder();
+        return bitOf[pos];
+    }
+
+    public String shaHexAtBit(int bit){
+        loadOrder();
+        return pack.getIndex().shaHexAt(packOrder[bit]);
+    }
+
+    public int getObjectCount(){
+        return pack.getIndex().getCount();
+    }
+
+    /**
+     * Objects of one type: GitPack.OBJ_COMMIT, OBJ_TREE, OBJ_BLOB or OBJ_TAG
+     */
+    public BitSet typeBitmap(int type){
+        return types[type - 1];
+    }
+
+    /**
+     * Everything reachable from the commit at this bit, or null if the commit doesn't have a bitmap
+     * {the returned set must not be modified}
+     */
+    public BitSet reachableFrom(int bit){
+        loadOrder();
+        Integer entry = entries.get(packOrder[bit]);
+        return entry == null ? null : entry(entry);
+    }
+
+    private BitSet entry(int i){
+        if(decoded[i] == null){
+            BitSet bits = EwahBitmap.read(buf, entryOffsets[i]).bits();
+            if(entryXor[i] != 0){
+                bits.xor(entry(i - entryXor[i]));
+            }
+            decoded[i] = bits;
+        }
+        return decoded[i];
+    }
+
+    private void loadOrder(){
+        if(packOrder == null){
+            packOrder = pack.getIndex().positionsByOffset();
+            bitOf = new int[packOrder.length];
+            for(int bit = 0; bit < packOrder.length; bit++){
+                bitOf[packOrder[bit]] = bit;
+            }
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package com.gopal.twit.core.pack;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Git's delta format (used by OFS_DELTA and REF_DELTA pack entries)
+ * A delta is: base size (varint) | result size (varint) | instructions...
+ * Each instruction is either
+ * 1) COPY (MSB set) -> copy a range of the base; the low 7 bits say which offset/size bytes follow
+ * 2) INSERT (MSB clear, non zero) -> the next N bytes are literal data
+ */
+public class PackDelta {
+    //Size of the blocks of the base we index {the shortest copy we bother to emit}
+    private static final int BLOCK = 16;
+    //Candidates we look at per hash bucket, so that repetitive data doesn't go quadratic
+    private static final int MAX_CANDIDATES = 64;
+    //Largest copy a single instruction may carry {git keeps copies at 64K for compatibility}
+    private static final int MAX_COPY = 0x10000;
+    private static final int HASH_MULT = 0x01000193;
+
+    /**
+     * Applies the delta to the base and returns the resulting object data
+     */
+    public static byte[] apply(byte[] base, byte[] delta) throws IOException{
+        int[] pos = {0};
+        long baseSize = readSize(delta, pos);
+        long resultSize = readSize(delta, pos);
+
+        if(baseSize != base.length){
+            throw new IOException("Delta base size mismatch: expected " + baseSize + ", got " + base.length);
+        }
+
+        byte[] out = new byte[(int) resultSize];
+        int o = 0;
+        int p = pos[0];
+
+        while(p < delta.length){
+            int op = delta[p++] & 0xff;
+
+            if((op & 0x80) != 0){
+                //COPY: up to 4 offset bytes and 3 size bytes, only present if their bit is set
+                int off = 0;
+                int size = 0;
+                if((op & 0x01) != 0) off = delta[p++] & 0xff;
+                if((op & 0x02) != 0) off |= (delta[p++] & 0xff) << 8;
+                if((op & 0x04) != 0) off |= (delta[p++] & 0xff) << 16;
+                if((op & 0x08) != 0) off |= (delta[p++] & 0xff) << 24;
+                if((op & 0x10) != 0) size = delta[p++] & 0xff;
+                if((op & 0x20) != 0) size |= (delta[p++] & 0xff) << 8;
+                if((op & 0x40) != 0) size |= (delta[p++] & 0xff) << 16;
+                if(size == 0) size = 0x10000;
+
+                if(off < 0 || off + size > base.length || o + size > out.length){
+                    throw new IOException("Corrupt delta: copy out of bounds");
+                }
+                System.arraycopy(base, off, out, o, size);
+                o += size;
+            }
+            else if(op != 0){
+                //INSERT
+                if(p + op > delta.length || o + op > out.length){
+                    throw new IOException("Corrupt delta: insert out of bounds");
+                }
+                System.arraycopy(delta, p, out, o, op);
+                p += op;
+                o += op;
+            }
+            else{
+                throw new IOException("Corrupt delta: reserved opcode 0");
+            }
+        }
+
+        if(o != out.length){
+            throw new IOException("Corrupt delta: result size mismatch");
+        }
+        return out;
+    }
+
+    /**
+     * Computes a delta that turns base into target
+     * The base is indexed in BLOCK sized chunks with a rolling hash, then we slide over the target:
+     * whenever a window of the target hashes to a known chunk, the match is extended as far as it goes
+     * (backwards too) and emitted as a COPY; everything in between becomes INSERT data.
+     * Returns null if the delta would be larger than maxSize {then storing the object whole is better}
+     */
+    public static byte[] create(byte[] base, byte[] target, int maxSize){
+        if(base.length < BLOCK || target.length < BLOCK){
+            return null;
+        }
+
+        //Index the base: head[bucket] -> last block position with that hash, next[] chains the rest
+        int blocks = base.length / BLOCK;
+        int bits = 32 - Integer.numberOfLeadingZeros(Math.max(blocks, 1));
+        int mask = (1 << bits) - 1;
+        int[] head = new int[mask + 1];
+        int[] next = new int[blocks];
+        Arrays.fill(head, -1);
+        for(int b = 0; b < blocks; b++){
+            int bucket = bucket(hash(base, b * BLOCK), mask);
+            next[b] = head[bucket];
+            head[bucket] = b;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.min(maxSize, target.length) + 16);
+        writeSize(out, base.length);
+        writeSize(out, target.length);
+
+        int outPow = 1;//HASH_MULT^(BLOCK-1), used to roll the oldest byte out of the hash
+        for(int k = 1; k < BLOCK; k++){
+            outPow *= HASH_MULT;
+        }
+
+        int insStart = 0;//start of the literal run not yet written
+        int i = 0;
+        int h = hash(target, 0);
+
+        while(i + BLOCK <= target.length){
+            int bestOff = -1;
+            int bestLen = 0;
+            int seen = 0;
+
+            for(int b = head[bucket(h, mask)]; b >= 0 && seen < MAX_CANDIDATES; b = next[b], seen++){
+                int off = b * BLOCK;
+                int len = 0;
+                while(off + len < base.length && i + len < target.length && base[off + len] == target[i + len]){
+                    len++;
+                }
+                if(len > bestLen){
+                    bestLen = len;
+                    bestOff = off;
+                }
+            }
+
+            if(bestLen >= BLOCK){
+                //grow the match backwards into the pending literals
+                while(bestOff > 0 && i > insStart && base[bestOff - 1] == target[i - 1]){
+                    bestOff--;
+                    i--;
+                    bestLen++;
+                }
+
+                writeInsert(out, target, insStart, i);
+                writeCopy(out, bestOff, bestLen);
+                i += bestLen;
+                insStart = i;
+
+                if(out.size() > maxSize){
+                    return null;
+                }
+                if(i + BLOCK <= target.length){
+                    h = hash(target, i);
+                }
+                continue;
+            }
+
+            //no match here, roll the window one byte forward
+            if(i + BLOCK < target.length){
+                h = (h - (target[i] & 0xff) * outPow) * HASH_MULT + (target[i + BLOCK] & 0xff);
+            }
+            i++;
+        }
+
+        writeInsert(out, target, insStart, target.length);
+        return out.size() > maxSize ? null : out.toByteArray();
+    }
+
+    private static int hash(byte[] data, int start){
+        int h = 0;
+        for(int k = 0; k < BLOCK; k++){
+            h = h * HASH_MULT + (data[start + k] & 0xff);
+        }
+        return h;
+    }
+
+    private static int bucket(int h, int mask){
+        return (h ^ (h >>> 15)) & mask;
+    }
+
+    private static void writeInsert(ByteArrayOutputStream out, byte[] data, int from, int to){
+        //an INSERT carries at most 127 bytes
+        while(from < to){
+            int n = Math.min(127, to - from);
+            out.write(n);
+            out.write(data, from, n);
+            from += n;
+        }
+    }
+
+    private static void writeCopy(ByteArrayOutputStream out, int off, int len){
+        while(len > 0){
+            int size = Math.min(len, MAX_COPY);
+            int op = 0x80;
+            byte[] args = new byte[7];
+            int n = 0;
+
+            //only the non zero bytes of offset and size are written, flagged in the opcode
+            for(int k = 0; k < 4; k++){
+                int b = (off >>> (8 * k)) & 0xff;
+                if(b != 0){
+                    op |= 1 << k;
+                    args[n++] = (byte) b;
+                }
+            }
+            if(size != 0x10000){//a size of 0 means 0x10000
+                for(int k = 0; k < 3; k++){
+                    int b = (size >>> (8 * k)) & 0xff;
+                    if(b != 0){
+                        op |= 0x10 << k;
+                        args[n++] = (byte) b;
+                    }
+                }
+            }
+
+            out.write(op);
+            out.write(args, 0, n);
+            off += size;
+            len -= size;
+        }
+    }
+
+    private static void writeSize(ByteArrayOutputStream out, long size){
+        do{
+            int c = (int) (size & 0x7f);
+            size >>>= 7;
+            out.write(size != 0 ? c | 0x80 : c);
+        } while(size != 0);
+    }
+
+    /**
+     * Reads the size of the result without applying the delta
+     */
+    public static long resultSize(byte[] delta){
+        int[] pos = {0};
+        readSize(delta, pos);
+        return readSize(delta, pos);
+    }
+
+    //little endian base-128 varint
+    /**
+     * The size of the object a delta rebuilds, read from the start of the delta
+     * {head only needs the first bytes of the delta: two varints, 20 bytes at most}
+     */
+    public static long resultSize(byte[] head, int len) throws IOException{
+        int[] pos = {0};
+        try{
+            readSize(head, pos);
+            long size = readSize(head, pos);
+            if(pos[0] > len){
+                throw new IOException("Truncated delta header");
+            }
+            return size;
+        } catch (ArrayIndexOutOfBoundsException e){
+            throw new IOException("Truncated delta header", e);
+        }
+    }
+
+    private static long readSize(byte[] data, int[] pos){
+        long size = 0;
+        int shift = 0;
+        int c;
+        do{
+            c = data[pos[0]++] & 0xff;
+            size |= (long) (c & 0x7f) << shift;
+            shift += 7;
+        } while((c & 0x80) != 0);
+        return size;
+    }
+}
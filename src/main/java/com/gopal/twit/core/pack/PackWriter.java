@@ -0,0 +1,288 @@
+package com.gopal.twit.core.pack;
+
+import com.gopal.twit.core.objects.ObjectId;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes a version 2 packfile and its version 2 index
+ * Entries are written in the order they are given; a delta entry must come after its base,
+ * since it is stored as an OFS_DELTA pointing backwards to it.
+ * Both files are written to temporary names first and then renamed to pack-<checksum>.{pack,idx},
+ * the .idx last, so a reader never sees a pack without its index.
+ */
+public class PackWriter {
+
+    /**
+     * Loads the content of a non-delta entry when it's time to write it
+     * {so that whole objects don't have to be kept in memory while packing}
+     */
+    @FunctionalInterface
+    public interface DataLoader{
+        byte[] load(Entry entry) throws IOException;
+    }
+
+    /**
+     * One object to be written
+     * Either a whole object (delta == null) or a delta against deltaBase
+     */
+    public static class Entry{
+        private final byte[] sha;
+        private final int type;
+        private Entry deltaBase;
+        private byte[] delta;
+        private long offset = -1;
+        private int crc;
+
+        public Entry(byte[] sha, int type){
+            this.sha = sha;
+            this.type = type;
+        }
+
+        public byte[] getSha() { return sha; }
+        public int getType() { return type; }
+        public Entry getDeltaBase() { return deltaBase; }
+        public byte[] getDelta() { return delta; }
+        public long getOffset() { return offset; }
+        public int getCrc() { return crc; }
+
+        public void setDelta(Entry base, byte[] delta){
+            this.deltaBase = base;
+            this.delta = delta;
+        }
+    }
+
+    /**
+     * Writes the pack and index into packDir and returns the pack checksum (hex), which names both files
+     */
+    public static String write(Path packDir, List<Entry> entries, DataLoader loader) throws IOException{
+        Files.createDirectories(packDir);
+        Path tmpPack = Files.createTempFile(packDir, "tmp_pack_", null);
+        Path tmpIdx = null;
+
+        try{
+            byte[] packSha = writePack(tmpPack, entries, loader);
+            String name = "pack-" + ObjectId.toHex(packSha, 0);
+
+            tmpIdx = Files.createTempFile(packDir, "tmp_idx_", null);
+            writeIndex(tmpIdx, entries, packSha);
+
+            Path pack = packDir.resolve(name + ".pack");
+            Path idx = packDir.resolve(name + ".idx");
+            if(Files.exists(idx)){
+                //an identical pack is already there
+                Files.delete(tmpPack);
+                Files.delete(tmpIdx);
+            }
+            else{
+                makeReadOnly(tmpPack);
+                makeReadOnly(tmpIdx);
+                Files.move(tmpPack, pack, StandardCopyOption.ATOMIC_MOVE);
+                Files.move(tmpIdx, idx, StandardCopyOption.ATOMIC_MOVE);
+            }
+            return ObjectId.toHex(packSha, 0);
+        } finally {
+            Files.deleteIfExists(tmpPack);
+            if(tmpIdx != null){
+                Files.deleteIfExists(tmpIdx);
+            }
+        }
+    }
+
+    private static byte[] writePack(Path path, List<Entry> entries, DataLoader loader) throws IOException{
+        MessageDigest md = sha1();
+        CRC32 crc = new CRC32();
+        Deflater deflater = new Deflater();
+
+        try(FileOutputStream file = new FileOutputStream(path.toFile());
+            PackOutput out = new PackOutput(new BufferedOutputStream(file, 1 << 16), md, crc)){
+
+            //header: "PACK" | version 2 | number of objects
+            DataOutputStream header = new DataOutputStream(out);
+            header.writeInt(0x5041434b);
+            header.writeInt(2);
+            header.writeInt(entries.size());
+
+            for(Entry e : entries){
+                e.offset = out.count;
+                crc.reset();
+
+                byte[] data;
+                if(e.delta != null){
+                    if(e.deltaBase.offset < 0){
+                        throw new IOException("Delta base must be written before its delta");
+                    }
+                    data = e.delta;
+                    writeEntryHeader(out, GitPack.OBJ_OFS_DELTA, data.length);
+                    writeOfsDelta(out, e.offset - e.deltaBase.offset);
+                }
+                else{
+                    data = loader.load(e);
+                    writeEntryHeader(out, e.type, data.length);
+                }
+
+                deflater.reset();
+                DeflaterOutputStream z = new DeflaterOutputStream(out, deflater, 8192);
+                z.write(data);
+                z.finish();
+
+                e.crc = (int) crc.getValue();
+            }
+
+            //trailer: SHA-1 of everything written so far {not part of the checksum itself}
+            byte[] packSha = md.digest();
+            out.flush();
+            out.writeRaw(packSha);
+            out.flush();
+            file.getFD().sync();
+            return packSha;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    //type (3 bits) and size, as a little endian varint with 4 bits in the first byte
+    private static void writeEntryHeader(OutputStream out, int type, long size) throws IOException{
+        int c = (type << 4) | (int) (size & 0x0f);
+        size >>>= 4;
+        while(size != 0){
+            out.write(c | 0x80);
+            c = (int) (size & 0x7f);
+            size >>>= 7;
+        }
+        out.write(c);
+    }
+
+    //big endian varint where every continuation byte implicitly adds one
+    private static void writeOfsDelta(OutputStream out, long rel) throws IOException{
+        byte[] buf = new byte[10];
+        int pos = buf.length - 1;
+        buf[pos] = (byte) (rel & 0x7f);
+        while((rel >>>= 7) != 0){
+            rel--;
+            buf[--pos] = (byte) (0x80 | (rel & 0x7f));
+        }
+        out.write(buf, pos, buf.length - pos);
+    }
+
+    /**
+     * Writes the v2 index: header, fan-out, sorted SHAs, CRCs, offsets, large offsets, checksums
+     */
+    private static void writeIndex(Path path, List<Entry> entries, byte[] packSha) throws IOException{
+        List<Entry> sorted = new ArrayList<>(entries);
+        sorted.sort(Comparator.comparing(Entry::getSha, Arrays::compareUnsigned));
+
+        MessageDigest md = sha1();
+        try(FileOutputStream file = new FileOutputStream(path.toFile());
+            PackOutput counted = new PackOutput(new BufferedOutputStream(file, 1 << 16), md, null);
+            DataOutputStream out = new DataOutputStream(counted)){
+
+            out.writeInt(0xff744f63);
+            out.writeInt(2);
+
+            int[] fanout = new int[256];
+            for(Entry e : sorted){
+                fanout[e.sha[0] & 0xff]++;
+            }
+            int total = 0;
+            for(int i = 0; i < 256; i++){
+                total += fanout[i];
+                out.writeInt(total);
+            }
+
+            for(Entry e : sorted){
+                out.write(e.sha);
+            }
+            for(Entry e : sorted){
+                out.writeInt(e.crc);
+            }
+
+            //offsets that don't fit in 31 bits go to the 64-bit table
+            List<Long> large = new ArrayList<>();
+            for(Entry e : sorted){
+                if(e.offset > 0x7fffffffL){
+                    out.writeInt(0x80000000 | large.size());
+                    large.add(e.offset);
+                }
+                else{
+                    out.writeInt((int) e.offset);
+                }
+            }
+            for(long off : large){
+                out.writeLong(off);
+            }
+
+            out.write(packSha);
+            out.flush();
+            counted.writeRaw(md.digest());
+            counted.flush();
+            file.getFD().sync();
+        }
+    }
+
+    //packs are never modified once written {temp files are created owner-only, git leaves them 0444}
+    private static void makeReadOnly(Path path) throws IOException{
+        try{
+            Files.setPosixFilePermissions(path, PosixFilePermissions.fromString("r--r--r--"));
+        } catch (UnsupportedOperationException e){
+            //not a POSIX file system, keep the defaults
+        }
+    }
+
+    private static MessageDigest sha1() throws IOException{
+        try{
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e){
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Output stream that feeds the checksum (and the CRC of the current entry) and counts bytes
+     */
+    private static class PackOutput extends FilterOutputStream{
+        private final MessageDigest md;
+        private final CRC32 crc;
+        private long count;
+
+        PackOutput(OutputStream out, MessageDigest md, CRC32 crc){
+            super(out);
+            this.md = md;
+            this.crc = crc;
+        }
+
+        @Override
+        public void write(int b) throws IOException{
+            out.write(b);
+            md.update((byte) b);
+            if(crc != null) crc.update(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException{
+            out.write(b, off, len);
+            md.update(b, off, len);
+            if(crc != null) crc.update(b, off, len);
+            count += len;
+        }
+
+        //bytes that are not part of the checksum (the trailer itself)
+        void writeRaw(byte[] b) throws IOException{
+            out.write(b);
+        }
+    }
+}
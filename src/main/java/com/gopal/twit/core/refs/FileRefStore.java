@@ -0,0 +1,289 @@
+package com.gopal.twit.core.refs;
+
+import com.gopal.twit.core.GitRepository;
+import com.gopal.twit.core.objects.ObjectId;
+import com.gopal.twit.core.objects.RawObject;
+import com.gopal.twit.util.KVLMReader;
+import com.gopal.twit.util.LockFile;
+import com.gopal.twit.util.ObjectIO;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * The files backend: git's classic layout
+ * 1) Loose refs -> one file per ref under .git (HEAD, refs/heads/master...), holding "<sha>\n" or "ref: <name>\n"
+ * 2) .git/packed-refs -> everything pack-refs moved out of the loose files {see PackedRefs}
+ * A loose ref wins over a packed one with the same name.
+ * CACHING: the packed-refs snapshot and the content of every loose ref read so far are kept in memory,
+ * each with the stat data of its file. A lookup costs one stat (no read) while nothing changes,
+ * and anything rewritten behind our back is noticed and read again.
+ */
+public class FileRefStore implements RefStore {
+    private static final Pattern SHA = Pattern.compile("^[0-9a-f]{40}$");
+
+    private record Loose(PackedRefs.Stamp stamp, Ref ref){}
+
+    private final GitRepository repo;
+    private final Path gitDir;
+    private final Path packedFile;
+    private volatile PackedRefs packed;
+    private final Map<String, Loose> loose = new ConcurrentHashMap<>();
+
+    public FileRefStore(GitRepository repo){
+        this.repo = repo;
+        this.gitDir = repo.getGitDir();
+        this.packedFile = gitDir.resolve("packed-refs");
+    }
+
+    private PackedRefs packed() throws IOException{
+        PackedRefs p = packed;
+        if(p == null || !p.isCurrent(packedFile)){
+            p = PackedRefs.read(packedFile);
+            packed = p;
+        }
+        return p;
+    }
+
+    @Override
+    public Ref read(String name) throws IOException{
+        Path path = gitDir.resolve(name);
+        BasicFileAttributes attrs;
+        try{
+            attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException e){
+            loose.remove(name);
+            return packed().find(name);
+        }
+        if(attrs.isDirectory()){
+            return packed().find(name);
+        }
+        return readLoose(name, path, attrs);
+    }
+
+    private Ref readLoose(String name, Path path, BasicFileAttributes attrs) throws IOException{
+        PackedRefs.Stamp stamp = PackedRefs.Stamp.of(attrs);
+        Loose cached = loose.get(name);
+        if(cached != null && cached.stamp().equals(stamp)){
+            return cached.ref();
+        }
+
+        String data;
+        try{
+            data = Files.readString(path).trim();
+        } catch (NoSuchFileException e){
+            loose.remove(name);
+            return packed().find(name);
+        }
+
+        Ref ref = data.startsWith("ref: ") ? Ref.symbolic(name, data.substring(5).trim()) : Ref.direct(name, data);
+        loose.put(name, new Loose(stamp, ref));
+        return ref;
+    }
+
+    /**
+     * Symbolic refs are listed too, with the SHA they resolve to (and skipped if that doesn't exist)
+     */
+    @Override
+    public SortedMap<String, Ref> list(String prefix) throws IOException{
+        SortedMap<String, Ref> ret = new TreeMap<>();
+        packed().collect(prefix, ret);
+
+        //only the directory the prefix is in has to be walked
+        int slash = prefix.lastIndexOf('/');
+        Path start = slash < 0 ? gitDir.resolve("refs") : gitDir.resolve(prefix.substring(0, slash));
+        if(!Files.isDirectory(start) || (slash < 0 && !"refs".startsWith(prefix))){
+            return ret;
+        }
+
+        List<Ref> symbolic = new ArrayList<>();
+        Files.walkFileTree(start, new SimpleFileVisitor<>(){
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException{
+                String name = gitDir.relativize(file).toString().replace('\\', '/');
+                if(attrs.isRegularFile() && name.startsWith(prefix) && !name.endsWith(".lock")){
+                    Ref ref = readLoose(name, file, attrs);
+                    if(ref.isSymbolic()){
+                        symbolic.add(ref);
+                    }
+                    else{
+                        ret.put(name, ref);
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        for(Ref ref : symbolic){
+            String sha = resolve(ref.name());
+            if(sha != null){
+                ret.put(ref.name(), new Ref(ref.name(), sha, ref.target(), null));
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Every ref of the batch is locked first (<ref>.lock, see LockFile), in name order;
+     * only then are the expected values checked, so nobody can move a ref between its check and its update.
+     * New values go through the lock files (fsync + rename), deletions rewrite packed-refs under its own lock.
+     * {unlike reftable, a crash in the middle can still leave part of the batch applied}
+     */
+    @Override
+    public void commit(List<RefUpdate> updates) throws IOException{
+        SortedMap<String, RefUpdate> byName = new TreeMap<>();
+        for(RefUpdate u : updates){
+            if(!u.isDelete() && !SHA.matcher(u.newSha()).matches()){
+                throw new IOException("Not a SHA-1: '" + u.newSha() + "' (updating " + u.name() + ")");
+            }
+            if(byName.put(u.name(), u) != null){
+                throw new IOException("Ref " + u.name() + " updated twice in one transaction");
+            }
+        }
+
+        List<LockFile> locks = new ArrayList<>();
+        try{
+            Map<String, LockFile> refLocks = new HashMap<>();
+            for(String name : byName.keySet()){
+                Path path = gitDir.resolve(name);
+                Files.createDirectories(path.getParent());
+                LockFile lock = LockFile.lock(path);
+                locks.add(lock);
+                refLocks.put(name, lock);
+            }
+
+            boolean unpack = false;
+            for(RefUpdate u : byName.values()){
+                String current = resolve(u.name());
+                if(!u.accepts(current)){
+                    throw new RefConflictException("Ref " + u.name() + " is at " + current + ", expected " + u.expectedOld());
+                }
+                unpack |= u.isDelete() && packed().find(u.name()) != null;
+            }
+
+            if(unpack){
+                //a deleted ref must go from packed-refs too (first, or the packed value would show through)
+                LockFile packedLock = LockFile.lock(packedFile);
+                locks.add(packedLock);
+                List<Ref> keep = new ArrayList<>();
+                for(Ref ref : packed().list()){
+                    RefUpdate u = byName.get(ref.name());
+                    if(u == null || !u.isDelete()){
+                        keep.add(ref);
+                    }
+                }
+                PackedRefs.write(packedLock, keep);
+                packed = null;
+            }
+
+            for(RefUpdate u : byName.values()){
+                if(u.isDelete()){
+                    Files.deleteIfExists(gitDir.resolve(u.name()));
+                }
+                else{
+                    LockFile lock = refLocks.get(u.name());
+                    lock.write((u.newSha() + "\n").getBytes(StandardCharsets.US_ASCII));
+                    lock.commit();
+                }
+                loose.remove(u.name());
+            }
+        } finally {
+            //releases whatever wasn't committed {the locks of deleted refs, or everything on failure}
+            for(LockFile lock : locks){
+                lock.close();
+            }
+        }
+    }
+
+    /**
+     * PACK-REFS
+     * Moves loose refs into packed-refs: the tags (they hardly ever move) and whatever was packed already,
+     * or every ref with all. Annotated tags get their peeled value recorded.
+     * The loose files are deleted afterwards, unless they changed in the meantime.
+     * Symbolic refs always stay loose.
+     * @return the number of refs in packed-refs
+     */
+    public int pack(boolean all) throws IOException{
+        try(LockFile lock = LockFile.lock(packedFile)){
+            return pack(lock, all);
+        }
+    }
+
+    private int pack(LockFile packedLock, boolean all) throws IOException{
+        PackedRefs old = packed();
+        SortedMap<String, Ref> refs = list("refs/");
+
+        List<Ref> toPack = new ArrayList<>();
+        for(Ref ref : refs.values()){
+            if(ref.isSymbolic()){
+                continue;
+            }
+            Ref packedRef = old.find(ref.name());
+            if(!all && !ref.name().startsWith("refs/tags/") && packedRef == null){
+                continue;
+            }
+            //a ref that didn't move keeps its peeled value, the others are peeled again
+            String peeled = packedRef != null && packedRef.sha().equals(ref.sha()) ? packedRef.peeled() : peel(ref.sha());
+            toPack.add(new Ref(ref.name(), ref.sha(), null, peeled));
+        }
+
+        PackedRefs.write(packedLock, toPack);
+        packed = null;
+
+        //prune the loose copies, each under its lock; a ref somebody holds right now just stays loose too
+        for(Ref ref : toPack){
+            Path path = gitDir.resolve(ref.name());
+            try(LockFile lock = LockFile.tryLock(path)){
+                if(lock != null && Files.readString(path).trim().equals(ref.sha())){
+                    Files.delete(path);
+                    loose.remove(ref.name());
+                    lock.rollback();
+                    pruneEmptyDirs(path.getParent());
+                }
+            } catch (NoSuchFileException e){
+                //was only packed
+            }
+        }
+        return toPack.size();
+    }
+
+    /**
+     * The object an annotated tag (chain) points at, or null if sha isn't a tag
+     */
+    private String peel(String sha) throws IOException{
+        String peeled = null;
+        for(int depth = 0; depth < 100; depth++){
+            RawObject raw = ObjectIO.objectReadRaw(repo, sha);
+            if(raw == null || !raw.type().equals("tag")){
+                return peeled;
+            }
+            ObjectId target = new KVLMReader(raw.data()).object();
+            if(target == null){
+                throw new IOException("Corrupt tag " + sha + ": no object");
+            }
+            sha = target.name();
+            peeled = sha;
+        }
+        throw new IOException("Tag chain too long at " + sha);
+    }
+
+    //removes directories emptied by pruning, but never refs/heads, refs/tags or refs itself
+    private void pruneEmptyDirs(Path dir) throws IOException{
+        Path refs = gitDir.resolve("refs");
+        while(dir.startsWith(refs) && dir.getNameCount() > refs.getNameCount() + 1){
+            try(Stream<Path> files = Files.list(dir)){
+                if(files.findAny().isPresent()){
+                    return;
+                }
+            }
+            Files.delete(dir);
+            dir = dir.getParent();
+        }
+    }
+}
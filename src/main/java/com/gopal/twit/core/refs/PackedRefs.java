@@ -0,0 +1,178 @@
+package com.gopal.twit.core.refs;
+
+import com.gopal.twit.util.LockFile;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A snapshot of .git/packed-refs, the file git moves refs into so that thousands of tags
+ * don't mean thousands of tiny files
+ * FORMAT (text, sorted by ref name):
+ * # pack-refs with: peeled fully-peeled sorted
+ * <sha> <ref name>
+ * ^<sha>          {only after an annotated tag: the object it finally points at}
+ * The snapshot remembers the stat data of the file it was read from, so it can tell when it is stale.
+ */
+public class PackedRefs {
+    public static final String HEADER = "# pack-refs with: peeled fully-peeled sorted ";
+
+    /**
+     * What we know about a file without reading it {rewriting it (through a rename) changes at least one of these}
+     */
+    public record Stamp(Object fileKey, long mtimeNs, long size){
+        public static Stamp of(BasicFileAttributes attrs){
+            return new Stamp(attrs.fileKey(), attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS), attrs.size());
+        }
+    }
+
+    private static final PackedRefs EMPTY = new PackedRefs(null, new String[0], new String[0], new String[0]);
+
+    private final Stamp stamp;//null -> there is no packed-refs file
+    private final String[] names;
+    private final String[] shas;
+    private final String[] peeled;
+
+    private PackedRefs(Stamp stamp, String[] names, String[] shas, String[] peeled){
+        this.stamp = stamp;
+        this.names = names;
+        this.shas = shas;
+        this.peeled = peeled;
+    }
+
+    public static PackedRefs read(Path file) throws IOException{
+        BasicFileAttributes attrs;
+        byte[] data;
+        try{
+            attrs = Files.readAttributes(file, BasicFileAttributes.class);
+            data = Files.readAllBytes(file);
+        } catch (NoSuchFileException e){
+            return EMPTY;
+        }
+
+        List<String> names = new ArrayList<>();
+        List<String> shas = new ArrayList<>();
+        List<String> peeled = new ArrayList<>();
+        boolean sorted = false;
+
+        String text = new String(data, StandardCharsets.UTF_8);
+        for(String line : text.split("\n")){
+            if(line.isEmpty()){
+                continue;
+            }
+            if(line.startsWith("#")){
+                sorted = line.contains(" sorted");
+                continue;
+            }
+            if(line.startsWith("^")){
+                if(names.isEmpty()){
+                    throw new IOException("Peeled line before any ref in " + file);
+                }
+                peeled.set(peeled.size() - 1, line.substring(1).trim());
+                continue;
+            }
+            if(line.length() < 42 || line.charAt(40) != ' '){
+                throw new IOException("Corrupt packed-refs line '" + line + "' in " + file);
+            }
+            shas.add(line.substring(0, 40));
+            names.add(line.substring(41).trim());
+            peeled.add(null);
+        }
+
+        String[] n = names.toArray(new String[0]);
+        String[] s = shas.toArray(new String[0]);
+        String[] p = peeled.toArray(new String[0]);
+        if(!sorted){
+            //old files don't promise to be sorted, and lookups binary search
+            Integer[] order = new Integer[n.length];
+            for(int i = 0; i < order.length; i++){
+                order[i] = i;
+            }
+            Arrays.sort(order, Comparator.comparing(i -> n[i]));
+            String[] n2 = new String[n.length], s2 = new String[n.length], p2 = new String[n.length];
+            for(int i = 0; i < order.length; i++){
+                n2[i] = n[order[i]];
+                s2[i] = s[order[i]];
+                p2[i] = p[order[i]];
+            }
+            return new PackedRefs(Stamp.of(attrs), n2, s2, p2);
+        }
+        return new PackedRefs(Stamp.of(attrs), n, s, p);
+    }
+
+    /**
+     * Is this snapshot still what is on disk?
+     */
+    public boolean isCurrent(Path file) throws IOException{
+        try{
+            return Stamp.of(Files.readAttributes(file, BasicFileAttributes.class)).equals(stamp);
+        } catch (NoSuchFileException e){
+            return stamp == null;
+        }
+    }
+
+    public int size(){
+        return names.length;
+    }
+
+    public Ref find(String name){
+        int i = Arrays.binarySearch(names, name);
+        return i < 0 ? null : new Ref(names[i], shas[i], null, peeled[i]);
+    }
+
+    public List<Ref> list(){
+        List<Ref> ret = new ArrayList<>(names.length);
+        for(int i = 0; i < names.length; i++){
+            ret.add(new Ref(names[i], shas[i], null, peeled[i]));
+        }
+        return ret;
+    }
+
+    /**
+     * Adds the refs starting with prefix {they are next to each other, since the names are sorted}
+     */
+    public void collect(String prefix, Map<String, Ref> into){
+        int i = Arrays.binarySearch(names, prefix);
+        if(i < 0){
+            i = -i - 1;
+        }
+        for(; i < names.length && names[i].startsWith(prefix); i++){
+            into.put(names[i], new Ref(names[i], shas[i], null, peeled[i]));
+        }
+    }
+
+    /**
+     * Writes a new packed-refs file into its lock (packed-refs.lock), then commits the lock over the old file
+     * {the caller takes the lock before reading what it rewrites, so no concurrent change is lost}
+     */
+    public static void write(LockFile lock, Collection<Ref> refs) throws IOException{
+        List<Ref> sorted = new ArrayList<>(refs);
+        sorted.sort(Comparator.comparing(Ref::name));
+
+        Writer out = new BufferedWriter(new OutputStreamWriter(lock.getOutputStream(), StandardCharsets.UTF_8), 1 << 16);
+        out.write(HEADER);
+        out.write('\n');
+        for(Ref ref : sorted){
+            out.write(ref.sha());
+            out.write(' ');
+            out.write(ref.name());
+            out.write('\n');
+            if(ref.peeled() != null){
+                out.write('^');
+                out.write(ref.peeled());
+                out.write('\n');
+            }
+        }
+        out.flush();
+        lock.commit();
+    }
+}
@@ -0,0 +1,20 @@
+package com.gopal.twit.core.refs;
+
+/**
+ * A reference: either direct (sha) or symbolic (target, the name of another ref, like HEAD -> refs/heads/master)
+ * peeled -> for an annotated tag, the object the tag (chain) finally points at, when the store knows it
+ */
+public record Ref(String name, String sha, String target, String peeled){
+
+    public static Ref direct(String name, String sha){
+        return new Ref(name, sha, null, null);
+    }
+
+    public static Ref symbolic(String name, String target){
+        return new Ref(name, null, target, null);
+    }
+
+    public boolean isSymbolic(){
+        return target != null;
+    }
+}
@@ -0,0 +1,15 @@
+package com.gopal.twit.core.refs;
+
+import java.io.IOException;
+
+/**
+ * A ref update was refused because the ref doesn't hold the value the update expected
+ * (someone else moved it first), or because another process holds the lock
+ */
+public class RefConflictException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public RefConflictException(String message){
+        super(message);
+    }
+}
@@ -0,0 +1,73 @@
+package com.gopal.twit.core.refs;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.SortedMap;
+
+/**
+ * Where the references of a repository are kept
+ * Names are full names ("HEAD", "refs/heads/master", "refs/tags/v1.0")
+ */
+public interface RefStore {
+    //git gives up after this many symbolic hops
+    int MAX_SYMREF_DEPTH = 5;
+
+    /**
+     * The ref itself (symbolic refs are not followed), or null if there is no such ref
+     */
+    Ref read(String name) throws IOException;
+
+    /**
+     * All the direct refs whose name starts with prefix, sorted by name
+     */
+    SortedMap<String, Ref> list(String prefix) throws IOException;
+
+    /**
+     * Applies a batch of updates {see RefTransaction}
+     * Names are taken as they are: symbolic refs are not followed here
+     */
+    void commit(List<RefUpdate> updates) throws IOException;
+
+    default RefTransaction transaction(){
+        return new RefTransaction(this);
+    }
+
+    /**
+     * Points a ref at sha, creating it if needed {if name is symbolic, the ref it points to is updated}
+     */
+    default void update(String name, String sha) throws IOException{
+        commit(List.of(new RefUpdate(deref(name), sha, null)));
+    }
+
+    /**
+     * Follows symbolic refs down to a SHA, or null if the ref (or the ref it points to) doesn't exist
+     * {a new repository's HEAD points to a branch that doesn't exist yet}
+     */
+    default String resolve(String name) throws IOException{
+        for(int depth = 0; depth < MAX_SYMREF_DEPTH; depth++){
+            Ref ref = read(name);
+            if(ref == null){
+                return null;
+            }
+            if(!ref.isSymbolic()){
+                return ref.sha();
+            }
+            name = ref.target();
+        }
+        throw new IOException("Symbolic ref loop at " + name);
+    }
+
+    /**
+     * The name of the direct ref name ends up at (itself if it isn't symbolic)
+     */
+    default String deref(String name) throws IOException{
+        for(int depth = 0; depth < MAX_SYMREF_DEPTH; depth++){
+            Ref ref = read(name);
+            if(ref == null || !ref.isSymbolic()){
+                return name;
+            }
+            name = ref.target();
+        }
+        throw new IOException("Symbolic ref loop at " + name);
+    }
+}
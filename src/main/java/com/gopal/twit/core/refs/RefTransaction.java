@@ -0,0 +1,43 @@
+package com.gopal.twit.core.refs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A batch of ref updates applied together by RefStore.commit
+ * With the reftable backend the whole batch is atomic: either every update is visible or none is.
+ * An update whose expected old value doesn't match fails the batch with a RefConflictException.
+ */
+public class RefTransaction {
+    private final RefStore store;
+    private final List<RefUpdate> updates = new ArrayList<>();
+
+    public RefTransaction(RefStore store){
+        this.store = store;
+    }
+
+    public RefTransaction update(String name, String sha){
+        return update(name, sha, null);
+    }
+
+    public RefTransaction update(String name, String sha, String expectedOld){
+        updates.add(new RefUpdate(name, sha, expectedOld));
+        return this;
+    }
+
+    public RefTransaction create(String name, String sha){
+        return update(name, sha, RefUpdate.ZERO);
+    }
+
+    public RefTransaction delete(String name, String expectedOld){
+        updates.add(new RefUpdate(name, null, expectedOld));
+        return this;
+    }
+
+    public void commit() throws IOException{
+        if(!updates.isEmpty()){
+            store.commit(List.copyOf(updates));
+        }
+    }
+}
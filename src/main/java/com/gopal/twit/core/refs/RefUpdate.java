@@ -0,0 +1,27 @@
+package com.gopal.twit.core.refs;
+
+/**
+ * One change of a RefTransaction
+ * newSha -> what the ref should point at, null to delete it
+ * expectedOld -> what it must point at for the change to happen: null = don't care, ZERO = must not exist yet
+ */
+public record RefUpdate(String name, String newSha, String expectedOld){
+    public static final String ZERO = "0000000000000000000000000000000000000000";
+
+    public boolean isDelete(){
+        return newSha == null;
+    }
+
+    /**
+     * Does the current value (null if the ref doesn't exist) satisfy expectedOld?
+     */
+    public boolean accepts(String current){
+        if(expectedOld == null){
+            return true;
+        }
+        if(expectedOld.equals(ZERO)){
+            return current == null;
+        }
+        return expectedOld.equals(current);
+    }
+}
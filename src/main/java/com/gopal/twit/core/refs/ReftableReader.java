@@ -0,0 +1,293 @@
+package com.gopal.twit.core.refs;
+
+import com.gopal.twit.core.objects.ObjectId;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+
+/**
+ * Reader for one reftable file (.git/reftable/*.ref), memory-mapped
+ * A reftable is a sorted table of refs cut into blocks, so a lookup binary searches an index of the blocks,
+ * then the restart points of one block, then scans at most a few records.
+ * LAYOUT (all big endian):
+ * 1) Header (24 bytes) -> "REFT" | version (1) | block size (24 bits) | min update index (64) | max update index (64)
+ * 2) Ref blocks -> 'r' | block length (24 bits) | records | restart offsets (24 bits each) | restart count (16 bits)
+ *    {the first block starts right after the header, and its length counts the header too}
+ *    record: varint prefix length | varint (suffix length << 3 | value type) | suffix | varint update index delta | value
+ *    The name is the first "prefix length" bytes of the previous name plus the suffix;
+ *    at a restart point the prefix length is 0, so those names can be binary searched.
+ *    value types: 0 = deletion, 1 = SHA, 2 = SHA + peeled SHA, 3 = symbolic (varint length | target)
+ * 3) Index block (only if there are several ref blocks) -> 'i' | same layout, each record being the last
+ *    name of a ref block and then a varint with the position of that block
+ * 4) Obj and log sections {not written by twit, and skipped when reading}
+ * 5) Footer (68 bytes) -> the header again | ref index position | obj position | obj index position |
+ *    log position | log index position (64 bits each) | CRC-32 of the footer
+ */
+public class ReftableReader {
+    public static final int MAGIC = 0x52454654;//"REFT"
+    public static final int HEADER_LEN = 24;
+    public static final int FOOTER_LEN = 68;
+
+    public static final byte BLOCK_REF = 'r';
+    public static final byte BLOCK_INDEX = 'i';
+
+    public static final int VALUE_DELETION = 0;
+    public static final int VALUE_SHA = 1;
+    public static final int VALUE_PEELED = 2;
+    public static final int VALUE_SYMREF = 3;
+
+    /**
+     * A record of the table: ref is null for a deletion {which hides the ref in the older tables of the stack}
+     */
+    public record RefRecord(String name, long updateIndex, Ref ref){}
+
+    private final Path path;
+    private final ByteBuffer buf;
+    private final int blockSize;
+    private final long minUpdateIndex;
+    private final long maxUpdateIndex;
+    private final int refEnd;//end of the ref blocks
+    private final int refIndex;//0 -> no index
+
+    public ReftableReader(Path path) throws IOException{
+        this.path = path;
+
+        MappedByteBuffer mapped;
+        try(FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)){
+            if(ch.size() > Integer.MAX_VALUE){
+                throw new IOException("Reftable too large: " + path);
+            }
+            mapped = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        }
+        this.buf = mapped;
+
+        int size = buf.capacity();
+        if(size < HEADER_LEN + FOOTER_LEN || buf.getInt(0) != MAGIC || buf.get(4) != 1){
+            throw new IOException("Not a version 1 reftable: " + path);
+        }
+        this.blockSize = u24(5);
+        this.minUpdateIndex = buf.getLong(8);
+        this.maxUpdateIndex = buf.getLong(16);
+
+        int footer = size - FOOTER_LEN;
+        byte[] crcData = new byte[FOOTER_LEN - 4];
+        buf.get(footer, crcData);
+        CRC32 crc = new CRC32();
+        crc.update(crcData);
+        if((int) crc.getValue() != buf.getInt(size - 4) || buf.getInt(footer) != MAGIC){
+            throw new IOException("Corrupt reftable footer: " + path);
+        }
+
+        long indexPos = buf.getLong(footer + 24);
+        long objPos = buf.getLong(footer + 32) >>> 5;
+        long logPos = buf.getLong(footer + 48);
+
+        //the ref blocks end where the next section begins
+        long end = footer;
+        for(long pos : new long[]{indexPos, objPos, logPos}){
+            if(pos > 0 && pos < end){
+                end = pos;
+            }
+        }
+        this.refEnd = (int) end;
+        this.refIndex = (int) indexPos;
+    }
+
+    public Path getPath() { return path; }
+    public long getMinUpdateIndex() { return minUpdateIndex; }
+    public long getMaxUpdateIndex() { return maxUpdateIndex; }
+
+    /**
+     * The record for name, or null if this table doesn't mention it
+     */
+    public RefRecord seek(String name){
+        RefRecord[] found = new RefRecord[1];
+        scan(name, r -> {
+            if(r.name().equals(name)){
+                found[0] = r;
+            }
+            return false;//the first record >= name is the only candidate
+        });
+        return found[0];
+    }
+
+    /**
+     * Visits the records from the first one >= from, in name order, until the visitor returns false
+     */
+    public void scan(String from, Predicate<RefRecord> visitor){
+        byte[] key = from.getBytes(StandardCharsets.UTF_8);
+        int block = firstBlock(key);
+
+        while(block >= 0 && block < refEnd){
+            int typeOff = block == 0 ? HEADER_LEN : block;
+            if(buf.get(typeOff) != BLOCK_REF){
+                return;
+            }
+            int end = block + u24(typeOff + 1);
+            if(!scanBlock(block, typeOff + 4, end, key, visitor)){
+                return;
+            }
+            block = nextBlock(end);
+        }
+    }
+
+    /**
+     * The ref block that may hold key: from the index if there is one, otherwise the first one
+     */
+    private int firstBlock(byte[] key){
+        if(refIndex == 0){
+            return 0;
+        }
+        int end = refIndex + u24(refIndex + 1);
+        int[] block = {-1};
+        int count = buf.getShort(end - 2) & 0xffff;
+        int restarts = end - 2 - count * 3;
+        int start = searchRestarts(refIndex, count, restarts, key);
+        decode(start, restarts, (name, type, p) -> {
+            //index keys are the last name of each block: the first key >= ours points at the block
+            if(Arrays.compareUnsigned(name, key) >= 0){
+                block[0] = (int) readVarint(p);
+                return false;
+            }
+            return true;
+        }, false);
+        return block[0];
+    }
+
+    //blocks of a table with a block size are padded up to it
+    private int nextBlock(int end){
+        if(blockSize > 0 && end < refEnd && buf.get(end) == 0){
+            return ((end + blockSize - 1) / blockSize) * blockSize;
+        }
+        return end;
+    }
+
+    private boolean scanBlock(int block, int records, int end, byte[] key, Predicate<RefRecord> visitor){
+        int count = buf.getShort(end - 2) & 0xffff;
+        int restarts = end - 2 - count * 3;
+        int start = count == 0 ? records : searchRestarts(block, count, restarts, key);
+
+        boolean[] more = {true};
+        decode(start, restarts, (name, type, p) -> {
+            if(Arrays.compareUnsigned(name, key) < 0){
+                return true;
+            }
+            more[0] = visitor.test(readRef(name, type, p));
+            return more[0];
+        }, true);
+        return more[0];
+    }
+
+    /**
+     * Offset of the last restart point whose name is <= key (or of the first one)
+     */
+    private int searchRestarts(int block, int count, int restarts, byte[] key){
+        int lo = 0, hi = count - 1, best = 0;
+        while(lo <= hi){
+            int mid = (lo + hi) >>> 1;
+            int off = block + u24(restarts + mid * 3);
+            int[] p = {off};
+            readVarint(p);//prefix length, 0 at a restart
+            long suffixType = readVarint(p);
+            byte[] name = new byte[(int) (suffixType >>> 3)];
+            buf.get(p[0], name);
+            if(Arrays.compareUnsigned(name, key) <= 0){
+                best = mid;
+                lo = mid + 1;
+            }
+            else{
+                hi = mid - 1;
+            }
+        }
+        return block + u24(restarts + best * 3);
+    }
+
+    private interface RecordVisitor{
+        //p[0] is the position right after the name, the visitor may read the rest of the record
+        boolean visit(byte[] name, int type, int[] p);
+    }
+
+    /**
+     * Decodes the records from pos (a restart point) to end, rebuilding each name from the previous one
+     */
+    private void decode(int pos, int end, RecordVisitor visitor, boolean refRecords){
+        byte[] last = new byte[0];
+        int[] p = {pos};
+        while(p[0] < end){
+            int prefix = (int) readVarint(p);
+            long suffixType = readVarint(p);
+            int suffix = (int) (suffixType >>> 3);
+            int type = (int) (suffixType & 7);
+            byte[] name = Arrays.copyOf(last, prefix + suffix);
+            buf.get(p[0], name, prefix, suffix);
+            p[0] += suffix;
+
+            int valueStart = p[0];
+            if(!visitor.visit(name, type, p)){
+                return;
+            }
+            //skip the value, however much of it the visitor read
+            p[0] = valueStart;
+            if(refRecords){
+                skipRefValue(p, type);
+            }
+            else{
+                readVarint(p);//block position
+            }
+            last = name;
+        }
+    }
+
+    private RefRecord readRef(byte[] nameBytes, int type, int[] p){
+        String name = new String(nameBytes, StandardCharsets.UTF_8);
+        long updateIndex = minUpdateIndex + readVarint(p);
+        Ref ref = switch (type){
+            case VALUE_SHA -> Ref.direct(name, ObjectId.fromRaw(buf, p[0]).name());
+            case VALUE_PEELED -> new Ref(name, ObjectId.fromRaw(buf, p[0]).name(), null, ObjectId.fromRaw(buf, p[0] + 20).name());
+            case VALUE_SYMREF -> {
+                int len = (int) readVarint(p);
+                byte[] target = new byte[len];
+                buf.get(p[0], target);
+                yield Ref.symbolic(name, new String(target, StandardCharsets.UTF_8));
+            }
+            default -> null;
+        };
+        return new RefRecord(name, updateIndex, ref);
+    }
+
+    private void skipRefValue(int[] p, int type){
+        readVarint(p);//update index delta
+        switch (type){
+            case VALUE_SHA -> p[0] += 20;
+            case VALUE_PEELED -> p[0] += 40;
+            case VALUE_SYMREF -> {
+                int len = (int) readVarint(p);
+                p[0] += len;
+            }
+            default -> {}
+        }
+    }
+
+    private long readVarint(int[] p){
+        int c = buf.get(p[0]++) & 0xff;
+        long val = c & 0x7f;
+        while((c & 0x80) != 0){
+            c = buf.get(p[0]++) & 0xff;
+            val = ((val + 1) << 7) | (c & 0x7f);
+        }
+        return val;
+    }
+
+    private int u24(int off){
+        return ((buf.get(off) & 0xff) << 16) | ((buf.get(off + 1) & 0xff) << 8) | (buf.get(off + 2) & 0xff);
+    }
+
+}
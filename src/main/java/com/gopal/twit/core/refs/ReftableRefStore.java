@@ -0,0 +1,309 @@
+package com.gopal.twit.core.refs;
+
+import com.gopal.twit.util.LockFile;
+
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * The reftable backend {selected with extensions.refStorage = reftable in .git/config}
+ * LAYOUT: .git/reftable/ holds a stack of tables (see ReftableReader), listed oldest first in tables.list.
+ * A ref's value is its record in the newest table that has one; a deletion record hides the older ones.
+ * TRANSACTIONS: a batch of updates is written as ONE new table, which becomes visible when tables.list is
+ * replaced (rename of tables.list.lock). So every update of the batch shows up at the same time, or none does,
+ * and readers never see a half written state.
+ * tables.list.lock also serializes writers {see LockFile: a second writer waits a bit, then fails}.
+ * COMPACTION: after each commit, the tables at the top of the stack are merged while a table is not at least
+ * twice the size of the one above it, which keeps the stack about log(number of refs) tables deep.
+ */
+public class ReftableRefStore implements RefStore {
+    private static final Pattern SHA = Pattern.compile("^[0-9a-f]{40}$");
+    private static final int RELOAD_ATTEMPTS = 10;
+
+    private record Stack(PackedRefs.Stamp stamp, List<ReftableReader> tables){}
+
+    private final Path dir;
+    private final Path listFile;
+    private volatile Stack stack;
+    private final Map<String, ReftableReader> readers = new ConcurrentHashMap<>();
+
+    public ReftableRefStore(Path gitDir){
+        this.dir = gitDir.resolve("reftable");
+        this.listFile = dir.resolve("tables.list");
+    }
+
+    /**
+     * Sets up an empty stack whose HEAD points at branch {used by init}
+     */
+    public static void create(Path gitDir, String branch) throws IOException{
+        Path dir = gitDir.resolve("reftable");
+        Files.createDirectories(dir);
+        Files.writeString(dir.resolve("tables.list"), "");
+        ReftableRefStore store = new ReftableRefStore(gitDir);
+        store.commitRecords(List.of(), List.of(Ref.symbolic("HEAD", branch)));
+    }
+
+    /**
+     * The tables of the stack, oldest first; re-read only when tables.list changed
+     * A writer deletes the tables it compacted away right after publishing the new tables.list, so one of the
+     * tables of the list we just read may already be gone: the list is then read again {like git's stack reload}
+     */
+    private List<ReftableReader> tables() throws IOException{
+        for(int attempt = 1; ; attempt++){
+            BasicFileAttributes attrs;
+            try{
+                attrs = Files.readAttributes(listFile, BasicFileAttributes.class);
+            } catch (NoSuchFileException e){
+                return List.of();
+            }
+            PackedRefs.Stamp stamp = PackedRefs.Stamp.of(attrs);
+            Stack s = stack;
+            if(s != null && s.stamp().equals(stamp)){
+                return s.tables();
+            }
+
+            try{
+                List<String> names = Files.readAllLines(listFile);
+                List<ReftableReader> tables = open(names);
+                stack = new Stack(stamp, List.copyOf(tables));
+                //tables compacted away, by us or by another process, are dropped {a daemon would keep them forever}
+                readers.keySet().retainAll(new HashSet<>(names));
+                return tables;
+            } catch (NoSuchFileException e){
+                if(attempt == RELOAD_ATTEMPTS){
+                    throw e;
+                }
+                try{
+                    Thread.sleep(attempt);//give the writer time to finish
+                } catch (InterruptedException ie){
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private List<ReftableReader> open(List<String> names) throws IOException{
+        List<ReftableReader> tables = new ArrayList<>();
+        for(String name : names){
+            if(name.isBlank()){
+                continue;
+            }
+            ReftableReader reader = readers.get(name);
+            if(reader == null){
+                reader = new ReftableReader(dir.resolve(name));
+                readers.put(name, reader);
+            }
+            tables.add(reader);
+        }
+        return tables;
+    }
+
+    @Override
+    public Ref read(String name) throws IOException{
+        List<ReftableReader> tables = tables();
+        for(int i = tables.size() - 1; i >= 0; i--){
+            ReftableReader.RefRecord r = tables.get(i).seek(name);
+            if(r != null){
+                return r.ref();//null for a deletion
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Symbolic refs are listed with the SHA they resolve to, like the files backend does
+     */
+    @Override
+    public SortedMap<String, Ref> list(String prefix) throws IOException{
+        SortedMap<String, Ref> merged = merge(tables(), prefix);
+
+        SortedMap<String, Ref> ret = new TreeMap<>();
+        for(Ref ref : merged.values()){
+            if(!ref.isSymbolic()){
+                ret.put(ref.name(), ref);
+                continue;
+            }
+            String sha = resolve(ref.name());
+            if(sha != null){
+                ret.put(ref.name(), new Ref(ref.name(), sha, ref.target(), null));
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * The live refs of some tables under prefix, newest table winning, deletions removed
+     */
+    private static SortedMap<String, Ref> merge(List<ReftableReader> tables, String prefix){
+        Map<String, ReftableReader.RefRecord> seen = new HashMap<>();
+        for(int i = tables.size() - 1; i >= 0; i--){
+            tables.get(i).scan(prefix, r -> {
+                if(!r.name().startsWith(prefix)){
+                    return false;
+                }
+                seen.putIfAbsent(r.name(), r);
+                return true;
+            });
+        }
+        SortedMap<String, Ref> ret = new TreeMap<>();
+        for(ReftableReader.RefRecord r : seen.values()){
+            if(r.ref() != null){
+                ret.put(r.name(), r.ref());
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    public void commit(List<RefUpdate> updates) throws IOException{
+        Set<String> names = new HashSet<>();
+        for(RefUpdate u : updates){
+            if(!u.isDelete() && !SHA.matcher(u.newSha()).matches()){
+                throw new IOException("Not a SHA-1: '" + u.newSha() + "' (updating " + u.name() + ")");
+            }
+            if(!names.add(u.name())){
+                throw new IOException("Ref " + u.name() + " updated twice in one transaction");
+            }
+        }
+
+        List<Ref> refs = new ArrayList<>();
+        List<String> deleted = new ArrayList<>();
+        for(RefUpdate u : updates){
+            if(u.isDelete()){
+                deleted.add(u.name());
+            }
+            else{
+                refs.add(Ref.direct(u.name(), u.newSha()));
+            }
+        }
+
+        try(LockFile lock = lock()){
+            //checked under the lock, against the stack as it is now
+            for(RefUpdate u : updates){
+                String current = resolve(u.name());
+                if(!u.accepts(current)){
+                    throw new RefConflictException("Ref " + u.name() + " is at " + current + ", expected " + u.expectedOld());
+                }
+            }
+            commitLocked(lock, deleted, refs);
+        }
+    }
+
+    private void commitRecords(List<String> deleted, List<Ref> refs) throws IOException{
+        try(LockFile lock = lock()){
+            commitLocked(lock, deleted, refs);
+        }
+    }
+
+    /**
+     * Writes the new table, compacts, then publishes the new tables.list
+     */
+    private void commitLocked(LockFile lock, List<String> deleted, List<Ref> refs) throws IOException{
+        stack = null;
+        List<ReftableReader> tables = new ArrayList<>(tables());
+        long updateIndex = tables.isEmpty() ? 1 : tables.get(tables.size() - 1).getMaxUpdateIndex() + 1;
+
+        SortedMap<String, ReftableReader.RefRecord> records = new TreeMap<>();
+        for(String name : deleted){
+            records.put(name, new ReftableReader.RefRecord(name, updateIndex, null));
+        }
+        for(Ref ref : refs){
+            records.put(ref.name(), new ReftableReader.RefRecord(ref.name(), updateIndex, ref));
+        }
+        tables.add(writeTable(new ArrayList<>(records.values()), updateIndex, updateIndex));
+
+        List<ReftableReader> obsolete = compact(tables);
+
+        StringBuilder list = new StringBuilder();
+        for(ReftableReader t : tables){
+            list.append(t.getPath().getFileName()).append('\n');
+        }
+        lock.write(list.toString().getBytes(StandardCharsets.UTF_8));
+        lock.commit();
+        stack = null;
+
+        for(ReftableReader t : obsolete){
+            readers.remove(t.getPath().getFileName().toString());
+            Files.deleteIfExists(t.getPath());
+        }
+    }
+
+    /**
+     * Geometric compaction of the top of the stack {tables is changed in place}
+     * @return the tables that were merged away, to delete once the new list is published
+     */
+    private List<ReftableReader> compact(List<ReftableReader> tables) throws IOException{
+        int first = tables.size() - 1;
+        long size = Files.size(tables.get(first).getPath());
+        while(first > 0){
+            long below = Files.size(tables.get(first - 1).getPath());
+            if(below >= 2 * size){
+                break;
+            }
+            first--;
+            size += below;
+        }
+        if(first == tables.size() - 1){
+            return List.of();
+        }
+
+        List<ReftableReader> merging = new ArrayList<>(tables.subList(first, tables.size()));
+        //deletions must be kept, unless nothing older is left for them to hide
+        boolean bottom = first == 0;
+        Map<String, ReftableReader.RefRecord> seen = new HashMap<>();
+        for(int i = merging.size() - 1; i >= 0; i--){
+            merging.get(i).scan("", r -> {
+                seen.putIfAbsent(r.name(), r);
+                return true;
+            });
+        }
+        List<ReftableReader.RefRecord> records = new ArrayList<>();
+        for(ReftableReader.RefRecord r : new TreeMap<>(seen).values()){
+            if(r.ref() != null || !bottom){
+                records.add(r);
+            }
+        }
+
+        ReftableReader merged = writeTable(records, merging.get(0).getMinUpdateIndex(),
+                merging.get(merging.size() - 1).getMaxUpdateIndex());
+        tables.subList(first, tables.size()).clear();
+        tables.add(merged);
+        return merging;
+    }
+
+    private ReftableReader writeTable(List<ReftableReader.RefRecord> records, long min, long max) throws IOException{
+        String suffix = String.format("%08x", new Random().nextInt());
+        Path file = dir.resolve(String.format("0x%012x-0x%012x-%s.ref", min, max, suffix));
+        Path tmp = Files.createTempFile(dir, "tmp_table_", null);
+        try{
+            try(FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE)){
+                new ReftableWriter(ReftableWriter.DEFAULT_BLOCK_SIZE, min, max).write(Channels.newOutputStream(ch), records);
+                ch.force(true);//on disk before tables.list can name it
+            }
+            try{
+                Files.setPosixFilePermissions(tmp, PosixFilePermissions.fromString("rw-r--r--"));
+            } catch (UnsupportedOperationException e){
+                //not a POSIX file system, keep the defaults
+            }
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        ReftableReader reader = new ReftableReader(file);
+        readers.put(file.getFileName().toString(), reader);
+        return reader;
+    }
+
+    private LockFile lock() throws IOException{
+        return LockFile.lock(listFile);
+    }
+}
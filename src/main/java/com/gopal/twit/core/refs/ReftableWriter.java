@@ -0,0 +1,242 @@
+package com.gopal.twit.core.refs;
+
+import com.gopal.twit.core.objects.ObjectId;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Writes a reftable file {see ReftableReader for the layout}
+ * Ref blocks are filled up to the block size and padded, with a restart point every RESTART_INTERVAL records;
+ * when there is more than one ref block, a single index block follows them.
+ * Only refs are written, no obj or log sections.
+ */
+public class ReftableWriter {
+    public static final int DEFAULT_BLOCK_SIZE = 4096;
+    private static final int RESTART_INTERVAL = 16;
+
+    private final int blockSize;
+    private final long minUpdateIndex;
+    private final long maxUpdateIndex;
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private final List<byte[]> indexKeys = new ArrayList<>();
+    private final List<Integer> indexPositions = new ArrayList<>();
+
+    public ReftableWriter(int blockSize, long minUpdateIndex, long maxUpdateIndex){
+        this.blockSize = blockSize;
+        this.minUpdateIndex = minUpdateIndex;
+        this.maxUpdateIndex = maxUpdateIndex;
+    }
+
+    /**
+     * Writes the whole table; records must be sorted by name, with no duplicates
+     */
+    public void write(OutputStream file, List<ReftableReader.RefRecord> records) throws IOException{
+        byte[] header = header();
+        out.write(header);
+
+        Block block = new Block(ReftableReader.BLOCK_REF, 0, ReftableReader.HEADER_LEN);
+        for(ReftableReader.RefRecord r : records){
+            byte[] value = encodeValue(r);
+            byte[] name = r.name().getBytes(StandardCharsets.UTF_8);
+            if(!block.fits(name, value.length)){
+                finishRefBlock(block, true);
+                block = new Block(ReftableReader.BLOCK_REF, out.size(), 0);
+                if(!block.fits(name, value.length)){
+                    throw new IOException("Ref too large for a " + blockSize + " byte block: " + r.name());
+                }
+            }
+            block.add(name, typeOf(r), value);
+        }
+        finishRefBlock(block, false);
+
+        long indexPosition = 0;
+        if(indexKeys.size() > 1){
+            indexPosition = out.size();
+            Block index = new Block(ReftableReader.BLOCK_INDEX, out.size(), 0);
+            for(int i = 0; i < indexKeys.size(); i++){
+                index.add(indexKeys.get(i), 0, varint(indexPositions.get(i)));
+            }
+            out.write(index.finish());
+        }
+
+        //footer: the header again, the section positions, and a CRC of all that
+        ByteBuffer footer = ByteBuffer.allocate(ReftableReader.FOOTER_LEN);
+        footer.put(header);
+        footer.putLong(indexPosition);
+        footer.putLong(0);//no obj section
+        footer.putLong(0);
+        footer.putLong(0);//no log section
+        footer.putLong(0);
+        CRC32 crc = new CRC32();
+        crc.update(footer.array(), 0, ReftableReader.FOOTER_LEN - 4);
+        footer.putInt((int) crc.getValue());
+        out.write(footer.array());
+
+        out.writeTo(file);
+    }
+
+    private byte[] header(){
+        ByteBuffer header = ByteBuffer.allocate(ReftableReader.HEADER_LEN);
+        header.putInt(ReftableReader.MAGIC);
+        header.put((byte) 1);
+        header.put((byte) (blockSize >>> 16)).put((byte) (blockSize >>> 8)).put((byte) blockSize);
+        header.putLong(minUpdateIndex);
+        header.putLong(maxUpdateIndex);
+        return header.array();
+    }
+
+    private void finishRefBlock(Block block, boolean pad) throws IOException{
+        if(block.count == 0 && block.start > 0){
+            return;
+        }
+        indexKeys.add(block.lastKey);
+        indexPositions.add(block.start);
+        byte[] data = block.finish();
+        out.write(data);
+        if(pad){
+            int len = (block.start == 0 ? ReftableReader.HEADER_LEN : 0) + data.length;
+            out.write(new byte[blockSize - len]);
+        }
+    }
+
+    private static int typeOf(ReftableReader.RefRecord r){
+        Ref ref = r.ref();
+        if(ref == null){
+            return ReftableReader.VALUE_DELETION;
+        }
+        if(ref.isSymbolic()){
+            return ReftableReader.VALUE_SYMREF;
+        }
+        return ref.peeled() != null ? ReftableReader.VALUE_PEELED : ReftableReader.VALUE_SHA;
+    }
+
+    private byte[] encodeValue(ReftableReader.RefRecord r){
+        ByteArrayOutputStream v = new ByteArrayOutputStream();
+        v.writeBytes(varint(r.updateIndex() - minUpdateIndex));
+        Ref ref = r.ref();
+        if(ref == null){
+            return v.toByteArray();
+        }
+        if(ref.isSymbolic()){
+            byte[] target = ref.target().getBytes(StandardCharsets.UTF_8);
+            v.writeBytes(varint(target.length));
+            v.writeBytes(target);
+        }
+        else{
+            v.writeBytes(ObjectId.fromHex(ref.sha()).toRaw());
+            if(ref.peeled() != null){
+                v.writeBytes(ObjectId.fromHex(ref.peeled()).toRaw());
+            }
+        }
+        return v.toByteArray();
+    }
+
+    /**
+     * One block being filled: records with prefix compressed names, then the restart table
+     */
+    private class Block{
+        private final byte type;
+        private final int start;//position of the block in the file
+        private final int headerLen;//the file header, for the first block
+        private final ByteArrayOutputStream records = new ByteArrayOutputStream();
+        private final List<Integer> restarts = new ArrayList<>();
+        private byte[] lastKey = new byte[0];
+        private int count;
+
+        Block(byte type, int start, int headerLen){
+            this.type = type;
+            this.start = start;
+            this.headerLen = headerLen;
+        }
+
+        private boolean isRestart(){
+            return count % RESTART_INTERVAL == 0;
+        }
+
+        /**
+         * Would one more record still fit in the block size? {index blocks are never cut}
+         */
+        boolean fits(byte[] name, int valueLen){
+            if(type == ReftableReader.BLOCK_INDEX){
+                return true;
+            }
+            boolean restart = isRestart();
+            int record = recordSize(name, valueLen, restart);
+            int restartTable = (restarts.size() + (restart ? 1 : 0)) * 3 + 2;
+            return headerLen + 4 + records.size() + record + restartTable <= blockSize;
+        }
+
+        private int recordSize(byte[] name, int valueLen, boolean restart){
+            int prefix = restart ? 0 : commonPrefix(lastKey, name);
+            int suffix = name.length - prefix;
+            return varint(prefix).length + varint(((long) suffix << 3)).length + suffix + valueLen;
+        }
+
+        void add(byte[] name, int valueType, byte[] value){
+            boolean restart = isRestart();
+            if(restart){
+                //offsets are from the start of the block (for the first block, the start of the file)
+                restarts.add(headerLen + 4 + records.size());
+            }
+            int prefix = restart ? 0 : commonPrefix(lastKey, name);
+            int suffix = name.length - prefix;
+            records.writeBytes(varint(prefix));
+            records.writeBytes(varint(((long) suffix << 3) | valueType));
+            records.write(name, prefix, suffix);
+            records.writeBytes(value);
+            lastKey = name;
+            count++;
+        }
+
+        /**
+         * The block bytes: type, length, records, restart table {the file header of the first block is not included}
+         */
+        byte[] finish(){
+            int len = headerLen + 4 + records.size() + restarts.size() * 3 + 2;
+            ByteArrayOutputStream b = new ByteArrayOutputStream();
+            b.write(type);
+            b.write(len >>> 16);
+            b.write(len >>> 8);
+            b.write(len);
+            b.writeBytes(records.toByteArray());
+            for(int r : restarts){
+                b.write(r >>> 16);
+                b.write(r >>> 8);
+                b.write(r);
+            }
+            b.write(restarts.size() >>> 8);
+            b.write(restarts.size());
+            return b.toByteArray();
+        }
+    }
+
+    private static int commonPrefix(byte[] a, byte[] b){
+        int n = Math.min(a.length, b.length);
+        int i = 0;
+        while(i < n && a[i] == b[i]){
+            i++;
+        }
+        return i;
+    }
+
+    //git's varint: 7 bits per byte, big endian, every continuation byte implicitly adds one
+    private static byte[] varint(long value){
+        byte[] buf = new byte[10];
+        int pos = buf.length - 1;
+        buf[pos] = (byte) (value & 0x7f);
+        while((value >>>= 7) != 0){
+            value--;
+            buf[--pos] = (byte) (0x80 | (value & 0x7f));
+        }
+        return Arrays.copyOfRange(buf, pos, buf.length);
+    }
+}
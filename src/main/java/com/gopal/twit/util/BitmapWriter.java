@@ -0,0 +1,258 @@
+package com.gopal.twit.util;
+
+import com.gopal.twit.core.GitRepository;
+import com.gopal.twit.core.objects.ObjectId;
+import com.gopal.twit.core.objects.RawObject;
+import com.gopal.twit.core.pack.EwahBitmap;
+import com.gopal.twit.core.pack.GitPack;
+import com.gopal.twit.core.pack.GitPackIndex;
+import com.gopal.twit.core.pack.PackBitmap;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Writes the reachability bitmap of a pack (pack-*.bitmap) {see PackBitmap for the layout}
+ * The pack must contain every object reachable from the refs, which is what a full repack (-a) writes.
+ * SELECTION {same windows as git's pack-bitmap-write.c}: the commits are taken newest first,
+ * the first MUST_REGION all get a bitmap, then one per window of MIN_SPACING commits, and past
+ * MIN_REGION the windows grow with the history, up to MAX_SPACING. Inside a window a ref tip is picked
+ * if there is one, otherwise the oldest commit of the window. Selecting every tip (or a fixed spacing)
+ * doesn't scale: a repository with 100k tags would get 100k bitmaps.
+ * Bitmaps are computed oldest first, so each one is the OR of the bitmaps of the selected commits
+ * below it plus whatever lies in between. Finished ones are kept EWAH encoded {a BitSet costs
+ * one bit per object in the pack, the encoded form is mostly a few runs}
+ */
+public class BitmapWriter {
+    private static final int MUST_REGION = 100;
+    private static final int MIN_REGION = 20000;
+    private static final int MIN_SPACING = 100;
+    private static final int MAX_SPACING = 5000;
+
+    private final GitRepository repo;
+    private final GitPackIndex index;
+    private final int[] bitOf;//idx position -> bit
+
+    private BitmapWriter(GitRepository repo, GitPack pack){
+        this.repo = repo;
+        this.index = pack.getIndex();
+
+        int[] order = index.positionsByOffset();
+        this.bitOf = new int[order.length];
+        for(int bit = 0; bit < order.length; bit++){
+            bitOf[order[bit]] = bit;
+        }
+    }
+
+    /**
+     * @param objects the objects of the pack with their types {as collected by PackBuilder}
+     * @return the number of commits that got a bitmap
+     */
+    public static int write(GitRepository repo, GitPack pack, List<PackBuilder.ObjectToPack> objects) throws Exception{
+        return new BitmapWriter(repo, pack).write(pack, objects);
+    }
+
+    private int write(GitPack pack, List<PackBuilder.ObjectToPack> objects) throws Exception{
+        int n = index.getCount();
+
+        BitSet[] types = new BitSet[4];
+        for(int t = 0; t < 4; t++){
+            types[t] = new BitSet(n);
+        }
+        for(PackBuilder.ObjectToPack o : objects){
+            types[o.getType() - 1].set(bit(o.getSha()));
+        }
+
+        //select: windows over the history, newest first
+        Set<String> tips = new LinkedHashSet<>();
+        for(String tip : RefResolver.refTips(repo)){
+            String commit = CommitWalker.peelToCommit(repo, tip);
+            if(commit != null){
+                tips.add(commit);
+            }
+        }
+        CommitWalker walker = new CommitWalker(repo);
+        List<String> history = new ArrayList<>();
+        walker.walk(tips, sha -> {
+            history.add(sha);
+            return true;
+        });
+        List<String> selected = select(history, tips);
+        Collections.reverse(selected);//oldest first
+
+        Map<String, byte[]> bitmaps = new LinkedHashMap<>();
+        for(String commit : selected){
+            bitmaps.put(commit, encode(reachable(walker, commit, bitmaps), n));
+        }
+
+        String name = pack.getPath().getFileName().toString();
+        Path file = pack.getPath().resolveSibling(name.substring(0, name.length() - ".pack".length()) + ".bitmap");
+        writeFile(file, n, types, bitmaps);
+        return bitmaps.size();
+    }
+
+    /**
+     * @param history the commits, newest first
+     * @return one commit per window {see the class comment}, newest first
+     */
+    private static List<String> select(List<String> history, Set<String> tips){
+        List<String> selected = new ArrayList<>();
+        if(history.size() < MUST_REGION){
+            selected.addAll(history);
+            return selected;
+        }
+        int i = 0;
+        while(true){
+            int next = spacing(i);
+            if(i + next >= history.size()){
+                break;
+            }
+            String chosen = history.get(i + next);
+            for(int j = 0; j < next; j++){
+                if(tips.contains(history.get(i + j))){
+                    chosen = history.get(i + j);
+                    break;
+                }
+            }
+            selected.add(chosen);
+            i += next + 1;
+        }
+        return selected;
+    }
+
+    /**
+     * How many commits to skip after the i-th one {git's next_commit_index}
+     */
+    private static int spacing(int i){
+        if(i <= MUST_REGION){
+            return 0;
+        }
+        if(i <= MIN_REGION){
+            return Math.min(i - MUST_REGION, MIN_SPACING);
+        }
+        return Math.max(Math.min(i - MIN_REGION, MAX_SPACING), MIN_SPACING);
+    }
+
+    private static byte[] encode(BitSet bits, int n) throws IOException{
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        EwahBitmap.write(new DataOutputStream(buf), bits, n);
+        return buf.toByteArray();
+    }
+
+    /**
+     * Everything reachable from commit, reusing the bitmaps already computed
+     */
+    private BitSet reachable(CommitWalker walker, String commit, Map<String, byte[]> done) throws Exception{
+        BitSet bits = new BitSet(index.getCount());
+        Deque<String> commits = new ArrayDeque<>();
+        Deque<String> trees = new ArrayDeque<>();
+        commits.push(commit);
+
+        while(!commits.isEmpty()){
+            String sha = commits.pop();
+            int bit = bit(sha);
+            if(bits.get(bit)){
+                continue;
+            }
+            byte[] below = done.get(sha);
+            if(below != null){
+                bits.or(EwahBitmap.read(ByteBuffer.wrap(below), 0).bits());
+                continue;
+            }
+            bits.set(bit);
+            CommitWalker.CommitInfo info = walker.info(sha);
+            trees.push(info.tree());
+            for(String parent : info.parents()){
+                commits.push(parent);
+            }
+        }
+
+        while(!trees.isEmpty()){
+            String sha = trees.pop();
+            int bit = bit(sha);
+            if(bits.get(bit)){
+                continue;
+            }
+            bits.set(bit);
+            RawObject raw = ObjectIO.objectReadRaw(repo, sha);
+            TreeCursor c = new TreeCursor(raw.data());
+            while(c.next()){
+                if(c.isGitlink()){
+                    continue;
+                }
+                if(c.isTree()){
+                    trees.push(c.getSha());
+                }
+                else{
+                    bits.set(bit(c.getId()));
+                }
+            }
+        }
+        return bits;
+    }
+
+    private int bit(String sha) throws IOException{
+        return bit(ObjectId.fromHex(sha));
+    }
+
+    private int bit(ObjectId id) throws IOException{
+        int pos = index.findPosition(id.toRaw());
+        if(pos < 0){
+            throw new IOException("Object " + id + " is reachable but not in the pack, can't write a bitmap");
+        }
+        return bitOf[pos];
+    }
+
+    private void writeFile(Path file, int n, BitSet[] types, Map<String, byte[]> bitmaps) throws IOException{
+        MessageDigest md;
+        try{
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e){
+            throw new IOException(e);
+        }
+
+        Path tmp = Files.createTempFile(file.getParent(), "tmp_bitmap_", null);
+        try(OutputStream raw = Files.newOutputStream(tmp);
+            DigestOutputStream digest = new DigestOutputStream(new BufferedOutputStream(raw, 1 << 16), md);
+            DataOutputStream out = new DataOutputStream(digest)){
+
+            out.writeInt(PackBitmap.SIGNATURE);
+            out.writeShort(1);
+            out.writeShort(PackBitmap.OPT_FULL_DAG);
+            out.writeInt(bitmaps.size());
+            out.write(index.getPackChecksum());
+
+            for(BitSet type : types){
+                EwahBitmap.write(out, type, n);
+            }
+
+            for(Map.Entry<String, byte[]> e : bitmaps.entrySet()){
+                out.writeInt(index.findPosition(ObjectId.fromHex(e.getKey()).toRaw()));
+                out.writeByte(0);//not XORed with a previous bitmap
+                out.writeByte(0);//flags
+                out.write(e.getValue());
+            }
+
+            //trailer: SHA-1 of everything above
+            out.flush();
+            raw.write(md.digest());
+        } catch (IOException e){
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        try{
+            Files.setPosixFilePermissions(tmp, PosixFilePermissions.fromString("r--r--r--"));
+        } catch (UnsupportedOperationException e){
+            //not a POSIX file system, keep the defaults
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
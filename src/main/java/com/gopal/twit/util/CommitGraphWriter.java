@@ -0,0 +1,236 @@
+package com.gopal.twit.util;
+
+import com.gopal.twit.core.GitRepository;
+import com.gopal.twit.core.graph.CommitGraph;
+import com.gopal.twit.core.objects.ObjectId;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Writes .git/objects/info/commit-graph for every commit reachable from the refs (and HEAD)
+ * {see CommitGraph for the layout}
+ * Commits already in the current graph are taken from it, so rewriting the graph after a few
+ * new commits only parses those few commits.
+ */
+public class CommitGraphWriter {
+    //git caps generation numbers at what fits in the 30 bits
+    private static final int GENERATION_MAX = 0x3FFFFFFF;
+
+    /**
+     * @return the number of commits in the new graph
+     */
+    public static int write(GitRepository repo) throws Exception{
+        CommitWalker walker = new CommitWalker(repo);
+
+        //1) collect the commits, iteratively
+        Map<String, CommitWalker.CommitInfo> commits = new HashMap<>();
+        Deque<String> stack = new ArrayDeque<>();
+        for(String tip : RefResolver.refTips(repo)){
+            String commit = CommitWalker.peelToCommit(repo, tip);
+            if(commit != null){
+                stack.push(commit);
+            }
+        }
+        while(!stack.isEmpty()){
+            String sha = stack.pop();
+            if(commits.containsKey(sha)){
+                continue;
+            }
+            CommitWalker.CommitInfo info = walker.info(sha);
+            commits.put(sha, info);
+            for(String parent : info.parents()){
+                if(!commits.containsKey(parent)){
+                    stack.push(parent);
+                }
+            }
+        }
+
+        //2) positions are the sorted order of the SHAs
+        String[] shas = commits.keySet().toArray(new String[0]);
+        Arrays.sort(shas);
+        Map<String, Integer> positions = new HashMap<>(shas.length * 2);
+        for(int i = 0; i < shas.length; i++){
+            positions.put(shas[i], i);
+        }
+        int[][] parents = new int[shas.length][];
+        for(int i = 0; i < shas.length; i++){
+            List<String> ps = commits.get(shas[i]).parents();
+            parents[i] = new int[ps.size()];
+            for(int k = 0; k < ps.size(); k++){
+                parents[i][k] = positions.get(ps.get(k));
+            }
+        }
+
+        int[] generations = generations(parents);
+
+        Path info = repo.repoDir(true, "objects", "info");
+        writeFile(info.resolve("commit-graph"), shas, commits, parents, generations);
+        return shas.length;
+    }
+
+    /**
+     * Generation = 1 + the highest generation of the parents (1 for roots)
+     * Computed with an explicit stack: a commit is popped only once all its parents are done
+     */
+    private static int[] generations(int[][] parents){
+        int[] gen = new int[parents.length];//0 = not computed yet
+        int[] stack = new int[16];
+
+        for(int start = 0; start < parents.length; start++){
+            if(gen[start] != 0){
+                continue;
+            }
+            int top = 0;
+            stack[top++] = start;
+
+            while(top > 0){
+                int c = stack[top - 1];
+                int max = 0;
+                boolean ready = true;
+                for(int p : parents[c]){
+                    if(gen[p] == 0){
+                        ready = false;
+                        if(top == stack.length){
+                            stack = Arrays.copyOf(stack, top * 2);
+                        }
+                        stack[top++] = p;
+                    }
+                    else{
+                        max = Math.max(max, gen[p]);
+                    }
+                }
+                if(ready){
+                    gen[c] = Math.min(max + 1, GENERATION_MAX);
+                    top--;
+                }
+            }
+        }
+        return gen;
+    }
+
+    private static void writeFile(Path file, String[] shas, Map<String, CommitWalker.CommitInfo> commits,
+                                  int[][] parents, int[] generations) throws IOException{
+        //octopus merges spill their parents past the first one into EDGE
+        int edges = 0;
+        for(int[] ps : parents){
+            if(ps.length > 2){
+                edges += ps.length - 1;
+            }
+        }
+
+        int n = shas.length;
+        int chunks = edges > 0 ? 4 : 3;
+        long offset = 8 + (chunks + 1) * 12L;
+        long oidf = offset;
+        long oidl = oidf + 256 * 4;
+        long cdat = oidl + n * 20L;
+        long edge = cdat + (long) n * CommitGraph.CDAT_WIDTH;
+        long end = edge + edges * 4L;
+
+        MessageDigest md;
+        try{
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e){
+            throw new IOException(e);
+        }
+
+        Path tmp = Files.createTempFile(file.getParent(), "graph_", null);
+        try(OutputStream raw = Files.newOutputStream(tmp);
+            DigestOutputStream digest = new DigestOutputStream(new BufferedOutputStream(raw, 1 << 16), md);
+            DataOutputStream out = new DataOutputStream(digest)){
+
+            //header
+            out.writeInt(CommitGraph.SIGNATURE);
+            out.writeByte(1);//version
+            out.writeByte(1);//SHA-1
+            out.writeByte(chunks);
+            out.writeByte(0);//no base graphs
+
+            //chunk table
+            out.writeInt(CommitGraph.CHUNK_OIDF);
+            out.writeLong(oidf);
+            out.writeInt(CommitGraph.CHUNK_OIDL);
+            out.writeLong(oidl);
+            out.writeInt(CommitGraph.CHUNK_CDAT);
+            out.writeLong(cdat);
+            if(edges > 0){
+                out.writeInt(CommitGraph.CHUNK_EDGE);
+                out.writeLong(edge);
+            }
+            out.writeInt(0);
+            out.writeLong(end);
+
+            //OIDF
+            byte[][] raws = new byte[n][];
+            int[] fanout = new int[256];
+            for(int i = 0; i < n; i++){
+                raws[i] = ObjectId.fromHex(shas[i]).toRaw();
+                fanout[raws[i][0] & 0xff]++;
+            }
+            int total = 0;
+            for(int b = 0; b < 256; b++){
+                total += fanout[b];
+                out.writeInt(total);
+            }
+
+            //OIDL
+            for(byte[] sha : raws){
+                out.write(sha);
+            }
+
+            //CDAT
+            int nextEdge = 0;
+            for(int i = 0; i < n; i++){
+                CommitWalker.CommitInfo c = commits.get(shas[i]);
+                out.write(ObjectId.fromHex(c.tree()).toRaw());
+
+                int[] ps = parents[i];
+                out.writeInt(ps.length > 0 ? ps[0] : CommitGraph.PARENT_NONE);
+                if(ps.length > 2){
+                    out.writeInt(CommitGraph.PARENT_EXTRA | nextEdge);
+                    nextEdge += ps.length - 1;
+                }
+                else{
+                    out.writeInt(ps.length > 1 ? ps[1] : CommitGraph.PARENT_NONE);
+                }
+
+                long time = c.commitTime();
+                out.writeInt((generations[i] << 2) | (int) ((time >>> 32) & 0x3));
+                out.writeInt((int) time);
+            }
+
+            //EDGE
+            if(edges > 0){
+                for(int[] ps : parents){
+                    if(ps.length <= 2){
+                        continue;
+                    }
+                    for(int k = 1; k < ps.length; k++){
+                        out.writeInt(k == ps.length - 1 ? ps[k] | CommitGraph.PARENT_EXTRA : ps[k]);
+                    }
+                }
+            }
+
+            //trailer: SHA-1 of everything above
+            out.flush();
+            raw.write(md.digest());
+        } catch (IOException e){
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        try{
+            Files.setPosixFilePermissions(tmp, PosixFilePermissions.fromString("r--r--r--"));
+        } catch (UnsupportedOperationException e){
+            //not a POSIX file system, keep the defaults
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,196 @@
+package com.gopal.twit.util;
+
+import com.gopal.twit.core.GitRepository;
+import com.gopal.twit.core.graph.CommitGraph;
+import com.gopal.twit.core.objects.ObjectId;
+import com.gopal.twit.core.objects.RawObject;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * HISTORY WALK
+ * Visits commits newest first (by committer time), starting from some tips, each commit once.
+ * It is iterative (a priority queue, no recursion), so the length of the history doesn't matter.
+ * Commits covered by the commit-graph file are walked entirely from the graph:
+ * they are identified by their position in it and never inflated.
+ * Only commits newer than the graph (or all of them, if there is no graph) are read and parsed.
+ */
+public class CommitWalker {
+
+    /**
+     * What a walk needs to know about a commit
+     */
+    public record CommitInfo(String sha, String tree, List<String> parents, long commitTime){}
+
+    /**
+     * Called for every commit of the walk, return false to stop the walk
+     */
+    @FunctionalInterface
+    public interface Visitor {
+        boolean visit(String sha) throws Exception;
+    }
+
+    //A commit waiting in the queue: pos >= 0 if it is in the graph, otherwise sha and parents are set
+    private record Pending(long time, long order, int pos, String sha, List<String> parents){}
+
+    private final GitRepository repo;
+    private final CommitGraph graph;
+
+    public CommitWalker(GitRepository repo) throws IOException{
+        this.repo = repo;
+        this.graph = openGraph(repo);
+    }
+
+    /**
+     * The commit-graph of the repository, or null if it doesn't have one
+     */
+    public static CommitGraph openGraph(GitRepository repo) throws IOException{
+        Path path = repo.repoPath("objects", "info", "commit-graph");
+        return Files.isRegularFile(path) ? new CommitGraph(path) : null;
+    }
+
+    public CommitGraph getGraph() { return graph; }
+
+    /**
+     * Parents, tree and time of a commit, from the graph if possible
+     */
+    public CommitInfo info(String sha) throws Exception{
+        if(graph != null){
+            int pos = graph.findPosition(sha);
+            if(pos >= 0){
+                return graphInfo(pos);
+            }
+        }
+        return parseCommit(repo, sha);
+    }
+
+    private CommitInfo graphInfo(int pos){
+        int[] parents = graph.parentsAt(pos);
+        List<String> shas = new ArrayList<>(parents.length);
+        for(int p : parents){
+            shas.add(graph.shaHexAt(p));
+        }
+        return new CommitInfo(graph.shaHexAt(pos), graph.treeAt(pos), shas, graph.commitTimeAt(pos));
+    }
+
+    /**
+     * Reads a commit object (the slow way)
+     */
+    public static CommitInfo parseCommit(GitRepository repo, String sha) throws Exception{
+        RawObject raw = ObjectIO.objectReadRaw(repo, sha);
+        if(raw == null){
+            throw new Exception("Missing commit " + sha);
+        }
+        if(!raw.type().equals("commit")){
+            throw new Exception("Not a commit: " + sha + " (" + raw.type() + ")");
+        }
+
+        //only the headers a walk needs are decoded {the message is never looked at}
+        KVLMReader header = new KVLMReader(raw.data());
+        List<ObjectId> ids = header.parents();
+        List<String> parents = new ArrayList<>(ids.size());
+        for(ObjectId p : ids){
+            parents.add(p.name());
+        }
+        ObjectId tree = header.tree();
+        if(tree == null){
+            throw new Exception("Corrupt commit " + sha + ": no tree");
+        }
+        return new CommitInfo(sha, tree.name(), parents, header.commitTime());
+    }
+
+    /**
+     * Follows annotated tags down to what they point at, null if that isn't a commit
+     */
+    public static String peelToCommit(GitRepository repo, String sha) throws Exception{
+        while(true){
+            RawObject raw = ObjectIO.objectReadRaw(repo, sha);
+            if(raw == null){
+                throw new Exception("Missing object " + sha);
+            }
+            switch (raw.type()){
+                case "commit" -> {
+                    return sha;
+                }
+                case "tag" -> {
+                    sha = tagTarget(raw.data(), sha);
+                }
+                default -> {
+                    return null;//a tag on a tree or blob
+                }
+            }
+        }
+    }
+
+    /**
+     * Walks everything reachable from tips, newest first {ties keep the order commits were found in}
+     */
+    public void walk(Collection<String> tips, Visitor visitor) throws Exception{
+        PriorityQueue<Pending> queue = new PriorityQueue<>(
+                Comparator.comparingLong(Pending::time).reversed().thenComparingLong(Pending::order));
+        BitSet seenPos = new BitSet();
+        Set<String> seenSha = new HashSet<>();
+        long[] order = {0};
+
+        for(String tip : tips){
+            enqueue(queue, tip, seenPos, seenSha, order);
+        }
+
+        while(!queue.isEmpty()){
+            Pending c = queue.poll();
+
+            if(c.pos() >= 0){
+                if(!visitor.visit(graph.shaHexAt(c.pos()))){
+                    return;
+                }
+                for(int parent : graph.parentsAt(c.pos())){
+                    if(!seenPos.get(parent)){
+                        seenPos.set(parent);
+                        queue.add(new Pending(graph.commitTimeAt(parent), order[0]++, parent, null, null));
+                    }
+                }
+            }
+            else{
+                if(!visitor.visit(c.sha())){
+                    return;
+                }
+                for(String parent : c.parents()){
+                    enqueue(queue, parent, seenPos, seenSha, order);
+                }
+            }
+        }
+    }
+
+    /**
+     * Queues a commit known by SHA: by its graph position if the graph has it, otherwise parsed
+     * {a commit in the graph is always known by its position, so the two seen sets can't overlap}
+     */
+    private void enqueue(PriorityQueue<Pending> queue, String sha, BitSet seenPos, Set<String> seenSha, long[] order) throws Exception{
+        int pos = graph != null ? graph.findPosition(sha) : -1;
+        if(pos >= 0){
+            if(!seenPos.get(pos)){
+                seenPos.set(pos);
+                queue.add(new Pending(graph.commitTimeAt(pos), order[0]++, pos, null, null));
+            }
+            return;
+        }
+        if(seenSha.add(sha)){
+            CommitInfo info = parseCommit(repo, sha);
+            queue.add(new Pending(info.commitTime(), order[0]++, -1, sha, info.parents()));
+        }
+    }
+
+    /**
+     * The object line of a tag, as a hex name
+     */
+    public static String tagTarget(byte[] tag, String sha) throws Exception{
+        ObjectId target = new KVLMReader(tag).object();
+        if(target == null){
+            throw new Exception("Corrupt tag " + sha + ": no object");
+        }
+        return target.name();
+    }
+}
@@ -0,0 +1,362 @@
+package com.gopal.twit.util;
+
+import com.gopal.twit.core.GitRepository;
+
+import java.io.*;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+/**
+ * DAEMON PROTOCOL
+ * How a client hands a command over to a daemon (see DaemonCommand), on a Unix domain socket.
+ * CLIENT -> DAEMON:
+ *      number of strings (32) | each string: length (32) | UTF-8 bytes  {the client's working directory, then argv}
+ *      once accepted: go (32, the value GO)
+ *      then stdin, as chunks: length (32) | bytes  {a 0 length chunk is the end of stdin}
+ * DAEMON -> CLIENT, frames:
+ *      channel (8) | length (32) | bytes
+ *      channel 4 -> accepted (no bytes), always the first frame: the daemon read the request
+ *      channel 1 -> stdout, 2 -> stderr, 3 -> exit code (4 bytes), always the last frame
+ * HANDSHAKE: a client that doesn't get the accepted frame within HANDSHAKE_TIMEOUT_MS hangs up and runs the command
+ * itself. The daemon only runs a command once it got the go, which a client sends only if it got the accepted frame
+ * in time: whatever the timing, exactly one of them runs it {and stdin, sent after the go, is all there for either}
+ * {all big endian. Simple enough for a client in any language: the JVM client below still pays for starting a JVM}
+ */
+public class DaemonProtocol {
+    public static final int STDOUT = 1;
+    public static final int STDERR = 2;
+    public static final int EXIT = 3;
+    public static final int ACCEPTED = 4;
+    public static final int GO = 0x676f2121;//"go!!"
+
+    public static final int HANDSHAKE_TIMEOUT_MS = 1000;
+
+    private static final int CHUNK = 1 << 16;
+
+    /**
+     * A command, as sent by a client
+     */
+    public record Request(Path cwd, String[] args){}
+
+    /**
+     * Where a daemon listens when it isn't told: $TWIT_DAEMON, otherwise a socket per user in the temp directory
+     */
+    public static Path defaultSocket(){
+        String env = System.getenv("TWIT_DAEMON");
+        if(env != null && !env.isEmpty()){
+            return Path.of(env);
+        }
+        return Path.of(System.getProperty("java.io.tmpdir"), "twit-" + System.getProperty("user.name") + ".sock");
+    }
+
+    /**
+     * Runs a command through the daemon listening on socket, relaying stdin, stdout and stderr
+     * Returns its exit code, or null if no daemon answers there, or not in time {the caller then runs the command itself}
+     */
+    public static Integer forward(Path socket, String[] args){
+        //the daemon runs nothing before it gets our go: any failure until it's sent falls back to running it here
+        SocketChannel ch;
+        try{
+            ch = SocketChannel.open(StandardProtocolFamily.UNIX);
+        } catch (IOException | UnsupportedOperationException e){
+            return null;
+        }
+        DataOutputStream out;
+        try{
+            ch.connect(UnixDomainSocketAddress.of(socket));
+            out = new DataOutputStream(new BufferedOutputStream(output(ch), CHUNK));
+            String[] strings = new String[args.length + 1];
+            strings[0] = GitRepository.cwd().toString();
+            System.arraycopy(args, 0, strings, 1, args.length);
+            writeStrings(out, strings);
+            out.flush();
+            if(!awaitAccepted(ch)){
+                ch.close();
+                return null;
+            }
+            out.writeInt(GO);
+            out.flush();
+        } catch (IOException | UnsupportedOperationException e){
+            try{
+                ch.close();
+            } catch (IOException ignored){
+                //nothing was run either way
+            }
+            return null;
+        }
+
+        try(ch){
+            //stdin is pumped on the side, for as long as the command runs
+            Thread pump = new Thread(() -> pumpStdin(out), "twit-stdin");
+            pump.setDaemon(true);
+            pump.start();
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(input(ch), CHUNK));
+            byte[] buf = new byte[CHUNK];
+            while(true){
+                int channel = in.read();
+                if(channel < 0){
+                    System.err.println("twit: the daemon closed the connection");
+                    return 1;
+                }
+                int len = in.readInt();
+                if(channel == EXIT){
+                    int code = in.readInt();
+                    System.out.flush();
+                    System.err.flush();
+                    return code;
+                }
+                PrintStream target = channel == STDERR ? System.err : System.out;
+                while(len > 0){
+                    int n = in.read(buf, 0, Math.min(len, buf.length));
+                    if(n < 0){
+                        throw new EOFException();
+                    }
+                    target.write(buf, 0, n);
+                    len -= n;
+                }
+                if(channel == STDERR){
+                    System.err.flush();
+                }
+            }
+        } catch (IOException e){
+            System.err.println("twit: lost the daemon: " + e.getMessage());
+            return 1;
+        }
+    }
+
+    /**
+     * Waits for the accepted frame, for at most HANDSHAKE_TIMEOUT_MS
+     * {a blocking channel can't time out a read: the wait is done in non-blocking mode, on a selector}
+     */
+    private static boolean awaitAccepted(SocketChannel ch) throws IOException{
+        ByteBuffer frame = ByteBuffer.allocate(5);
+        long deadline = System.nanoTime() + HANDSHAKE_TIMEOUT_MS * 1_000_000L;
+        ch.configureBlocking(false);
+        try(Selector selector = Selector.open()){
+            ch.register(selector, SelectionKey.OP_READ);
+            while(frame.hasRemaining()){
+                long left = (deadline - System.nanoTime()) / 1_000_000;
+                if(left <= 0){
+                    return false;
+                }
+                selector.select(left);
+                if(ch.read(frame) < 0){
+                    return false;
+                }
+            }
+        }
+        //closing the selector deregistered the channel
+        ch.configureBlocking(true);
+        return frame.get(0) == ACCEPTED && frame.getInt(1) == 0;
+    }
+
+    private static void pumpStdin(DataOutputStream out){
+        byte[] buf = new byte[CHUNK];
+        try{
+            int n;
+            while((n = System.in.read(buf)) > 0){
+                synchronized (out){
+                    out.writeInt(n);
+                    out.write(buf, 0, n);
+                    out.flush();
+                }
+            }
+            synchronized (out){
+                out.writeInt(0);
+                out.flush();
+            }
+        } catch (IOException e){
+            //the command is over and the daemon hung up
+        }
+    }
+
+    public static void writeStrings(DataOutputStream out, String[] strings) throws IOException{
+        out.writeInt(strings.length);
+        for(String s : strings){
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(b.length);
+            out.write(b);
+        }
+    }
+
+    public static Request readRequest(DataInputStream in) throws IOException{
+        int count = in.readInt();
+        if(count < 1 || count > 1 << 16){
+            throw new IOException("Bad request: " + count + " strings");
+        }
+        String[] strings = new String[count];
+        for(int i = 0; i < count; i++){
+            int len = in.readInt();
+            if(len < 0 || len > 1 << 20){
+                throw new IOException("Bad request: string of " + len + " bytes");
+            }
+            strings[i] = new String(in.readNBytes(len), StandardCharsets.UTF_8);
+        }
+        String[] args = new String[count - 1];
+        System.arraycopy(strings, 1, args, 0, args.length);
+        return new Request(Path.of(strings[0]), args);
+    }
+
+    /**
+     * Tells the client its request was read {it answers with the go, see readGo}
+     */
+    public static void writeAccepted(DataOutputStream out) throws IOException{
+        synchronized (out){
+            out.writeByte(ACCEPTED);
+            out.writeInt(0);
+            out.flush();
+        }
+    }
+
+    /**
+     * Waits for the client's go; false if it hung up instead {it gave up on the handshake and runs the command itself}
+     */
+    public static boolean readGo(DataInputStream in) throws IOException{
+        int go;
+        try{
+            go = in.readInt();
+        } catch (IOException e){
+            return false;//EOF, or reset by the client closing its end
+        }
+        if(go != GO){
+            throw new IOException("Bad request: expected go, got " + Integer.toHexString(go));
+        }
+        return true;
+    }
+
+    public static void writeExit(DataOutputStream out, int code) throws IOException{
+        synchronized (out){
+            out.writeByte(EXIT);
+            out.writeInt(4);
+            out.writeInt(code);
+            out.flush();
+        }
+    }
+
+    /**
+     * What a command writes to stdout or stderr, sent to the client as frames of that channel
+     * {wrap it in a BufferedOutputStream, every write is a frame}
+     */
+    public static class FrameOutputStream extends OutputStream {
+        private final DataOutputStream out;
+        private final int channel;
+
+        public FrameOutputStream(DataOutputStream out, int channel){
+            this.out = out;
+            this.channel = channel;
+        }
+
+        @Override
+        public void write(int b) throws IOException{
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException{
+            if(len == 0){
+                return;
+            }
+            synchronized (out){
+                out.writeByte(channel);
+                out.writeInt(len);
+                out.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException{
+            synchronized (out){
+                out.flush();
+            }
+        }
+    }
+
+    /**
+     * The client's stdin, read from its chunks
+     */
+    public static class ChunkInputStream extends InputStream {
+        private final DataInputStream in;
+        private int left;//bytes left in the current chunk
+        private boolean eof;
+
+        public ChunkInputStream(DataInputStream in){
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException{
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException{
+            if(len == 0){
+                return 0;
+            }
+            while(left == 0){
+                if(eof){
+                    return -1;
+                }
+                try{
+                    left = in.readInt();
+                } catch (EOFException e){
+                    left = 0;
+                }
+                eof = left <= 0;
+            }
+            int n = in.read(b, off, Math.min(len, left));
+            if(n < 0){
+                eof = true;
+                left = 0;
+                return -1;
+            }
+            left -= n;
+            return n;
+        }
+    }
+
+    /**
+     * Streams straight over the channel
+     * {Channels.newInputStream/newOutputStream serialize reads and writes on the channel's lock, and the client
+     * writes stdin while it reads the output}
+     */
+    public static InputStream input(SocketChannel ch){
+        return new InputStream(){
+            @Override
+            public int read() throws IOException{
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException{
+                return len == 0 ? 0 : ch.read(ByteBuffer.wrap(b, off, len));
+            }
+        };
+    }
+
+    public static OutputStream output(SocketChannel ch){
+        return new OutputStream(){
+            @Override
+            public void write(int b) throws IOException{
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException{
+                ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+                while(buf.hasRemaining()){
+                    ch.write(buf);
+                }
+            }
+        };
+    }
+}
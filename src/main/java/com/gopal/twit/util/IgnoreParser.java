@@ -9,8 +9,8 @@ import java.nio.file.Paths;
 import java.util.*;
 
 import com.gopal.twit.core.ignore.GitIgnore.IgnoreRule;
+import com.gopal.twit.core.ignore.IgnoreRuleSet;
 import com.gopal.twit.core.index.GitIndex;
-import com.gopal.twit.core.index.GitIndexEntry;
 import com.gopal.twit.core.objects.GitBlob;
 import com.gopal.twit.core.objects.GitObject;
 
@@ -20,8 +20,8 @@ public class IgnoreParser {
      * Read all the gitignore rules in a repository
      */
     public static GitIgnore gitIgnoreRead(GitRepository repo) throws Exception{
-        List<List<IgnoreRule>> absolute = new ArrayList<>();
-        Map<String, List<IgnoreRule>> scoped = new HashMap<>();
+        List<IgnoreRuleSet> absolute = new ArrayList<>();
+        Map<String, IgnoreRuleSet> scoped = new HashMap<>();
 
         // Read local configuration in .git/info/exclude
         Path repoFile = repo.repoFile("info", "exclude");
@@ -31,8 +31,7 @@ public class IgnoreParser {
         }
 
         //Global configuration {global ignore file (in ~/.config/git/ignore)}
-        String configHome = System.getenv().getOrDefault("XDG_CONFIG_HOME", System.getProperty("user.home") + "/.config");
-        Path globalFile = Paths.get(configHome, "git/ignore");
+        Path globalFile = globalExcludeFile();
 
         if(Files.exists(globalFile)){
             List<String> lines = Files.readAllLines(globalFile);
@@ -41,15 +40,16 @@ public class IgnoreParser {
 
         // .gitignore files in the index (scoped)
         GitIndex index = IndexIO.indexRead(repo);
-        for(GitIndexEntry entry : index.getEntries()){
-            if(entry.getName().equals(".gitignore") || entry.getName().endsWith("/.gitignore")){
+        for(int i = 0; i < index.size(); i++){
+            String name = index.nameAt(i);
+            if(name.equals(".gitignore") || name.endsWith("/.gitignore")){
                 String dirName = "";
-                int lastSlash = entry.getName().lastIndexOf('/');
+                int lastSlash = name.lastIndexOf('/');
                 if(lastSlash > 0){
-                    dirName = entry.getName().substring(0,lastSlash);
+                    dirName = name.substring(0,lastSlash);
                 }
 
-                GitObject obj = ObjectIO.objectRead(repo, entry.getSha());
+                GitObject obj = ObjectIO.objectRead(repo, index.shaAt(i));
                 if(obj instanceof GitBlob blob){
                     String content = new String(blob.getBlobData(), "UTF-8");
                     List<String> lines = Arrays.asList(content.split("\n"));
@@ -60,10 +60,18 @@ public class IgnoreParser {
         return new GitIgnore(absolute, scoped);
     }
 
+    /**
+     * The global ignore file {it may not exist}
+     */
+    public static Path globalExcludeFile(){
+        String configHome = System.getenv().getOrDefault("XDG_CONFIG_HOME", System.getProperty("user.home") + "/.config");
+        return Paths.get(configHome, "git/ignore");
+    }
+
     /**
      * Parses list of gitignore lines
      */
-    private static List<IgnoreRule>  gitignoreParse(List<String> lines){
+    private static IgnoreRuleSet gitignoreParse(List<String> lines){
         List<IgnoreRule> ret = new ArrayList<>();
 
         for(String line : lines){
@@ -72,7 +80,7 @@ public class IgnoreParser {
                 ret.add(parsed);
             }
         }
-        return ret;
+        return new IgnoreRuleSet(ret);
     }
 
     /**
@@ -97,132 +105,17 @@ public class IgnoreParser {
     }
 
     /**
-     * Check if a path should be ignored
+     * Check if a path should be ignored {a path inside an ignored directory is}
      */
     public static boolean checkIgnore(GitIgnore rules, String path){
-        //First check scoped rules (most specific first)
-        Boolean result = checkIgnoreScoped(rules.getScoped(), path);
-        if(result != null){
-            return result;
-        }
-
-        //Then check absolute rules
-        return checkIgnoreAbsolute(rules.getAbsolute(), path);
+        return checkIgnore(rules, path, false);
     }
 
     /**
-     * Check against scoped rules (directory-specific .gitignore files)
+     * Check if a path should be ignored; isDir says if the path is a directory, for the rules ending with '/'
+     * The rules are compiled once when they're read (see GitIgnore.IgnoreRule), nothing is built per path
      */
-    private static Boolean checkIgnoreScoped(Map<String, List<IgnoreRule>> rules, String path){
-        String parent = "";
-        int lastSlash = path.lastIndexOf('/');
-        if(lastSlash > 0){
-            parent = path.substring(0, lastSlash);
-        }
-
-        while(true){
-            if(rules.containsKey(parent)){
-                Boolean result = checkIgnore1(rules.get(parent), path);
-                if(result != null){
-                    return result;
-                }
-            }
-
-            if(parent.isEmpty()){
-                break;
-            }
-
-            lastSlash = parent.lastIndexOf('/');
-            parent = lastSlash >= 0 ? parent.substring(0, lastSlash) : "";
-        }
-        return null;
-    }
-
-    /**
-     * Check against absolute rules (global and repo-level)
-     */
-    private static boolean checkIgnoreAbsolute(List<List<IgnoreRule>> rules, String path){
-        for (List<IgnoreRule> ruleset : rules) {
-            Boolean result = checkIgnore1(ruleset, path);
-            if (result != null) {
-                return result;
-            }
-        }
-        return false; // Default: not ignored
-    }
-
-    /**
-     * Check a path against a single ruleset
-     * Returns null if no rule matches
-     */
-    private static Boolean checkIgnore1(List<IgnoreRule> rules, String path){
-        Boolean result = null;
-
-        for(IgnoreRule rule : rules){
-            if(fnmatch(path, rule.getPattern())){
-                result = !rule.isInclude();//if include = true, don't ignore
-            }
-        }
-        return result;
-    }
-
-    /**
-     * Simple glob pattern matching (similar to fnmatch)
-     * Supports: * (any string), ? (any char), [abc] (char class)
-     * make a regex from the pattern string and then check if the path matches with this regex
-     */
-    private static boolean fnmatch(String path, String pattern){
-        //Convert glob pattern to regex
-        StringBuilder regex = new StringBuilder("^");
-
-        for(int i=0;i<pattern.length();i++){
-            char c = pattern.charAt(i);
-
-            switch (c){
-                case '*' -> {
-                    if (i + 1 < pattern.length() && pattern.charAt(i + 1) == '*') {
-                        // ** matches any number of directories
-                        regex.append(".*");
-                        i++; // Skip next *
-                    } else {
-                        // * matches anything except /
-                        regex.append("[^/]*");
-                    }
-                }
-                case '?' -> regex.append("[^/]");
-                case '.' -> regex.append("\\.");
-                case '\\' -> {
-                    // Escape next character
-                    if (i + 1 < pattern.length()) {
-                        i++;
-                        regex.append(java.util.regex.Pattern.quote(String.valueOf(pattern.charAt(i))));
-                    }
-                }
-                case '[' -> {
-                    // Character class
-                    int end = pattern.indexOf(']', i);
-                    if (end > i) {
-                        regex.append(pattern, i, end + 1);
-                        i = end;
-                    } else {
-                        regex.append("\\[");
-                    }
-                }
-                default -> {
-                    // Escape regex special characters
-                    if ("^$+{}|()".indexOf(c) >= 0) {
-                        regex.append('\\');
-                    }
-                    regex.append(c);
-                }
-            }
-        }
-        regex.append("$");
-
-        try {
-            return java.util.regex.Pattern.matches(regex.toString(), path);
-        } catch (Exception e) {
-            return false;
-        }
+    public static boolean checkIgnore(GitIgnore rules, String path, boolean isDir){
+        return rules.isExcluded(path, isDir);
     }
 }
@@ -1,133 +1,125 @@
 package com.gopal.twit.util;
 
 import com.gopal.twit.core.GitRepository;
+import com.gopal.twit.core.index.FileStat;
+import com.gopal.twit.core.index.GitCacheTree;
 import com.gopal.twit.core.index.GitIndex;
 import com.gopal.twit.core.index.GitIndexEntry;
+import com.gopal.twit.core.index.IndexExtension;
+import com.gopal.twit.core.index.MappedIndex;
+import com.gopal.twit.core.index.UntrackedCache;
+import com.gopal.twit.core.objects.ObjectId;
+import com.gopal.twit.core.refs.PackedRefs;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
-import java.util.ArrayList;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class IndexIO {
 
     /**
-     * Reads the .git/index file (if it exists), parses its binary structure, and returns a GitIndex Object
-     * From article: parses/reads the index files into respective objects and prepare the GitIndex object
-     * After reading the 12-bytes header, we just parse entries in the order they appear.
+     * Reads the .git/index file (if it exists) and returns a GitIndex Object
+     * The file is memory-mapped (see MappedIndex) and entries are decoded lazily, when they are used
+     * After the 12-bytes header, entries follow in the order they appear.
      * An entry begins with a set of fixed-length data, followed by a variable-length name.
      */
     public static GitIndex indexRead(GitRepository repo) throws IOException{
         Path indexFile = repo.repoFile("index");
 
-        if(!Files.exists(indexFile)){
+        BasicFileAttributes attrs;
+        try{
+            attrs = Files.readAttributes(indexFile, BasicFileAttributes.class);
+        } catch (NoSuchFileException e){
+            mapped.remove(indexFile);
             return new GitIndex();
         }
 
-        try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))){
+        //a MappedIndex is never modified (GitIndex decodes the entries it changes), so the last one can be reused
+        //as long as the file is the same {every write renames a new file over it}
+        PackedRefs.Stamp stamp = PackedRefs.Stamp.of(attrs);
+        Snapshot last = mapped.get(indexFile);
+        if(last == null || !last.stamp().equals(stamp)){
+            last = new Snapshot(stamp, MappedIndex.open(indexFile));
+            mapped.put(indexFile, last);
+        }
+        return new GitIndex(last.index());
+    }
 
-            //Read header
-            byte[] sig = new byte[4];
-            in.readFully(sig);
-            if(!new String(sig, "ASCII").equals("DIRC")){
-                throw new IOException("Invalid index signature");
-            }
+    //the index last mapped for each repository {a daemon reads the same index for command after command}
+    private record Snapshot(PackedRefs.Stamp stamp, MappedIndex index){}
+    private static final Map<Path, Snapshot> mapped = new ConcurrentHashMap<>();
 
-            int version = in.readInt();
-            if(version != 2){
-                throw new IOException("Unsupported index version: " + version);
-            }
-
-            int count = in.readInt();
-
-            List<GitIndexEntry> entries = new ArrayList<>();
-
-            for(int i=0;i<count;i++){
-                // Read entry
-
-                //read timestamps and metadata
-                long ctimeS = Integer.toUnsignedLong(in.readInt());
-                long ctimeNs = Integer.toUnsignedLong(in.readInt());
-                long mtimeS = Integer.toUnsignedLong(in.readInt());
-                long mtimeNs = Integer.toUnsignedLong(in.readInt());
-
-                //read filesystem info
-                long dev = Integer.toUnsignedLong(in.readInt());
-                long ino = Integer.toUnsignedLong(in.readInt());
-
-                //skip unused field
-                int unused = in.readUnsignedShort();
-
-                //read mode (file type and permissions)
-                int mode = in.readUnsignedShort();//git stores mode in 16 bits
-                int modeType = mode >> 12;//top 4 bits -> file type (normal file, symlink, etc)
-                int modePerms = mode & 0b0000000111111111;//lower 9 bits
-
-                //read user/group ids and file size
-                long uid = Integer.toUnsignedLong(in.readInt());
-                long gid = Integer.toUnsignedLong(in.readInt());
-                long fsize = Integer.toUnsignedLong(in.readInt());
-
-                //read SHA
-                byte[] shaBytes = new byte[20];
-                in.readFully(shaBytes);
-                String sha = bytesToHex(shaBytes);
-
-                //read flags
-                int flags = in.readUnsignedShort();//flags is 16-bit field
-                boolean flagAssumeValid = (flags & 0b1000000000000000) != 0;//bit 15 -> assume valid flag (Git optimization)
-                int flagStage = (flags & 0b0011000000000000) >> 12;//bits 12-13 -> stage (used for merges)
-                int nameLength = flags & 0b0000111111111111;// bits 0-11 -> filename length (up to 4095 bytes)
-
-                //read name
-                String name;
-                if(nameLength < 0xFFF){//If the filename length fits in the 12 bits (< 4095), read it directly and stop at the null terminator (0x00)
-                    byte[] nameBytes = new byte[nameLength];
-                    in.readFully(nameBytes);
-                    name = new String(nameBytes, "UTF-8");
-                    in.readByte();//null terminator
-                }
-                else{//If longer, read bytes one by one until reaching 0x00
-                    ByteArrayOutputStream nameOut = new ByteArrayOutputStream();
-                    int b;
-                    while((b = in.readByte()) != 0){
-                        nameOut.write(b);
-                    }
-                    name = nameOut.toString("UTF-8");
-                }
-
-                //skip padding bytes {Git’s index entries are padded so that each entry starts at an address that is a multiple of 8 bytes}
-                //Git aligns each entry to an 8-byte boundary for performance
-                //We compute how many padding bytes to skip to reach that boundary
-                int entryLen = 62 + name.length() + 1;
-                int padLen = (8 - (entryLen % 8)) % 8;
-                in.skipBytes(padLen);
-
-                entries.add(new GitIndexEntry(
-                        new long[]{ctimeS, ctimeNs},
-                        new long[]{mtimeS, mtimeNs},
-                        dev, ino, modeType, modePerms, uid, gid, fsize, sha,
-                        flagAssumeValid, flagStage, name
-                ));
-            }
+    /**
+     * Locks .git/index (index.lock, see LockFile) for a read-modify-write:
+     * take the lock BEFORE reading the index, and write with indexWrite(repo, index, lock),
+     * so that two processes can't both read the same index and the second write lose the first one's changes
+     */
+    public static LockFile indexLock(GitRepository repo) throws IOException{
+        return LockFile.lock(repo.repoFile("index"));
+    }
 
-            return new GitIndex(version, entries);
+    /**
+     * Locks the index just for this write {see indexLock for a read-modify-write}
+     */
+    public static void indexWrite(GitRepository repo, GitIndex index) throws IOException{
+        try(LockFile lock = indexLock(repo)){
+            indexWrite(repo, index, lock);
         }
     }
 
-    public static void indexWrite(GitRepository repo, GitIndex index) throws IOException{
-        Path indexFile = repo.repoFile("index");
+    /**
+     * Writes the index into index.lock, then renames it over .git/index (which releases the lock)
+     * {the old file may still be mapped by a reader: rewriting it in place would change the bytes under its feet}
+     * The version written is index.version from the config if set, otherwise the one the index was read with.
+     * v2 can't carry extended flags, so an index that has some is written as v3 at least.
+     * v4 prefix-compresses the names, which usually makes the file a lot smaller {paths in the same directory
+     * share most of their bytes}.
+     */
+    public static void indexWrite(GitRepository repo, GitIndex index, LockFile lock) throws IOException{
+        List<GitIndexEntry> entries = index.getEntries();
+
+        int version = writeVersion(repo, index);
+        index.setVersion(version);
+
+        MessageDigest md;
+        try{
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e){
+            throw new IOException(e);
+        }
 
-        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(indexFile)))){
+        OutputStream file = lock.getOutputStream();
+        try(DigestOutputStream digest = new DigestOutputStream(new BufferedOutputStream(file, 1 << 16), md);
+            DataOutputStream out = new DataOutputStream(digest)){
 
             //write header
             out.write("DIRC".getBytes("ASCII"));
-            out.writeInt(index.getVersion());
-            out.writeInt(index.getEntries().size());
+            out.writeInt(version);
+            out.writeInt(entries.size());
+
+            //RACY CLEAN (see FileStat.isRacy): an entry whose file was modified in the tick this index is written in
+            //would look clean to every later status, once the index is older than the file. Its size is written as 0
+            //{git's smudging}, so the stat data can't match and the next status compares the content.
+            //The time of the write is the lock file's mtime, as the file system sees it, once the header is in.
+            out.flush();
+            FileTime writeTime = Files.getLastModifiedTime(lock.getLockPath());
+
+            byte[] prevName = new byte[0];
+            byte[] sha = new byte[ObjectId.RAW_LEN];
 
             //write entries
-            for(GitIndexEntry e : index.getEntries()){
+            for(GitIndexEntry e : entries){
                 out.writeInt((int) e.getCtime()[0]);
                 out.writeInt((int) e.getCtime()[1]);
                 out.writeInt((int) e.getMtime()[0]);
@@ -142,46 +134,128 @@ public class IndexIO {
                 //user/group ids and file size
                 out.writeInt((int) e.getUid());
                 out.writeInt((int) e.getGid());
-                out.writeInt((int) e.getFsize());
+                boolean racy = FileStat.isRacy(e.getMtime()[0], e.getMtime()[1], writeTime);
+                out.writeInt(racy ? 0 : (int) e.getFsize());
 
                 //sha
-                out.write(hexToBytes(e.getSha()));
+                e.getId().copyRawTo(sha, 0);
+                out.write(sha);
 
                 //flags
                 int flagAssumeValid = e.isFlagAssumeValid() ? 0x8000 : 0;
+                int flagExtended = e.getExtendedFlags() != 0 ? 0x4000 : 0;
                 byte[] nameBytes = e.getName().getBytes("UTF-8");
                 int nameLength = Math.min(nameBytes.length, 0xFFF);
-                int flags = flagAssumeValid | (e.getFlagStage() << 12) | nameLength;
+                int flags = flagAssumeValid | flagExtended | (e.getFlagStage() << 12) | nameLength;
                 out.writeShort(flags);
+                if(flagExtended != 0){
+                    out.writeShort(e.getExtendedFlags());
+                }
+
+                if(version == 4){
+                    //name: how many bytes to drop from the previous name, then what to append
+                    int common = 0;
+                    int max = Math.min(prevName.length, nameBytes.length);
+                    while(common < max && prevName[common] == nameBytes[common]){
+                        common++;
+                    }
+                    writeVarint(out, prevName.length - common);
+                    out.write(nameBytes, common, nameBytes.length - common);
+                    out.writeByte(0);
+                    prevName = nameBytes;
+                    continue;
+                }
 
                 //name
                 out.write(nameBytes);
                 out.writeByte(0);
 
                 //padding bytes
-                int entryLen = 62 + nameBytes.length + 1;
+                int entryLen = 62 + (flagExtended != 0 ? 2 : 0) + nameBytes.length + 1;
                 int padLen = (8 - (entryLen % 8)) % 8;
                 for (int i = 0; i < padLen; i++) {
                     out.writeByte(0);
                 }
             }
+
+            //our own cache tree replaces the one we read {which is in DERIVED_EXTENSIONS}
+            GitCacheTree cacheTree = index.getCacheTree();
+            if(cacheTree != null){
+                byte[] data = cacheTree.serialize();
+                out.write("TREE".getBytes(StandardCharsets.US_ASCII));
+                out.writeInt(data.length);
+                out.write(data);
+            }
+
+            //same for the untracked cache {status keeps it up to date, and add/rm invalidate what they change}
+            //git's own (UNTR) is dropped: it isn't kept up to date by add/rm, and doesn't mean what ours does
+            UntrackedCache untrackedCache = index.getUntrackedCache();
+            if(untrackedCache != null){
+                byte[] data = untrackedCache.serialize();
+                out.write(UntrackedCache.SIGNATURE.getBytes(StandardCharsets.US_ASCII));
+                out.writeInt(data.length);
+                out.write(data);
+            }
+
+            for(IndexExtension ext : index.getExtensions()){
+                if(DERIVED_EXTENSIONS.contains(ext.signature())){
+                    continue;
+                }
+                out.write(ext.signature().getBytes(StandardCharsets.US_ASCII));
+                out.writeInt(ext.data().length);
+                out.write(ext.data());
+            }
+
+            //trailer: SHA-1 of everything above
+            out.flush();
+            file.write(md.digest());
         }
+        lock.commit();
     }
 
-    private static String bytesToHex(byte[] shaBytes){
-        StringBuilder sb = new StringBuilder();
-        for(byte b : shaBytes){
-            sb.append(String.format("%02X", b));
+    /**
+     * Extensions that describe the entries themselves (cached trees, entry offsets, fsmonitor and untracked caches, git's and ours)
+     * They would be stale once the entries change, and a stale one is worse than none, so they are not written back
+     * as read {the cache tree and the untracked cache are written from GitIndex instead, which add/rm keep up to date}.
+     * Every other optional extension is preserved as is.
+     */
+    private static final Set<String> DERIVED_EXTENSIONS = Set.of("TREE", "EOIE", "IEOT", "FSMN", "UNTR", UntrackedCache.SIGNATURE);
+
+    private static int writeVersion(GitRepository repo, GitIndex index) throws IOException{
+        int version = index.getVersion();
+
+        String configured = repo.getConfig().getProperty("index.version");
+        if(configured != null){
+            try{
+                version = Integer.parseInt(configured.trim());
+            } catch (NumberFormatException e){
+                throw new IOException("Bad index.version in config: " + configured);
+            }
+        }
+        if(version < 2 || version > 4){
+            throw new IOException("Unsupported index version: " + version);
+        }
+
+        if(version == 2){
+            for(GitIndexEntry e : index.getEntries()){
+                if(e.getExtendedFlags() != 0){
+                    return 3;
+                }
+            }
         }
-        return sb.toString();
+        return version;
     }
 
-    private static byte[] hexToBytes(String hex) {
-        byte[] bytes = new byte[hex.length() / 2];
-        for (int i = 0; i < bytes.length; i++) {
-            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+    //git's offset varint (big endian, every continuation byte implicitly adds one)
+    private static void writeVarint(OutputStream out, int value) throws IOException{
+        byte[] buf = new byte[5];
+        int pos = buf.length - 1;
+        buf[pos] = (byte) (value & 0x7f);
+        while((value >>>= 7) != 0){
+            value--;
+            buf[--pos] = (byte) (0x80 | (value & 0x7f));
         }
-        return bytes;
+        out.write(buf, pos, buf.length - pos);
     }
 }
 
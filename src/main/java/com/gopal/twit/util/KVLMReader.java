@@ -0,0 +1,220 @@
+package com.gopal.twit.util;
+
+import com.gopal.twit.core.objects.ObjectId;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * KVLM READER
+ * A single pass over the header lines of a commit or tag, which only records where each line is:
+ * key start, the space after the key, and the end of the value (continuation lines included).
+ * Nothing is decoded by the scan; the typed accessors (tree, parents, committer time...) read straight
+ * from the raw bytes, and the message is left alone unless message() is called.
+ * Header lines:
+ *      key SP value LF
+ *      SP continuation LF      {a value spanning several lines, e.g. gpgsig}
+ * then a blank line, then the message.
+ */
+public class KVLMReader {
+    private final byte[] raw;
+    private int[] lines = new int[3 * 8];//keyStart, space, end (the LF ending the value) of each header line
+    private int count;
+    private int messageStart;
+
+    public KVLMReader(byte[] raw){
+        this.raw = raw;
+        scan();
+    }
+
+    private void scan(){
+        int pos = 0;
+        int len = raw.length;
+        while(pos < len){
+            if(raw[pos] == '\n'){
+                //blank line: the rest is the message
+                messageStart = pos + 1;
+                return;
+            }
+
+            int spc = -1;
+            int p = pos;
+            while(p < len && raw[p] != '\n'){
+                if(spc < 0 && raw[p] == ' '){
+                    spc = p;
+                }
+                p++;
+            }
+            if(spc < 0){
+                //not a header line, so the headers are over {no blank line before the message}
+                messageStart = pos;
+                return;
+            }
+            //continuation lines begin with a space
+            while(p + 1 < len && raw[p + 1] == ' '){
+                p += 2;
+                while(p < len && raw[p] != '\n'){
+                    p++;
+                }
+            }
+
+            if(count * 3 == lines.length){
+                lines = Arrays.copyOf(lines, lines.length * 2);
+            }
+            lines[count * 3] = pos;
+            lines[count * 3 + 1] = spc;
+            lines[count * 3 + 2] = Math.min(p, len);
+            count++;
+            pos = p + 1;
+        }
+        messageStart = len;
+    }
+
+    public byte[] getRaw() { return raw; }
+
+    /**
+     * Number of header lines {a key may have several, e.g. parent}
+     */
+    public int size() { return count; }
+
+    public String key(int i){
+        return new String(raw, lines[i * 3], lines[i * 3 + 1] - lines[i * 3], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Value of header line i, with the continuation lines unfolded (their leading space dropped)
+     */
+    public byte[] value(int i){
+        int start = lines[i * 3 + 1] + 1;
+        int end = lines[i * 3 + 2];
+        byte[] v = new byte[end - start];
+        int n = 0;
+        for(int p = start; p < end; p++){
+            byte b = raw[p];
+            v[n++] = b;
+            if(b == '\n'){
+                p++;//the space starting the continuation line
+            }
+        }
+        return n == v.length ? v : Arrays.copyOf(v, n);
+    }
+
+    /**
+     * The first header line with this key, -1 if none
+     */
+    public int find(String key){
+        return next(key, 0);
+    }
+
+    private int next(String key, int from){
+        for(int i = from; i < count; i++){
+            if(keyIs(i, key)){
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean keyIs(int i, String key){
+        int start = lines[i * 3];
+        int len = lines[i * 3 + 1] - start;
+        if(len != key.length()){
+            return false;
+        }
+        for(int k = 0; k < len; k++){
+            if(raw[start + k] != key.charAt(k)){//keys are ASCII
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * First value of key, or null
+     */
+    public byte[] get(String key){
+        int i = find(key);
+        return i < 0 ? null : value(i);
+    }
+
+    public String getString(String key){
+        int i = find(key);
+        return i < 0 ? null : new String(value(i), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A value that is a SHA, parsed in place
+     */
+    public ObjectId getId(String key){
+        int i = find(key);
+        return i < 0 ? null : ObjectId.fromHex(raw, lines[i * 3 + 1] + 1);
+    }
+
+    public ObjectId tree(){
+        return getId("tree");
+    }
+
+    public List<ObjectId> parents(){
+        List<ObjectId> ret = new ArrayList<>(2);
+        for(int i = next("parent", 0); i >= 0; i = next("parent", i + 1)){
+            ret.add(ObjectId.fromHex(raw, lines[i * 3 + 1] + 1));
+        }
+        return ret;
+    }
+
+    //the object a tag points at
+    public ObjectId object(){
+        return getId("object");
+    }
+
+    public String author(){
+        return getString("author");
+    }
+
+    public String committer(){
+        return getString("committer");
+    }
+
+    /**
+     * The committer time in seconds {"Name <email> 1700000000 +0100": the second to last field}
+     * 0 if it is missing or malformed, so such commits sort as the oldest
+     */
+    public long commitTime(){
+        int i = find("committer");
+        if(i < 0){
+            return 0;
+        }
+        int start = lines[i * 3 + 1] + 1;
+        int p = lines[i * 3 + 2];
+        //back over the timezone, then the time
+        while(p > start && raw[p - 1] == ' ') p--;
+        while(p > start && raw[p - 1] != ' ') p--;
+        while(p > start && raw[p - 1] == ' ') p--;
+        int end = p;
+        while(p > start && raw[p - 1] != ' ') p--;
+        if(p == end){
+            return 0;
+        }
+        long time = 0;
+        for(int k = p; k < end; k++){
+            int d = raw[k] - '0';
+            if(d < 0 || d > 9 || time > (Long.MAX_VALUE - d) / 10){
+                return 0;
+            }
+            time = time * 10 + d;
+        }
+        return time;
+    }
+
+    public int getMessageOffset() { return messageStart; }
+
+    public byte[] message(){
+        return Arrays.copyOfRange(raw, messageStart, raw.length);
+    }
+
+    public String messageString(){
+        return new String(raw, messageStart, raw.length - messageStart, StandardCharsets.UTF_8);
+    }
+}
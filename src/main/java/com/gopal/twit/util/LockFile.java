@@ -0,0 +1,147 @@
+package com.gopal.twit.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * LOCK FILES, the way git does it
+ * To change a file (.git/index, a ref, packed-refs...), <file>.lock is created first with create-exclusive
+ * semantics: whoever creates it owns the file until it is gone, any other writer fails to create it.
+ * The new content is written into the lock file, synced to disk, then the lock file is renamed over the file.
+ * So readers see either the old content or the complete new one, and a crash leaves at worst a stale .lock.
+ * Closing a lock that wasn't committed deletes it and leaves the file untouched (rollback).
+ * WAITING: a lock held by someone else is retried with a randomized exponential backoff
+ * (a few ms up to MAX_BACKOFF_MS between tries) until the timeout, then it fails like git:
+ * "Unable to create '.../index.lock': File exists."
+ */
+public class LockFile implements AutoCloseable {
+    public static final String SUFFIX = ".lock";
+    //how long to wait for a lock held by another process {git waits 100ms for refs and not at all for the index,
+    //we'd rather queue up parallel writers than fail them}
+    public static final long DEFAULT_TIMEOUT_MS = 10_000;
+    private static final long MAX_BACKOFF_MS = 100;
+
+    private final Path target;
+    private final Path lock;
+    private final FileChannel channel;
+    private boolean done;
+
+    private LockFile(Path target, Path lock, FileChannel channel){
+        this.target = target;
+        this.lock = lock;
+        this.channel = channel;
+    }
+
+    public static LockFile lock(Path target) throws IOException{
+        return lock(target, DEFAULT_TIMEOUT_MS);
+    }
+
+    /**
+     * Takes the lock on target, waiting up to timeoutMs if someone else holds it
+     */
+    public static LockFile lock(Path target, long timeoutMs) throws IOException{
+        long deadline = System.nanoTime() + timeoutMs * 1_000_000;
+        long backoff = 1;
+        while(true){
+            LockFile lock = tryLock(target);
+            if(lock != null){
+                return lock;
+            }
+            if(System.nanoTime() >= deadline){
+                throw new IOException("Unable to create '" + lockPath(target) + "': File exists.\n"
+                        + "Another twit process seems to be running in this repository; if not, remove the file.");
+            }
+            //randomized, so writers that collided once don't keep colliding
+            long sleep = ThreadLocalRandom.current().nextLong(backoff / 2, backoff + backoff / 2 + 1);
+            try{
+                Thread.sleep(Math.max(1, sleep));
+            } catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for " + lockPath(target), e);
+            }
+            backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
+        }
+    }
+
+    /**
+     * Takes the lock on target if it is free, null otherwise
+     */
+    public static LockFile tryLock(Path target) throws IOException{
+        Path lock = lockPath(target);
+        try{
+            FileChannel channel = FileChannel.open(lock, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            return new LockFile(target, lock, channel);
+        } catch (FileAlreadyExistsException e){
+            return null;
+        }
+    }
+
+    public static Path lockPath(Path target){
+        return target.resolveSibling(target.getFileName() + SUFFIX);
+    }
+
+    public Path getTarget() { return target; }
+    public Path getLockPath() { return lock; }
+
+    /**
+     * Stream into the lock file {closing it doesn't release the lock}
+     */
+    public OutputStream getOutputStream(){
+        OutputStream out = Channels.newOutputStream(channel);
+        return new OutputStream(){
+            @Override
+            public void write(int b) throws IOException{
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException{
+                out.write(b, off, len);
+            }
+        };
+    }
+
+    public void write(byte[] data) throws IOException{
+        getOutputStream().write(data);
+    }
+
+    /**
+     * fsyncs the new content and renames it over the target: the lock is released with the change visible
+     */
+    public void commit() throws IOException{
+        if(done){
+            throw new IOException("Lock " + lock + " already released");
+        }
+        try{
+            channel.force(true);
+            channel.close();
+            Files.move(lock, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            done = true;
+        } finally {
+            if(!done){
+                rollback();
+            }
+        }
+    }
+
+    /**
+     * Releases the lock without touching the target
+     */
+    public void rollback() throws IOException{
+        if(done){
+            return;
+        }
+        done = true;
+        channel.close();
+        Files.deleteIfExists(lock);
+    }
+
+    @Override
+    public void close() throws IOException{
+        rollback();
+    }
+}
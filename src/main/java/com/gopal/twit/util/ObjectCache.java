@@ -0,0 +1,150 @@
+package com.gopal.twit.util;
+
+import com.gopal.twit.core.GitRepository;
+import com.gopal.twit.core.objects.GitBlob;
+import com.gopal.twit.core.objects.GitObject;
+import com.gopal.twit.core.objects.ObjectId;
+
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-process cache of parsed objects, keyed by repository and ObjectId
+ * Objects are immutable by content (same SHA -> same bytes), but not every repository has every object:
+ * a daemon (see DaemonCommand) serves many repositories, and a hit for an object of another one would hide
+ * a missing object. So the entries are per git directory, and the budgets are shared. Blobs get their own budget, so that reading a few big files doesn't push out all the
+ * trees and commits that log/status/rev-parse keep coming back to.
+ * Each budget is in bytes and eviction is least-recently-used.
+ * IMPORTANT: objects handed out by the cache are shared, callers must treat them as read-only.
+ * Budgets can be changed with -Dtwit.cache.blobBytes=N and -Dtwit.cache.objectBytes=N (0 disables).
+ */
+public class ObjectCache {
+    private static final long DEFAULT_BLOB_BYTES = 16L << 20;
+    private static final long DEFAULT_OBJECT_BYTES = 32L << 20;
+    //rough per-entry overhead of the parsed object and the map entry
+    private static final long ENTRY_OVERHEAD = 96;
+
+    private static final ObjectCache shared = new ObjectCache(
+            Long.getLong("twit.cache.blobBytes", DEFAULT_BLOB_BYTES),
+            Long.getLong("twit.cache.objectBytes", DEFAULT_OBJECT_BYTES));
+
+    private final Segment blobs;
+    private final Segment objects;//trees, commits and tags
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public ObjectCache(long blobBytes, long objectBytes){
+        this.blobs = new Segment(blobBytes);
+        this.objects = new Segment(objectBytes);
+    }
+
+    public static ObjectCache shared(){
+        return shared;
+    }
+
+    //an object of a repository
+    private record Key(Path gitDir, ObjectId id){}
+
+    /**
+     * Returns the object cached for repo, or null
+     */
+    public GitObject get(GitRepository repo, ObjectId id){
+        Key key = new Key(repo.getGitDir(), id);
+        GitObject obj = objects.get(key);
+        if(obj == null){
+            obj = blobs.get(key);
+        }
+
+        if(obj != null){
+            hits.increment();
+        }
+        else{
+            misses.increment();
+        }
+        return obj;
+    }
+
+    /**
+     * Caches obj, read from repo, whose serialized size is size bytes
+     */
+    public void put(GitRepository repo, ObjectId id, GitObject obj, long size){
+        Segment segment = obj instanceof GitBlob ? blobs : objects;
+        segment.put(new Key(repo.getGitDir(), id), obj, size + ENTRY_OVERHEAD);
+    }
+
+    public void clear(){
+        blobs.clear();
+        objects.clear();
+    }
+
+    public Stats stats(){
+        return new Stats(hits.sum(), misses.sum(), blobs.evictions.sum() + objects.evictions.sum(),
+                blobs.weight(), objects.weight());
+    }
+
+    public record Stats(long hits, long misses, long evictions, long blobBytes, long objectBytes){
+        @Override
+        public String toString(){
+            return "object cache: " + hits + " hits, " + misses + " misses, " + evictions + " evictions, "
+                    + blobBytes + " bytes of blobs, " + objectBytes + " bytes of other objects";
+        }
+    }
+
+    /**
+     * A byte-weighted LRU map {a LinkedHashMap in access order, guarded by its own lock}
+     */
+    private static class Segment{
+        private final long budget;
+        //a single object may use at most this much, so that one huge object can't flush everything
+        private final long maxEntry;
+        private final LinkedHashMap<Key, Entry> map = new LinkedHashMap<>(256, 0.75f, true);
+        private final LongAdder evictions = new LongAdder();
+        private long weight;
+
+        private record Entry(GitObject obj, long weight){}
+
+        Segment(long budget){
+            this.budget = budget;
+            this.maxEntry = budget / 8;
+        }
+
+        synchronized GitObject get(Key key){
+            Entry e = map.get(key);
+            return e == null ? null : e.obj();
+        }
+
+        synchronized void put(Key key, GitObject obj, long w){
+            if(w > maxEntry){
+                return;
+            }
+
+            Entry old = map.put(key, new Entry(obj, w));
+            if(old != null){
+                weight -= old.weight();
+            }
+            weight += w;
+
+            //evict least recently used entries until we're back under budget
+            Iterator<Map.Entry<Key, Entry>> it = map.entrySet().iterator();
+            while(weight > budget && it.hasNext()){
+                Entry eldest = it.next().getValue();
+                it.remove();
+                weight -= eldest.weight();
+                evictions.increment();
+            }
+        }
+
+        synchronized long weight(){
+            return weight;
+        }
+
+        synchronized void clear(){
+            map.clear();
+            weight = 0;
+        }
+    }
+}
@@ -3,20 +3,78 @@ package com.gopal.twit.util;
 import com.gopal.twit.core.GitRepository;
 import com.gopal.twit.core.objects.*;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.security.MessageDigest;
+import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
 import java.util.zip.InflaterInputStream;
 
 public class ObjectIO {
+    //chunk size used when streaming object content
+    private static final int STREAM_BUFFER = 64 * 1024;
+
     /**
      * Reads the object sha from the git repository and
      * returns a GitObject whose exact type depends on the object
+     * NOTE: the returned object may be shared through the ObjectCache, don't modify it
      */
     public static GitObject objectRead(GitRepository repo, String sha) throws Exception{
+        return objectRead(repo, ObjectId.fromHex(sha));
+    }
+
+    public static GitObject objectRead(GitRepository repo, ObjectId id) throws Exception{
+        //parsed objects are cached, so walking the same trees/commits again is free
+        GitObject cached = ObjectCache.shared().get(repo, id);
+        if(cached != null){
+            return cached;
+        }
+
+        RawObject raw = objectReadRaw(repo, id);
+
+        if(raw == null){
+            return null;
+        }
+
+        //Create appropriate object
+        GitObject obj = switch (raw.type()) {
+            case "blob" -> new GitBlob();
+            case "commit" -> new GitCommit();
+            case "tree" -> new GitTree();
+            case "tag" -> new GitTag();
+            default -> throw new Exception("Unknown type " + raw.type() + "for object " + id);
+        };
+
+        obj.deserialize(raw.data());
+        ObjectCache.shared().put(repo, id, obj, raw.data().length);
+        return obj;
+    }
+
+    /**
+     * Reads the type and content of an object without parsing it
+     * Packs are consulted first (an O(log n) lookup in the memory-mapped .idx),
+     * and only then the loose object in .git/objects/xx/yyyy
+     */
+    public static RawObject objectReadRaw(GitRepository repo, String sha) throws IOException{
+        return objectReadRaw(repo, ObjectId.fromHex(sha));
+    }
+
+    public static RawObject objectReadRaw(GitRepository repo, ObjectId id) throws IOException{
+        RawObject packed = PackIO.read(repo, id);
+        if(packed != null){
+            return packed;
+        }
+        return looseRead(repo, id.name());
+    }
+
+    private static RawObject looseRead(GitRepository repo, String sha) throws IOException{
         Path path = repo.repoFile("objects", sha.substring(0,2), sha.substring(2));
 
         if(!Files.exists(path)){
@@ -24,54 +82,137 @@ public class ObjectIO {
         }
 
         //Decompress the binary file {Git stores data compressed in a binary format}
-        byte[] raw;
         try(InputStream in = new InflaterInputStream(Files.newInputStream(path))){
-            raw = in.readAllBytes();
+            String[] header = readHeader(in, sha);
+            int size = Integer.parseInt(header[1]);
+
+            //the content is inflated straight into its final array {no intermediate copy}
+            byte[] data = in.readNBytes(size);
+            if(data.length != size || in.read() != -1){
+                throw new IOException("Malformed object " + sha + ": bad length");
+            }
+            return new RawObject(header[0], data);
         }
+    }
 
-        /*
-        * HEADER FORMAT: <header>␣<size>\0<content>
-        * GIT OBJECT STORAGE FORMAT
-        * OBJECT TYPE (blob, commit, tag, tree)
-        * ASCII SPACE (0x20)
-        * SIZE OF OBJECT in bytes as an ASCII number
-        * null (0x00)
-        * CONTENTS OF THE OBJECT
-         * */
+    /**
+     * Opens an object for streaming, or returns null if it doesn't exist
+     * The content is inflated as it is read, so the heap used doesn't depend on the size of the object
+     * {only deltified packed objects have to be rebuilt in memory, since a delta needs its whole base}
+     */
+    public static ObjectStream objectStream(GitRepository repo, String sha) throws IOException{
+        return objectStream(repo, ObjectId.fromHex(sha));
+    }
 
-        //Parse the header { and is followed by an ASCII space}
-        int spaceIdx = findByte(raw, (byte) ' ', 0);
-        String fmt = new String(raw, 0, spaceIdx, "ASCII");
+    public static ObjectStream objectStream(GitRepository repo, ObjectId id) throws IOException{
+        return objectStream(repo, id, null);
+    }
 
-        int nullIdx = findByte(raw, (byte) 0,spaceIdx);
-        int size = Integer.parseInt(new String(raw,spaceIdx+1,nullIdx-spaceIdx-1,"ASCII"));
+    /**
+     * Same, inflating with the caller's inflater (null -> a new one) {see inflating}
+     */
+    public static ObjectStream objectStream(GitRepository repo, ObjectId id, Inflater inflater) throws IOException{
+        ObjectStream packed = PackIO.openStream(repo, id, inflater);
+        if(packed != null){
+            return packed;
+        }
 
-        if(size != raw.length-nullIdx-1){
-            throw new Exception("Malformed object " + sha + ": bad length");
+        String sha = id.name();
+        Path path = repo.repoFile("objects", sha.substring(0,2), sha.substring(2));
+        if(!Files.exists(path)){
+            return null;
         }
 
-        //extract data
-        byte[] data = new byte[size];
-        System.arraycopy(raw, nullIdx+1, data, 0 , size);
+        InputStream in = inflating(Files.newInputStream(path), inflater);
+        try{
+            String[] header = readHeader(in, sha);
+            return new ObjectStream(header[0], Long.parseLong(header[1]), in);
+        } catch (IOException | RuntimeException e){
+            in.close();
+            throw e;
+        }
+    }
 
-        //Create appropriate object
-        GitObject obj = switch (fmt) {
-            case "blob" -> new GitBlob();
-            case "commit" -> new GitCommit();
-            case "tree" -> new GitTree();
-            case "tag" -> new GitTag();
-            default -> throw new Exception("Unknown type " + fmt + "for object " + sha);
-        };
+    /**
+     * The type and size of an object, or null if it doesn't exist, without reading its content
+     * (see PackIO.info; a loose object only has its header inflated)
+     * inflater is reused by the caller from one object to the next {it is reset here, never ended}
+     */
+    public static ObjectInfo objectInfo(GitRepository repo, ObjectId id, Inflater inflater) throws IOException{
+        ObjectInfo packed = PackIO.info(repo, id, inflater);
+        if(packed != null){
+            return packed;
+        }
 
-        obj.deserialize(data);
-        return obj;
+        String sha = id.name();
+        Path path = repo.repoFile("objects", sha.substring(0,2), sha.substring(2));
+        if(!Files.exists(path)){
+            return null;
+        }
+        inflater.reset();
+        try(InputStream in = new InflaterInputStream(Files.newInputStream(path), inflater, 512)){
+            String[] header = readHeader(in, sha);
+            return new ObjectInfo(header[0], Long.parseLong(header[1]));
+        }
+    }
+
+    /**
+     * A zlib-inflating stream with a large buffer, which releases its Inflater when closed
+     */
+    public static InputStream inflating(InputStream raw){
+        return inflating(raw, null);
+    }
+
+    /**
+     * Same with the caller's inflater, which is reset first and left alone when the stream is closed
+     * {for callers reading object after object, like cat-file --batch}; null -> a new inflater, as above
+     */
+    public static InputStream inflating(InputStream raw, Inflater reused){
+        if(reused != null){
+            reused.reset();
+            return new InflaterInputStream(raw, reused, 8192);
+        }
+        Inflater inflater = new Inflater();
+        return new InflaterInputStream(raw, inflater, STREAM_BUFFER){
+            @Override
+            public void close() throws IOException{
+                try{
+                    super.close();
+                } finally {
+                    inflater.end();
+                }
+            }
+        };
     }
 
-    private static int findByte(byte[] array, byte target, int start){
-        for(int i=start; i<array.length; i++){
-            if(array[i] == target) return i;
+    /**
+     * Reads the "<type> <size>\0" header of a loose object
+     * HEADER FORMAT: <header>␣<size>\0<content>
+     * GIT OBJECT STORAGE FORMAT
+     * OBJECT TYPE (blob, commit, tag, tree)
+     * ASCII SPACE (0x20)
+     * SIZE OF OBJECT in bytes as an ASCII number
+     * null (0x00)
+     * CONTENTS OF THE OBJECT
+     */
+    private static String[] readHeader(InputStream in, String sha) throws IOException{
+        StringBuilder fmt = new StringBuilder();
+        StringBuilder size = new StringBuilder();
+        StringBuilder current = fmt;
+
+        int c;
+        while((c = in.read()) != 0){
+            if(c == -1 || fmt.length() + size.length() > 32){
+                throw new IOException("Malformed object " + sha + ": bad header");
+            }
+            if(c == ' ' && current == fmt){
+                current = size;//the type is followed by an ASCII space
+            }
+            else{
+                current.append((char) c);
+            }
         }
-        return -1;
+        return new String[]{fmt.toString(), size.toString()};
     }
 
     /**
@@ -86,23 +227,24 @@ public class ObjectIO {
 
         //Add header
         String header = obj.getFormat() + " " + data.length + "\0";
-        byte[] headerBytes = header.getBytes("ASCII");
-
-        byte[] full = new byte[headerBytes.length + data.length];
-        System.arraycopy(headerBytes,0,full,0,headerBytes.length);
-        System.arraycopy(data,0,full,headerBytes.length,data.length);
+        byte[] headerBytes = header.getBytes(StandardCharsets.US_ASCII);
 
+        //header and data are hashed and compressed one after the other, no need to concatenate them
         MessageDigest md = MessageDigest.getInstance("SHA-1");
-        byte[] hashBytes = md.digest(full);//hashBytes -> a binary array {the SHA-1 digest (20 bytes long)}
-        String sha = bytesToHex(hashBytes);
+        md.update(headerBytes);
+        md.update(data);
+        byte[] hashBytes = md.digest();//hashBytes -> a binary array {the SHA-1 digest (20 bytes long)}
+        String sha = ObjectId.toHex(hashBytes, 0);
 
         if(repo != null){
             //write to repository
             Path path = repo.repoFile(true,"objects", sha.substring(0,2),sha.substring(2));
 
-            if(!Files.exists(path)){
+            //nothing to do if the object is already there, loose or packed
+            if(!Files.exists(path) && !PackIO.contains(repo, sha)){
                 try(OutputStream out = new DeflaterOutputStream(Files.newOutputStream(path))){//compress using zlib (DeflaterOutputStream)
-                    out.write(full);
+                    out.write(headerBytes);
+                    out.write(data);
                 }
             }
         }
@@ -110,13 +252,94 @@ public class ObjectIO {
         return sha;
     }
 
-    //convert the sha bytes array to hexadecimal
-    private static String bytesToHex(byte[] bytes){
-        StringBuilder sb = new StringBuilder();
-        for(byte b : bytes){
-            sb.append(String.format("%02x", b));
+    /**
+     * Hash a file into a Git Object, streaming it
+     * For blobs the size comes from the file system, so the header can be hashed first and then
+     * the content is read once, in chunks, feeding both the SHA-1 and (if repo != null) the zlib
+     * stream of a temporary file. Once the SHA is known the temporary file is renamed into place.
+     * Peak memory is one buffer, whatever the size of the file.
+     * Other types are small and have to be parsed anyway, they go through objectHash.
+     */
+    public static String objectHashFile(Path file, String fmt, GitRepository repo) throws Exception{
+        if(!fmt.equals("blob")){
+            try(InputStream in = Files.newInputStream(file)){
+                return objectHash(in, fmt, repo);
+            }
+        }
+        return blobHashFile(file, Files.size(file), repo);
+    }
+
+    /**
+     * Same as objectHashFile for a blob whose size the caller already knows (from a stat it did anyway)
+     */
+    public static String blobHashFile(Path file, long size, GitRepository repo) throws Exception{
+        byte[] headerBytes = ("blob " + size + "\0").getBytes(StandardCharsets.US_ASCII);
+
+        MessageDigest md = MessageDigest.getInstance("SHA-1");
+        md.update(headerBytes);
+
+        Path tmp = null;
+        OutputStream out = null;
+        Deflater deflater = null;
+        try{
+            if(repo != null){
+                Path objects = repo.repoDir(true, "objects");
+                tmp = Files.createTempFile(objects, "tmp_obj_", null);
+                deflater = new Deflater();
+                out = new DeflaterOutputStream(Files.newOutputStream(tmp), deflater, STREAM_BUFFER);
+                out.write(headerBytes);
+            }
+
+            long total = 0;
+            byte[] buf = new byte[STREAM_BUFFER];
+            try(InputStream in = Files.newInputStream(file)){
+                int n;
+                while((n = in.read(buf)) > 0){
+                    md.update(buf, 0, n);
+                    if(out != null){
+                        out.write(buf, 0, n);
+                    }
+                    total += n;
+                }
+            }
+            if(total != size){
+                throw new IOException("File changed while hashing: " + file);
+            }
+
+            String sha = ObjectId.toHex(md.digest(), 0);
+
+            if(out != null){
+                out.close();
+                out = null;
+
+                Path path = repo.repoFile(true, "objects", sha.substring(0,2), sha.substring(2));
+                if(!Files.exists(path) && !PackIO.contains(repo, sha)){
+                    //createTempFile made it 0600: other users of the repository must be able to read it
+                    makeReadOnly(tmp);
+                    Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE);
+                }
+            }
+            return sha;
+        } finally {
+            if(out != null){
+                out.close();
+            }
+            if(deflater != null){
+                deflater.end();
+            }
+            if(tmp != null){
+                Files.deleteIfExists(tmp);
+            }
+        }
+    }
+
+    //like git, loose objects are 0444 {never rewritten: a new object is a new file}
+    private static void makeReadOnly(Path path) throws IOException{
+        try{
+            Files.setPosixFilePermissions(path, PosixFilePermissions.fromString("r--r--r--"));
+        } catch (UnsupportedOperationException e){
+            //not a POSIX file system, keep the defaults
         }
-        return sb.toString();
     }
 
     /**
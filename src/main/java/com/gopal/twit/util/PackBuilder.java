@@ -0,0 +1,309 @@
+package com.gopal.twit.util;
+
+import com.gopal.twit.core.GitRepository;
+import com.gopal.twit.core.objects.*;
+import com.gopal.twit.core.pack.GitPack;
+import com.gopal.twit.core.pack.PackDelta;
+import com.gopal.twit.core.pack.PackWriter;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Builds packfiles out of the objects reachable from the refs (used by repack and gc)
+ * STEPS:
+ * 1) Walk every object reachable from the refs and HEAD, remembering the path each blob/tree was found at
+ * 2) Sort the objects by type, then by a hash of their path name, then by size (largest first),
+ *    so that objects likely to be similar (successive versions of the same file) end up next to each other
+ * 3) Slide a window over that list and try to express each object as a delta against the previous ones
+ *    in the window, keeping the smallest delta {this is git's heuristic as well}
+ * 4) Write the pack and its index, and optionally drop what the new pack made redundant
+ * 5) A full repack also writes a reachability bitmap for the new pack {see BitmapWriter}
+ */
+public class PackBuilder {
+    public static final int DEFAULT_WINDOW = 10;
+    public static final int DEFAULT_DEPTH = 50;
+
+    //Objects smaller than this are not worth deltifying
+    private static final int MIN_DELTA_SIZE = 50;
+
+    /**
+     * Result of a repack, for reporting
+     */
+    public record Result(String packName, int objects, int deltas, int prunedLoose, int removedPacks, int bitmaps){}
+
+    /**
+     * @param all pack every reachable object, not only the loose ones
+     * @param delete remove loose objects that are now packed, and (with all) the packs made redundant
+     */
+    public static Result repack(GitRepository repo, boolean all, boolean delete, int window, int depth) throws Exception{
+        List<GitPack> oldPacks = PackIO.packs(repo);
+        List<ObjectToPack> objects = reachableObjects(repo);
+
+        if(!all){
+            //incremental: only what isn't packed yet
+            List<ObjectToPack> loose = new ArrayList<>();
+            for(ObjectToPack o : objects){
+                if(!PackIO.contains(repo, o.sha)){
+                    loose.add(o);
+                }
+            }
+            objects = loose;
+        }
+
+        if(objects.isEmpty()){
+            return new Result(null, 0, 0, 0, 0, 0);
+        }
+
+        int deltas = findDeltas(repo, objects, window, depth);
+
+        List<PackWriter.Entry> entries = new ArrayList<>(objects.size());
+        for(ObjectToPack o : objects){
+            entries.add(o.entry);
+        }
+
+        Path packDir = repo.repoPath("objects", "pack");
+        String packName = PackWriter.write(packDir, entries, e -> {
+            ObjectId id = ObjectId.fromRaw(e.getSha());
+            RawObject raw = ObjectIO.objectReadRaw(repo, id);
+            if(raw == null){
+                throw new IOException("Object disappeared while packing: " + id);
+            }
+            return raw.data();
+        });
+        PackIO.reload(repo);
+
+        //every reachable object is in the new pack, so it can get a bitmap
+        int bitmaps = 0;
+        if(all){
+            for(GitPack pack : PackIO.packs(repo)){
+                if(pack.getPath().getFileName().toString().equals("pack-" + packName + ".pack")){
+                    bitmaps = BitmapWriter.write(repo, pack, objects);
+                }
+            }
+        }
+
+        int pruned = 0;
+        int removedPacks = 0;
+        if(delete){
+            pruned = prunePacked(repo, objects);
+            if(all){
+                String keep = "pack-" + packName + ".pack";
+                for(GitPack old : oldPacks){
+                    if(!old.getPath().getFileName().toString().equals(keep)){
+                        removePack(old.getPath());
+                        removedPacks++;
+                    }
+                }
+                PackIO.reload(repo);
+            }
+        }
+        return new Result(packName, objects.size(), deltas, pruned, removedPacks, bitmaps);
+    }
+
+    /**
+     * Walks everything reachable from the refs (and HEAD), iteratively
+     * Objects are returned in the order they were discovered
+     */
+    public static List<ObjectToPack> reachableObjects(GitRepository repo) throws Exception{
+        Map<String, ObjectToPack> seen = new LinkedHashMap<>();
+        Deque<String[]> stack = new ArrayDeque<>();//{sha, path name hint}
+
+        for(String tip : RefResolver.refTips(repo)){
+            stack.push(new String[]{tip, ""});
+        }
+
+        while(!stack.isEmpty()){
+            String[] item = stack.pop();
+            String sha = item[0];
+            if(seen.containsKey(sha)){
+                continue;
+            }
+
+            RawObject raw = ObjectIO.objectReadRaw(repo, sha);
+            if(raw == null){
+                throw new Exception("Missing object " + sha + " (reachable from the refs)");
+            }
+
+            ObjectToPack o = new ObjectToPack(sha, typeCode(raw.type()), raw.data().length, nameHash(item[1]));
+            seen.put(sha, o);
+
+            switch (raw.type()){
+                case "commit" -> {
+                    KVLMReader commit = new KVLMReader(raw.data());
+                    for(ObjectId parent : commit.parents()){
+                        stack.push(new String[]{parent.name(), ""});
+                    }
+                    stack.push(new String[]{commit.tree().name(), ""});
+                }
+                case "tag" -> {
+                    stack.push(new String[]{CommitWalker.tagTarget(raw.data(), sha), ""});
+                }
+                case "tree" -> {
+                    TreeCursor c = new TreeCursor(raw.data());
+                    while(c.next()){
+                        if(c.isGitlink()){
+                            continue;//gitlink (submodule commit), not in this repository
+                        }
+                        stack.push(new String[]{c.getSha(), c.getName()});
+                    }
+                }
+                default -> {}
+            }
+        }
+        return new ArrayList<>(seen.values());
+    }
+
+    /**
+     * Sorts the objects for delta search and picks a base for each one inside the window
+     * The list is reordered in place into the order the pack will be written in
+     * (bases always come before their deltas). Returns the number of deltas found.
+     */
+    private static int findDeltas(GitRepository repo, List<ObjectToPack> objects, int window, int depth) throws IOException{
+        objects.sort(Comparator.<ObjectToPack>comparingInt(o -> o.type)
+                .thenComparingInt(o -> o.nameHash)
+                .thenComparing(Comparator.<ObjectToPack>comparingLong(o -> o.size).reversed()));
+
+        if(window <= 0){
+            return 0;
+        }
+
+        //data of the last `window` objects, so only the window is ever in memory
+        Deque<ObjectToPack> win = new ArrayDeque<>();
+        Map<ObjectToPack, byte[]> winData = new HashMap<>();
+        int deltas = 0;
+
+        for(ObjectToPack o : objects){
+            if(o.size < MIN_DELTA_SIZE){
+                continue;
+            }
+
+            RawObject raw = ObjectIO.objectReadRaw(repo, o.sha);
+            byte[] data = raw.data();
+
+            byte[] best = null;
+            ObjectToPack bestBase = null;
+            //a delta is only worth it if it's clearly smaller than the object
+            int maxSize = (int) Math.min(Integer.MAX_VALUE, o.size / 2 - 20);
+
+            Iterator<ObjectToPack> it = win.descendingIterator();//closest (most similar) candidates first
+            while(it.hasNext()){
+                ObjectToPack base = it.next();
+                if(base.type != o.type || base.depth >= depth){
+                    continue;
+                }
+                //sizes too far apart can't give a small delta
+                if(base.size < o.size / 32){
+                    continue;
+                }
+
+                byte[] delta = PackDelta.create(winData.get(base), data, best == null ? maxSize : best.length - 1);
+                if(delta != null){
+                    best = delta;
+                    bestBase = base;
+                }
+            }
+
+            if(bestBase != null){
+                o.entry.setDelta(bestBase.entry, best);
+                o.depth = bestBase.depth + 1;
+                deltas++;
+            }
+
+            win.addLast(o);
+            winData.put(o, data);
+            if(win.size() > window){
+                winData.remove(win.removeFirst());
+            }
+        }
+        return deltas;
+    }
+
+    /**
+     * Deletes the loose copies of the objects that are now in a pack
+     */
+    private static int prunePacked(GitRepository repo, List<ObjectToPack> packed) throws IOException{
+        int pruned = 0;
+        Set<Path> dirs = new HashSet<>();
+
+        for(ObjectToPack o : packed){
+            Path loose = repo.repoPath("objects", o.sha.substring(0, 2), o.sha.substring(2));
+            if(Files.deleteIfExists(loose)){
+                pruned++;
+                dirs.add(loose.getParent());
+            }
+        }
+
+        //remove the fan-out directories we emptied
+        for(Path dir : dirs){
+            try(Stream<Path> files = Files.list(dir)){
+                if(files.findAny().isEmpty()){
+                    Files.deleteIfExists(dir);
+                }
+            }
+        }
+        return pruned;
+    }
+
+    private static void removePack(Path pack) throws IOException{
+        String name = pack.getFileName().toString();
+        String base = name.substring(0, name.length() - ".pack".length());
+        //index first, so that readers stop seeing the pack before its data goes away
+        Files.deleteIfExists(pack.resolveSibling(base + ".idx"));
+        Files.deleteIfExists(pack.resolveSibling(base + ".bitmap"));
+        Files.deleteIfExists(pack);
+    }
+
+    /**
+     * Git's pack_name_hash: a hash of the last characters of the path, so that files
+     * with the same name (and similar extensions) sort next to each other
+     */
+    private static int nameHash(String name){
+        int hash = 0;
+        for(int i = 0; i < name.length(); i++){
+            char c = name.charAt(i);
+            if(Character.isWhitespace(c)){
+                continue;
+            }
+            hash = (hash >>> 2) + (c << 24);
+        }
+        return hash;
+    }
+
+    private static int typeCode(String type){
+        return switch (type){
+            case "commit" -> GitPack.OBJ_COMMIT;
+            case "tree" -> GitPack.OBJ_TREE;
+            case "blob" -> GitPack.OBJ_BLOB;
+            case "tag" -> GitPack.OBJ_TAG;
+            default -> throw new IllegalArgumentException("Unknown type " + type);
+        };
+    }
+
+    /**
+     * An object selected for packing
+     */
+    public static class ObjectToPack{
+        private final String sha;
+        private final int type;
+        private final long size;
+        private final int nameHash;
+        private final PackWriter.Entry entry;
+        private int depth;//length of the delta chain below this object
+
+        ObjectToPack(String sha, int type, long size, int nameHash){
+            this.sha = sha;
+            this.type = type;
+            this.size = size;
+            this.nameHash = nameHash;
+            this.entry = new PackWriter.Entry(ObjectId.fromHex(sha).toRaw(), type);
+        }
+
+        public String getSha() { return sha; }
+        public int getType() { return type; }
+        public long getSize() { return size; }
+    }
+}
@@ -0,0 +1,285 @@
+package com.gopal.twit.util;
+
+import com.gopal.twit.core.GitRepository;
+import com.gopal.twit.core.objects.ObjectId;
+import com.gopal.twit.core.objects.ObjectInfo;
+import com.gopal.twit.core.objects.ObjectStream;
+import com.gopal.twit.core.objects.RawObject;
+import com.gopal.twit.core.pack.GitPack;
+import com.gopal.twit.core.pack.GitPackIndex;
+import com.gopal.twit.core.pack.PackDelta;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+import java.util.zip.Inflater;
+
+/**
+ * PACKFILES
+ * Real git repositories keep most of their objects in .git/objects/pack/pack-*.pack files,
+ * each paired with a pack-*.idx index that maps a SHA to the offset of the object in the pack.
+ * Opened packs are kept around (memory-mapped) per repository, and the pack directory is only
+ * rescanned when an object can't be found and the directory changed since the last scan.
+ */
+public class PackIO {
+    //Longest delta chain we are willing to follow {git itself defaults to a depth of 50 when packing}
+    private static final int MAX_DELTA_CHAIN = 10_000;
+
+    private static final Map<Path, PackSet> packSets = new ConcurrentHashMap<>();
+
+    private record PackSet(FileTime dirMtime, List<GitPack> packs){}
+
+    /**
+     * Returns all the packs of the repository (opening them on first use)
+     */
+    public static List<GitPack> packs(GitRepository repo) throws IOException{
+        Path packDir = repo.repoPath("objects", "pack");
+        PackSet set = packSets.get(packDir);
+        if(set == null){
+            set = scan(packDir);
+            packSets.put(packDir, set);
+        }
+        return set.packs();
+    }
+
+    /**
+     * Rescans the pack directory if it changed since we last looked at it
+     * Returns true if the set of packs was reloaded
+     */
+    public static boolean reload(GitRepository repo) throws IOException{
+        Path packDir = repo.repoPath("objects", "pack");
+        PackSet old = packSets.get(packDir);
+        FileTime mtime = Files.isDirectory(packDir) ? Files.getLastModifiedTime(packDir) : null;
+
+        if(old != null && Objects.equals(old.dirMtime(), mtime)){
+            return false;
+        }
+        packSets.put(packDir, scan(packDir));
+        return true;
+    }
+
+    private static PackSet scan(Path packDir) throws IOException{
+        if(!Files.isDirectory(packDir)){
+            return new PackSet(null, List.of());
+        }
+
+        FileTime mtime = Files.getLastModifiedTime(packDir);
+        List<GitPack> packs = new ArrayList<>();
+
+        try(Stream<Path> files = Files.list(packDir)){
+            for(Path idx : files.filter(f -> f.getFileName().toString().endsWith(".idx")).sorted().toList()){
+                String name = idx.getFileName().toString();
+                Path pack = idx.resolveSibling(name.substring(0, name.length() - 4) + ".pack");
+                if(Files.exists(pack)){
+                    packs.add(new GitPack(pack, new GitPackIndex(idx)));
+                }
+            }
+        }
+        return new PackSet(mtime, List.copyOf(packs));
+    }
+
+    /**
+     * Reads an object from the packs, or returns null if no pack contains it
+     */
+    public static RawObject read(GitRepository repo, String sha) throws IOException{
+        return read(repo, ObjectId.fromHex(sha));
+    }
+
+    public static RawObject read(GitRepository repo, ObjectId id) throws IOException{
+        byte[] bin = id.toRaw();
+
+        RawObject obj = readFrom(repo, packs(repo), bin);
+        if(obj == null && reload(repo)){
+            obj = readFrom(repo, packs(repo), bin);
+        }
+        return obj;
+    }
+
+    private static RawObject readFrom(GitRepository repo, List<GitPack> packs, byte[] sha) throws IOException{
+        for(GitPack pack : packs){
+            long offset = pack.getIndex().findOffset(sha);
+            if(offset >= 0){
+                return readAt(repo, pack, offset);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Opens a packed object for streaming, or returns null if no pack contains it
+     * Whole objects are inflated straight out of the mapped pack as they are read;
+     * deltified objects can't be streamed (a delta needs its whole base) so they are rebuilt in memory
+     */
+    public static ObjectStream openStream(GitRepository repo, ObjectId id) throws IOException{
+        return openStream(repo, id, null);
+    }
+
+    /**
+     * Same, inflating with the caller's inflater (null -> a new one) {see ObjectIO.inflating}
+     */
+    public static ObjectStream openStream(GitRepository repo, ObjectId id, Inflater inflater) throws IOException{
+        byte[] bin = id.toRaw();
+
+        for(int attempt = 0; attempt < 2; attempt++){
+            for(GitPack pack : packs(repo)){
+                long offset = pack.getIndex().findOffset(bin);
+                if(offset < 0){
+                    continue;
+                }
+
+                GitPack.EntryHeader h = pack.readHeader(offset);
+                if(h.isDelta()){
+                    RawObject obj = readAt(repo, pack, offset);
+                    return new ObjectStream(obj.type(), obj.data().length, new ByteArrayInputStream(obj.data()));
+                }
+                InputStream in = ObjectIO.inflating(pack.rawStream(h.dataOffset()), inflater);
+                return new ObjectStream(GitPack.typeName(h.type()), h.size(), in);
+            }
+            if(!reload(repo)){
+                break;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The type and size of a packed object, or null if no pack contains it
+     * Nothing is inflated for a whole object (its entry header has both); for a deltified one the type is the type
+     * at the end of its chain (only entry headers are read on the way), and the size is at the start of the delta,
+     * so only its first bytes are inflated
+     */
+    public static ObjectInfo info(GitRepository repo, ObjectId id, Inflater inflater) throws IOException{
+        byte[] bin = id.toRaw();
+
+        for(int attempt = 0; attempt < 2; attempt++){
+            for(GitPack pack : packs(repo)){
+                long offset = pack.getIndex().findOffset(bin);
+                if(offset >= 0){
+                    return infoAt(repo, pack, offset, inflater);
+                }
+            }
+            if(!reload(repo)){
+                break;
+            }
+        }
+        return null;
+    }
+
+    private static ObjectInfo infoAt(GitRepository repo, GitPack pack, long offset, Inflater inflater) throws IOException{
+        GitPack.EntryHeader h = pack.readHeader(offset);
+        if(!h.isDelta()){
+            return new ObjectInfo(GitPack.typeName(h.type()), h.size());
+        }
+
+        byte[] head = new byte[20];
+        long size = PackDelta.resultSize(head, pack.inflateHead(h.dataOffset(), head, inflater));
+
+        for(int depth = 0; depth <= MAX_DELTA_CHAIN; depth++){
+            if(h.type() == GitPack.OBJ_OFS_DELTA){
+                h = pack.readHeader(h.baseOffset());
+            }
+            else{
+                long baseOffset = pack.getIndex().findOffset(h.baseSha());
+                if(baseOffset < 0){
+                    ObjectId baseId = ObjectId.fromRaw(h.baseSha());
+                    ObjectInfo base = ObjectIO.objectInfo(repo, baseId, inflater);
+                    if(base == null){
+                        throw new IOException("Missing delta base " + baseId.name() + " for " + pack.getPath());
+                    }
+                    return new ObjectInfo(base.type(), size);
+                }
+                h = pack.readHeader(baseOffset);
+            }
+            if(!h.isDelta()){
+                return new ObjectInfo(GitPack.typeName(h.type()), size);
+            }
+        }
+        throw new IOException("Delta chain too long at offset " + offset + " in " + pack.getPath());
+    }
+
+    /**
+     * Checks whether any pack contains the object (without reading it)
+     */
+    public static boolean contains(GitRepository repo, String sha) throws IOException{
+        return contains(repo, ObjectId.fromHex(sha));
+    }
+
+    public static boolean contains(GitRepository repo, ObjectId id) throws IOException{
+        byte[] bin = id.toRaw();
+        for(GitPack pack : packs(repo)){
+            if(pack.getIndex().contains(bin)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * All the packed objects whose SHA starts with the given (lowercase hex) prefix
+     */
+    public static List<String> findByPrefix(GitRepository repo, String prefix) throws IOException{
+        List<String> ret = new ArrayList<>();
+        for(GitPack pack : packs(repo)){
+            ret.addAll(pack.getIndex().findByPrefix(prefix));
+        }
+        return ret;
+    }
+
+    /**
+     * Reads the object stored at offset in pack, resolving its delta chain
+     * The chain is followed iteratively: we collect the deltas down to the base object,
+     * then apply them back up in reverse order
+     */
+    public static RawObject readAt(GitRepository repo, GitPack pack, long offset) throws IOException{
+        Deque<byte[]> deltas = new ArrayDeque<>();
+        String type;
+        byte[] data;
+
+        while(true){
+            GitPack.EntryHeader h = pack.readHeader(offset);
+
+            if(!h.isDelta()){
+                type = GitPack.typeName(h.type());
+                data = pack.inflate(h.dataOffset(), h.size());
+                break;
+            }
+
+            deltas.push(pack.inflate(h.dataOffset(), h.size()));
+            if(deltas.size() > MAX_DELTA_CHAIN){
+                throw new IOException("Delta chain too long at offset " + offset + " in " + pack.getPath());
+            }
+
+            if(h.type() == GitPack.OBJ_OFS_DELTA){
+                offset = h.baseOffset();
+                continue;
+            }
+
+            //REF_DELTA: the base is usually in the same pack, but it may live anywhere in the repository
+            long baseOffset = pack.getIndex().findOffset(h.baseSha());
+            if(baseOffset >= 0){
+                offset = baseOffset;
+                continue;
+            }
+
+            ObjectId baseId = ObjectId.fromRaw(h.baseSha());
+            RawObject base = ObjectIO.objectReadRaw(repo, baseId);
+            if(base == null){
+                throw new IOException("Missing delta base " + baseId.name() + " for " + pack.getPath());
+            }
+            type = base.type();
+            data = base.data();
+            break;
+        }
+
+        while(!deltas.isEmpty()){
+            data = PackDelta.apply(data, deltas.pop());
+        }
+        return new RawObject(type, data);
+    }
+}
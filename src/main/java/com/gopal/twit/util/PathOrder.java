@@ -0,0 +1,33 @@
+package com.gopal.twit.util;
+
+import java.util.Comparator;
+
+/**
+ * The order git sorts paths in (index entries, the worktree as status walks it): by their UTF-8 bytes
+ * String.compareTo compares UTF-16 chars, which is the same order except for characters outside the BMP:
+ * their surrogates (D800-DFFF) sort below E000-FFFF as chars, but above them as UTF-8.
+ * UTF-8 byte order is code point order, so there's no need to encode anything: the first differing chars are
+ * compared with the surrogates moved above the rest {the "fixup" ICU uses}
+ */
+public class PathOrder {
+    public static final Comparator<String> COMPARATOR = PathOrder::compare;
+
+    public static int compare(String a, String b){
+        int n = Math.min(a.length(), b.length());
+        for(int i = 0; i < n; i++){
+            char ca = a.charAt(i);
+            char cb = b.charAt(i);
+            if(ca != cb){
+                return fixup(ca) - fixup(cb);
+            }
+        }
+        return a.length() - b.length();
+    }
+
+    private static int fixup(char c){
+        if(c < 0xD800){
+            return c;
+        }
+        return c >= 0xE000 ? c - 0x800 : c + 0x2000;
+    }
+}
@@ -0,0 +1,176 @@
+package com.gopal.twit.util;
+
+import com.gopal.twit.core.GitRepository;
+import com.gopal.twit.core.objects.ObjectId;
+import com.gopal.twit.core.objects.RawObject;
+import com.gopal.twit.core.pack.GitPack;
+import com.gopal.twit.core.pack.PackBitmap;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * REACHABILITY
+ * The set of objects reachable from some tips (commits, tags, trees or blobs).
+ * With a bitmap (see PackBitmap), a commit that has one contributes everything below it with a single OR,
+ * so only the commits newer than the bitmapped pack are actually walked (and their trees read).
+ * Without a bitmap, this is the plain walk over every commit and tree.
+ * Objects of the bitmapped pack are kept as bits, anything else (loose objects, other packs) by SHA.
+ */
+public class ReachableObjects {
+
+    @FunctionalInterface
+    public interface Visitor {
+        void visit(String sha) throws Exception;
+    }
+
+    private final PackBitmap bitmap;
+    private final BitSet bits = new BitSet();
+    private final Set<String> others = new LinkedHashSet<>();
+
+    private ReachableObjects(PackBitmap bitmap){
+        this.bitmap = bitmap;
+    }
+
+    /**
+     * The bitmap of the repository's packs, or null if none of them has one
+     * {a full repack writes a single bitmapped pack, like git only one bitmap is used}
+     */
+    public static PackBitmap openBitmap(GitRepository repo) throws Exception{
+        for(GitPack pack : PackIO.packs(repo)){
+            String name = pack.getPath().getFileName().toString();
+            Path path = pack.getPath().resolveSibling(name.substring(0, name.length() - ".pack".length()) + ".bitmap");
+            if(Files.exists(path)){
+                return new PackBitmap(path, pack);
+            }
+        }
+        return null;
+    }
+
+    public static ReachableObjects collect(GitRepository repo, Collection<String> tips, boolean useBitmap) throws Exception{
+        ReachableObjects ret = new ReachableObjects(useBitmap ? openBitmap(repo) : null);
+        ret.walk(repo, tips);
+        return ret;
+    }
+
+    public boolean usedBitmap(){
+        return bitmap != null;
+    }
+
+    public long count(){
+        return bits.cardinality() + others.size();
+    }
+
+    public void forEach(Visitor visitor) throws Exception{
+        for(int bit = bits.nextSetBit(0); bit >= 0; bit = bits.nextSetBit(bit + 1)){
+            visitor.visit(bitmap.shaHexAtBit(bit));
+        }
+        for(String sha : others){
+            visitor.visit(sha);
+        }
+    }
+
+    /**
+     * Commits first, then trees: that way every bitmap that can be used has been ORed in
+     * before any tree is read, and trees already covered by one are skipped whole
+     */
+    private void walk(GitRepository repo, Collection<String> tips) throws Exception{
+        CommitWalker walker = new CommitWalker(repo);
+        Deque<String> commits = new ArrayDeque<>();
+        Deque<String> trees = new ArrayDeque<>();
+
+        for(String tip : tips){
+            String sha = tip;
+            while(sha != null){
+                RawObject raw = ObjectIO.objectReadRaw(repo, sha);
+                if(raw == null){
+                    throw new Exception("Missing object " + sha);
+                }
+                switch (raw.type()){
+                    case "commit" -> {
+                        commits.push(sha);
+                        sha = null;
+                    }
+                    case "tree" -> {
+                        trees.push(sha);
+                        sha = null;
+                    }
+                    case "tag" -> {
+                        mark(sha);
+                        sha = CommitWalker.tagTarget(raw.data(), sha);
+                    }
+                    default -> {
+                        mark(sha);
+                        sha = null;
+                    }
+                }
+            }
+        }
+
+        while(!commits.isEmpty()){
+            String sha = commits.pop();
+            int bit = bitOf(sha);
+            if(bit >= 0){
+                if(bits.get(bit)){
+                    continue;
+                }
+                BitSet reachable = bitmap.reachableFrom(bit);
+                if(reachable != null){
+                    bits.or(reachable);
+                    continue;
+                }
+            }
+            if(!mark(sha)){
+                continue;
+            }
+            CommitWalker.CommitInfo info = walker.info(sha);
+            trees.push(info.tree());
+            for(String parent : info.parents()){
+                commits.push(parent);
+            }
+        }
+
+        while(!trees.isEmpty()){
+            String sha = trees.pop();
+            if(!mark(sha)){
+                continue;//seen, or covered by a bitmap together with everything below it
+            }
+            RawObject raw = ObjectIO.objectReadRaw(repo, sha);
+            if(raw == null){
+                throw new Exception("Missing tree " + sha);
+            }
+            TreeCursor c = new TreeCursor(raw.data());
+            while(c.next()){
+                if(c.isGitlink()){
+                    continue;//gitlink (submodule commit), not in this repository
+                }
+                if(c.isTree()){
+                    trees.push(c.getSha());
+                }
+                else{
+                    mark(c.getSha());
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds an object to the set, false if it was in already
+     */
+    private boolean mark(String sha){
+        int bit = bitOf(sha);
+        if(bit < 0){
+            return others.add(sha);
+        }
+        if(bits.get(bit)){
+            return false;
+        }
+        bits.set(bit);
+        return true;
+    }
+
+    private int bitOf(String sha){
+        return bitmap == null ? -1 : bitmap.bitOf(ObjectId.fromHex(sha).toRaw());
+    }
+}
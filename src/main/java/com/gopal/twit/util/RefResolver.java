@@ -4,45 +4,56 @@ import com.gopal.twit.core.GitRepository;
 import com.gopal.twit.core.objects.GitCommit;
 import com.gopal.twit.core.objects.GitObject;
 import com.gopal.twit.core.objects.GitTag;
+import com.gopal.twit.core.objects.ObjectId;
+import com.gopal.twit.core.refs.FileRefStore;
+import com.gopal.twit.core.refs.ReftableRefStore;
+import com.gopal.twit.core.refs.Ref;
+import com.gopal.twit.core.refs.RefStore;
 
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 import java.util.stream.Stream;
 
 /**
  * REFERENCES
- * they’re text files, in the .git/refs hierarchy;
+ * they’re text files, in the .git/refs hierarchy (or lines of .git/packed-refs);
  * they hold the SHA-1 identifier of an object, or a reference to another reference, ultimately to a SHA-1 (no loops!)
+ * Reading and writing them goes through the repository's RefStore.
  */
 
 public class RefResolver {
+    //how a short name is looked up as a ref, in order {the same rules as git}
+    private static final String[] REF_RULES = {
+            "%s", "refs/%s", "refs/tags/%s", "refs/heads/%s", "refs/remotes/%s", "refs/remotes/%s/HEAD"
+    };
+    private static final Pattern TOP_LEVEL_REF = Pattern.compile("^[A-Z_]+$");
+    //4 seems to be the minimal length for git to consider something a short hash
+    private static final Pattern HASH = Pattern.compile("^[0-9A-Fa-f]{4,40}$");
+
+    //one store per repository, so its caches live as long as the process
+    private static final Map<Path, RefStore> stores = new ConcurrentHashMap<>();
+
+    /**
+     * The ref store of the repository: FileRefStore, or ReftableRefStore when extensions.refStorage says so
+     */
+    public static RefStore refStore(GitRepository repo){
+        return stores.computeIfAbsent(repo.getGitDir(), dir -> repo.getRefFormat().equals("reftable")
+                ? new ReftableRefStore(dir)
+                : new FileRefStore(repo));
+    }
 
     /**
      * Resolve a reference to a SHA-1
+     * Sometimes, an indirect reference may be broken. This is normal in one specific case:
+     * we're looking for HEAD on a new repository with no commits. In that case, .git/HEAD points to
+     * "ref: refs/heads/master", but refs/heads/master doesn't exist yet (since there's no commit for it to refer to).
      */
     public static String refResolve(GitRepository repo, String ref) throws IOException{
-        Path path = repo.repoFile(ref);
-
-
-        //Sometimes, an indirect reference may be broken.  This is normal
-        //in one specific case: we're looking for HEAD on a new repository
-        //with no commits.  In that case, .git/HEAD points to "ref:
-        //refs/heads/main", but .git/refs/heads/main doesn't exist yet
-        //(since there's no commit for it to refer to).
-        if(!Files.exists(path)){
-            return null;
-        }
-
-        String data = Files.readString(path).trim();
-
-        if(data.startsWith("ref: ")) {
-            return refResolve(repo, data.substring(5));
-        }
-
-        return data;
+        return refStore(repo).resolve(ref);
     }
 
     /**
@@ -72,17 +83,19 @@ public class RefResolver {
             throw new Exception("Ambiguous reference " + name + ": Candidates are:\n - " + String.join("\n - ", candidates));
         }
 
-        String sha = candidates.get(0);
-
         if(fmt == null){
-            return sha;
+            return candidates.get(0);
         }
 
+        ObjectId id = ObjectId.fromHex(candidates.get(0));
         while(true){
-            GitObject obj = ObjectIO.objectRead(repo, sha);
+            GitObject obj = ObjectIO.objectRead(repo, id);
+            if(obj == null){
+                throw new Exception("Missing object " + id);
+            }
 
             if(obj.getFormat().equals(fmt)){
-                return sha;
+                return id.name();
             }
 
             if(!follow){
@@ -91,14 +104,16 @@ public class RefResolver {
 
             //Follow tags
             if(obj instanceof GitTag tag){
-                byte[] target = (byte[]) tag.getKvlm().get("object");
-                sha = new String(target, "UTF-8");
+                id = tag.getObject();
             }else if (obj instanceof GitCommit commit && fmt.equals("tree")) {
-                byte[] tree = (byte[]) commit.getKvlm().get("tree");
-                sha = new String(tree, "UTF-8");
+                id = commit.getTree();
             } else {
                 return null;
             }
+            //a tag without an object header, or a commit without a tree
+            if(id == null){
+                throw new Exception("Corrupt " + obj.getFormat() + " while resolving " + name);
+            }
         }
     }
 
@@ -108,7 +123,7 @@ public class RefResolver {
      *      * 1) If name is HEAD, it will just resolve .git/HEAD; {i.e the head of the current branch}
      *      * 2) If name is a full hash, this hash is returned unmodified.
      *      * 3) If name looks like a short hash, it will collect objects whose full hash begin with this short hash.
-     *      * 4) At last, it will resolve tags and branches matching name.
+     *      * 4) At last, it will resolve refs matching name (see REF_RULES: a full ref name, a tag, a branch...)
      *      * For 3) and 4), i.e short hashes or branch names can be ambiguous, we want to enumerate all possible meanings of the name and raise an error if we’ve found more than 1
      */
     public static List<String> objectResolve(GitRepository repo, String name) throws IOException {
@@ -128,56 +143,76 @@ public class RefResolver {
         }
 
         //Try as hash
-        Pattern hashRE = Pattern.compile("^[0-9A-Fa-f]{4,40}$");
-        if (hashRE.matcher(name).matches()) {
-            //This may be a hash, either small or full.  4 seems to be the
-            //minimal length for git to consider something a short hash.
-            name = name.toLowerCase();
-            String prefix = name.substring(0, 2);
+        if (ObjectId.isHex(name)) {
+            //a full hash: a direct lookup, no need to list anything
+            ObjectId id = ObjectId.fromHex(name);
+            if (PackIO.contains(repo, id) || Files.exists(repo.repoPath("objects", id.name().substring(0, 2), id.name().substring(2)))) {
+                candidates.add(id.name());
+            }
+        }
+        else if (HASH.matcher(name).matches()) {
+            //This may be a short hash
+            String hex = name.toLowerCase();
+            String prefix = hex.substring(0, 2);
             Path path = repo.repoDir("objects", prefix);
 
             if (path != null && Files.exists(path)) {
-                String rem = name.substring(2);
+                String rem = hex.substring(2);
                 try (Stream<Path> files = Files.list(path)) {
                     files.filter(f -> f.getFileName().toString().startsWith(rem))
                             .forEach(f -> candidates.add(prefix + f.getFileName().toString()));
                 }
             }
-        }
 
-        //Try as tag
-        String asTag = refResolve(repo, "ref/tags/" + name);
-        if (asTag != null) candidates.add(asTag);
+            //and the packed objects {a packed object may also exist loose, so skip duplicates}
+            for (String packed : PackIO.findByPrefix(repo, hex)) {
+                if (!candidates.contains(packed)) {
+                    candidates.add(packed);
+                }
+            }
+        }
 
-        //Try as branch
-        String asBranch = refResolve(repo, "refs/heads" + name);
-        if (asBranch != null) candidates.add(asBranch);
+        //Try as a ref, with git's rules: the first of these that exists wins
+        if(name.contains("..") || name.startsWith("/")){
+            return candidates;//not a valid ref name, and not something to look up under .git
+        }
+        for(String rule : REF_RULES){
+            //a bare name is only a ref if it's under refs/ or looks like HEAD, FETCH_HEAD... {not .git/config}
+            if(rule.equals("%s") && !name.startsWith("refs/") && !TOP_LEVEL_REF.matcher(name).matches()){
+                continue;
+            }
+            String sha = refResolve(repo, rule.formatted(name));
+            if(sha != null){
+                if(!candidates.contains(sha)){
+                    candidates.add(sha);
+                }
+                break;
+            }
+        }
 
         return candidates;
     }
 
     /**
-     * List all references
-     * it is a recursive function to collect refs and return them as a dict
+     * List all references (under refs/), sorted by name
      */
-    public static Map<String, Object> refList(GitRepository repo, Path path) throws IOException{
-        if(path == null){
-            path = repo.repoDir("refs");
-        }
+    public static SortedMap<String, Ref> refList(GitRepository repo) throws IOException{
+        return refStore(repo).list("refs/");
+    }
 
-        //return the refs in a treemap since git stores refs in sorted order
-        Map<String, Object> ret = new TreeMap<>();
-        try(Stream<Path> files = Files.list(path).sorted()){
-            for(Path f : files.toList()){
-                String name = f.getFileName().toString();
-                if(Files.isDirectory(f)){
-                    ret.put(name,refList(repo, f));
-                }else {
-                    //f.toString().substring(repo.getGitdir().toString().length() + 1) -> removes the .git/ prefix from the path
-                    ret.put(name, refResolve(repo, f.toString().substring(repo.getGitDir().toString().length() + 1)));
-                }
-            }
+    /**
+     * The tips of history: every ref plus HEAD (which may be detached)
+     * {these are SHAs of whatever the refs point to, annotated tags are not peeled}
+     */
+    public static Set<String> refTips(GitRepository repo) throws IOException{
+        Set<String> tips = new LinkedHashSet<>();
+        String head = refResolve(repo, "HEAD");
+        if(head != null){
+            tips.add(head);
+        }
+        for(Ref ref : refList(repo).values()){
+            tips.add(ref.sha());
         }
-        return ret;
+        return tips;
     }
 }
@@ -0,0 +1,355 @@
+package com.gopal.twit.util;
+
+import com.gopal.twit.core.GitRepository;
+import com.gopal.twit.core.index.FileStat;
+import com.gopal.twit.core.index.GitIndex;
+import com.gopal.twit.core.index.GitIndexEntry;
+import com.gopal.twit.core.objects.*;
+import com.gopal.twit.core.refs.RefStore;
+import com.gopal.twit.core.refs.RefTransaction;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * SYNTHETIC REPOSITORIES
+ * Builds a repository of any size from a Spec, through the same code the commands use (ObjectIO.objectWrite,
+ * IndexIO.indexWrite, the ref store), for load tests, benchmarks and profiling.
+ * Everything comes from the seed, and the authors and times are fixed too: the same Spec gives the same
+ * objects, SHA for SHA, so runs of status, log, commit or checkout are comparable across versions.
+ *
+ * LAYOUT: file i goes to a path of depth directories, each picked among fanOut by hashing (seed, i, level)
+ * (see Spec.path). Sizes follow a log-normal distribution around the median (most files small, a few big ones),
+ * capped at maxSize; the content is code-like text, so it compresses like source files do.
+ * HISTORY: the first commit adds every file to the branch HEAD points to (main). Each following commit changes
+ * 1 to `changes` files (sometimes adding a new one) on main or on one of the open topic branches. Topic branches
+ * fork from main and are merged back into it at random {the merge applies the branch's changes over main's tree},
+ * the ones still open at the end stay unmerged. Tags point to commits of main spread over the history,
+ * every other one an annotated tag.
+ * The worktree and the index are those of main's last commit {unless checkout is false}.
+ */
+public class RepoGenerator {
+    private static final long BASE_TIME = 1_600_000_000L;
+    private static final String AUTHOR = "Synthetic Author <synthetic@example.com>";
+    private static final String[] EXTENSIONS = {".java", ".java", ".java", ".md", ".json", ".xml", ".txt", ".properties"};
+    private static final String[] WORDS = {"int", "long", "return", "if", "else", "for", "while", "new", "final",
+            "static", "void", "value", "index", "tree", "commit", "object", "entry", "path", "size", "count", "buffer",
+            "=", "+", "==", "!=", "(", ")", "{", "}", ";", "0", "1", "null", "this", "result", "name", "list", "map"};
+
+    /**
+     * What to generate
+     * @param medianSize median blob size in bytes
+     * @param sizeSpread sigma of the log-normal distribution of sizes {0: every blob is medianSize bytes}
+     * @param changes at most that many files changed per commit
+     * @param branches topic branches forked from main over the history
+     */
+    public record Spec(long seed, int files, int depth, int fanOut, int medianSize, double sizeSpread, int maxSize,
+                       int commits, int changes, int branches, int tags, boolean checkout){
+
+        public static Spec defaults(){
+            return new Spec(1, 1000, 3, 8, 2048, 1.0, 1 << 20, 100, 5, 4, 5, true);
+        }
+
+        /**
+         * The path of file i {a pure function of the spec: the same i always lands in the same place}
+         */
+        public String path(int i){
+            StringBuilder sb = new StringBuilder();
+            for(int level = 0; level < depth; level++){
+                long h = mix(seed ^ ((long) i << 8 | level));
+                sb.append("dir").append(Math.floorMod(h, fanOut)).append('/');
+            }
+            return sb.append("file").append(i).append(EXTENSIONS[Math.floorMod(mix(seed + i), EXTENSIONS.length)]).toString();
+        }
+    }
+
+    public record Result(int commits, int merges, int files, long blobs, long trees, long bytes){}
+
+    /**
+     * A directory of a branch's tree
+     * Trees are shared between branches and commits: a change copies the directories on its path (unless they were
+     * already copied for the commit being built, see gen), so only those get a new tree object.
+     */
+    private static final class Dir {
+        final TreeMap<String, Dir> dirs;
+        final TreeMap<String, ObjectId> files;
+        ObjectId id;//the tree object, null until written (or after a change)
+        int gen;//the commit this directory was copied for
+
+        Dir(int gen){
+            this(gen, new TreeMap<>(), new TreeMap<>());
+        }
+
+        Dir(int gen, TreeMap<String, Dir> dirs, TreeMap<String, ObjectId> files){
+            this.gen = gen;
+            this.dirs = dirs;
+            this.files = files;
+        }
+
+        Dir writable(int gen){
+            if(this.gen == gen){
+                id = null;
+                return this;
+            }
+            return new Dir(gen, new TreeMap<>(dirs), new TreeMap<>(files));
+        }
+    }
+
+    private static final class Branch {
+        final String ref;
+        Dir root;
+        ObjectId tip;
+        final Map<String, ObjectId> changes = new LinkedHashMap<>();//since it forked from main
+
+        Branch(String ref, Dir root, ObjectId tip){
+            this.ref = ref;
+            this.root = root;
+            this.tip = tip;
+        }
+    }
+
+    private final GitRepository repo;
+    private final Spec spec;
+    private final Random random;
+    private int gen;
+    private long time = BASE_TIME;
+    private int commits, merges;
+    private long blobs, trees, bytes;
+
+    private RepoGenerator(GitRepository repo, Spec spec){
+        this.repo = repo;
+        this.spec = spec;
+        this.random = new Random(spec.seed());
+    }
+
+    /**
+     * Creates the repository in dir (which must not be a repository already) and fills it
+     */
+    public static Result generate(Path dir, Spec spec) throws Exception{
+        if(spec.files() < 1 || spec.commits() < 1 || spec.depth() < 0 || spec.fanOut() < 1 || spec.changes() < 1
+                || spec.branches() < 0 || spec.tags() < 0 || spec.medianSize() < 0 || spec.maxSize() < spec.medianSize()){
+            throw new IllegalArgumentException("Invalid spec: " + spec);
+        }
+        GitRepository repo = GitRepository.create(dir);
+        return new RepoGenerator(repo, spec).run();
+    }
+
+    private Result run() throws Exception{
+        RefStore store = RefResolver.refStore(repo);
+        Branch main = new Branch(store.deref("HEAD"), new Dir(0), null);
+
+        //the first commit adds everything
+        int fileCount = spec.files();
+        gen++;
+        for(int i = 0; i < fileCount; i++){
+            change(main, i, 0);
+        }
+        List<ObjectId> mainCommits = new ArrayList<>();
+        commit(main, "Initial import of " + fileCount + " files");
+        mainCommits.add(main.tip);
+        main.changes.clear();//only a topic branch's changes are needed, to merge it
+
+        List<Branch> open = new ArrayList<>();
+        List<Branch> all = new ArrayList<>();
+        for(int step = 1; step < spec.commits(); step++){
+            gen++;
+            //so that all the branches get forked by the end: (branches left) / (steps left)
+            if(all.size() < spec.branches() && random.nextInt(spec.commits() - step) < spec.branches() - all.size()){
+                Branch topic = new Branch("refs/heads/topic-" + (all.size() + 1), main.root, main.tip);
+                open.add(topic);
+                all.add(topic);
+            }
+
+            int pick = random.nextInt(open.size() + 1);
+            Branch target = pick == 0 ? main : open.get(pick - 1);
+
+            if(target != main && !target.changes.isEmpty() && random.nextInt(4) == 0){
+                //merge it into main
+                for(Map.Entry<String, ObjectId> e : target.changes.entrySet()){
+                    main.root = put(main.root, e.getKey(), e.getValue());
+                }
+                commit(main, "Merge branch '" + target.ref.substring("refs/heads/".length()) + "'", target.tip);
+                open.remove(target);
+                merges++;
+            }
+            else{
+                int n = 1 + random.nextInt(spec.changes());
+                Set<Integer> changed = new HashSet<>();
+                for(int c = 0; c < n; c++){
+                    int file = random.nextInt(10) == 0 ? fileCount++ : random.nextInt(fileCount);
+                    if(changed.add(file)){//a file drawn twice is changed once {no blob left unreferenced}
+                        change(target, file, step);
+                    }
+                }
+                commit(target, "Change " + changed.size() + " file(s), step " + step);
+            }
+            if(target == main){
+                mainCommits.add(main.tip);
+                main.changes.clear();
+            }
+        }
+
+        //refs, all in one transaction
+        RefTransaction refs = store.transaction().update(main.ref, main.tip.name());
+        for(Branch b : all){
+            refs.update(b.ref, b.tip.name());
+        }
+        for(int t = 0; t < spec.tags(); t++){
+            ObjectId target = mainCommits.get((int) ((long) (t + 1) * (mainCommits.size() - 1) / Math.max(1, spec.tags())));
+            String name = "v1." + t;
+            refs.create("refs/tags/" + name, t % 2 == 0 ? tag(name, target).name() : target.name());
+        }
+        refs.commit();
+
+        if(spec.checkout()){
+            checkout(main.root);
+        }
+        return new Result(commits, merges, fileCount, blobs, trees, bytes);
+    }
+
+    /**
+     * Gives file a new content on branch {version: the commit it's changed by}
+     */
+    private void change(Branch branch, int file, int version) throws Exception{
+        String path = spec.path(file);
+        byte[] data = content(path, version);
+        ObjectId blob = ObjectId.fromHex(ObjectIO.objectWrite(new GitBlob(data), repo));
+        blobs++;
+        bytes += data.length;
+        branch.root = put(branch.root, path, blob);
+        branch.changes.put(path, blob);
+    }
+
+    private Dir put(Dir root, String path, ObjectId blob){
+        Dir top = root.writable(gen);
+        Dir node = top;
+        int start = 0;
+        int slash;
+        while((slash = path.indexOf('/', start)) >= 0){
+            String name = path.substring(start, slash);
+            Dir child = node.dirs.get(name);
+            child = child == null ? new Dir(gen) : child.writable(gen);
+            node.dirs.put(name, child);
+            node = child;
+            start = slash + 1;
+        }
+        node.files.put(path.substring(start), blob);
+        return top;
+    }
+
+    private ObjectId writeTree(Dir dir) throws Exception{
+        if(dir.id != null){
+            return dir.id;
+        }
+        List<GitTreeLeaf> leaves = new ArrayList<>(dir.dirs.size() + dir.files.size());
+        for(Map.Entry<String, Dir> e : dir.dirs.entrySet()){
+            leaves.add(new GitTreeLeaf(GitTreeLeaf.MODE_TREE, e.getKey(), writeTree(e.getValue())));
+        }
+        for(Map.Entry<String, ObjectId> e : dir.files.entrySet()){
+            leaves.add(new GitTreeLeaf(GitTreeLeaf.MODE_FILE, e.getKey(), e.getValue()));
+        }
+        dir.id = ObjectId.fromHex(ObjectIO.objectWrite(new GitTree(TreeParser.serialize(leaves)), repo));
+        trees++;
+        return dir.id;
+    }
+
+    private void commit(Branch branch, String message, ObjectId... merged) throws Exception{
+        GitCommit commit = new GitCommit();
+        commit.init();
+        Map<String, Object> kvlm = commit.getKvlm();
+        kvlm.put("tree", writeTree(branch.root).name().getBytes(StandardCharsets.US_ASCII));
+
+        List<byte[]> parents = new ArrayList<>();
+        if(branch.tip != null){
+            parents.add(branch.tip.name().getBytes(StandardCharsets.US_ASCII));
+        }
+        for(ObjectId m : merged){
+            parents.add(m.name().getBytes(StandardCharsets.US_ASCII));
+        }
+        if(parents.size() == 1){
+            kvlm.put("parent", parents.get(0));
+        }
+        else if(!parents.isEmpty()){
+            kvlm.put("parent", parents);
+        }
+
+        time += 600 + random.nextInt(3000);
+        byte[] who = (AUTHOR + " " + time + " +0000").getBytes(StandardCharsets.UTF_8);
+        kvlm.put("author", who);
+        kvlm.put("committer", who);
+        kvlm.put(null, (message + "\n").getBytes(StandardCharsets.UTF_8));
+
+        branch.tip = ObjectId.fromHex(ObjectIO.objectWrite(commit, repo));
+        commits++;
+    }
+
+    private ObjectId tag(String name, ObjectId target) throws Exception{
+        GitTag tag = new GitTag();
+        tag.init();
+        Map<String, Object> kvlm = tag.getKvlm();
+        kvlm.put("object", target.name().getBytes(StandardCharsets.US_ASCII));
+        kvlm.put("type", "commit".getBytes(StandardCharsets.US_ASCII));
+        kvlm.put("tag", name.getBytes(StandardCharsets.UTF_8));
+        kvlm.put("tagger", (AUTHOR + " " + time + " +0000").getBytes(StandardCharsets.UTF_8));
+        kvlm.put(null, ("Release " + name + "\n").getBytes(StandardCharsets.UTF_8));
+        return ObjectId.fromHex(ObjectIO.objectWrite(tag, repo));
+    }
+
+    /**
+     * Code-like lines of words, about as long as the size distribution says
+     * {the first line names the path and version, so no two blobs are the same}
+     */
+    private byte[] content(String path, int version){
+        double size = spec.medianSize() * Math.exp(spec.sizeSpread() * random.nextGaussian());
+        int target = (int) Math.min(spec.maxSize(), Math.round(size));
+
+        StringBuilder sb = new StringBuilder(target + 80);
+        sb.append("// ").append(path).append(" v").append(version).append('\n');
+        while(sb.length() < target){
+            int indent = random.nextInt(4) * 4;
+            sb.append(" ".repeat(indent));
+            int words = 3 + random.nextInt(10);
+            for(int w = 0; w < words; w++){
+                sb.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+            }
+            sb.setCharAt(sb.length() - 1, '\n');
+        }
+        if(sb.length() > target && target > 0){
+            sb.setLength(Math.max(target, sb.indexOf("\n") + 1));
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes main's files to the worktree and the index (stat data included, so status finds it clean)
+     */
+    private void checkout(Dir root) throws Exception{
+        List<GitIndexEntry> entries = new ArrayList<>();
+        checkout(root, "", entries);
+        GitIndex index = new GitIndex(2, entries);
+        index.sortEntries();
+        IndexIO.indexWrite(repo, index);
+    }
+
+    private void checkout(Dir dir, String prefix, List<GitIndexEntry> entries) throws Exception{
+        for(Map.Entry<String, Dir> e : dir.dirs.entrySet()){
+            checkout(e.getValue(), prefix + e.getKey() + "/", entries);
+        }
+        for(Map.Entry<String, ObjectId> e : dir.files.entrySet()){
+            String name = prefix + e.getKey();
+            Path file = repo.getWorktree().resolve(name);
+            Files.createDirectories(file.getParent());
+            Files.write(file, ObjectIO.objectReadRaw(repo, e.getValue()).data());
+            entries.add(FileStat.read(file).toEntry(e.getValue().name(), name));
+        }
+    }
+
+    //splitmix64 {a good spread of bits from consecutive inputs}
+    private static long mix(long z){
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
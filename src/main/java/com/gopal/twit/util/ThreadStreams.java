@@ -0,0 +1,111 @@
+package com.gopal.twit.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Locale;
+
+/**
+ * System.out, System.err and System.in per thread
+ * A daemon (see DaemonCommand) runs the commands of several clients at once, and commands print to System.out.
+ * Once install() has run, the System streams forward to the ones set for the current thread, or to the process's own.
+ * The streams are inherited by the threads a command starts {AddCommand's pool, WorktreeScanner's workers}
+ */
+public class ThreadStreams {
+    private record Streams(PrintStream out, PrintStream err, InputStream in){}
+
+    private static final InheritableThreadLocal<Streams> current = new InheritableThreadLocal<>();
+    private static Streams process;
+
+    public static synchronized void install(){
+        if(process != null){
+            return;
+        }
+        process = new Streams(System.out, System.err, System.in);
+        System.setOut(new Routed(false));
+        System.setErr(new Routed(true));
+        System.setIn(new RoutedInput());
+    }
+
+    /**
+     * The streams of the command running on this thread
+     */
+    public static void set(PrintStream out, PrintStream err, InputStream in){
+        current.set(new Streams(out, err, in));
+    }
+
+    public static void clear(){
+        current.remove();
+    }
+
+    private static Streams streams(){
+        Streams s = current.get();
+        return s != null ? s : process;
+    }
+
+    /**
+     * A PrintStream handing every call over to the thread's stream
+     * {not a PrintStream over a routing OutputStream: the PrintStream's lock would be shared by every thread,
+     * and a client that stops reading would then block the output of all the others}
+     */
+    private static class Routed extends PrintStream {
+        private final boolean err;
+
+        Routed(boolean err){
+            super(OutputStream.nullOutputStream());
+            this.err = err;
+        }
+
+        private PrintStream target(){
+            Streams s = streams();
+            return err ? s.err() : s.out();
+        }
+
+        @Override public void flush(){ target().flush(); }
+        @Override public void close(){ target().close(); }
+        @Override public boolean checkError(){ return target().checkError(); }
+
+        @Override public void write(int b){ target().write(b); }
+        @Override public void write(byte[] buf, int off, int len){ target().write(buf, off, len); }
+        @Override public void write(byte[] buf) throws IOException{ target().write(buf); }
+        @Override public void writeBytes(byte[] buf){ target().writeBytes(buf); }
+
+        @Override public void print(boolean b){ target().print(b); }
+        @Override public void print(char c){ target().print(c); }
+        @Override public void print(int i){ target().print(i); }
+        @Override public void print(long l){ target().print(l); }
+        @Override public void print(float f){ target().print(f); }
+        @Override public void print(double d){ target().print(d); }
+        @Override public void print(char[] s){ target().print(s); }
+        @Override public void print(String s){ target().print(s); }
+        @Override public void print(Object obj){ target().print(obj); }
+
+        @Override public void println(){ target().println(); }
+        @Override public void println(boolean x){ target().println(x); }
+        @Override public void println(char x){ target().println(x); }
+        @Override public void println(int x){ target().println(x); }
+        @Override public void println(long x){ target().println(x); }
+        @Override public void println(float x){ target().println(x); }
+        @Override public void println(double x){ target().println(x); }
+        @Override public void println(char[] x){ target().println(x); }
+        @Override public void println(String x){ target().println(x); }
+        @Override public void println(Object x){ target().println(x); }
+
+        @Override public PrintStream printf(String format, Object... args){ return target().printf(format, args); }
+        @Override public PrintStream printf(Locale l, String format, Object... args){ return target().printf(l, format, args); }
+        @Override public PrintStream format(String format, Object... args){ return target().format(format, args); }
+        @Override public PrintStream format(Locale l, String format, Object... args){ return target().format(l, format, args); }
+
+        @Override public PrintStream append(CharSequence csq){ return target().append(csq); }
+        @Override public PrintStream append(CharSequence csq, int start, int end){ return target().append(csq, start, end); }
+        @Override public PrintStream append(char c){ return target().append(c); }
+    }
+
+    private static class RoutedInput extends InputStream {
+        @Override public int read() throws IOException{ return streams().in().read(); }
+        @Override public int read(byte[] b, int off, int len) throws IOException{ return streams().in().read(b, off, len); }
+        @Override public int available() throws IOException{ return streams().in().available(); }
+        @Override public void close() throws IOException{ streams().in().close(); }
+    }
+}
@@ -0,0 +1,126 @@
+package com.gopal.twit.util;
+
+import com.gopal.twit.core.objects.GitTreeLeaf;
+import com.gopal.twit.core.objects.ObjectId;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * TREE CURSOR
+ * Walks the entries of a raw tree object in place: [mode] space [name] 0x00 [20 byte sha-1], repeated
+ * The cursor is positioned on one entry at a time and only remembers where its parts are in the byte array:
+ * the mode is decoded as an int, the name is a slice of the array, the SHA an offset.
+ * Nothing is allocated while walking; a String or an ObjectId is only created when asked for
+ * {so a walk that only needs the subtrees, or only the SHAs, pays for nothing else}.
+ * Usage:
+ *      TreeCursor c = new TreeCursor(raw);
+ *      while(c.next()){ if(c.isTree()) ... c.getId() ... }
+ */
+public class TreeCursor {
+    private final byte[] raw;
+    private final int end;
+
+    private int next;//where the next entry starts
+    private int mode;
+    private int nameStart;
+    private int nameEnd;//the 0x00 after the name; the SHA follows it
+
+    public TreeCursor(byte[] raw){
+        this(raw, 0, raw.length);
+    }
+
+    public TreeCursor(byte[] raw, int off, int len){
+        this.raw = raw;
+        this.next = off;
+        this.end = off + len;
+    }
+
+    /**
+     * Moves to the next entry, false when there is none left
+     * @throws IllegalArgumentException if the tree is malformed
+     */
+    public boolean next(){
+        if(next >= end){
+            return false;
+        }
+
+        //mode: octal digits up to the space
+        int p = next;
+        int m = 0;
+        while(p < end && raw[p] != ' '){
+            int d = raw[p] - '0';
+            if(d < 0 || d > 7){
+                throw new IllegalArgumentException("Corrupt tree: bad mode at offset " + next);
+            }
+            m = (m << 3) | d;
+            p++;
+        }
+
+        //name: up to the 0x00
+        int n = p + 1;
+        int z = n;
+        while(z < end && raw[z] != 0){
+            z++;
+        }
+        if(p == next || z + 1 + ObjectId.RAW_LEN > end){
+            throw new IllegalArgumentException("Corrupt tree: truncated entry at offset " + next);
+        }
+
+        mode = m;
+        nameStart = n;
+        nameEnd = z;
+        next = z + 1 + ObjectId.RAW_LEN;
+        return true;
+    }
+
+    public int getMode() { return mode; }
+
+    public boolean isTree(){
+        return (mode & GitTreeLeaf.TYPE_MASK) == GitTreeLeaf.MODE_TREE;
+    }
+
+    //a submodule commit, which is not an object of this repository
+    public boolean isGitlink(){
+        return (mode & GitTreeLeaf.TYPE_MASK) == GitTreeLeaf.MODE_GITLINK;
+    }
+
+    public byte[] getRaw() { return raw; }
+    public int getNameOffset() { return nameStart; }
+    public int getNameLength() { return nameEnd - nameStart; }
+    public int getIdOffset() { return nameEnd + 1; }
+
+    public String getName(){
+        return new String(raw, nameStart, nameEnd - nameStart, StandardCharsets.UTF_8);
+    }
+
+    public ObjectId getId(){
+        return ObjectId.fromRaw(raw, nameEnd + 1);
+    }
+
+    public String getSha(){
+        return ObjectId.toHex(raw, nameEnd + 1);
+    }
+
+    /**
+     * Is the name of this entry exactly name? {no String created}
+     */
+    public boolean nameEquals(byte[] name){
+        int len = nameEnd - nameStart;
+        if(name.length != len){
+            return false;
+        }
+        for(int i = 0; i < len; i++){
+            if(raw[nameStart + i] != name[i]){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The current entry as a standalone leaf
+     */
+    public GitTreeLeaf toLeaf(){
+        return new GitTreeLeaf(mode, getName(), getId());
+    }
+}
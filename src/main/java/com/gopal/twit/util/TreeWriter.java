@@ -0,0 +1,124 @@
+package com.gopal.twit.util;
+
+import com.gopal.twit.core.objects.GitTreeLeaf;
+import com.gopal.twit.core.objects.ObjectId;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * TREE WRITER
+ * Builds a raw tree object by appending entries straight into one growing byte array
+ * Entries must be appended in the canonical tree order (see compare), which is checked against the previous
+ * entry as it sits in the buffer: an out of order or duplicate name is an error, not something to re-sort.
+ * Callers that walk a sorted index get that order for free.
+ * Modes are written like git does, in octal without leading zeros ("40000" for a tree, "100644" for a file).
+ */
+public class TreeWriter {
+    //the modes a tree normally holds, already as text
+    private static final byte[] TREE = mode(GitTreeLeaf.MODE_TREE);
+    private static final byte[] FILE = mode(GitTreeLeaf.MODE_FILE);
+    private static final byte[] EXECUTABLE = mode(GitTreeLeaf.MODE_EXECUTABLE);
+    private static final byte[] SYMLINK = mode(GitTreeLeaf.MODE_SYMLINK);
+    private static final byte[] GITLINK = mode(GitTreeLeaf.MODE_GITLINK);
+
+    private byte[] buf;
+    private int size;
+
+    //the previous entry, as a slice of buf
+    private int lastName = -1;
+    private int lastNameLen;
+    private boolean lastTree;
+
+    public TreeWriter(){
+        this(256);
+    }
+
+    public TreeWriter(int capacity){
+        this.buf = new byte[Math.max(capacity, 64)];
+    }
+
+    public TreeWriter append(int mode, String name, ObjectId id){
+        return append(mode, name.getBytes(StandardCharsets.UTF_8), id);
+    }
+
+    public TreeWriter append(int mode, byte[] name, ObjectId id){
+        return append(mode, name, 0, name.length, id);
+    }
+
+    /**
+     * Appends [mode] space [name] 0x00 [sha-1]
+     * @throws IllegalArgumentException if name doesn't sort after the previous entry
+     */
+    public TreeWriter append(int mode, byte[] name, int nameOff, int nameLen, ObjectId id){
+        boolean tree = (mode & GitTreeLeaf.TYPE_MASK) == GitTreeLeaf.MODE_TREE;
+        if(nameLen == 0){
+            throw new IllegalArgumentException("Empty name in tree");
+        }
+        if(lastName >= 0 && compare(buf, lastName, lastNameLen, lastTree, name, nameOff, nameLen, tree) >= 0){
+            throw new IllegalArgumentException("Tree entry out of order or duplicated: "
+                    + new String(name, nameOff, nameLen, StandardCharsets.UTF_8));
+        }
+
+        byte[] m = modeBytes(mode);
+        ensure(m.length + 1 + nameLen + 1 + ObjectId.RAW_LEN);
+        System.arraycopy(m, 0, buf, size, m.length);
+        size += m.length;
+        buf[size++] = ' ';
+        lastName = size;
+        lastNameLen = nameLen;
+        lastTree = tree;
+        System.arraycopy(name, nameOff, buf, size, nameLen);
+        size += nameLen;
+        buf[size++] = 0;
+        id.copyRawTo(buf, size);
+        size += ObjectId.RAW_LEN;
+        return this;
+    }
+
+    public int size() { return size; }
+
+    public byte[] toByteArray(){
+        return Arrays.copyOf(buf, size);
+    }
+
+    /**
+     * CANONICAL TREE ORDER
+     * Names are compared as unsigned bytes, except that a tree compares as if its name ended with '/'
+     * {so "a.txt" < "a" (a directory, i.e. "a/") < "a0"}
+     */
+    public static int compare(byte[] a, int aOff, int aLen, boolean aTree, byte[] b, int bOff, int bLen, boolean bTree){
+        int n = Math.min(aLen, bLen);
+        for(int i = 0; i < n; i++){
+            int c = (a[aOff + i] & 0xff) - (b[bOff + i] & 0xff);
+            if(c != 0){
+                return c;
+            }
+        }
+        //one name is a prefix of the other: compare the next char, '/' for a tree that ended
+        int ca = aLen > n ? a[aOff + n] & 0xff : (aTree ? '/' : 0);
+        int cb = bLen > n ? b[bOff + n] & 0xff : (bTree ? '/' : 0);
+        return ca - cb;
+    }
+
+    private static byte[] modeBytes(int mode){
+        return switch (mode){
+            case GitTreeLeaf.MODE_TREE -> TREE;
+            case GitTreeLeaf.MODE_FILE -> FILE;
+            case GitTreeLeaf.MODE_EXECUTABLE -> EXECUTABLE;
+            case GitTreeLeaf.MODE_SYMLINK -> SYMLINK;
+            case GitTreeLeaf.MODE_GITLINK -> GITLINK;
+            default -> mode(mode);
+        };
+    }
+
+    private static byte[] mode(int mode){
+        return Integer.toOctalString(mode).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private void ensure(int extra){
+        if(size + extra > buf.length){
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + extra));
+        }
+    }
+}
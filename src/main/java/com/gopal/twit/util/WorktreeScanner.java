@@ -0,0 +1,282 @@
+package com.gopal.twit.util;
+
+import com.gopal.twit.core.ignore.GitIgnore;
+import com.gopal.twit.core.index.FileStat;
+import com.gopal.twit.core.index.GitIndex;
+import com.gopal.twit.core.index.UntrackedCache;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Predicate;
+
+/**
+ * PARALLEL WORKTREE SCAN
+ * Walking a big worktree is mostly waiting on readdir() and lstat(), one directory after the other.
+ * Here every directory is its own fork-join task: it lists itself, lstats its children and forks a task
+ * per subdirectory, so idle workers steal whole subtrees from busy ones.
+ * The results are handed out in index order (the order git sorts paths in the index), which lets callers
+ * merge-join them against the sorted index entries instead of collecting every path in a set first.
+ * Results are pulled with next() while the pool keeps scanning ahead.
+ *
+ * {Index order is plain path order, which is NOT the same as walking directories depth first with sorted names:
+ * "a.txt" < "a/x" because '.' < '/'. So inside a directory, subdirectories sort as if their name ended with '/'}
+ *
+ * With an untracked cache (see UntrackedCache and cached()), a directory whose stat data hasn't changed is not listed:
+ * its tracked files are lstat'ed by name, its untracked files come from the cache, and so do its subdirectories.
+ * In that mode untracked files are matched against the ignore rules here, and only the ones that are not ignored
+ * are handed out, with a null stat {nobody needs the stat data of an untracked file}.
+ */
+public class WorktreeScanner implements AutoCloseable {
+
+    /**
+     * A file (or symlink) found in the worktree, with its lstat data
+     * path is relative to the worktree, '/' separated, like index entry names
+     */
+    public record Entry(String path, FileStat stat){}
+
+    //A child of a directory: either a file, or a subdirectory being scanned by its own task
+    private record Child(String sortKey, Entry file, DirTask dir){}
+
+    /**
+     * What a scan needs to use and refresh an untracked cache:
+     * the tracked file names of every directory, and the ignore rules for the untracked ones
+     */
+    public record Cached(UntrackedCache cache, Map<String, Set<String>> tracked, GitIgnore ignore, FileTime indexMtime){}
+
+    /**
+     * cache must have been validated against this index {see UntrackedCache.validate}
+     */
+    public static Cached cached(UntrackedCache cache, GitIndex index, GitIgnore ignore, FileTime indexMtime){
+        Map<String, Set<String>> tracked = new HashMap<>();
+        for(int i = 0; i < index.size(); i++){
+            String name = index.nameAt(i);
+            int slash = name.lastIndexOf('/');
+            tracked.computeIfAbsent(slash < 0 ? "" : name.substring(0, slash), k -> new HashSet<>())
+                    .add(name.substring(slash + 1));
+        }
+        return new Cached(cache, tracked, ignore, indexMtime);
+    }
+
+    private final ForkJoinPool pool;
+    private final Deque<Iterator<Child>> stack = new ArrayDeque<>();
+
+    private WorktreeScanner(ForkJoinPool pool){
+        this.pool = pool;
+    }
+
+    /**
+     * Starts scanning the worktree (or only prefix inside it, "" for everything) on `parallelism` workers
+     * The git directory is never entered, and skipDir is asked about every other directory
+     * (with its worktree relative path) before it is listed. It is called from the worker threads.
+     */
+    public static WorktreeScanner start(Path worktree, Path gitdir, String prefix, Predicate<String> skipDir, int parallelism){
+        return start(worktree, gitdir, prefix, skipDir, parallelism, null);
+    }
+
+    /**
+     * Same, going through an untracked cache (null for none), which is brought up to date as directories are listed
+     */
+    public static WorktreeScanner start(Path worktree, Path gitdir, String prefix, Predicate<String> skipDir, int parallelism,
+                                        Cached cached){
+        WorktreeScanner scanner = new WorktreeScanner(new ForkJoinPool(Math.max(1, parallelism)));
+        Path root = prefix.isEmpty() ? worktree : worktree.resolve(prefix);
+
+        FileStat rootStat = null;
+        if(cached != null){
+            try{
+                rootStat = FileStat.read(root);
+            } catch (IOException e){
+                //then the root is listed, and not cached
+            }
+        }
+        DirTask task = new DirTask(root, prefix, gitdir, skipDir, cached, rootStat);
+        scanner.pool.execute(task);
+        scanner.stack.push(List.of(new Child(prefix + "/", null, task)).iterator());
+        return scanner;
+    }
+
+    /**
+     * Next file in index order, or null once the whole tree has been handed out
+     */
+    public Entry next(){
+        while(!stack.isEmpty()){
+            Iterator<Child> it = stack.peek();
+            if(!it.hasNext()){
+                stack.pop();
+                continue;
+            }
+
+            Child c = it.next();
+            if(c.file() != null){
+                return c.file();
+            }
+            //descend: wait for that directory's listing (most likely long done by now)
+            stack.push(c.dir().join().iterator());
+        }
+        return null;
+    }
+
+    @Override
+    public void close(){
+        pool.shutdownNow();
+    }
+
+    /**
+     * Lists one directory, lstats its children and forks its subdirectories
+     * Returns the children sorted in index order (see PathOrder), without waiting for the subdirectories
+     */
+    private static class DirTask extends RecursiveTask<List<Child>>{
+        //ForkJoinTask is Serializable, a DirTask never gets serialized
+        private static final long serialVersionUID = 1L;
+
+        private final transient Path dir;
+        private final String rel;
+        private final transient Path gitdir;
+        private final transient Predicate<String> skipDir;
+        private final transient Cached cached;
+        private final transient FileStat stat;//of the directory itself, only read when there's a cache
+
+        DirTask(Path dir, String rel, Path gitdir, Predicate<String> skipDir, Cached cached, FileStat stat){
+            this.dir = dir;
+            this.rel = rel;
+            this.gitdir = gitdir;
+            this.skipDir = skipDir;
+            this.cached = cached;
+            this.stat = stat;
+        }
+
+        @Override
+        protected List<Child> compute(){
+            List<Child> children = new ArrayList<>();
+            Set<String> tracked = cached != null ? cached.tracked().getOrDefault(rel, Set.of()) : null;
+            List<String> untracked = new ArrayList<>();
+            List<String> subdirs = new ArrayList<>();
+
+            try{
+                UntrackedCache.Dir known = cached != null && stat != null
+                        ? cached.cache().lookup(rel, stat, cached.indexMtime()) : null;
+                if(known != null){
+                    fromCache(known, tracked, children);
+                    children.sort(Comparator.comparing(Child::sortKey, PathOrder.COMPARATOR));
+                    return children;
+                }
+
+                try(DirectoryStream<Path> files = Files.newDirectoryStream(dir)){
+                    for(Path p : files){
+                        String name = p.getFileName().toString();
+                        String path = rel.isEmpty() ? name : rel + "/" + name;
+
+                        FileStat st;
+                        try{
+                            st = FileStat.read(p);
+                        } catch (NoSuchFileException e){
+                            continue;//deleted while we were looking
+                        }
+
+                        if(st.modeType() == 0b0100){
+                            if(p.equals(gitdir)){
+                                continue;
+                            }
+                            subdirs.add(name);
+                            if(skipDir.test(path)){
+                                continue;
+                            }
+                            DirTask sub = new DirTask(p, path, gitdir, skipDir, cached, st);
+                            sub.fork();
+                            children.add(new Child(name + "/", null, sub));
+                        }
+                        else if(st.modeType() == 0b1000 || st.modeType() == 0b1010){
+                            if(tracked == null || tracked.contains(name)){
+                                children.add(new Child(name, new Entry(path, st), null));
+                            }
+                            else if(!IgnoreParser.checkIgnore(cached.ignore(), path)){
+                                untracked.add(name);
+                                children.add(new Child(name, new Entry(path, null), null));
+                            }
+                        }
+                        //anything else (sockets, fifos, devices) is not something git tracks
+                    }
+                }
+            } catch (NoSuchFileException e){
+                return children;
+            } catch (IOException e){
+                throw new UncheckedIOException(e);
+            }
+
+            if(cached != null && stat != null){
+                cached.cache().record(rel, stat, untracked, subdirs);
+            }
+            children.sort(Comparator.comparing(Child::sortKey, PathOrder.COMPARATOR));
+            return children;
+        }
+
+        /**
+         * The children of an unchanged directory, without listing it
+         * {skipDir is asked again about every subdirectory: it depends on what's tracked, which the stat data doesn't cover}
+         */
+        private void fromCache(UntrackedCache.Dir known, Set<String> tracked, List<Child> children) throws IOException{
+            for(String name : tracked){
+                FileStat st = statChild(name);
+                if(st != null && (st.modeType() == 0b1000 || st.modeType() == 0b1010)){
+                    children.add(new Child(name, new Entry(path(name), st), null));
+                }
+            }
+            for(String name : known.untracked()){
+                if(!tracked.contains(name)){
+                    children.add(new Child(name, new Entry(path(name), null), null));
+                }
+            }
+            for(String name : known.subdirs()){
+                String path = path(name);
+                if(skipDir.test(path)){
+                    continue;
+                }
+                FileStat st = statChild(name);
+                if(st != null && st.modeType() == 0b0100){
+                    DirTask sub = new DirTask(dir.resolve(name), path, gitdir, skipDir, cached, st);
+                    sub.fork();
+                    children.add(new Child(name + "/", null, sub));
+                }
+            }
+        }
+
+        private FileStat statChild(String name) throws IOException{
+            try{
+                return FileStat.read(dir.resolve(name));
+            } catch (NoSuchFileException e){
+                return null;
+            }
+        }
+
+        private String path(String name){
+            return rel.isEmpty() ? name : rel + "/" + name;
+        }
+    }
+
+    /**
+     * The usual skipDir: ignored directories are not entered, unless the index tracks something inside them
+     * {a tracked file stays tracked even if it matches an ignore rule, so we still have to look at it}
+     * A skipped directory takes its whole subtree with it: nothing below it is listed, stat'ed or matched
+     */
+    public static Predicate<String> ignoredDirs(GitIgnore ignore, GitIndex index){
+        Set<String> tracked = new HashSet<>();
+        for(int i = 0; i < index.size(); i++){
+            String name = index.nameAt(i);
+            for(int slash = name.lastIndexOf('/'); slash > 0; slash = name.lastIndexOf('/', slash - 1)){
+                if(!tracked.add(name.substring(0, slash))){
+                    break;//the parents of this one are in already
+                }
+            }
+        }
+
+        return dir -> !tracked.contains(dir) && IgnoreParser.checkIgnore(ignore, dir, true);
+    }
+}